@@ -53,6 +53,57 @@ public abstract class DomainDescriptor<RecordType> {
      */
     public abstract LabelMapper getLabelMapper(String outputName);
 
+    /**
+     * Create a new feature mapper for a given model graph input. In contrast to getFeatureMapper, the instance must
+     * not be shared with other callers. Mappers keep per-record state, so each thread that maps records in parallel
+     * needs its own instances. The default implementation returns getFeatureMapper(inputName). Domains that
+     * override this method should also override supportsParallelMapping.
+     *
+     * @param inputName The name of a graph input. Must match an input of the computational graph.
+     * @return A feature mapper, distinct from the instances returned by previous calls.
+     */
+    public FeatureMapper newFeatureMapper(String inputName) {
+        return getFeatureMapper(inputName);
+    }
+
+    /**
+     * Create a new label mapper for a given model graph output. The instance must not be shared with other callers.
+     * See newFeatureMapper.
+     *
+     * @param outputName The name of a graph output. Must match an output of the computational graph.
+     * @return A label mapper, distinct from the instances returned by previous calls.
+     */
+    public LabelMapper newLabelMapper(String outputName) {
+        return getLabelMapper(outputName);
+    }
+
+    /**
+     * Return true when newFeatureMapper and newLabelMapper return independent instances, and these instances map
+     * each record independently of the records mapped before it, so that records can be mapped with several threads
+     * and produce the same features as with one thread. See mapsRecordsIndependently.
+     *
+     * @return True if this domain supports mapping records in parallel.
+     */
+    public boolean supportsParallelMapping() {
+        return false;
+    }
+
+    /**
+     * Return true when no feature mapper of the graph inputs keeps state from one record to the next (see
+     * FeatureMapper.hasStateAcrossRecords). Each thread that maps records in parallel would otherwise see only a
+     * part of the records, and produce features that depend on the number of threads.
+     *
+     * @return True if the features of a record do not depend on the records mapped before it.
+     */
+    protected boolean mapsRecordsIndependently() {
+        for (String inputName : getComputationalGraph().getInputNames()) {
+            if (getFeatureMapper(inputName).hasStateAcrossRecords()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Get the prediction/model output interpreter. A prediction interpreter converts the raw
      * INDArray numeric predictions to instances of the BinaryClassPrediction class, in the process converting
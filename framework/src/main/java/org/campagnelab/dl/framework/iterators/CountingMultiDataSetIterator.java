@@ -0,0 +1,91 @@
+package org.campagnelab.dl.framework.iterators;
+
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.dataset.api.MultiDataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Counts the minibatches and examples read from another iterator, and optionally stops after a number of
+ * minibatches. Useful when the minibatches are consumed by code that does not report how many it used (e.g.,
+ * ParallelWrapper). next may be called from a prefetching thread, read the counts after the iterator is consumed.
+ *
+ * @author Fabien Campagne
+ */
+public class CountingMultiDataSetIterator implements MultiDataSetIterator {
+    private final MultiDataSetIterator delegate;
+    private final long maxMinibatches;
+    private volatile long numMinibatches;
+    private volatile long numExamples;
+
+    public CountingMultiDataSetIterator(MultiDataSetIterator delegate) {
+        this(delegate, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param delegate       iterator to read minibatches from.
+     * @param maxMinibatches number of minibatches after which hasNext returns false, until the next reset.
+     */
+    public CountingMultiDataSetIterator(MultiDataSetIterator delegate, long maxMinibatches) {
+        this.delegate = delegate;
+        this.maxMinibatches = maxMinibatches;
+    }
+
+    /**
+     * @return the number of minibatches read since the last reset.
+     */
+    public long getNumMinibatches() {
+        return numMinibatches;
+    }
+
+    /**
+     * @return the number of examples in the minibatches read since the last reset.
+     */
+    public long getNumExamples() {
+        return numExamples;
+    }
+
+    @Override
+    public MultiDataSet next(int num) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setPreProcessor(MultiDataSetPreProcessor preProcessor) {
+        delegate.setPreProcessor(preProcessor);
+    }
+
+    @Override
+    public boolean resetSupported() {
+        return delegate.resetSupported();
+    }
+
+    @Override
+    public boolean asyncSupported() {
+        return delegate.asyncSupported();
+    }
+
+    @Override
+    public void reset() {
+        delegate.reset();
+        numMinibatches = 0;
+        numExamples = 0;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return numMinibatches < maxMinibatches && delegate.hasNext();
+    }
+
+    @Override
+    public MultiDataSet next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        MultiDataSet ds = delegate.next();
+        numMinibatches++;
+        numExamples += ds.getFeatures(0).size(0);
+        return ds;
+    }
+}
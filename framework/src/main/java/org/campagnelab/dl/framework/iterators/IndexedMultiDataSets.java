@@ -0,0 +1,30 @@
+package org.campagnelab.dl.framework.iterators;
+
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+
+/**
+ * Minibatches that can be read in any order, such as the minibatches of a cache located with the .cfi index.
+ *
+ * @author Fabien Campagne
+ */
+public interface IndexedMultiDataSets {
+
+    /**
+     * @return the number of minibatches available.
+     */
+    int numDatasets();
+
+    /**
+     * Return a minibatch. Implementations must support calls from several threads.
+     *
+     * @param datasetIndex index of the minibatch, between 0 and numDatasets()-1.
+     * @return the minibatch.
+     */
+    MultiDataSet get(int datasetIndex);
+
+    /**
+     * @return false when the arrays of a minibatch returned by get can be overwritten by a later call, in which
+     * case minibatches must not be read ahead of the caller.
+     */
+    boolean asyncSupported();
+}
@@ -5,6 +5,8 @@ import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectList;
 import org.campagnelab.dl.framework.domains.DomainDescriptor;
 import org.campagnelab.dl.framework.mappers.FeatureMapper;
+import org.campagnelab.dl.framework.mappers.MappedDimensions;
+import org.campagnelab.dl.framework.mappers.RecordContext;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.dataset.api.MultiDataSet;
 import org.nd4j.linalg.dataset.api.MultiDataSetPreProcessor;
@@ -12,8 +14,16 @@ import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
 import org.nd4j.linalg.factory.Nd4j;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * Make a multi dataset iterator from an iterable over records.
@@ -31,6 +41,11 @@ public abstract class MultiDataSetIteratorAdapter<RecordType> implements MultiDa
 
     protected int batchSize = 32;
     private MultiDataSetPreProcessor preProcessor;
+    // map can be called from several threads, each fills its own buffers:
+    private final ThreadLocal<float[][]> mappingBuffers = new ThreadLocal<>();
+    // when not null, next() maps the records of a minibatch with several threads:
+    private ForkJoinPool mappingPool;
+    private BlockingQueue<MapperSet> mapperSets;
 
 
     public MultiDataSetIteratorAdapter(Iterable<RecordType> iterable, int batchSize, DomainDescriptor domainDescriptor) throws IOException {
@@ -49,12 +64,132 @@ public abstract class MultiDataSetIteratorAdapter<RecordType> implements MultiDa
 
     abstract public String getBasename();
 
+    /**
+     * @return the number of records per minibatch returned by next().
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Map the records of each minibatch returned by next() with several threads. Each thread maps a contiguous range
+     * of records with its own mappers (see newFeatureMappers), into disjoint rows of the minibatch. This has no
+     * effect unless the domain supports parallel mapping, which requires mappers without state across records
+     * (see FeatureMapper.hasStateAcrossRecords): a thread that only maps some of the records of a minibatch would
+     * otherwise produce different features than the thread that calls next().
+     *
+     * @param numThreads number of threads, 1 to map records in the thread that calls next().
+     */
+    public void setMappingThreads(int numThreads) {
+        if (mappingPool != null) {
+            mappingPool.shutdown();
+            mappingPool = null;
+            mapperSets = null;
+        }
+        if (numThreads > 1 && domainDescriptor.supportsParallelMapping()) {
+            mapperSets = new ArrayBlockingQueue<>(numThreads);
+            // create the mappers in this thread, domain descriptors are not thread-safe:
+            for (int i = 0; i < numThreads; i++) {
+                mapperSets.add(new MapperSet(newFeatureMappers(), newLabelMappers()));
+            }
+            mappingPool = new ForkJoinPool(numThreads);
+        }
+    }
+
     public MultiDataSet next(int batchSize) {
+        ObjectList<RecordType> buffer = nextRecords(batchSize);
+        final int numInputs = domainDescriptor.getComputationalGraph().getInputNames().length;
+        final int numLabels = domainDescriptor.getComputationalGraph().getOutputNames().length;
+        FeatureMapper[] featureMappers = new FeatureMapper[numInputs];
+        LabelMapper[] labelMappers = new LabelMapper[numLabels];
+        int index = 0;
+        for (String input : domainDescriptor.getComputationalGraph().getInputNames()) {
+            featureMappers[index++] = domainDescriptor.getFeatureMapper(input);
+        }
+        index = 0;
+        for (String label : domainDescriptor.getComputationalGraph().getOutputNames()) {
+            labelMappers[index++] = domainDescriptor.getLabelMapper(label);
+        }
+        return map(buffer, featureMappers, labelMappers, mappingPool != null);
+    }
+
+    /**
+     * Read the records of the next minibatch, without mapping them.
+     *
+     * @param batchSize maximum number of records to read.
+     * @return at most batchSize records.
+     */
+    public ObjectList<RecordType> nextRecords(int batchSize) {
         ObjectList<RecordType> buffer = new ObjectArrayList<RecordType>();
-        // allocate a new dataset with batchSize records and fill it with features and labels.
         while (recordIterator.hasNext() && buffer.size() < batchSize) {
             buffer.add(recordIterator.next());
         }
+        return buffer;
+    }
+
+    /**
+     * Skip records without mapping them.
+     *
+     * @param n number of records to skip.
+     * @return the number of records skipped, less than n when the input ends.
+     */
+    public long skip(long n) {
+        long skipped = 0;
+        while (skipped < n && recordIterator.hasNext()) {
+            recordIterator.next();
+            skipped++;
+        }
+        return skipped;
+    }
+
+    /**
+     * Create new feature mappers for the inputs of the graph, in the order of the graph inputs.
+     * See DomainDescriptor#newFeatureMapper.
+     *
+     * @return feature mappers that are not shared with any other caller.
+     */
+    public FeatureMapper[] newFeatureMappers() {
+        String[] inputNames = domainDescriptor.getComputationalGraph().getInputNames();
+        FeatureMapper[] featureMappers = new FeatureMapper[inputNames.length];
+        for (int i = 0; i < inputNames.length; i++) {
+            featureMappers[i] = domainDescriptor.newFeatureMapper(inputNames[i]);
+        }
+        return featureMappers;
+    }
+
+    /**
+     * Create new label mappers for the outputs of the graph, in the order of the graph outputs.
+     *
+     * @return label mappers that are not shared with any other caller.
+     */
+    public LabelMapper[] newLabelMappers() {
+        String[] outputNames = domainDescriptor.getComputationalGraph().getOutputNames();
+        LabelMapper[] labelMappers = new LabelMapper[outputNames.length];
+        for (int i = 0; i < outputNames.length; i++) {
+            labelMappers[i] = domainDescriptor.newLabelMapper(outputNames[i]);
+        }
+        return labelMappers;
+    }
+
+    /**
+     * Map records to a minibatch with the provided mappers. This method can be called concurrently from several
+     * threads, provided each thread uses its own mappers.
+     *
+     * @param buffer         records of the minibatch.
+     * @param featureMappers one feature mapper per graph input.
+     * @param labelMappers   one label mapper per graph output.
+     * @return the mapped minibatch.
+     */
+    public MultiDataSet map(List<RecordType> buffer, FeatureMapper[] featureMappers, LabelMapper[] labelMappers) {
+        return map(buffer, featureMappers, labelMappers, false);
+    }
+
+    /**
+     * Map records to a minibatch. When parallel, the records are mapped by the threads of the mapping pool, and the
+     * mappers provided are only used to allocate the minibatch.
+     */
+    private MultiDataSet map(List<RecordType> buffer, FeatureMapper[] featureMappers, LabelMapper[] labelMappers,
+                             boolean parallel) {
         int size = buffer.size();
 
         // allocate features and labels for the entire dataset:
@@ -64,14 +199,21 @@ public abstract class MultiDataSetIteratorAdapter<RecordType> implements MultiDa
         //size changed from batchSize. huge batchSize values useful for tests
         final int numInputs = domainDescriptor.getComputationalGraph().getInputNames().length;
         final int numLabels = domainDescriptor.getComputationalGraph().getOutputNames().length;
-        int numOutputs = numLabels;
 
         INDArray inputs[] = new INDArray[numInputs];
         INDArray inputMasks[] = new INDArray[numInputs];
         INDArray labels[] = new INDArray[numLabels];
         INDArray labelMasks[] = new INDArray[numLabels];
-        FeatureMapper[] featureMappers = new FeatureMapper[numInputs];
-        LabelMapper[] labelMappers = new LabelMapper[numOutputs];
+        // features are filled in reusable primitive arrays, then copied to ND4J once per minibatch:
+        float[][] buffers = mappingBuffers.get();
+        if (buffers == null || buffers.length < 2 * numInputs) {
+            buffers = new float[2 * numInputs][];
+            mappingBuffers.set(buffers);
+        }
+        float[][] bulkInputs = new float[numInputs][];
+        float[][] bulkMasks = new float[numInputs][];
+        int[][] inputShapes = new int[numInputs][];
+        int[][] inputMaskShapes = new int[numInputs][];
         int index = 0;
         boolean hasFeatureMask = false;
         boolean hasLabelMask = false;
@@ -84,41 +226,47 @@ public abstract class MultiDataSetIteratorAdapter<RecordType> implements MultiDa
                 }
                 inputShape[1]++;
             }
-            inputs[index] = Nd4j.zeros(inputShape);
-            featureMappers[index] = domainDescriptor.getFeatureMapper(input);
             boolean needMask = featureMappers[index].hasMask();
-            inputMasks[index] = needMask ? Nd4j.zeros(domainDescriptor.getInputMaskShape(size, input)) : null;
+            inputShapes[index] = inputShape;
+            // EOS padding shifts the features of each record, only the INDArray path supports it:
+            if (!padEos && rowLength(inputShape) == featureMappers[index].dimensions().numElements()) {
+                bulkInputs[index] = buffer(buffers, 2 * index, inputShape);
+            } else {
+                inputs[index] = Nd4j.zeros(inputShape);
+            }
+            if (needMask) {
+                inputMaskShapes[index] = domainDescriptor.getInputMaskShape(size, input);
+                if (rowLength(inputMaskShapes[index]) == maskRowLength(featureMappers[index])) {
+                    bulkMasks[index] = buffer(buffers, 2 * index + 1, inputMaskShapes[index]);
+                } else {
+                    inputMasks[index] = Nd4j.zeros(inputMaskShapes[index]);
+                }
+            }
             index += 1;
             hasFeatureMask |= needMask;
         }
         index = 0;
         for (String label : domainDescriptor.getComputationalGraph().getOutputNames()) {
             labels[index] = Nd4j.zeros(domainDescriptor.getLabelShape(size, label));
-            labelMappers[index] = domainDescriptor.getLabelMapper(label);
             boolean needMask = labelMappers[index].hasMask();
             labelMasks[index] = needMask ? Nd4j.zeros(domainDescriptor.getLabelMaskShape(size, label)) : null;
             index++;
             hasLabelMask |= needMask;
         }
-        int recordIndexInBatch = 0;
-        for (RecordType record : buffer) {
-
-            for (int j = 0; j < numInputs; j++) {
-                featureMappers[j].prepareToNormalize(record, recordIndexInBatch);
-                featureMappers[j].mapFeatures(record, inputs[j], recordIndexInBatch);
-                if (featureMappers[j].hasMask()) {
-                    featureMappers[j].maskFeatures(record, inputMasks[j], recordIndexInBatch);
-                }
+        final Minibatch minibatch = new Minibatch(inputs, inputMasks, labels, labelMasks, bulkInputs, bulkMasks,
+                inputShapes, inputMaskShapes);
+        if (parallel && size > 1) {
+            mapInParallel(buffer, minibatch);
+        } else {
+            mapRecords(buffer, 0, size, featureMappers, labelMappers, minibatch);
+        }
+        for (int j = 0; j < numInputs; j++) {
+            if (bulkInputs[j] != null) {
+                inputs[j] = toArray(bulkInputs[j], inputShapes[j]);
             }
-            for (int j = 0; j < numOutputs; j++) {
-                labelMappers[j].prepareToNormalize(record, recordIndexInBatch);
-                labelMappers[j].mapLabels(record, labels[j], recordIndexInBatch);
-                if (labelMappers[j].hasMask()) {
-                    labelMappers[j].maskLabels(record, labelMasks[j], recordIndexInBatch);
-                }
+            if (bulkMasks[j] != null) {
+                inputMasks[j] = toArray(bulkMasks[j], inputMaskShapes[j]);
             }
-            recordIndexInBatch += 1;
-
         }
         // Necessary for mixed datasets (i.e., where some mappers have masks and others don't) - will raise NPE otherwise
         if (hasFeatureMask) {
@@ -156,6 +304,159 @@ public abstract class MultiDataSetIteratorAdapter<RecordType> implements MultiDa
         return result;
     }
 
+    private void mapInParallel(List<RecordType> records, Minibatch minibatch) {
+        final int size = records.size();
+        final int numTasks = Math.min(size, mappingPool.getParallelism());
+        List<Callable<Void>> tasks = new ObjectArrayList<>(numTasks);
+        for (int t = 0; t < numTasks; t++) {
+            final int from = (int) ((long) size * t / numTasks);
+            final int to = (int) ((long) size * (t + 1) / numTasks);
+            tasks.add(() -> {
+                MapperSet mappers = mapperSets.take();
+                try {
+                    mapRecords(records, from, to, mappers.featureMappers, mappers.labelMappers, minibatch);
+                } finally {
+                    mapperSets.put(mappers);
+                }
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> task : mappingPool.invokeAll(tasks)) {
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while mapping features", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Unable to map features", e.getCause());
+        }
+    }
+
+    /**
+     * Map records [from, to) of a minibatch. Each record is written to its own row of the minibatch, so disjoint
+     * ranges can be mapped concurrently, with distinct mappers.
+     */
+    private void mapRecords(List<RecordType> records, int from, int to, FeatureMapper[] featureMappers,
+                            LabelMapper[] labelMappers, Minibatch minibatch) {
+        try {
+            for (int recordIndexInBatch = from; recordIndexInBatch < to; recordIndexInBatch++) {
+                final RecordType record = records.get(recordIndexInBatch);
+                // mappers share the data they derive from the record through its context:
+                RecordContext.begin(record);
+                mapRecord(record, recordIndexInBatch, featureMappers, labelMappers, minibatch);
+            }
+        } finally {
+            RecordContext.end();
+        }
+    }
+
+    private void mapRecord(RecordType record, int recordIndexInBatch, FeatureMapper[] featureMappers,
+                           LabelMapper[] labelMappers, Minibatch minibatch) {
+        final int numInputs = featureMappers.length;
+        final int numOutputs = labelMappers.length;
+        for (int j = 0; j < numInputs; j++) {
+            featureMappers[j].prepareToNormalize(record, recordIndexInBatch);
+            if (minibatch.bulkInputs[j] != null) {
+                featureMappers[j].mapFeatures(record, minibatch.bulkInputs[j],
+                        recordIndexInBatch * rowLength(minibatch.inputShapes[j]), recordIndexInBatch);
+            } else {
+                featureMappers[j].mapFeatures(record, minibatch.inputs[j], recordIndexInBatch);
+            }
+            if (featureMappers[j].hasMask()) {
+                if (minibatch.bulkMasks[j] != null) {
+                    featureMappers[j].maskFeatures(record, minibatch.bulkMasks[j],
+                            recordIndexInBatch * rowLength(minibatch.inputMaskShapes[j]), recordIndexInBatch);
+                } else {
+                    featureMappers[j].maskFeatures(record, minibatch.inputMasks[j], recordIndexInBatch);
+                }
+            }
+        }
+        for (int j = 0; j < numOutputs; j++) {
+            labelMappers[j].prepareToNormalize(record, recordIndexInBatch);
+            labelMappers[j].mapLabels(record, minibatch.labels[j], recordIndexInBatch);
+            if (labelMappers[j].hasMask()) {
+                labelMappers[j].maskLabels(record, minibatch.labelMasks[j], recordIndexInBatch);
+            }
+        }
+    }
+
+    private static int rowLength(int[] shape) {
+        int length = 1;
+        for (int i = 1; i < shape.length; i++) {
+            length *= shape[i];
+        }
+        return length;
+    }
+
+    /**
+     * The number of mask values a feature mapper writes per record, see FeatureMapper#maskFeatures(Object, float[], int, int).
+     */
+    private static int maskRowLength(FeatureMapper mapper) {
+        final MappedDimensions dimensions = mapper.dimensions();
+        return dimensions.numDimensions() == 1 ? mapper.numberOfFeatures() :
+                dimensions.numElements(dimensions.numDimensions());
+    }
+
+    /**
+     * Return a buffer large enough for a tensor of this shape, with the elements of the tensor set to zero.
+     */
+    private static float[] buffer(float[][] buffers, int index, int[] shape) {
+        final int length = rowLength(shape) * shape[0];
+        if (buffers[index] == null || buffers[index].length < length) {
+            buffers[index] = new float[length];
+        } else {
+            Arrays.fill(buffers[index], 0, length, 0F);
+        }
+        return buffers[index];
+    }
+
+    /**
+     * Copy the first elements of a buffer into a new array. The array is created through Nd4j, rather than written
+     * through its host buffer, so that backends that keep arrays on a device (CUDA) see the values.
+     */
+    private static INDArray toArray(float[] buffer, int[] shape) {
+        final int length = rowLength(shape) * shape[0];
+        return Nd4j.create(buffer.length == length ? buffer : Arrays.copyOf(buffer, length), shape, 'c');
+    }
+
+    /**
+     * The arrays of a minibatch being mapped.
+     */
+    private static class Minibatch {
+        final INDArray[] inputs;
+        final INDArray[] inputMasks;
+        final INDArray[] labels;
+        final INDArray[] labelMasks;
+        // primitive arrays used instead of inputs and inputMasks, when not null:
+        final float[][] bulkInputs;
+        final float[][] bulkMasks;
+        final int[][] inputShapes;
+        final int[][] inputMaskShapes;
+
+        Minibatch(INDArray[] inputs, INDArray[] inputMasks, INDArray[] labels, INDArray[] labelMasks,
+                  float[][] bulkInputs, float[][] bulkMasks, int[][] inputShapes, int[][] inputMaskShapes) {
+            this.inputs = inputs;
+            this.inputMasks = inputMasks;
+            this.labels = labels;
+            this.labelMasks = labelMasks;
+            this.bulkInputs = bulkInputs;
+            this.bulkMasks = bulkMasks;
+            this.inputShapes = inputShapes;
+            this.inputMaskShapes = inputMaskShapes;
+        }
+    }
+
+    private static class MapperSet {
+        final FeatureMapper[] featureMappers;
+        final LabelMapper[] labelMappers;
+
+        MapperSet(FeatureMapper[] featureMappers, LabelMapper[] labelMappers) {
+            this.featureMappers = featureMappers;
+            this.labelMappers = labelMappers;
+        }
+    }
+
     @Override
     public void setPreProcessor(MultiDataSetPreProcessor preProcessor) {
         this.preProcessor = preProcessor;
@@ -1,22 +1,20 @@
 package org.campagnelab.dl.framework.iterators;
 
-import it.unimi.dsi.fastutil.bytes.ByteArrayList;
-import it.unimi.dsi.fastutil.io.FastBufferedInputStream;
+import org.campagnelab.dl.framework.iterators.cache.BlockReadAhead;
+import org.campagnelab.dl.framework.iterators.cache.CacheFormat;
 import org.nd4j.linalg.dataset.api.MultiDataSet;
 import org.nd4j.linalg.dataset.api.MultiDataSetPreProcessor;
 import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayInputStream;
-import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.NoSuchElementException;
 import java.util.Properties;
 
 /**
- * An Iterator over mapped features (.cf/.cfp files).
+ * An Iterator over mapped features (.cf/.cfp files). Blocks are read and decompressed on a read-ahead thread.
  *
  * @author Fabien Campagne
  *         Created by fac2003 on 11/2/16.
@@ -26,10 +24,13 @@ public class MultiDatasetMappedFeaturesIterator implements MultiDataSetIterator
 
     private final int numExamples;
     private final int miniBatchSize;
-    private final FastBufferedInputStream inputStream;
+    private final String cfFilename;
+    private final CacheFormat format;
+    private BlockReadAhead readAhead;
     private final int cacheN;
     private int index;
     private MultiDataSetPreProcessor preProcessor;
+    private static final int READ_AHEAD = 4;
 
     public MultiDatasetMappedFeaturesIterator(String basename) {
         this(basename, Integer.MAX_VALUE);
@@ -42,7 +43,8 @@ public class MultiDatasetMappedFeaturesIterator implements MultiDataSetIterator
 
             miniBatchSize = Integer.parseInt(cfProperties.getProperty("miniBatchSize", "0"));
             numExamples = Integer.parseInt(cfProperties.getProperty("numRecords", "0"));
-            inputStream = new FastBufferedInputStream(new FileInputStream(basename + ".cf"));
+            format = CacheFormat.of(cfProperties);
+            cfFilename = basename + ".cf";
             this.cacheN = cacheN;
         } catch (Exception e) {
             throw new RuntimeException("Unable to create MappedFeaturesIterator ", e);
@@ -75,10 +77,9 @@ public class MultiDatasetMappedFeaturesIterator implements MultiDataSetIterator
     @Override
     public void reset() {
         index = 0;
-        try {
-            inputStream.position(0);
-        } catch (IOException e) {
-            LOG.error("Unable to reset iterator to position 0");
+        if (readAhead != null) {
+            readAhead.close();
+            readAhead = null;
         }
     }
 
@@ -89,41 +90,38 @@ public class MultiDatasetMappedFeaturesIterator implements MultiDataSetIterator
         return index < Math.min(numExamples, cacheN);
     }
 
-    byte[] length = new byte[4];
-    ByteArrayList content = new ByteArrayList();
-
     @Override
     public MultiDataSet next() {
         if (!hasNext()) {
             throw new NoSuchElementException();
         }
+        byte[] elements;
         try {
-            inputStream.read(length, 0, 4);
+            if (readAhead == null) {
+                readAhead = new BlockReadAhead(cfFilename, format, READ_AHEAD);
+            }
+            elements = readAhead.next();
         } catch (IOException e) {
-            LOG.error("Unable to read length from stream.", e);
+            throw new RuntimeException("Unable to read minibatch at index " + index, e);
         }
-        int l = (length[0] << 8 * 3 & 0xFF000000) |
-                (length[1] << 8 * 2 & 0x00FF0000) |
-                (length[2] << 8 & 0x0000FF00) |
-                (length[3] & 0x000000FF);
-        // resize the buffer if needed:
-        content.size(l);
-        final byte[] elements = content.elements();
-        try {
-            inputStream.read(elements);
-        } catch (IOException e) {
-            LOG.error("Unable to read content from stream at index " + index, e);
+        if (elements == null) {
+            throw new NoSuchElementException();
         }
-        MultiDataSet ds = new org.nd4j.linalg.dataset.MultiDataSet();
-        try (ByteArrayInputStream from = new ByteArrayInputStream(elements)) {
-            ds.load(from);
+        MultiDataSet ds;
+        try {
+            ds = format.deserialize(elements);
         } catch (IOException e) {
-            LOG.error("Unable to load dataset at index " + index, e);
+            throw new RuntimeException("Unable to load dataset at index " + index, e);
         }
         if (preProcessor != null) {
             preProcessor.preProcess(ds);
         }
         index += ds.getFeatures(0).size(0);
+        if (!hasNext()) {
+            // stop the read-ahead thread, reset() starts a new one:
+            readAhead.close();
+            readAhead = null;
+        }
         return ds;
 
     }
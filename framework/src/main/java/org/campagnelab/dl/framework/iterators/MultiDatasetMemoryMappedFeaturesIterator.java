@@ -0,0 +1,192 @@
+package org.campagnelab.dl.framework.iterators;
+
+import it.unimi.dsi.io.ByteBufferInputStream;
+import org.campagnelab.dl.framework.iterators.cache.MemoryMappedCache;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.dataset.api.MultiDataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+
+import java.io.IOException;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+
+/**
+ * An Iterator over mapped features (.cf/.cfp files) that memory-maps the .cf file. Minibatches are located with the
+ * .cfi offset index and deserialized directly from the mapped buffer, without intermediate copies. Reset is free, and
+ * any minibatch can be reached in constant time with seek. Iterators over the same cache share one mapping.
+ * When a ring size is set, minibatches of sparse caches are decoded into the arrays of minibatches read before by
+ * the same stream (next() uses one stream, get() one stream per thread), instead of new arrays. A minibatch is then
+ * only valid until ringSize other minibatches have been read by the same stream.
+ *
+ * @author Fabien Campagne
+ */
+public class MultiDatasetMemoryMappedFeaturesIterator implements SeekableMultiDataSetIterator, IndexedMultiDataSets {
+
+    private final MemoryMappedCache cache;
+    private final Reader reader;
+    // get may be called from several threads, each reads through its own copy of the mapping:
+    private final ThreadLocal<Reader> readers;
+    private int ringSize;
+    private final int numExamples;
+    private final int miniBatchSize;
+    private final int cacheN;
+    private int datasetIndex;
+    private int index;
+    private MultiDataSetPreProcessor preProcessor;
+
+    public MultiDatasetMemoryMappedFeaturesIterator(String basename) {
+        this(basename, Integer.MAX_VALUE);
+    }
+
+    public MultiDatasetMemoryMappedFeaturesIterator(String basename, int cacheN) {
+        this(openCache(basename), cacheN);
+    }
+
+    public MultiDatasetMemoryMappedFeaturesIterator(MemoryMappedCache cache, int cacheN) {
+        this.cache = cache;
+        this.cacheN = cacheN;
+        Properties cfProperties = cache.getProperties();
+        miniBatchSize = Integer.parseInt(cfProperties.getProperty("miniBatchSize", "0"));
+        numExamples = Integer.parseInt(cfProperties.getProperty("numRecords", "0"));
+        reader = new Reader();
+        readers = ThreadLocal.withInitial(Reader::new);
+    }
+
+    /**
+     * Reads minibatches through one stream over the mapping, reusing the arrays of a ring of minibatches.
+     */
+    private class Reader {
+        private final ByteBufferInputStream stream = cache.newStream();
+        private MultiDataSet[] ring = new MultiDataSet[0];
+        private int ringIndex;
+
+        MultiDataSet load(int datasetIndex) throws IOException {
+            if (ring.length != ringSize) {
+                ring = new MultiDataSet[ringSize];
+                ringIndex = 0;
+            }
+            if (ring.length == 0) {
+                return cache.load(stream, datasetIndex);
+            }
+            final int slot = ringIndex;
+            ringIndex = (ringIndex + 1) % ring.length;
+            ring[slot] = cache.load(stream, datasetIndex, ring[slot]);
+            return ring[slot];
+        }
+    }
+
+    /**
+     * Reuse the arrays of minibatches read before, instead of allocating new arrays for each minibatch. Consumers
+     * must not hold more than ringSize minibatches read by a stream, including minibatches read ahead, for instance
+     * by a PrefetchingMultiDataSetIterator. Only sparse caches reuse arrays.
+     *
+     * @param ringSize number of minibatches whose arrays are reused by each stream, 0 to allocate new arrays for
+     *                 each minibatch (the default).
+     */
+    public void setRingSize(int ringSize) {
+        this.ringSize = ringSize;
+    }
+
+    private static MemoryMappedCache openCache(String basename) {
+        try {
+            return MemoryMappedCache.open(basename);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to create MultiDatasetMemoryMappedFeaturesIterator ", e);
+        }
+    }
+
+    @Override
+    public MultiDataSet next(int miniBatchSize) {
+        if (miniBatchSize != this.miniBatchSize) {
+            throw new IllegalArgumentException("numExamples must match the cached minibatchSize: " + miniBatchSize);
+        }
+        return next();
+    }
+
+    @Override
+    public void setPreProcessor(MultiDataSetPreProcessor preProcessor) {
+        this.preProcessor = preProcessor;
+    }
+
+    @Override
+    public boolean resetSupported() {
+        return true;
+    }
+
+    public boolean asyncSupported() {
+        return true;
+    }
+
+    @Override
+    public void reset() {
+        seek(0);
+    }
+
+    /**
+     * Position the iterator so that the next call to next() returns the minibatch at datasetIndex.
+     *
+     * @param datasetIndex index of a minibatch in the cache.
+     */
+    public void seek(int datasetIndex) {
+        this.datasetIndex = datasetIndex;
+        // all minibatches but the last one hold miniBatchSize records:
+        this.index = datasetIndex * miniBatchSize;
+    }
+
+    @Override
+    public void seekMinibatch(int minibatchIndex) {
+        seek(minibatchIndex);
+    }
+
+    /**
+     * @return The index of the minibatch that the next call to next() will return.
+     */
+    public int getDatasetIndex() {
+        return datasetIndex;
+    }
+
+    /**
+     * @return The number of minibatches this iterator returns: minibatches stored in the cache, up to cacheN records.
+     */
+    @Override
+    public int numDatasets() {
+        final long numRecords = Math.min(numExamples, cacheN);
+        return (int) Math.min(cache.numDatasets(), (numRecords + miniBatchSize - 1) / Math.max(1, miniBatchSize));
+    }
+
+    /**
+     * Read a minibatch without changing the position of the iterator. Safe to call from several threads.
+     */
+    @Override
+    public MultiDataSet get(int datasetIndex) {
+        try {
+            return readers.get().load(datasetIndex);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to load dataset at index " + datasetIndex, e);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return datasetIndex < cache.numDatasets() && index < Math.min(numExamples, cacheN);
+    }
+
+    @Override
+    public MultiDataSet next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        MultiDataSet ds;
+        try {
+            ds = reader.load(datasetIndex);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to load dataset at index " + datasetIndex, e);
+        }
+        if (preProcessor != null) {
+            preProcessor.preProcess(ds);
+        }
+        datasetIndex += 1;
+        index += ds.getFeatures(0).size(0);
+        return ds;
+    }
+}
@@ -0,0 +1,223 @@
+package org.campagnelab.dl.framework.iterators;
+
+import it.unimi.dsi.io.ByteBufferInputStream;
+import org.campagnelab.dl.framework.iterators.cache.MemoryMappedCache;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.dataset.api.MultiDataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.INDArrayIndex;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+
+/**
+ * An Iterator over mapped features that returns minibatches of any size. The blocks stored in the cache are treated
+ * as blocks of rows (records): minibatches are assembled by slicing and concatenating rows of consecutive blocks.
+ * A cache written with one block size can therefore serve every minibatch size.
+ *
+ * @author Fabien Campagne
+ */
+public class MultiDatasetRowBlockIterator implements SeekableMultiDataSetIterator, IndexedMultiDataSets {
+
+    private final MemoryMappedCache cache;
+    private final ByteBufferInputStream stream;
+    private final int rowBlockSize;
+    private final int numExamples;
+    private final int miniBatchSize;
+    private long position;
+    private int blockIndex = -1;
+    private MultiDataSet block;
+    private MultiDataSetPreProcessor preProcessor;
+
+    public MultiDatasetRowBlockIterator(String basename, int miniBatchSize, int cacheN) {
+        this(openCache(basename), miniBatchSize, cacheN);
+    }
+
+    public MultiDatasetRowBlockIterator(MemoryMappedCache cache, int miniBatchSize, int cacheN) {
+        this.cache = cache;
+        this.miniBatchSize = miniBatchSize;
+        Properties cfProperties = cache.getProperties();
+        rowBlockSize = Integer.parseInt(cfProperties.getProperty("miniBatchSize", "0"));
+        numExamples = (int) Math.min(Long.parseLong(cfProperties.getProperty("numRecords", "0")), cacheN);
+        stream = cache.newStream();
+    }
+
+    private static MemoryMappedCache openCache(String basename) {
+        try {
+            return MemoryMappedCache.open(basename);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to create MultiDatasetRowBlockIterator ", e);
+        }
+    }
+
+    /**
+     * Position the iterator so that the next minibatch starts with the given record.
+     *
+     * @param recordIndex index of a record in the cache.
+     */
+    public void seek(long recordIndex) {
+        position = recordIndex;
+    }
+
+    @Override
+    public void seekMinibatch(int minibatchIndex) {
+        seek((long) minibatchIndex * miniBatchSize);
+    }
+
+    /**
+     * @return the index of the record that the next minibatch starts with.
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    @Override
+    public int numDatasets() {
+        return (numExamples + miniBatchSize - 1) / miniBatchSize;
+    }
+
+    /**
+     * Return the minibatch at datasetIndex. Moves the position of the iterator after this minibatch.
+     */
+    @Override
+    public synchronized MultiDataSet get(int datasetIndex) {
+        seek((long) datasetIndex * miniBatchSize);
+        return next(miniBatchSize);
+    }
+
+    public int getRowBlockSize() {
+        return rowBlockSize;
+    }
+
+    @Override
+    public MultiDataSet next(int num) {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final int size = (int) Math.min(num, numExamples - position);
+        List<MultiDataSet> pieces = new ArrayList<>();
+        int remaining = size;
+        while (remaining > 0) {
+            MultiDataSet rows = loadBlock((int) (position / rowBlockSize));
+            final int firstRow = (int) (position % rowBlockSize);
+            final int blockRows = rows.getFeatures(0).size(0);
+            final int take = Math.min(remaining, blockRows - firstRow);
+            if (take <= 0) {
+                throw new IllegalStateException("Cache holds fewer records than recorded in its .cfp properties.");
+            }
+            pieces.add(firstRow == 0 && take == blockRows ? rows : slice(rows, firstRow, firstRow + take));
+            position += take;
+            remaining -= take;
+        }
+        MultiDataSet ds = pieces.size() == 1 ? pieces.get(0) : concat(pieces);
+        if (preProcessor != null) {
+            preProcessor.preProcess(ds);
+        }
+        return ds;
+    }
+
+    @Override
+    public MultiDataSet next() {
+        return next(miniBatchSize);
+    }
+
+    private MultiDataSet loadBlock(int index) {
+        if (index != blockIndex) {
+            try {
+                block = cache.load(stream, index);
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to load dataset at index " + index, e);
+            }
+            blockIndex = index;
+        }
+        return block;
+    }
+
+    private static MultiDataSet slice(MultiDataSet ds, int from, int to) {
+        return new org.nd4j.linalg.dataset.MultiDataSet(slice(ds.getFeatures(), from, to), slice(ds.getLabels(), from, to),
+                slice(ds.getFeaturesMaskArrays(), from, to), slice(ds.getLabelsMaskArrays(), from, to));
+    }
+
+    private static INDArray[] slice(INDArray[] arrays, int from, int to) {
+        if (arrays == null) {
+            return null;
+        }
+        INDArray[] result = new INDArray[arrays.length];
+        for (int i = 0; i < arrays.length; i++) {
+            if (arrays[i] != null) {
+                INDArrayIndex[] indices = new INDArrayIndex[arrays[i].rank()];
+                indices[0] = NDArrayIndex.interval(from, to);
+                for (int d = 1; d < indices.length; d++) {
+                    indices[d] = NDArrayIndex.all();
+                }
+                // copy the rows, so that the minibatch does not keep the whole block alive:
+                result[i] = arrays[i].get(indices).dup();
+            }
+        }
+        return result;
+    }
+
+    private static MultiDataSet concat(List<MultiDataSet> pieces) {
+        final int n = pieces.size();
+        INDArray[][] features = new INDArray[n][];
+        INDArray[][] labels = new INDArray[n][];
+        INDArray[][] featuresMasks = new INDArray[n][];
+        INDArray[][] labelsMasks = new INDArray[n][];
+        for (int p = 0; p < n; p++) {
+            features[p] = pieces.get(p).getFeatures();
+            labels[p] = pieces.get(p).getLabels();
+            featuresMasks[p] = pieces.get(p).getFeaturesMaskArrays();
+            labelsMasks[p] = pieces.get(p).getLabelsMaskArrays();
+        }
+        return new org.nd4j.linalg.dataset.MultiDataSet(concat(features), concat(labels), concat(featuresMasks),
+                concat(labelsMasks));
+    }
+
+    private static INDArray[] concat(INDArray[][] pieces) {
+        if (pieces[0] == null) {
+            return null;
+        }
+        INDArray[] result = new INDArray[pieces[0].length];
+        for (int i = 0; i < result.length; i++) {
+            if (pieces[0][i] != null) {
+                INDArray[] rows = new INDArray[pieces.length];
+                for (int p = 0; p < pieces.length; p++) {
+                    rows[p] = pieces[p][i];
+                }
+                result[i] = Nd4j.concat(0, rows);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void setPreProcessor(MultiDataSetPreProcessor preProcessor) {
+        this.preProcessor = preProcessor;
+    }
+
+    @Override
+    public boolean resetSupported() {
+        return true;
+    }
+
+    @Override
+    public boolean asyncSupported() {
+        return true;
+    }
+
+    @Override
+    public void reset() {
+        seek(0);
+    }
+
+    @Override
+    public boolean hasNext() {
+        return position < numExamples;
+    }
+}
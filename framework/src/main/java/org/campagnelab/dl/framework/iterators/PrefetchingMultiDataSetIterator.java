@@ -0,0 +1,248 @@
+package org.campagnelab.dl.framework.iterators;
+
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.dataset.api.MultiDataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.NoSuchElementException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads and decodes minibatches ahead of the trainer, in background threads. At most queueDepth minibatches are
+ * prepared in advance, and minibatches are returned in the order of the source iterator. When the source supports
+ * random access (IndexedMultiDataSets), minibatches are decoded by several threads in parallel. Other sources are
+ * read by a single thread. The iterator counts how often the caller had to wait for a minibatch (a stall), which
+ * shows whether reading data limits the speed of training.
+ *
+ * @author Fabien Campagne
+ */
+public class PrefetchingMultiDataSetIterator implements SeekableMultiDataSetIterator, Closeable {
+    static private Logger LOG = LoggerFactory.getLogger(PrefetchingMultiDataSetIterator.class);
+    private static final MultiDataSet END = new org.nd4j.linalg.dataset.MultiDataSet();
+    private static final AtomicInteger POOL_INDEX = new AtomicInteger();
+
+    private final MultiDataSetIterator source;
+    private final IndexedMultiDataSets indexed;
+    private final int queueDepth;
+    private final int numThreads;
+    private final ArrayDeque<Future<MultiDataSet>> pending = new ArrayDeque<>();
+    private ExecutorService executor;
+    private MultiDataSet head;
+    private boolean sourceExhausted;
+    private int nextIndex;
+    private int numDatasets;
+    private MultiDataSetPreProcessor preProcessor;
+    private long numServed;
+    private long numStalls;
+    private long stallNanos;
+
+    /**
+     * Prefetch the minibatches of source.
+     *
+     * @param source     minibatches to prefetch.
+     * @param queueDepth maximum number of minibatches read in advance.
+     * @param numThreads number of threads that decode minibatches. Only sources that implement IndexedMultiDataSets
+     *                   can be decoded by more than one thread.
+     */
+    public PrefetchingMultiDataSetIterator(MultiDataSetIterator source, int queueDepth, int numThreads) {
+        if (queueDepth < 1) {
+            throw new IllegalArgumentException("queueDepth must be at least 1: " + queueDepth);
+        }
+        this.source = source;
+        this.queueDepth = queueDepth;
+        this.indexed = numThreads > 1 && source instanceof IndexedMultiDataSets ? (IndexedMultiDataSets) source : null;
+        this.numThreads = indexed == null ? 1 : Math.min(numThreads, queueDepth);
+    }
+
+    private void start() {
+        if (executor == null) {
+            final int poolIndex = POOL_INDEX.incrementAndGet();
+            final AtomicInteger threadIndex = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(numThreads, runnable -> {
+                Thread thread = new Thread(runnable, "prefetch-" + poolIndex + "-" + threadIndex.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            if (indexed != null) {
+                numDatasets = indexed.numDatasets();
+            }
+        }
+        // keep queueDepth minibatches in flight:
+        while (pending.size() < queueDepth && !sourceExhausted) {
+            if (indexed != null) {
+                if (nextIndex >= numDatasets) {
+                    sourceExhausted = true;
+                    break;
+                }
+                final int datasetIndex = nextIndex++;
+                pending.add(executor.submit(() -> indexed.get(datasetIndex)));
+            } else {
+                // a single thread runs these tasks, in the order they were submitted:
+                pending.add(executor.submit(() -> source.hasNext() ? source.next() : END));
+            }
+        }
+    }
+
+    private MultiDataSet head() {
+        if (head == null) {
+            start();
+            Future<MultiDataSet> future = pending.poll();
+            if (future == null) {
+                head = END;
+                return head;
+            }
+            try {
+                if (!future.isDone()) {
+                    final long start = System.nanoTime();
+                    head = future.get();
+                    // waiting to learn that the source is exhausted is not a stall:
+                    if (head != END) {
+                        numStalls++;
+                        stallNanos += System.nanoTime() - start;
+                    }
+                } else {
+                    head = future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for a minibatch", e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Unable to read minibatch", e.getCause());
+            }
+            if (head == END) {
+                sourceExhausted = true;
+            }
+        }
+        return head;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return head() != END;
+    }
+
+    @Override
+    public MultiDataSet next() {
+        MultiDataSet ds = head();
+        if (ds == END) {
+            throw new NoSuchElementException();
+        }
+        head = null;
+        numServed++;
+        start();
+        if (preProcessor != null) {
+            preProcessor.preProcess(ds);
+        }
+        return ds;
+    }
+
+    @Override
+    public MultiDataSet next(int num) {
+        return next();
+    }
+
+    /**
+     * @return the number of minibatches returned since the last reset.
+     */
+    public long getNumServed() {
+        return numServed;
+    }
+
+    /**
+     * @return the number of times the caller waited for a minibatch since the last reset.
+     */
+    public long getNumStalls() {
+        return numStalls;
+    }
+
+    /**
+     * @return the time the caller spent waiting for minibatches since the last reset, in milliseconds.
+     */
+    public long getStallMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(stallNanos);
+    }
+
+    @Override
+    public void setPreProcessor(MultiDataSetPreProcessor preProcessor) {
+        this.preProcessor = preProcessor;
+    }
+
+    @Override
+    public boolean resetSupported() {
+        return source.resetSupported();
+    }
+
+    @Override
+    public boolean asyncSupported() {
+        // already asynchronous:
+        return false;
+    }
+
+    @Override
+    public void reset() {
+        awaitPending();
+        if (numServed > 0) {
+            LOG.info(String.format("Waited for data %d times in %d minibatches (%d ms).", numStalls, numServed,
+                    getStallMillis()));
+        }
+        head = null;
+        sourceExhausted = false;
+        nextIndex = 0;
+        numServed = 0;
+        numStalls = 0;
+        stallNanos = 0;
+        source.reset();
+        if (indexed != null) {
+            numDatasets = indexed.numDatasets();
+        }
+    }
+
+    /**
+     * Position the source at a minibatch, and prefetch from there. Sources that are not seekable are read from
+     * their first minibatch.
+     */
+    @Override
+    public void seekMinibatch(int minibatchIndex) {
+        awaitPending();
+        head = null;
+        sourceExhausted = false;
+        SeekableMultiDataSetIterator.seek(source, minibatchIndex);
+        nextIndex = minibatchIndex;
+        if (indexed != null) {
+            numDatasets = indexed.numDatasets();
+        }
+    }
+
+    private void awaitPending() {
+        // tasks in flight use the source, wait for them before moving it:
+        for (Future<MultiDataSet> future : pending) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while resetting prefetching iterator", e);
+            } catch (ExecutionException e) {
+                // ignored, the minibatch is not needed.
+            }
+        }
+        pending.clear();
+    }
+
+    /**
+     * Stop the prefetching threads.
+     */
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        pending.clear();
+        head = null;
+    }
+}
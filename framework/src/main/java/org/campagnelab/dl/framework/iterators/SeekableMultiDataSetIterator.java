@@ -0,0 +1,40 @@
+package org.campagnelab.dl.framework.iterators;
+
+import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+
+/**
+ * An iterator that can be positioned at a minibatch of the current pass, without reading the minibatches before it.
+ * Used to resume training in the middle of an epoch.
+ *
+ * @author Fabien Campagne
+ */
+public interface SeekableMultiDataSetIterator extends MultiDataSetIterator {
+
+    /**
+     * Position the iterator so that the next call to next() returns the minibatch at minibatchIndex in the order
+     * of the current pass. Minibatches already returned by the pass do not matter.
+     *
+     * @param minibatchIndex number of minibatches of the pass to skip.
+     */
+    void seekMinibatch(int minibatchIndex);
+
+    /**
+     * Position any iterator at a minibatch of its current pass. Iterators that are not seekable are reset, then
+     * read up to the minibatch.
+     *
+     * @param iterator       iterator to position.
+     * @param minibatchIndex number of minibatches of the pass to skip.
+     */
+    static void seek(MultiDataSetIterator iterator, int minibatchIndex) {
+        if (iterator instanceof SeekableMultiDataSetIterator) {
+            ((SeekableMultiDataSetIterator) iterator).seekMinibatch(minibatchIndex);
+            return;
+        }
+        if (iterator.resetSupported()) {
+            iterator.reset();
+        }
+        for (int i = 0; i < minibatchIndex && iterator.hasNext(); i++) {
+            iterator.next();
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package org.campagnelab.dl.framework.iterators;
+
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.util.XorShift1024StarRandom;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.dataset.api.MultiDataSetPreProcessor;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * Reads minibatches in a different order at each epoch. Each epoch permutes the order of the minibatches. When the
+ * window is larger than one, the records of window consecutive minibatches (in permuted order) are also shuffled
+ * before being split back into minibatches. The permutations only depend on the seed, on the epoch and on the
+ * position of the window in the epoch, so an epoch can be replayed exactly with setEpoch, and resumed from any
+ * minibatch with seekMinibatch. reset() moves to the next epoch.
+ *
+ * @author Fabien Campagne
+ */
+public class ShufflingMultiDataSetIterator implements SeekableMultiDataSetIterator {
+
+    private final IndexedMultiDataSets source;
+    private final long seed;
+    private final int window;
+    private int epoch;
+    private int[] order;
+    private int position;
+    private final ArrayDeque<MultiDataSet> shuffled = new ArrayDeque<>();
+    private MultiDataSetPreProcessor preProcessor;
+
+    /**
+     * @param source minibatches to read.
+     * @param seed   seed of the permutations.
+     * @param window number of minibatches whose records are shuffled together, 1 to only permute minibatches.
+     */
+    public ShufflingMultiDataSetIterator(IndexedMultiDataSets source, long seed, int window) {
+        this.source = source;
+        this.seed = seed;
+        this.window = Math.max(1, window);
+        setEpoch(0);
+    }
+
+    /**
+     * Start reading the given epoch, from its first minibatch.
+     *
+     * @param epoch index of the epoch, determines the order of minibatches and records.
+     */
+    public void setEpoch(int epoch) {
+        this.epoch = epoch;
+        order = new int[source.numDatasets()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        IntArrays.shuffle(order, new XorShift1024StarRandom(seed ^ (epoch * 0x9E3779B97F4A7C15L)));
+        position = 0;
+        shuffled.clear();
+    }
+
+    public int getEpoch() {
+        return epoch;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !shuffled.isEmpty() || position < order.length;
+    }
+
+    @Override
+    public MultiDataSet next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        MultiDataSet ds;
+        if (window == 1) {
+            ds = source.get(order[position++]);
+        } else {
+            if (shuffled.isEmpty()) {
+                // rows of each window are shuffled independently of the windows before it:
+                Random random = new XorShift1024StarRandom(seed ^ (epoch * 0x9E3779B97F4A7C15L) ^
+                        ((position / window + 1) * 0xC2B2AE3D27D4EB4FL));
+                List<MultiDataSet> blocks = new ArrayList<>();
+                while (blocks.size() < window && position < order.length) {
+                    blocks.add(source.get(order[position++]));
+                }
+                shuffled.addAll(shuffleRows(blocks, random));
+            }
+            ds = shuffled.poll();
+        }
+        if (preProcessor != null) {
+            preProcessor.preProcess(ds);
+        }
+        return ds;
+    }
+
+    @Override
+    public MultiDataSet next(int num) {
+        return next();
+    }
+
+    /**
+     * Position the iterator at a minibatch of the current epoch. Only the window that contains the minibatch is
+     * read.
+     */
+    @Override
+    public void seekMinibatch(int minibatchIndex) {
+        setEpoch(epoch);
+        position = Math.min(order.length, minibatchIndex / window * window);
+        for (int i = minibatchIndex % window; i > 0 && hasNext(); i--) {
+            next();
+        }
+    }
+
+    /**
+     * Shuffle the records of several minibatches, then split them in minibatches of the same sizes.
+     */
+    static List<MultiDataSet> shuffleRows(List<MultiDataSet> blocks, Random random) {
+        int numRows = 0;
+        for (MultiDataSet block : blocks) {
+            numRows += block.getFeatures(0).size(0);
+        }
+        int[] permutation = new int[numRows];
+        for (int i = 0; i < numRows; i++) {
+            permutation[i] = i;
+        }
+        IntArrays.shuffle(permutation, random);
+        final int n = blocks.size();
+        INDArray[][] features = new INDArray[n][];
+        INDArray[][] labels = new INDArray[n][];
+        INDArray[][] featuresMasks = new INDArray[n][];
+        INDArray[][] labelsMasks = new INDArray[n][];
+        for (int b = 0; b < n; b++) {
+            features[b] = blocks.get(b).getFeatures();
+            labels[b] = blocks.get(b).getLabels();
+            featuresMasks[b] = blocks.get(b).getFeaturesMaskArrays();
+            labelsMasks[b] = blocks.get(b).getLabelsMaskArrays();
+        }
+        INDArray[][] shuffledFeatures = shuffleRows(features, permutation);
+        INDArray[][] shuffledLabels = shuffleRows(labels, permutation);
+        INDArray[][] shuffledFeaturesMasks = shuffleRows(featuresMasks, permutation);
+        INDArray[][] shuffledLabelsMasks = shuffleRows(labelsMasks, permutation);
+        List<MultiDataSet> result = new ArrayList<>();
+        for (int b = 0; b < n; b++) {
+            result.add(new org.nd4j.linalg.dataset.MultiDataSet(shuffledFeatures[b], shuffledLabels[b],
+                    shuffledFeaturesMasks == null ? null : shuffledFeaturesMasks[b],
+                    shuffledLabelsMasks == null ? null : shuffledLabelsMasks[b]));
+        }
+        return result;
+    }
+
+    /**
+     * Permute the rows of arrays[block][slot] across blocks. Returns the permuted arrays, indexed as the input.
+     */
+    private static INDArray[][] shuffleRows(INDArray[][] arrays, int[] permutation) {
+        if (arrays[0] == null) {
+            return null;
+        }
+        final int numBlocks = arrays.length;
+        final int numSlots = arrays[0].length;
+        INDArray[][] result = new INDArray[numBlocks][numSlots];
+        for (int slot = 0; slot < numSlots; slot++) {
+            if (arrays[0][slot] == null) {
+                continue;
+            }
+            // rows of all the blocks, one after the other:
+            final int[] shape = arrays[0][slot].shape();
+            final int rowLength = arrays[0][slot].length() / shape[0];
+            float[] rows = new float[permutation.length * rowLength];
+            int offset = 0;
+            for (int b = 0; b < numBlocks; b++) {
+                float[] values = arrays[b][slot].dup('c').data().asFloat();
+                System.arraycopy(values, 0, rows, offset, values.length);
+                offset += values.length;
+            }
+            int row = 0;
+            for (int b = 0; b < numBlocks; b++) {
+                final int blockRows = arrays[b][slot].size(0);
+                float[] values = new float[blockRows * rowLength];
+                for (int r = 0; r < blockRows; r++) {
+                    System.arraycopy(rows, permutation[row++] * rowLength, values, r * rowLength, rowLength);
+                }
+                int[] blockShape = shape.clone();
+                blockShape[0] = blockRows;
+                result[b][slot] = Nd4j.create(values, blockShape, 'c');
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void setPreProcessor(MultiDataSetPreProcessor preProcessor) {
+        this.preProcessor = preProcessor;
+    }
+
+    @Override
+    public boolean resetSupported() {
+        return true;
+    }
+
+    @Override
+    public boolean asyncSupported() {
+        // windows larger than one copy the rows of the source minibatches to new arrays:
+        return window > 1 || source.asyncSupported();
+    }
+
+    /**
+     * Start the next epoch.
+     */
+    @Override
+    public void reset() {
+        setEpoch(epoch + 1);
+    }
+}
@@ -0,0 +1,56 @@
+package org.campagnelab.dl.framework.iterators.cache;
+
+import java.io.IOException;
+
+/**
+ * Compresses the minibatch blocks stored in a .cf file. The codec used to write a cache is recorded in the .cfp
+ * properties (see CacheFormat), so that readers can decompress blocks transparently.
+ *
+ * @author Fabien Campagne
+ */
+public interface BlockCodec {
+
+    /**
+     * @return the name of this codec, as recorded in .cfp properties.
+     */
+    String name();
+
+    /**
+     * Compress a block.
+     *
+     * @param block uncompressed bytes.
+     * @return compressed bytes.
+     */
+    byte[] compress(byte[] block);
+
+    /**
+     * Decompress a block.
+     *
+     * @param compressed         buffer holding the compressed block.
+     * @param offset             position of the compressed block in the buffer.
+     * @param length             number of compressed bytes.
+     * @param uncompressedLength number of bytes in the uncompressed block.
+     * @return uncompressed bytes.
+     * @throws IOException if the block is corrupted.
+     */
+    byte[] decompress(byte[] compressed, int offset, int length, int uncompressedLength) throws IOException;
+
+    /**
+     * Return the codec with the given name.
+     *
+     * @param name one of none, deflate or lz.
+     * @return a codec.
+     */
+    static BlockCodec forName(String name) {
+        switch (name) {
+            case IdentityBlockCodec.NAME:
+                return new IdentityBlockCodec();
+            case DeflateBlockCodec.NAME:
+                return new DeflateBlockCodec();
+            case LZBlockCodec.NAME:
+                return new LZBlockCodec();
+            default:
+                throw new IllegalArgumentException("Unknown cache codec: " + name + ", expected one of none, deflate, lz.");
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package org.campagnelab.dl.framework.iterators.cache;
+
+import it.unimi.dsi.fastutil.io.FastBufferedInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads and decodes the blocks of a .cf file sequentially on a background thread, so that disk reads and
+ * decompression overlap with the consumer. At most capacity decoded minibatches are kept ahead of the consumer.
+ *
+ * @author Fabien Campagne
+ */
+public class BlockReadAhead implements Closeable {
+    static private Logger LOG = LoggerFactory.getLogger(BlockReadAhead.class);
+
+    private static final byte[] END = new byte[0];
+
+    private final BlockingQueue<byte[]> queue;
+    private final Thread thread;
+    private final InputStream input;
+    private volatile IOException error;
+    private boolean ended;
+
+    /**
+     * Start reading blocks.
+     *
+     * @param cfFilename .cf file to read.
+     * @param format     format of the blocks.
+     * @param capacity   number of minibatches decoded ahead of the consumer.
+     * @throws IOException if the file cannot be opened.
+     */
+    public BlockReadAhead(String cfFilename, CacheFormat format, int capacity) throws IOException {
+        queue = new ArrayBlockingQueue<>(capacity);
+        input = new FastBufferedInputStream(new FileInputStream(cfFilename));
+        thread = new Thread(() -> read(format), "read-ahead " + new File(cfFilename).getName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void read(CacheFormat format) {
+        DataInputStream dataInput = new DataInputStream(input);
+        try {
+            while (true) {
+                int length;
+                try {
+                    length = dataInput.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                byte[] block = new byte[length];
+                dataInput.readFully(block);
+                queue.put(format.decode(block, 0, length));
+            }
+        } catch (IOException e) {
+            error = e;
+        } catch (InterruptedException e) {
+            // closed by the consumer.
+            return;
+        }
+        try {
+            queue.put(END);
+        } catch (InterruptedException e) {
+            // closed by the consumer.
+        }
+    }
+
+    /**
+     * Return the next serialized minibatch, waiting for the background thread if needed.
+     *
+     * @return a serialized minibatch, or null when all the blocks have been read.
+     * @throws IOException if the file could not be read or decoded.
+     */
+    public byte[] next() throws IOException {
+        if (ended) {
+            return null;
+        }
+        byte[] block;
+        try {
+            block = queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for read-ahead.");
+        }
+        if (block == END) {
+            ended = true;
+            if (error != null) {
+                throw error;
+            }
+            return null;
+        }
+        return block;
+    }
+
+    @Override
+    public void close() {
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            input.close();
+        } catch (IOException e) {
+            LOG.warn("Unable to close cache file.", e);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package org.campagnelab.dl.framework.iterators.cache;
+
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Layout of the minibatch blocks stored in a .cf file. Each block is prefixed by its length (4 bytes, most
+ * significant first). Version 1 blocks hold a serialized MultiDataSet. Version 2 caches record the codec in the .cfp
+ * properties: blocks written with the none codec are identical to version 1 blocks, other blocks start with the
+ * uncompressed length (4 bytes) followed by the compressed serialized MultiDataSet. Caches without a version property
+ * are version 1. The encoding property tells how minibatches are serialized before compression: dense (with
+ * MultiDataSet.save) or sparse (with SparseMultiDataSetSerializer).
+ *
+ * @author Fabien Campagne
+ */
+public class CacheFormat {
+    public static final String VERSION_PROPERTY = "cfVersion";
+    public static final String CODEC_PROPERTY = "codec";
+    public static final String ENCODING_PROPERTY = "encoding";
+    public static final String DENSE = "dense";
+    public static final String SPARSE = "sparse";
+    public static final int VERSION = 2;
+
+    private final BlockCodec codec;
+    private final boolean sparse;
+
+    public CacheFormat(BlockCodec codec) {
+        this(codec, false);
+    }
+
+    public CacheFormat(BlockCodec codec, boolean sparse) {
+        this.codec = codec;
+        this.sparse = sparse;
+    }
+
+    /**
+     * Return the format of a cache, given its .cfp properties.
+     *
+     * @param cfp properties of the cache.
+     * @return format used to write the cache.
+     */
+    public static CacheFormat of(Properties cfp) {
+        int version = Integer.parseInt(cfp.getProperty(VERSION_PROPERTY, "1"));
+        if (version > VERSION) {
+            throw new IllegalArgumentException("Cache format version " + version + " is not supported by this " +
+                    "version of the framework (max " + VERSION + "). Rebuild the cache or upgrade.");
+        }
+        String encoding = cfp.getProperty(ENCODING_PROPERTY, DENSE);
+        if (!DENSE.equals(encoding) && !SPARSE.equals(encoding)) {
+            throw new IllegalArgumentException("Unknown cache encoding: " + encoding);
+        }
+        return new CacheFormat(BlockCodec.forName(cfp.getProperty(CODEC_PROPERTY, IdentityBlockCodec.NAME)),
+                SPARSE.equals(encoding));
+    }
+
+    public void putProperties(Properties cfp) {
+        cfp.put(VERSION_PROPERTY, Integer.toString(VERSION));
+        cfp.put(CODEC_PROPERTY, codec.name());
+        cfp.put(ENCODING_PROPERTY, sparse ? SPARSE : DENSE);
+    }
+
+    public boolean isSparse() {
+        return sparse;
+    }
+
+    /**
+     * Serialize and encode a minibatch as a block (without the length prefix).
+     */
+    public byte[] write(MultiDataSet ds) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        if (sparse) {
+            SparseMultiDataSetSerializer.save(ds, bytes);
+        } else {
+            ds.save(bytes);
+        }
+        return encode(bytes.toByteArray());
+    }
+
+    /**
+     * Decode and deserialize a block (without the length prefix).
+     *
+     * @param block  buffer holding the block.
+     * @param offset position of the block in the buffer.
+     * @param length length of the block.
+     * @return the minibatch.
+     * @throws IOException if the block cannot be decoded.
+     */
+    public MultiDataSet read(byte[] block, int offset, int length) throws IOException {
+        return read(block, offset, length, null);
+    }
+
+    /**
+     * Decode and deserialize a block (without the length prefix), reusing the arrays of a previous minibatch when
+     * the cache is sparse.
+     *
+     * @param reuse a minibatch whose arrays can be overwritten, or null.
+     * @return the minibatch, reuse when its arrays could all be reused.
+     */
+    public MultiDataSet read(byte[] block, int offset, int length, MultiDataSet reuse) throws IOException {
+        return deserialize(decode(block, offset, length), reuse);
+    }
+
+    /**
+     * Deserialize a minibatch already decoded with decode().
+     */
+    public MultiDataSet deserialize(byte[] serialized) throws IOException {
+        return deserialize(serialized, null);
+    }
+
+    /**
+     * Deserialize a minibatch already decoded with decode(). Arrays of reuse are overwritten when the cache is sparse
+     * and they have the shapes of the minibatch.
+     */
+    public MultiDataSet deserialize(byte[] serialized, MultiDataSet reuse) throws IOException {
+        return deserialize(new ByteArrayInputStream(serialized), reuse);
+    }
+
+    /**
+     * Deserialize a minibatch from a stream positioned at the start of a serialized minibatch.
+     *
+     * @param input stream over a block that is not compressed, or over a block decoded with decode().
+     * @param reuse a minibatch whose arrays can be overwritten, or null. Only sparse caches reuse arrays.
+     * @return the minibatch.
+     */
+    public MultiDataSet deserialize(InputStream input, MultiDataSet reuse) throws IOException {
+        if (sparse) {
+            return SparseMultiDataSetSerializer.load(input, reuse);
+        }
+        MultiDataSet ds = new org.nd4j.linalg.dataset.MultiDataSet();
+        ds.load(input);
+        return ds;
+    }
+
+    public BlockCodec getCodec() {
+        return codec;
+    }
+
+    public boolean isCompressed() {
+        return !IdentityBlockCodec.NAME.equals(codec.name());
+    }
+
+    /**
+     * Encode a serialized minibatch as a block (without the length prefix).
+     */
+    public byte[] encode(byte[] serialized) {
+        if (!isCompressed()) {
+            return serialized;
+        }
+        byte[] compressed = codec.compress(serialized);
+        byte[] block = new byte[4 + compressed.length];
+        writeInt(block, 0, serialized.length);
+        System.arraycopy(compressed, 0, block, 4, compressed.length);
+        return block;
+    }
+
+    /**
+     * Decode a block (without the length prefix) into a serialized minibatch.
+     *
+     * @param block  buffer holding the block.
+     * @param offset position of the block in the buffer.
+     * @param length length of the block.
+     * @return the serialized minibatch.
+     * @throws IOException if the block cannot be decompressed.
+     */
+    public byte[] decode(byte[] block, int offset, int length) throws IOException {
+        if (!isCompressed()) {
+            if (offset == 0 && length == block.length) {
+                return block;
+            }
+            return codec.decompress(block, offset, length, length);
+        }
+        int uncompressedLength = readInt(block, offset);
+        return codec.decompress(block, offset + 4, length - 4, uncompressedLength);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof CacheFormat)) {
+            return false;
+        }
+        CacheFormat other = (CacheFormat) o;
+        return sparse == other.sparse && codec.name().equals(other.codec.name());
+    }
+
+    @Override
+    public int hashCode() {
+        return codec.name().hashCode() ^ Boolean.hashCode(sparse);
+    }
+
+    static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 8 * 3);
+        buffer[offset + 1] = (byte) (value >>> 8 * 2);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    static int readInt(byte[] buffer, int offset) {
+        return (buffer[offset] << 8 * 3 & 0xFF000000) |
+                (buffer[offset + 1] << 8 * 2 & 0x00FF0000) |
+                (buffer[offset + 2] << 8 & 0x0000FF00) |
+                (buffer[offset + 3] & 0x000000FF);
+    }
+}
@@ -3,23 +3,32 @@ package org.campagnelab.dl.framework.iterators.cache;
 import org.apache.commons.io.FilenameUtils;
 import org.campagnelab.dl.framework.domains.DomainDescriptor;
 import org.campagnelab.dl.framework.iterators.MultiDataSetIteratorAdapter;
-import org.campagnelab.dl.framework.iterators.MultiDatasetMappedFeaturesIterator;
+import org.campagnelab.dl.framework.iterators.MultiDatasetMemoryMappedFeaturesIterator;
+import org.campagnelab.dl.framework.iterators.MultiDatasetRowBlockIterator;
 import org.campagnelab.dl.framework.tools.MapMultiDatasetFeatures;
 import org.campagnelab.dl.framework.tools.MapMultiDatasetFeaturesArguments;
 import org.campagnelab.goby.baseinfo.SequenceBaseInformationReader;
 import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.Properties;
 
 /**
  * A concat iterator that transparently creates a disk cache of the content of the input iterables.
+ * Processes that need the same cache coordinate with a lock file: the first one builds the cache, the others wait
+ * and reuse it.
  */
 public class CacheHelper<RecordType> {
-
+    static private Logger LOG = LoggerFactory.getLogger(CacheHelper.class);
+    private long lockPollIntervalMs = 10000;
 
 
     /**
@@ -34,30 +43,182 @@ public class CacheHelper<RecordType> {
      */
     public MultiDataSetIterator cache(final DomainDescriptor domainDescriptor,
                                       MultiDataSetIteratorAdapter adapter, String cacheName, int cacheN, int minibatchSize) {
-//TODO use a file lock to prevent two processes from trying to create a cache at the same time.
+        return cache(domainDescriptor, adapter, cacheName, cacheN, minibatchSize, 1, new CacheFormat(new IdentityBlockCodec()));
+    }
+
+    /**
+     * Return a cached version of the iterator. Either returns a pre-cached iterator, or chaches the iterator
+     * and returns the cached version.
+     *
+     * @param domainDescriptor
+     * @param adapter
+     * @param cacheName
+     * @param cacheN
+     * @param numThreads number of threads used to map features when the cache must be built.
+     * @param format     format of the cache when it must be built.
+     * @return A cached iterator.
+     */
+    public MultiDataSetIterator cache(final DomainDescriptor domainDescriptor,
+                                      MultiDataSetIteratorAdapter adapter, String cacheName, int cacheN, int minibatchSize,
+                                      int numThreads, CacheFormat format) {
+        cacheName = buildOrWait(domainDescriptor, adapter, cacheName, cacheN, minibatchSize, numThreads, format);
+        return new MultiDatasetMemoryMappedFeaturesIterator(cacheName, cacheN);
+    }
+
+    /**
+     * Return a cached version of the iterator that does not depend on the minibatch size. The cache is stored in
+     * blocks of rowBlockSize records, and minibatches of minibatchSize records are assembled from these blocks when
+     * read. Runs with different minibatch sizes share the same cache.
+     *
+     * @param rowBlockSize number of records per block stored in the cache.
+     * @param numThreads   number of threads used to map features when the cache must be built.
+     * @param format       format of the cache when it must be built.
+     * @return A cached iterator.
+     */
+    public MultiDataSetIterator cacheRows(final DomainDescriptor domainDescriptor,
+                                          MultiDataSetIteratorAdapter adapter, String cacheName, int cacheN,
+                                          int minibatchSize, int rowBlockSize, int numThreads, CacheFormat format) {
+        cacheName = buildOrWait(domainDescriptor, adapter, cacheName, cacheN, rowBlockSize, numThreads, format);
+        return new MultiDatasetRowBlockIterator(cacheName, minibatchSize, cacheN);
+    }
+
+    private String buildOrWait(final DomainDescriptor domainDescriptor,
+                               MultiDataSetIteratorAdapter adapter, String cacheName, int cacheN, int minibatchSize,
+                               int numThreads, CacheFormat format) {
         // determine if cache exists. If it does, use it.
         cacheName = decorateCacheName(domainDescriptor, cacheName, minibatchSize);
         if (!cacheExists(cacheName, cacheN, true)) {
-            // Cache does not exist, we first build it:
-            MapMultiDatasetFeatures tool = new MapMultiDatasetFeatures() {
-                @Override
-                protected DomainDescriptor domainDescriptor() {
-                    return domainDescriptor;
+            // Only one process builds a given cache, others wait for it and reuse the cache:
+            File cacheFile = new File(cacheName);
+            File directory = cacheFile.getAbsoluteFile().getParentFile();
+            ExclusiveLockRequestWithFile lock = new ExclusiveLockRequestWithFile(cacheFile.getName() + ".lock", directory);
+            try {
+                waitForLock(lock, cacheName);
+                if (!cacheExists(cacheName, cacheN, true)) {
+                    // Cache does not exist or is too small, we first build or extend it:
+                    String extend = canExtend(cacheName, minibatchSize, format) ? cacheName : null;
+                    build(domainDescriptor, adapter, cacheName, cacheN, minibatchSize, numThreads, format, extend);
+                } else {
+                    LOG.info("Cache {} was built by another process.", cacheName);
                 }
-            };
-            MapMultiDatasetFeaturesArguments arguments = new MapMultiDatasetFeaturesArguments<>();
-
-            arguments.adapter = adapter;
-            arguments.outputBasename = cacheName;
-            arguments.cacheN = cacheN;
-            arguments.domainDescriptor = domainDescriptor;
-            arguments.miniBatchSize = minibatchSize;
-            tool.setArguments(arguments);
-            tool.execute();
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to build cache " + cacheName, e);
+            } finally {
+                try {
+                    lock.release();
+                } catch (IOException e) {
+                    LOG.warn("Unable to release lock on cache " + cacheName, e);
+                }
+                // each cache built or waited for would otherwise keep the lock file open:
+                if (lock.getLockedFile() != null) {
+                    try {
+                        lock.getLockedFile().close();
+                    } catch (IOException e) {
+                        LOG.warn("Unable to close lock file of cache " + cacheName, e);
+                    }
+                }
+            }
         }
         assert cacheExists(cacheName, cacheN, true) : "A cache must exist at this point.";
         System.out.println("Using cache: "+cacheName);
-        return new MultiDatasetMappedFeaturesIterator(cacheName, cacheN);
+        return cacheName;
+    }
+
+    /**
+     * Set how often a process waiting for another process to build a cache checks the lock and logs progress.
+     */
+    public void setLockPollInterval(long milliseconds) {
+        this.lockPollIntervalMs = milliseconds;
+    }
+
+    /**
+     * Wait until this process holds the lock, logging the progress of the process that is building the cache.
+     */
+    private void waitForLock(ExclusiveLockRequestWithFile lock, String cacheName) throws IOException {
+        lock.query();
+        if (lock.granted()) {
+            return;
+        }
+        LOG.info("Cache {} is being built by another process, waiting.", cacheName);
+        File building = new File(buildingBasename(cacheName) + ".cf");
+        while (!lock.granted()) {
+            try {
+                Thread.sleep(lockPollIntervalMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for cache " + cacheName, e);
+            }
+            if (building.exists()) {
+                LOG.info("Waiting for cache {}, {} MB written.", cacheName, building.length() / (1024 * 1024));
+            }
+            lock.query();
+        }
+    }
+
+    /**
+     * Determine if an existing cache can be extended with more records, rather than rebuilt.
+     */
+    private static boolean canExtend(String cacheName, int minibatchSize, CacheFormat format) {
+        if (!new File(cacheName + ".cf").exists() || !new File(cacheName + ".cfp").exists()) {
+            return false;
+        }
+        Properties cfp = new Properties();
+        try (FileReader reader = new FileReader(cacheName + ".cfp")) {
+            cfp.load(reader);
+            return cfp.getProperty("domainDescriptor") != null &&
+                    Integer.parseInt(cfp.getProperty("miniBatchSize", "0")) == minibatchSize &&
+                    Long.parseLong(cfp.getProperty("numRecords", "0")) >= minibatchSize &&
+                    CacheFormat.of(cfp).equals(format);
+        } catch (IOException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Build the cache under a temporary name, then rename its files. The .cfp file is renamed last, so other
+     * processes never see a complete .cfp next to a partial .cf. When extend is not null, the complete minibatches of
+     * this existing cache are copied and only the following records are mapped. The extended cache replaces the
+     * existing one like a new cache, so processes that mapped the existing cache keep reading its previous files.
+     * The temporary files are removed when the cache cannot be built.
+     */
+    private void build(final DomainDescriptor domainDescriptor,
+                       MultiDataSetIteratorAdapter adapter, String cacheName, int cacheN, int minibatchSize,
+                       int numThreads, CacheFormat format, String extend) throws IOException {
+        String buildingName = buildingBasename(cacheName);
+        MapMultiDatasetFeatures tool = new MapMultiDatasetFeatures() {
+            @Override
+            protected DomainDescriptor domainDescriptor() {
+                return domainDescriptor;
+            }
+        };
+        MapMultiDatasetFeaturesArguments arguments = new MapMultiDatasetFeaturesArguments<>();
+
+        arguments.adapter = adapter;
+        arguments.outputBasename = buildingName;
+        arguments.cacheN = cacheN;
+        arguments.domainDescriptor = domainDescriptor;
+        arguments.miniBatchSize = minibatchSize;
+        arguments.numThreads = numThreads;
+        arguments.codec = format.getCodec().name();
+        arguments.sparse = format.isSparse();
+        arguments.extendBasename = extend;
+        tool.setArguments(arguments);
+        try {
+            tool.execute();
+        } catch (RuntimeException e) {
+            for (String extension : new String[]{".cf", ".cfi", ".cfp", ".cfi.tmp", ".cfp.tmp"}) {
+                Files.deleteIfExists(Paths.get(buildingName + extension));
+            }
+            throw e;
+        }
+        for (String extension : new String[]{".cf", ".cfi", ".cfp"}) {
+            Files.move(Paths.get(buildingName + extension), Paths.get(cacheName + extension),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private static String buildingBasename(String cacheName) {
+        return cacheName + ".building";
     }
 
     private String decorateCacheName(DomainDescriptor domainDescriptor, String cacheName,int miniBatchSize) {
@@ -0,0 +1,155 @@
+package org.campagnelab.dl.framework.iterators.cache;
+
+import it.unimi.dsi.fastutil.io.FastBufferedInputStream;
+import it.unimi.dsi.fastutil.io.FastBufferedOutputStream;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Offset index over the minibatches stored in a .cf file. The index is stored in a .cfi file next to the .cf and
+ * .cfp files. It contains one long per minibatch (the position of the length prefix of the minibatch in the .cf
+ * file), followed by the length of the .cf file. Minibatch i is therefore stored between offset(i) and offset(i+1).
+ *
+ * @author Fabien Campagne
+ */
+public class CacheIndex {
+    static private Logger LOG = LoggerFactory.getLogger(CacheIndex.class);
+
+    private final long[] offsets;
+
+    public CacheIndex(long[] offsets) {
+        assert offsets.length >= 1 : "offsets must at least contain the length of the .cf file.";
+        this.offsets = offsets;
+    }
+
+    /**
+     * Load the index of a cache. When the .cfi file is missing or does not match the .cf file (e.g., for caches
+     * built before the index was introduced), the index is rebuilt by scanning the .cf file and saved for next time.
+     *
+     * @param basename basename of the cache.
+     * @return index of the minibatches in the cache.
+     * @throws IOException if the .cf file cannot be read.
+     */
+    public static CacheIndex load(String basename) throws IOException {
+        File cfFile = new File(basename + ".cf");
+        File cfiFile = new File(basename + ".cfi");
+        if (cfiFile.exists()) {
+            CacheIndex index = read(cfiFile);
+            if (index.endOffset() == cfFile.length()) {
+                return index;
+            }
+            LOG.warn("Cache index {} does not match the .cf file, rebuilding it.", cfiFile);
+        }
+        CacheIndex index = scan(cfFile);
+        try {
+            index.write(basename);
+        } catch (IOException e) {
+            LOG.warn("Unable to save cache index to " + cfiFile, e);
+        }
+        return index;
+    }
+
+    private static CacheIndex read(File cfiFile) throws IOException {
+        LongArrayList offsets = new LongArrayList();
+        try (DataInputStream input = new DataInputStream(new FastBufferedInputStream(new FileInputStream(cfiFile)))) {
+            final long numOffsets = cfiFile.length() / 8;
+            for (long i = 0; i < numOffsets; i++) {
+                offsets.add(input.readLong());
+            }
+        }
+        return new CacheIndex(offsets.toLongArray());
+    }
+
+    /**
+     * Build the index by reading the length prefix of each minibatch in the .cf file.
+     */
+    private static CacheIndex scan(File cfFile) throws IOException {
+        LongArrayList offsets = new LongArrayList();
+        final long cfLength = cfFile.length();
+        try (DataInputStream input = new DataInputStream(new FastBufferedInputStream(new FileInputStream(cfFile)))) {
+            long position = 0;
+            while (position + 4 <= cfLength) {
+                offsets.add(position);
+                int length = input.readInt();
+                position += 4 + length;
+                long toSkip = length;
+                while (toSkip > 0) {
+                    long skipped = input.skip(toSkip);
+                    if (skipped <= 0) {
+                        throw new EOFException("Truncated .cf file: " + cfFile);
+                    }
+                    toSkip -= skipped;
+                }
+            }
+            offsets.add(position);
+        }
+        return new CacheIndex(offsets.toLongArray());
+    }
+
+    /**
+     * Write this index to basename.cfi. The index is written to a temporary file, which then replaces the .cfi file
+     * atomically, so that readers never see a partial index.
+     *
+     * @param basename basename of the cache.
+     */
+    public void write(String basename) throws IOException {
+        File cfiFile = new File(basename + ".cfi");
+        File tmpFile = new File(basename + ".cfi.tmp");
+        try (DataOutputStream output = new DataOutputStream(new FastBufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            for (long offset : offsets) {
+                output.writeLong(offset);
+            }
+        }
+        Files.move(tmpFile.toPath(), cfiFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return The number of minibatches stored in the cache.
+     */
+    public int numDatasets() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * Return the position of a minibatch in the .cf file, including its length prefix.
+     *
+     * @param datasetIndex index of the minibatch, or numDatasets() for the end of the file.
+     * @return position in the .cf file.
+     */
+    public long start(int datasetIndex) {
+        return offsets[datasetIndex];
+    }
+
+    /**
+     * Return the position of the serialized minibatch in the .cf file (just after its length prefix).
+     *
+     * @param datasetIndex index of the minibatch.
+     * @return position in the .cf file.
+     */
+    public long offset(int datasetIndex) {
+        return offsets[datasetIndex] + 4;
+    }
+
+    /**
+     * Return the number of bytes of the serialized minibatch (not including the length prefix).
+     *
+     * @param datasetIndex index of the minibatch.
+     * @return length in bytes.
+     */
+    public int length(int datasetIndex) {
+        return (int) (offsets[datasetIndex + 1] - offsets[datasetIndex] - 4);
+    }
+
+    /**
+     * @return the length of the .cf file described by this index.
+     */
+    public long endOffset() {
+        return offsets[offsets.length - 1];
+    }
+}
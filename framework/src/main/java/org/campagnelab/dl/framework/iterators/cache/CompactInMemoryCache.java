@@ -0,0 +1,192 @@
+package org.campagnelab.dl.framework.iterators.cache;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.io.FastByteArrayOutputStream;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.io.ByteBufferInputStream;
+import org.campagnelab.dl.framework.iterators.IndexedMultiDataSets;
+import org.campagnelab.dl.framework.iterators.SeekableMultiDataSetIterator;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.dataset.api.MultiDataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.NoSuchElementException;
+
+/**
+ * Caches a multi-dataset iterator in memory, in a compact form. Minibatches are stored off-heap, encoded with
+ * SparseMultiDataSetSerializer (binary arrays packed as bits, sparse arrays as column/value pairs, optionally float16
+ * values), and decoded when they are returned. The off-heap chunks map a temporary file, deleted once mapped, rather
+ * than direct buffers: direct buffers are limited by -XX:MaxDirectMemorySize (the heap size by default) and compete
+ * with the off-heap memory of ND4J, while mappings are only limited by the memory of the machine. Decoding can overwrite the arrays of a small ring of minibatches,
+ * to avoid allocating new arrays for each minibatch. In this case, a minibatch returned by next() or get() is only
+ * valid until ringSize other minibatches have been returned.
+ *
+ * @author Fabien Campagne
+ */
+public class CompactInMemoryCache implements SeekableMultiDataSetIterator, IndexedMultiDataSets {
+    static private Logger LOG = LoggerFactory.getLogger(CompactInMemoryCache.class);
+    private static final int CHUNK_SIZE = 256 << 20;
+
+    private final ObjectArrayList<ByteBuffer> chunks = new ObjectArrayList<>();
+    private final IntArrayList chunkIndices = new IntArrayList();
+    private final IntArrayList positions = new IntArrayList();
+    private final IntArrayList lengths = new IntArrayList();
+    private final MultiDataSet[] ring;
+    private int ringIndex;
+    private int index = -1;
+    private long numBytes;
+    private MultiDataSetPreProcessor preProcessor;
+
+    /**
+     * Cache the minibatches of source, without reusing arrays.
+     *
+     * @param source        minibatches to cache.
+     * @param halfPrecision when true, store non binary values as float16 (lossy).
+     */
+    public CompactInMemoryCache(MultiDataSetIterator source, boolean halfPrecision) {
+        this(source, halfPrecision, 0);
+    }
+
+    /**
+     * Cache the minibatches of source.
+     *
+     * @param source        minibatches to cache.
+     * @param halfPrecision when true, store non binary values as float16 (lossy).
+     * @param ringSize      number of minibatches whose arrays are reused when decoding, 0 to allocate new arrays for
+     *                      each minibatch returned.
+     */
+    public CompactInMemoryCache(MultiDataSetIterator source, boolean halfPrecision, int ringSize) {
+        this.ring = new MultiDataSet[ringSize];
+        if (source.resetSupported()) {
+            source.reset();
+        }
+        FastByteArrayOutputStream bytes = new FastByteArrayOutputStream();
+        try {
+            while (source.hasNext()) {
+                bytes.reset();
+                SparseMultiDataSetSerializer.save(source.next(), bytes, halfPrecision);
+                store(bytes.array, bytes.length);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to store minibatch in memory cache, chunks are mapped from " +
+                    "temporary files in " + System.getProperty("java.io.tmpdir"), e);
+        }
+        LOG.info(String.format("Compact memory cache holds %d minibatches in %d MB off-heap.",
+                numDatasets(), numBytes >> 20));
+    }
+
+    private void store(byte[] block, int length) throws IOException {
+        ByteBuffer chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        if (chunk == null || chunk.remaining() < length) {
+            chunk = allocate(Math.max(CHUNK_SIZE, length));
+            chunks.add(chunk);
+        }
+        chunkIndices.add(chunks.size() - 1);
+        positions.add(chunk.position());
+        lengths.add(length);
+        chunk.put(block, 0, length);
+        numBytes += length;
+    }
+
+    /**
+     * Allocate an off-heap chunk, mapping a new temporary file.
+     */
+    private static ByteBuffer allocate(int size) throws IOException {
+        File file = File.createTempFile("compact-cache-", ".chunk");
+        try (RandomAccessFile chunkFile = new RandomAccessFile(file, "rw")) {
+            // the mapping remains valid after the channel is closed and the file deleted:
+            return chunkFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes used to store the encoded minibatches.
+     */
+    public long getNumBytes() {
+        return numBytes;
+    }
+
+    @Override
+    public int numDatasets() {
+        return lengths.size();
+    }
+
+    @Override
+    public MultiDataSet get(int datasetIndex) {
+        ByteBuffer block = chunks.get(chunkIndices.getInt(datasetIndex)).duplicate();
+        block.limit(positions.getInt(datasetIndex) + lengths.getInt(datasetIndex));
+        block.position(positions.getInt(datasetIndex));
+        try {
+            if (ring.length == 0) {
+                return SparseMultiDataSetSerializer.load(new ByteBufferInputStream(block));
+            }
+            synchronized (ring) {
+                final int slot = ringIndex;
+                ringIndex = (ringIndex + 1) % ring.length;
+                ring[slot] = SparseMultiDataSetSerializer.load(new ByteBufferInputStream(block), ring[slot]);
+                return ring[slot];
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to decode minibatch " + datasetIndex + " from memory cache", e);
+        }
+    }
+
+    @Override
+    public MultiDataSet next(int num) {
+        return next();
+    }
+
+    @Override
+    public void setPreProcessor(MultiDataSetPreProcessor preProcessor) {
+        this.preProcessor = preProcessor;
+    }
+
+    @Override
+    public boolean resetSupported() {
+        return true;
+    }
+
+    @Override
+    public boolean asyncSupported() {
+        // async prefetching would hold more minibatches than the ring allows:
+        return ring.length == 0;
+    }
+
+    @Override
+    public void reset() {
+        index = -1;
+    }
+
+    @Override
+    public void seekMinibatch(int minibatchIndex) {
+        index = minibatchIndex - 1;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return index + 1 < numDatasets();
+    }
+
+    @Override
+    public MultiDataSet next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        MultiDataSet result = get(++index);
+        if (preProcessor != null) {
+            preProcessor.preProcess(result);
+        }
+        return result;
+    }
+}
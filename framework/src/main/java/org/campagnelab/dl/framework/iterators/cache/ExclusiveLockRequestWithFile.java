@@ -8,6 +8,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
 
 /**
  * @author Fabien Campagne
@@ -44,7 +45,7 @@ public class ExclusiveLockRequestWithFile {
         synchronized (this) {
             try {
                 granted = (lock = lockFile.getChannel().tryLock()) != null;
-            } catch (IOException e) {
+            } catch (IOException | OverlappingFileLockException e) {
            //     LOG.error("Could not acquire lock on " + filename, e);
                 granted = false;
             }
@@ -87,6 +88,7 @@ public class ExclusiveLockRequestWithFile {
                     }
 
             }
+            granted = false;
         }
     }
 
@@ -1,6 +1,8 @@
 package org.campagnelab.dl.framework.iterators.cache;
 
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.campagnelab.dl.framework.iterators.IndexedMultiDataSets;
+import org.campagnelab.dl.framework.iterators.SeekableMultiDataSetIterator;
 import org.nd4j.linalg.api.concurrency.AffinityManager;
 import org.nd4j.linalg.dataset.api.MultiDataSet;
 import org.nd4j.linalg.dataset.api.MultiDataSetPreProcessor;
@@ -12,7 +14,7 @@ import java.util.NoSuchElementException;
 /**
  * Fully caches a multi-dataset iterator in memory.
  */
-public class FullyInMemoryCache implements MultiDataSetIterator {
+public class FullyInMemoryCache implements SeekableMultiDataSetIterator, IndexedMultiDataSets {
     private MultiDataSetIterator source;
     private ObjectArrayList<MultiDataSet> cache = new ObjectArrayList<>();
     private int index = -1;
@@ -69,6 +71,14 @@ public class FullyInMemoryCache implements MultiDataSetIterator {
 
     }
 
+    @Override
+    public synchronized void seekMinibatch(int minibatchIndex) {
+        if (!sourceIsComplete) {
+            reset();
+        }
+        index = minibatchIndex - 1;
+    }
+
     @Override
     public boolean hasNext() {
 
@@ -103,6 +113,22 @@ public class FullyInMemoryCache implements MultiDataSetIterator {
         }
     }
 
+    @Override
+    public synchronized int numDatasets() {
+        if (!sourceIsComplete) {
+            reset();
+        }
+        return cache.size();
+    }
+
+    @Override
+    public synchronized MultiDataSet get(int datasetIndex) {
+        if (!sourceIsComplete) {
+            reset();
+        }
+        return cache.get(datasetIndex);
+    }
+
     private void assignToHostMemory(MultiDataSet dataSet) {
 
         for (int i = 0; i < dataSet.numFeatureArrays(); i++) {
@@ -0,0 +1,28 @@
+package org.campagnelab.dl.framework.iterators.cache;
+
+import java.util.Arrays;
+
+/**
+ * Stores blocks without compression. Caches written with this codec have the same layout as caches written before
+ * codecs were introduced.
+ *
+ * @author Fabien Campagne
+ */
+public class IdentityBlockCodec implements BlockCodec {
+    public static final String NAME = "none";
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public byte[] compress(byte[] block) {
+        return block;
+    }
+
+    @Override
+    public byte[] decompress(byte[] compressed, int offset, int length, int uncompressedLength) {
+        return Arrays.copyOfRange(compressed, offset, offset + length);
+    }
+}
@@ -0,0 +1,162 @@
+package org.campagnelab.dl.framework.iterators.cache;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A fast LZ77 codec, written in pure Java. Blocks use the LZ4 block format: a sequence of tokens, each made of a run
+ * of literals followed by a back-reference (2-byte offset, match of at least 4 bytes). The last token only holds
+ * literals. Compression ratios are lower than with deflate, but decompression is a few times faster, which matters
+ * when training reads the same cache at every epoch.
+ *
+ * @author Fabien Campagne
+ */
+public class LZBlockCodec implements BlockCodec {
+    public static final String NAME = "lz";
+
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 65535;
+    // the last bytes of a block are always stored as literals:
+    private static final int LAST_LITERALS = 5;
+    private static final int MATCH_FIND_LIMIT = 12;
+    private static final int HASH_LOG = 16;
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public byte[] compress(byte[] block) {
+        final int n = block.length;
+        byte[] out = new byte[n + n / 255 + 16];
+        // positions + 1 of the last occurrence of each hashed 4-byte sequence, 0 when none:
+        int[] table = new int[1 << HASH_LOG];
+        int anchor = 0;
+        int position = 0;
+        int op = 0;
+        final int limit = n - MATCH_FIND_LIMIT;
+        while (position < limit) {
+            final int sequence = readInt(block, position);
+            final int hash = (sequence * -1640531535) >>> (32 - HASH_LOG);
+            int ref = table[hash] - 1;
+            table[hash] = position + 1;
+            if (ref < 0 || position - ref > MAX_OFFSET || readInt(block, ref) != sequence) {
+                position++;
+                continue;
+            }
+            // extend the match backwards over literals not yet written:
+            while (position > anchor && ref > 0 && block[position - 1] == block[ref - 1]) {
+                position--;
+                ref--;
+            }
+            int matchLength = MIN_MATCH;
+            final int maxLength = n - LAST_LITERALS - position;
+            while (matchLength < maxLength && block[position + matchLength] == block[ref + matchLength]) {
+                matchLength++;
+            }
+            op = writeSequence(block, anchor, position - anchor, position - ref, matchLength, out, op);
+            position += matchLength;
+            anchor = position;
+        }
+        // last literals:
+        final int literals = n - anchor;
+        out[op++] = (byte) (Math.min(literals, 15) << 4);
+        if (literals >= 15) {
+            op = writeLength(literals - 15, out, op);
+        }
+        System.arraycopy(block, anchor, out, op, literals);
+        op += literals;
+        return Arrays.copyOf(out, op);
+    }
+
+    private static int writeSequence(byte[] block, int anchor, int literals, int offset, int matchLength,
+                                     byte[] out, int op) {
+        final int extraMatch = matchLength - MIN_MATCH;
+        out[op++] = (byte) ((Math.min(literals, 15) << 4) | Math.min(extraMatch, 15));
+        if (literals >= 15) {
+            op = writeLength(literals - 15, out, op);
+        }
+        System.arraycopy(block, anchor, out, op, literals);
+        op += literals;
+        out[op++] = (byte) offset;
+        out[op++] = (byte) (offset >>> 8);
+        if (extraMatch >= 15) {
+            op = writeLength(extraMatch - 15, out, op);
+        }
+        return op;
+    }
+
+    private static int writeLength(int length, byte[] out, int op) {
+        while (length >= 255) {
+            out[op++] = (byte) 255;
+            length -= 255;
+        }
+        out[op++] = (byte) length;
+        return op;
+    }
+
+    private static int readInt(byte[] block, int position) {
+        return (block[position] & 0xFF) | (block[position + 1] & 0xFF) << 8 |
+                (block[position + 2] & 0xFF) << 16 | (block[position + 3] & 0xFF) << 24;
+    }
+
+    @Override
+    public byte[] decompress(byte[] compressed, int offset, int length, int uncompressedLength) throws IOException {
+        byte[] block = new byte[uncompressedLength];
+        final int end = offset + length;
+        int ip = offset;
+        int op = 0;
+        try {
+            while (ip < end) {
+                final int token = compressed[ip++] & 0xFF;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = compressed[ip++] & 0xFF;
+                        literals += b;
+                    } while (b == 255);
+                }
+                if (ip + literals > end) {
+                    throw new IOException("Corrupted lz block: literals run past the end of the block");
+                }
+                System.arraycopy(compressed, ip, block, op, literals);
+                ip += literals;
+                op += literals;
+                if (ip >= end) {
+                    break;
+                }
+                final int matchOffset = (compressed[ip++] & 0xFF) | (compressed[ip++] & 0xFF) << 8;
+                int matchLength = token & 0x0F;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        b = compressed[ip++] & 0xFF;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += MIN_MATCH;
+                final int ref = op - matchOffset;
+                if (matchOffset == 0 || ref < 0) {
+                    throw new IOException("Corrupted lz block: invalid match offset " + matchOffset);
+                }
+                if (matchOffset >= matchLength) {
+                    System.arraycopy(block, ref, block, op, matchLength);
+                } else {
+                    // overlapping match, repeats the last matchOffset bytes:
+                    for (int i = 0; i < matchLength; i++) {
+                        block[op + i] = block[ref + i];
+                    }
+                }
+                op += matchLength;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Corrupted lz block", e);
+        }
+        if (op != uncompressedLength) {
+            throw new IOException("Truncated lz block: expected " + uncompressedLength + " bytes, found " + op);
+        }
+        return block;
+    }
+}
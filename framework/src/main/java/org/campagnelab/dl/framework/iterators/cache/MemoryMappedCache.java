@@ -0,0 +1,172 @@
+package org.campagnelab.dl.framework.iterators.cache;
+
+import it.unimi.dsi.io.ByteBufferInputStream;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * A read-only memory mapping of a .cf file, together with its offset index and .cfp properties. The file is mapped
+ * in segments, so that caches larger than 2GB can be mapped. Mappings are shared: iterators that open the same cache
+ * reuse the same mapping and each obtain an independent stream positioned over it. Mappings are only shared while
+ * they are reachable: once no iterator references a cache, the cache and its mapping can be garbage collected.
+ *
+ * @author Fabien Campagne
+ */
+public class MemoryMappedCache {
+
+    // weak values, so that caches no longer referenced release their mapping:
+    private static final Map<String, CacheReference> openCaches = new HashMap<>();
+    private static final ReferenceQueue<MemoryMappedCache> collected = new ReferenceQueue<>();
+
+    private final String basename;
+    private final Properties properties;
+    private final CacheIndex index;
+    private final CacheFormat format;
+    private final ByteBufferInputStream mapping;
+
+    private MemoryMappedCache(String basename) throws IOException {
+        this.basename = basename;
+        properties = new Properties();
+        try (FileReader reader = new FileReader(basename + ".cfp")) {
+            properties.load(reader);
+        }
+        format = CacheFormat.of(properties);
+        index = CacheIndex.load(basename);
+        try (RandomAccessFile file = new RandomAccessFile(basename + ".cf", "r")) {
+            // the mapping remains valid after the channel is closed:
+            mapping = ByteBufferInputStream.map(file.getChannel(), FileChannel.MapMode.READ_ONLY);
+        }
+    }
+
+    /**
+     * Open the cache with the given basename, or return the mapping already opened for this cache.
+     *
+     * @param basename basename of the cache (.cf/.cfp/.cfi files).
+     * @return a shared mapping of the cache.
+     * @throws IOException if the cache cannot be mapped.
+     */
+    public static MemoryMappedCache open(String basename) throws IOException {
+        String key = new File(basename).getCanonicalPath();
+        synchronized (openCaches) {
+            expungeCollected();
+            File cfFile = new File(basename + ".cf");
+            CacheReference reference = openCaches.get(key);
+            MemoryMappedCache cache = reference == null ? null : reference.get();
+            if (cache == null || cache.index.endOffset() != cfFile.length()) {
+                // not mapped yet, collected, or the cache was rebuilt since it was mapped:
+                cache = new MemoryMappedCache(basename);
+                openCaches.put(key, new CacheReference(key, cache));
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Determine if the mapping of a cache is still shared, i.e., it was opened and not garbage collected yet.
+     */
+    static boolean isOpen(String basename) throws IOException {
+        String key = new File(basename).getCanonicalPath();
+        synchronized (openCaches) {
+            expungeCollected();
+            return openCaches.containsKey(key);
+        }
+    }
+
+    private static void expungeCollected() {
+        CacheReference reference;
+        while ((reference = (CacheReference) collected.poll()) != null) {
+            // the entry may already point to a newer mapping of a rebuilt cache:
+            openCaches.remove(reference.key, reference);
+        }
+    }
+
+    private static class CacheReference extends WeakReference<MemoryMappedCache> {
+        private final String key;
+
+        CacheReference(String key, MemoryMappedCache cache) {
+            super(cache, collected);
+            this.key = key;
+        }
+    }
+
+    /**
+     * Return a new stream over the mapping. Streams have independent positions and can be used concurrently from
+     * different threads (one stream per thread).
+     *
+     * @return a stream over the mapped .cf file.
+     */
+    public synchronized ByteBufferInputStream newStream() {
+        return mapping.copy();
+    }
+
+    /**
+     * Deserialize a minibatch directly from the mapped buffer. Compressed blocks are decoded from a copy of the block.
+     *
+     * @param stream       a stream obtained with newStream().
+     * @param datasetIndex index of the minibatch in the cache.
+     * @return the minibatch.
+     * @throws IOException if the minibatch cannot be deserialized.
+     */
+    public MultiDataSet load(ByteBufferInputStream stream, int datasetIndex) throws IOException {
+        return load(stream, datasetIndex, null);
+    }
+
+    /**
+     * Deserialize a minibatch directly from the mapped buffer, overwriting the arrays of a previous minibatch when
+     * the cache is sparse and the shapes match.
+     *
+     * @param stream       a stream obtained with newStream().
+     * @param datasetIndex index of the minibatch in the cache.
+     * @param reuse        a minibatch whose arrays can be overwritten, or null.
+     * @return the minibatch, reuse when its arrays could all be reused.
+     * @throws IOException if the minibatch cannot be deserialized.
+     */
+    public MultiDataSet load(ByteBufferInputStream stream, int datasetIndex, MultiDataSet reuse) throws IOException {
+        stream.position(index.offset(datasetIndex));
+        if (format.isCompressed()) {
+            final int length = index.length(datasetIndex);
+            byte[] block = new byte[length];
+            int n = 0;
+            while (n < length) {
+                int read = stream.read(block, n, length - n);
+                if (read < 0) {
+                    throw new EOFException("Truncated block at index " + datasetIndex + " in " + basename + ".cf");
+                }
+                n += read;
+            }
+            return format.read(block, 0, length, reuse);
+        }
+        return format.deserialize(stream, reuse);
+    }
+
+    public CacheFormat getFormat() {
+        return format;
+    }
+
+    public CacheIndex getIndex() {
+        return index;
+    }
+
+    public Properties getProperties() {
+        return properties;
+    }
+
+    public String getBasename() {
+        return basename;
+    }
+
+    public int numDatasets() {
+        return index.numDatasets();
+    }
+}
@@ -0,0 +1,494 @@
+package org.campagnelab.dl.framework.iterators.cache;
+
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.*;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Serializes MultiDataSets in a sparse form. Each array is stored row by row (the first dimension indexes the
+ * examples of the minibatch, other dimensions are flattened in c order). Arrays that only contain zeros and ones,
+ * such as masks and one-hot labels, are packed as bitsets. Other arrays store, for each row, the number of non-zero
+ * elements followed by their column indices and values, or all their values when this is smaller. Arrays that mix
+ * binary, sparse and dense columns, such as feature vectors built by concatenating mappers, are split in runs of
+ * columns of the same class, each run stored with its own encoding, when this is smaller. Values are stored as
+ * float32, or as float16 when half precision is requested. Arrays are rebuilt dense when loaded, directly in the
+ * buffer of the ND4J array with the CPU backend.
+ *
+ * @author Fabien Campagne
+ */
+public class SparseMultiDataSetSerializer {
+    private static final byte BITS = 1;
+    private static final byte SPARSE = 2;
+    private static final byte DENSE = 3;
+    private static final byte SPARSE_HALF = 4;
+    private static final byte DENSE_HALF = 5;
+    private static final byte MIXED = 6;
+    // arrays of the CPU backend are in host memory and their buffer can be written directly. Other backends (CUDA)
+    // keep the values on a device, where writes to the host buffer are not seen. Tests can disable direct writes:
+    static boolean hostBuffers = "CpuBackend".equals(Nd4j.getBackend().getClass().getSimpleName());
+
+    public static void save(MultiDataSet ds, OutputStream output) throws IOException {
+        save(ds, output, false);
+    }
+
+    /**
+     * Serialize a minibatch.
+     *
+     * @param ds            minibatch to serialize.
+     * @param output        where to write the minibatch.
+     * @param halfPrecision when true, values other than zeros and ones are stored as float16 (lossy).
+     */
+    public static void save(MultiDataSet ds, OutputStream output, boolean halfPrecision) throws IOException {
+        DataOutputStream out = new DataOutputStream(output);
+        writeArrays(ds.getFeatures(), out, halfPrecision);
+        writeArrays(ds.getLabels(), out, halfPrecision);
+        writeArrays(ds.getFeaturesMaskArrays(), out, halfPrecision);
+        writeArrays(ds.getLabelsMaskArrays(), out, halfPrecision);
+        out.flush();
+    }
+
+    public static MultiDataSet load(InputStream input) throws IOException {
+        return load(input, null);
+    }
+
+    /**
+     * Deserialize a minibatch, reusing the arrays of a previous minibatch when they have the same shapes.
+     *
+     * @param input minibatch serialized with save.
+     * @param reuse a minibatch whose arrays can be overwritten, or null.
+     * @return reuse, overwritten, when all its arrays matched. A new minibatch otherwise.
+     */
+    public static MultiDataSet load(InputStream input, MultiDataSet reuse) throws IOException {
+        DataInputStream in = new DataInputStream(input);
+        INDArray[] features = readArrays(in, reuse == null ? null : reuse.getFeatures());
+        INDArray[] labels = readArrays(in, reuse == null ? null : reuse.getLabels());
+        INDArray[] featuresMasks = readArrays(in, reuse == null ? null : reuse.getFeaturesMaskArrays());
+        INDArray[] labelsMasks = readArrays(in, reuse == null ? null : reuse.getLabelsMaskArrays());
+        if (reuse != null && features == reuse.getFeatures() && labels == reuse.getLabels() &&
+                featuresMasks == reuse.getFeaturesMaskArrays() && labelsMasks == reuse.getLabelsMaskArrays()) {
+            return reuse;
+        }
+        return new org.nd4j.linalg.dataset.MultiDataSet(features, labels, featuresMasks, labelsMasks);
+    }
+
+    private static void writeArrays(INDArray[] arrays, DataOutputStream out, boolean halfPrecision) throws IOException {
+        if (arrays == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(arrays.length);
+        for (INDArray array : arrays) {
+            out.writeBoolean(array != null);
+            if (array != null) {
+                writeArray(array, out, halfPrecision);
+            }
+        }
+    }
+
+    /**
+     * Read arrays. When reuse holds arrays of the same shapes, they are overwritten and reuse is returned.
+     */
+    private static INDArray[] readArrays(DataInputStream in, INDArray[] reuse) throws IOException {
+        int n = in.readInt();
+        if (n == -1) {
+            return null;
+        }
+        boolean reused = reuse != null && reuse.length == n;
+        INDArray[] arrays = new INDArray[n];
+        for (int i = 0; i < n; i++) {
+            if (in.readBoolean()) {
+                arrays[i] = readArray(in, reused ? reuse[i] : null);
+            }
+            reused = reused && arrays[i] == reuse[i];
+        }
+        return reused ? reuse : arrays;
+    }
+
+    private static void writeArray(INDArray array, DataOutputStream out, boolean halfPrecision) throws IOException {
+        final int[] shape = array.shape();
+        final float[] values = array.dup('c').data().asFloat();
+        final int numRows = shape[0];
+        final int numColumns = numRows == 0 ? 0 : values.length / numRows;
+        final List<Run> runs = runs(values, numRows, numColumns, halfPrecision);
+        // the whole array as one run, with the layout of the single kinds:
+        final Run whole = new Run(0, numColumns, 4);
+        for (Run run : runs) {
+            whole.nonZero += run.nonZero;
+            whole.binary &= run.binary;
+        }
+        whole.choose(numRows, halfPrecision, true);
+        long mixedBytes = 4;
+        for (Run run : runs) {
+            mixedBytes += 5 + run.numBytes;
+        }
+        final boolean mixed = runs.size() > 1 && mixedBytes < whole.numBytes;
+        out.writeByte(mixed ? MIXED : whole.kind);
+        out.writeByte(shape.length);
+        for (int dim : shape) {
+            out.writeInt(dim);
+        }
+        if (!mixed) {
+            writeRun(whole, values, numRows, numColumns, out);
+            return;
+        }
+        out.writeInt(runs.size());
+        for (Run run : runs) {
+            out.writeByte(run.kind);
+            out.writeInt(run.width);
+            writeRun(run, values, numRows, numColumns, out);
+        }
+    }
+
+    /**
+     * A run of consecutive columns, stored with one encoding.
+     */
+    private static class Run {
+        final int start;
+        final int width;
+        // bytes used to store a column index, or the number of non-zero elements of a row:
+        final int indexBytes;
+        boolean binary = true;
+        int nonZero;
+        byte kind;
+        long numBytes;
+
+        Run(int start, int width, int indexBytes) {
+            this.start = start;
+            this.width = width;
+            this.indexBytes = indexBytes;
+        }
+
+        /**
+         * Choose the smallest encoding for the run. Binary arrays stored whole are always packed as bits, as they
+         * were before runs.
+         */
+        void choose(int numRows, boolean halfPrecision, boolean bitsWhenBinary) {
+            final int valueBytes = halfPrecision ? 2 : 4;
+            final long length = (long) numRows * width;
+            final long bitsBytes = (length + 63) / 64 * 8;
+            final long sparseBytes = (long) numRows * indexBytes + nonZero * (long) (indexBytes + valueBytes);
+            final long denseBytes = length * valueBytes;
+            if (binary && (bitsWhenBinary || bitsBytes <= Math.min(sparseBytes, denseBytes))) {
+                kind = BITS;
+                numBytes = bitsBytes;
+            } else if (sparseBytes < denseBytes) {
+                kind = halfPrecision ? SPARSE_HALF : SPARSE;
+                numBytes = sparseBytes;
+            } else {
+                kind = halfPrecision ? DENSE_HALF : DENSE;
+                numBytes = denseBytes;
+            }
+        }
+    }
+
+    /**
+     * Split the columns of an array in runs of columns of the same class: binary (zeros and ones), mostly zeros,
+     * or mostly non-zero, and choose the encoding of each run.
+     */
+    private static List<Run> runs(float[] values, int numRows, int numColumns, boolean halfPrecision) {
+        final int valueBytes = halfPrecision ? 2 : 4;
+        final int[] nonZero = new int[numColumns];
+        final boolean[] binary = new boolean[numColumns];
+        Arrays.fill(binary, true);
+        for (int row = 0; row < numRows; row++) {
+            final int offset = row * numColumns;
+            for (int column = 0; column < numColumns; column++) {
+                final float value = values[offset + column];
+                if (value != 0f) {
+                    nonZero[column]++;
+                    if (value != 1f) {
+                        binary[column] = false;
+                    }
+                }
+            }
+        }
+        final int indexBytes = indexBytes(numColumns);
+        List<Run> runs = new ArrayList<>();
+        int runClass = -1;
+        int runStart = 0;
+        for (int column = 0; column <= numColumns; column++) {
+            final int columnClass = column == numColumns ? -1 : binary[column] ? 0 :
+                    nonZero[column] * (indexBytes + valueBytes) < numRows * valueBytes ? 1 : 2;
+            if (column > 0 && columnClass != runClass) {
+                Run run = new Run(runStart, column - runStart, indexBytes(column - runStart));
+                for (int c = runStart; c < column; c++) {
+                    run.nonZero += nonZero[c];
+                    run.binary &= binary[c];
+                }
+                run.choose(numRows, halfPrecision, false);
+                Run previous = runs.isEmpty() ? null : runs.get(runs.size() - 1);
+                Run merged = previous == null ? null : merge(previous, run, numRows, halfPrecision);
+                // short runs cost more in headers and row counts than they save, merge them with their neighbour:
+                if (merged != null && merged.numBytes <= previous.numBytes + 5 + run.numBytes) {
+                    runs.set(runs.size() - 1, merged);
+                } else {
+                    runs.add(run);
+                }
+                runStart = column;
+            }
+            runClass = columnClass;
+        }
+        return runs;
+    }
+
+    private static Run merge(Run first, Run second, int numRows, boolean halfPrecision) {
+        final int width = first.width + second.width;
+        Run merged = new Run(first.start, width, indexBytes(width));
+        merged.nonZero = first.nonZero + second.nonZero;
+        merged.binary = first.binary && second.binary;
+        merged.choose(numRows, halfPrecision, false);
+        return merged;
+    }
+
+    private static int indexBytes(int numColumns) {
+        return numColumns <= 0xff ? 1 : numColumns <= 0xffff ? 2 : 4;
+    }
+
+    private static void writeRun(Run run, float[] values, int numRows, int numColumns, DataOutputStream out)
+            throws IOException {
+        switch (run.kind) {
+            case BITS:
+                long word = 0;
+                int bit = 0;
+                for (int row = 0; row < numRows; row++) {
+                    final int offset = row * numColumns + run.start;
+                    for (int column = 0; column < run.width; column++) {
+                        if (values[offset + column] != 0f) {
+                            word |= 1L << bit;
+                        }
+                        if (++bit == 64) {
+                            out.writeLong(word);
+                            word = 0;
+                            bit = 0;
+                        }
+                    }
+                }
+                if (bit != 0) {
+                    out.writeLong(word);
+                }
+                break;
+            case SPARSE:
+            case SPARSE_HALF:
+                for (int row = 0; row < numRows; row++) {
+                    final int offset = row * numColumns + run.start;
+                    int rowNonZero = 0;
+                    for (int column = 0; column < run.width; column++) {
+                        if (values[offset + column] != 0f) {
+                            rowNonZero++;
+                        }
+                    }
+                    writeIndex(rowNonZero, run.indexBytes, out);
+                    for (int column = 0; column < run.width; column++) {
+                        final float value = values[offset + column];
+                        if (value != 0f) {
+                            writeIndex(column, run.indexBytes, out);
+                            writeValue(value, out, run.kind == SPARSE_HALF);
+                        }
+                    }
+                }
+                break;
+            default:
+                for (int row = 0; row < numRows; row++) {
+                    final int offset = row * numColumns + run.start;
+                    for (int column = 0; column < run.width; column++) {
+                        writeValue(values[offset + column], out, run.kind == DENSE_HALF);
+                    }
+                }
+        }
+    }
+
+    private static void writeIndex(int index, int indexBytes, DataOutputStream out) throws IOException {
+        switch (indexBytes) {
+            case 1:
+                out.writeByte(index);
+                break;
+            case 2:
+                out.writeShort(index);
+                break;
+            default:
+                out.writeInt(index);
+        }
+    }
+
+    private static int readIndex(int indexBytes, DataInputStream in) throws IOException {
+        switch (indexBytes) {
+            case 1:
+                return in.readUnsignedByte();
+            case 2:
+                return in.readUnsignedShort();
+            default:
+                return in.readInt();
+        }
+    }
+
+    private static void writeValue(float value, DataOutputStream out, boolean halfPrecision) throws IOException {
+        if (halfPrecision) {
+            out.writeShort(toHalf(value));
+        } else {
+            out.writeFloat(value);
+        }
+    }
+
+    private static float readValue(DataInputStream in, boolean halfPrecision) throws IOException {
+        return halfPrecision ? fromHalf(in.readShort()) : in.readFloat();
+    }
+
+    /**
+     * Read an array. With the CPU backend, values are decoded directly into the buffer of reuse when it has the same
+     * shape, or into the buffer of a new array. Other backends decode into a float array, copied to the ND4J array
+     * through the Nd4j API.
+     */
+    private static INDArray readArray(DataInputStream in, INDArray reuse) throws IOException {
+        final byte kind = in.readByte();
+        final int[] shape = new int[in.readByte()];
+        int length = 1;
+        for (int i = 0; i < shape.length; i++) {
+            shape[i] = in.readInt();
+            length *= shape[i];
+        }
+        final boolean reused = reuse != null && reuse.ordering() == 'c' && Arrays.equals(reuse.shape(), shape) &&
+                reuse.length() == reuse.data().length();
+        final INDArray array = reused ? reuse : hostBuffers ? Nd4j.create(shape, 'c') : null;
+        final boolean direct = array != null && hostBuffers && array.data().dataType() == DataBuffer.Type.FLOAT;
+        if (direct && reused && kind != DENSE && kind != DENSE_HALF) {
+            // only non-zero elements are decoded:
+            array.assign(0);
+        }
+        final FloatBuffer buffer = direct ? array.data().asNioFloat() : FloatBuffer.allocate(length);
+        final int numRows = shape[0];
+        final int numColumns = numRows == 0 ? 0 : length / numRows;
+        switch (kind) {
+            case BITS:
+            case SPARSE:
+            case SPARSE_HALF:
+            case DENSE:
+            case DENSE_HALF:
+                readRun(in, kind, 0, numColumns, 4, numRows, numColumns, buffer);
+                break;
+            case MIXED:
+                final int numRuns = in.readInt();
+                int start = 0;
+                for (int i = 0; i < numRuns; i++) {
+                    final byte runKind = in.readByte();
+                    final int width = in.readInt();
+                    readRun(in, runKind, start, width, indexBytes(width), numRows, numColumns, buffer);
+                    start += width;
+                }
+                break;
+            default:
+                throw new IOException("Unknown sparse array kind: " + kind);
+        }
+        if (direct) {
+            return array;
+        }
+        INDArray decoded = Nd4j.create(buffer.array(), shape, 'c');
+        return array == null ? decoded : array.assign(decoded);
+    }
+
+    /**
+     * Decode the columns [start, start+width[ of an array into buffer, which holds zeros in these columns unless the
+     * run is dense.
+     */
+    private static void readRun(DataInputStream in, byte kind, int start, int width, int indexBytes,
+                                int numRows, int numColumns, FloatBuffer buffer) throws IOException {
+        switch (kind) {
+            case BITS:
+                final int length = numRows * width;
+                for (int base = 0; base < length; base += 64) {
+                    long word = in.readLong();
+                    while (word != 0) {
+                        final int i = base + Long.numberOfTrailingZeros(word);
+                        buffer.put(i / width * numColumns + start + i % width, 1f);
+                        word &= word - 1;
+                    }
+                }
+                break;
+            case SPARSE:
+            case SPARSE_HALF:
+                for (int row = 0; row < numRows; row++) {
+                    final int offset = row * numColumns + start;
+                    final int nonZero = readIndex(indexBytes, in);
+                    for (int i = 0; i < nonZero; i++) {
+                        final int column = readIndex(indexBytes, in);
+                        buffer.put(offset + column, readValue(in, kind == SPARSE_HALF));
+                    }
+                }
+                break;
+            case DENSE:
+            case DENSE_HALF:
+                for (int row = 0; row < numRows; row++) {
+                    final int offset = row * numColumns + start;
+                    for (int column = 0; column < width; column++) {
+                        buffer.put(offset + column, readValue(in, kind == DENSE_HALF));
+                    }
+                }
+                break;
+            default:
+                throw new IOException("Unknown sparse array kind: " + kind);
+        }
+    }
+
+    /**
+     * Convert a float to IEEE 754 half precision, rounding to the nearest value (ties to even).
+     */
+    static short toHalf(float value) {
+        final int bits = Float.floatToIntBits(value);
+        final int sign = (bits >>> 16) & 0x8000;
+        final int floatExponent = (bits >>> 23) & 0xff;
+        int mantissa = bits & 0x7fffff;
+        if (floatExponent == 0xff) {
+            // infinity or NaN:
+            return (short) (sign | 0x7c00 | (mantissa != 0 ? 0x200 : 0));
+        }
+        final int exponent = floatExponent - 127 + 15;
+        if (exponent >= 31) {
+            return (short) (sign | 0x7c00);
+        }
+        if (exponent <= 0) {
+            if (exponent < -10) {
+                return (short) sign;
+            }
+            // subnormal half:
+            mantissa |= 0x800000;
+            final int shift = 14 - exponent;
+            int half = mantissa >> shift;
+            final int remainder = mantissa & ((1 << shift) - 1);
+            final int halfway = 1 << (shift - 1);
+            if (remainder > halfway || (remainder == halfway && (half & 1) != 0)) {
+                half++;
+            }
+            return (short) (sign | half);
+        }
+        int half = (exponent << 10) | (mantissa >> 13);
+        final int remainder = mantissa & 0x1fff;
+        if (remainder > 0x1000 || (remainder == 0x1000 && (half & 1) != 0)) {
+            // may carry into the exponent, which is the correct rounding:
+            half++;
+        }
+        return (short) (sign | half);
+    }
+
+    /**
+     * Convert an IEEE 754 half precision value to a float.
+     */
+    static float fromHalf(short half) {
+        final int sign = (half & 0x8000) << 16;
+        final int exponent = (half >>> 10) & 0x1f;
+        final int mantissa = half & 0x3ff;
+        if (exponent == 0) {
+            final float value = mantissa * 5.9604645E-8f;
+            return sign != 0 ? -value : value;
+        }
+        if (exponent == 31) {
+            return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+        }
+        return Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+    }
+}
@@ -35,6 +35,17 @@ public class ConcatFeatureMapper<RecordType> implements FeatureMapper<RecordType
         assert featureMappers.length==0 || dimensions.size()==1: "All feature mappers must have the same dimensions to be concatenated.";
     }
 
+    @Override
+    public boolean hasStateAcrossRecords() {
+        for (FeatureMapper<RecordType> delegate : mappers) {
+            if (delegate.hasStateAcrossRecords()) {
+                return true;
+            }
+        }
+        // subclasses may map with their own delegate:
+        return FeatureMapper.super.hasStateAcrossRecords();
+    }
+
     @Override
     public int numberOfFeatures() {
 
@@ -72,6 +83,51 @@ public class ConcatFeatureMapper<RecordType> implements FeatureMapper<RecordType
         }
     }
 
+    /**
+     * Determine if this mapper produces its features with the delegates of ConcatFeatureMapper.
+     * Subclasses that map through their own delegate must override this method to return false.
+     */
+    protected boolean mapsWithDelegates() {
+        return true;
+    }
+
+    @Override
+    public void mapFeatures(RecordType record, float[] inputs, int offset, int indexOfRecord) {
+        if (!mapsWithDelegates()) {
+            final int numberOfFeatures = numberOfFeatures();
+            for (int featureIndex = 0; featureIndex < numberOfFeatures; featureIndex++) {
+                inputs[offset + featureIndex] = produceFeature(record, featureIndex);
+            }
+            return;
+        }
+        assert normalizedCalled : "prepareToNormalize must be called before mapFeatures.";
+        for (int i = 0; i < mappers.length; i++) {
+            mappers[i].mapFeatures(record, inputs, offset + offsets[i], indexOfRecord);
+        }
+    }
+
+    @Override
+    public void maskFeatures(RecordType record, float[] mask, int offset, int indexOfRecord) {
+        if (!mapsWithDelegates()) {
+            final int numberOfFeatures = numberOfFeatures();
+            for (int featureIndex = 0; featureIndex < numberOfFeatures; featureIndex++) {
+                mask[offset + featureIndex] = isMasked(record, featureIndex) ? 1F : 0F;
+            }
+            return;
+        }
+        for (int i = 0; i < mappers.length; i++) {
+            final FeatureMapper<RecordType> delegate = mappers[i];
+            if (delegate.hasMask()) {
+                delegate.maskFeatures(record, mask, offset + offsets[i], indexOfRecord);
+            } else {
+                // unmasked delegates do not write their mask, keep the same values as maskFeatures(INDArray):
+                for (int j = offsets[i]; j < offsets[i + 1]; j++) {
+                    mask[offset + j] = delegate.isMasked(record, j - offsets[i]) ? 1F : 0F;
+                }
+            }
+        }
+    }
+
     @Override
     public boolean hasMask() {
         boolean requiresMask = false;
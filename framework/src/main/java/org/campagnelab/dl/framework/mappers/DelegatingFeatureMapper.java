@@ -0,0 +1,19 @@
+package org.campagnelab.dl.framework.mappers;
+
+/**
+ * A mapper that produces its features with a single delegate mapper, for instance to transform the record or the
+ * values of the delegate. FusedFeatureMapper.compile uses this interface to compile the delegate.
+ *
+ * @author Fabien Campagne
+ */
+public interface DelegatingFeatureMapper<RecordType> {
+
+    FeatureMapper<RecordType> getDelegate();
+
+    /**
+     * Replace the delegate with a mapper that produces exactly the same features.
+     *
+     * @param delegate the new delegate.
+     */
+    void setDelegate(FeatureMapper<RecordType> delegate);
+}
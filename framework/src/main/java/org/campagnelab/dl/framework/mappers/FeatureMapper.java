@@ -1,6 +1,7 @@
 package org.campagnelab.dl.framework.mappers;
 
 import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
 
 /**
  * FeatureMapper instances convert records to mapped features suitable to train a neural net or computation graph.
@@ -75,5 +76,73 @@ public interface FeatureMapper<RecordType> {
      */
     float produceFeature(RecordType record, int featureIndex);
 
+    /**
+     * Return true when the features of a record depend on the records mapped before it by the same instance, for
+     * instance through a normalization factor accumulated across records. The records of a dataset must then be
+     * mapped in order by a single instance, so they cannot be mapped in parallel. The default implementation asks
+     * the delegate of mappers that implement DelegatingFeatureMapper, and returns false for other mappers.
+     *
+     * @return True if the mapper, or one of its delegates, keeps state from one record to the next.
+     */
+    @SuppressWarnings("unchecked")
+    default boolean hasStateAcrossRecords() {
+        if (this instanceof DelegatingFeatureMapper) {
+            return ((DelegatingFeatureMapper<RecordType>) this).getDelegate().hasStateAcrossRecords();
+        }
+        return false;
+    }
+
+    /**
+     * Fill in the features of a record into a primitive array. The features are written at offset, in the order
+     * of a c-ordered tensor with dimensions(), which is the layout of the record's row in the INDArray filled by
+     * mapFeatures. The default implementation calls produceFeature for 1D mappers, and bridges through mapFeatures
+     * otherwise. Mappers should override it with a faster implementation when they are used to map large datasets.
+     *
+     * @param record        The record to convert to features.
+     * @param inputs        Destination array. The elements to fill are zero when the method is called.
+     * @param offset        Index of the first feature of the record in inputs.
+     * @param indexOfRecord Index of the record in the destination dataset.
+     */
+    default void mapFeatures(RecordType record, float[] inputs, int offset, int indexOfRecord) {
+        final MappedDimensions dimensions = dimensions();
+        if (dimensions.numDimensions() == 1) {
+            final int numberOfFeatures = numberOfFeatures();
+            for (int featureIndex = 0; featureIndex < numberOfFeatures; featureIndex++) {
+                inputs[offset + featureIndex] = produceFeature(record, featureIndex);
+            }
+        } else {
+            int[] shape = new int[dimensions.numDimensions() + 1];
+            shape[0] = 1;
+            System.arraycopy(dimensions.dimensions, 0, shape, 1, dimensions.numDimensions());
+            INDArray row = Nd4j.zeros(shape);
+            mapFeatures(record, row, 0);
+            final float[] values = row.data().asFloat();
+            System.arraycopy(values, 0, inputs, offset, values.length);
+        }
+    }
 
+    /**
+     * Fill in the feature mask of a record into a primitive array. The method is only called if hasMask returns true.
+     * 1D mappers write one mask value per feature. Mappers with more dimensions write one mask value per element of
+     * their last dimension (e.g., one per time step for recurrent features).
+     *
+     * @param record        The record to convert to features.
+     * @param mask          Destination array. The elements to fill are zero when the method is called.
+     * @param offset        Index of the first mask value of the record in mask.
+     * @param indexOfRecord Index of the record in the destination dataset.
+     */
+    default void maskFeatures(RecordType record, float[] mask, int offset, int indexOfRecord) {
+        final MappedDimensions dimensions = dimensions();
+        if (dimensions.numDimensions() == 1) {
+            final int numberOfFeatures = numberOfFeatures();
+            for (int featureIndex = 0; featureIndex < numberOfFeatures; featureIndex++) {
+                mask[offset + featureIndex] = isMasked(record, featureIndex) ? 1F : 0F;
+            }
+        } else {
+            INDArray row = Nd4j.zeros(1, dimensions.dimensions[dimensions.numDimensions() - 1]);
+            maskFeatures(record, row, 0);
+            final float[] values = row.data().asFloat();
+            System.arraycopy(values, 0, mask, offset, values.length);
+        }
+    }
 }
@@ -0,0 +1,225 @@
+package org.campagnelab.dl.framework.mappers;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.util.Arrays;
+
+/**
+ * A flattened tree of ConcatFeatureMapper. Nested concatenations are replaced by the list of their leaf mappers,
+ * and a table that gives, for each feature, the leaf that produces it and the index of the feature in the leaf.
+ * Records are mapped in one sequential pass that calls each leaf once, without the binary searches that nested
+ * ConcatFeatureMapper do at every level for every feature. Features and masks are identical to those of the original
+ * tree. Use compile to fuse the nested concatenations of a configured mapper.
+ *
+ * @author Fabien Campagne
+ */
+public class FusedFeatureMapper<RecordType> implements FeatureNameMapper<RecordType> {
+    private final ConcatFeatureMapper<RecordType> original;
+    final FeatureMapper<RecordType>[] leaves;
+    // leafOffsets[k] is the index of the first feature of leaf k, leafOffsets[leaves.length] the number of features:
+    private final int[] leafOffsets;
+    private final int[] leafOfFeature;
+    private final int[] indexInLeaf;
+    private final int numFeatures;
+    private float[] row;
+
+    /**
+     * Compile a configured mapper in place. Concatenations nested in a ConcatFeatureMapper are fused, and the
+     * delegates of mappers that implement DelegatingFeatureMapper are compiled recursively. The mapper itself is
+     * kept, since callers may depend on its class, and produces exactly the same features after compilation.
+     *
+     * @param mapper a mapper, already configured.
+     * @return mapper.
+     */
+    @SuppressWarnings("unchecked")
+    public static <RecordType> FeatureMapper<RecordType> compile(FeatureMapper<RecordType> mapper) {
+        if (isFusable(mapper)) {
+            FeatureMapper<RecordType>[] delegates = ((ConcatFeatureMapper<RecordType>) mapper).mappers;
+            for (int i = 0; i < delegates.length; i++) {
+                delegates[i] = fuse(delegates[i]);
+            }
+        } else if (mapper instanceof DelegatingFeatureMapper) {
+            DelegatingFeatureMapper<RecordType> wrapper = (DelegatingFeatureMapper<RecordType>) mapper;
+            wrapper.setDelegate(fuse(wrapper.getDelegate()));
+        }
+        return mapper;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <RecordType> FeatureMapper<RecordType> fuse(FeatureMapper<RecordType> mapper) {
+        if (isFusable(mapper)) {
+            return new FusedFeatureMapper<>((ConcatFeatureMapper<RecordType>) mapper);
+        }
+        return compile(mapper);
+    }
+
+    /**
+     * Concatenations can be flattened unless a subclass changes how features are produced.
+     */
+    private static boolean isFusable(FeatureMapper<?> mapper) {
+        return mapper instanceof ConcatFeatureMapper && mapper.dimensions().numDimensions() == 1 &&
+                ((ConcatFeatureMapper<?>) mapper).mapsWithDelegates();
+    }
+
+    @SuppressWarnings("unchecked")
+    private FusedFeatureMapper(ConcatFeatureMapper<RecordType> original) {
+        this.original = original;
+        ObjectArrayList<FeatureMapper<RecordType>> leafList = new ObjectArrayList<>();
+        flatten(original, leafList);
+        leaves = leafList.toArray(new FeatureMapper[leafList.size()]);
+        leafOffsets = new int[leaves.length + 1];
+        IntArrayList leafOf = new IntArrayList();
+        IntArrayList indices = new IntArrayList();
+        for (int k = 0; k < leaves.length; k++) {
+            final int leafFeatures = leaves[k].numberOfFeatures();
+            leafOffsets[k + 1] = leafOffsets[k] + leafFeatures;
+            for (int j = 0; j < leafFeatures; j++) {
+                leafOf.add(k);
+                indices.add(j);
+            }
+        }
+        numFeatures = leafOffsets[leaves.length];
+        assert numFeatures == original.numberOfFeatures() : "fused mapper must produce the same number of features.";
+        leafOfFeature = leafOf.toIntArray();
+        indexInLeaf = indices.toIntArray();
+    }
+
+    private static <RecordType> void flatten(ConcatFeatureMapper<RecordType> concat,
+                                             ObjectArrayList<FeatureMapper<RecordType>> leaves) {
+        for (FeatureMapper<RecordType> mapper : concat.mappers) {
+            if (isFusable(mapper)) {
+                flatten((ConcatFeatureMapper<RecordType>) mapper, leaves);
+            } else {
+                leaves.add(compile(mapper));
+            }
+        }
+    }
+
+    /**
+     * @return the number of leaf mappers called for each record.
+     */
+    public int numLeaves() {
+        return leaves.length;
+    }
+
+    @Override
+    public boolean hasStateAcrossRecords() {
+        for (FeatureMapper<RecordType> leaf : leaves) {
+            if (leaf.hasStateAcrossRecords()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int numberOfFeatures() {
+        return numFeatures;
+    }
+
+    @Override
+    public MappedDimensions dimensions() {
+        return new MappedDimensions(numFeatures);
+    }
+
+    @Override
+    public void prepareToNormalize(RecordType record, int indexOfRecord) {
+        // nested concatenations prepare their delegates in this order:
+        for (FeatureMapper<RecordType> leaf : leaves) {
+            leaf.prepareToNormalize(record, indexOfRecord);
+        }
+    }
+
+    @Override
+    public void mapFeatures(RecordType record, float[] inputs, int offset, int indexOfRecord) {
+        for (int k = 0; k < leaves.length; k++) {
+            leaves[k].mapFeatures(record, inputs, offset + leafOffsets[k], indexOfRecord);
+        }
+    }
+
+    @Override
+    public void mapFeatures(RecordType record, INDArray inputs, int indexOfRecord) {
+        if (row == null) {
+            row = new float[numFeatures];
+        } else {
+            Arrays.fill(row, 0F);
+        }
+        mapFeatures(record, row, 0, indexOfRecord);
+        inputs.putRow(indexOfRecord, Nd4j.create(row, new int[]{1, numFeatures}));
+    }
+
+    @Override
+    public float produceFeature(RecordType record, int featureIndex) {
+        return leaves[leafOfFeature[featureIndex]].produceFeature(record, indexInLeaf[featureIndex]);
+    }
+
+    @Override
+    public boolean hasMask() {
+        for (FeatureMapper<RecordType> leaf : leaves) {
+            if (leaf.hasMask()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Write the mask of each feature, as nested concatenations do (one isMasked call per feature), in one row.
+     */
+    @Override
+    public void maskFeatures(RecordType record, INDArray mask, int indexOfRecord) {
+        if (hasMask()) {
+            if (row == null) {
+                row = new float[numFeatures];
+            }
+            for (int j = 0; j < numFeatures; j++) {
+                row[j] = isMasked(record, j) ? 1F : 0F;
+            }
+            mask.putRow(indexOfRecord, Nd4j.create(row, new int[]{1, numFeatures}));
+        }
+    }
+
+    @Override
+    public void maskFeatures(RecordType record, float[] mask, int offset, int indexOfRecord) {
+        for (int k = 0; k < leaves.length; k++) {
+            final FeatureMapper<RecordType> leaf = leaves[k];
+            if (leaf.hasMask()) {
+                leaf.maskFeatures(record, mask, offset + leafOffsets[k], indexOfRecord);
+            } else {
+                // unmasked leaves do not write their mask, keep the same values as maskFeatures(INDArray):
+                for (int j = leafOffsets[k]; j < leafOffsets[k + 1]; j++) {
+                    mask[offset + j] = leaf.isMasked(record, j - leafOffsets[k]) ? 1F : 0F;
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean isMasked(RecordType record, int featureIndex) {
+        return leaves[leafOfFeature[featureIndex]].isMasked(record, indexInLeaf[featureIndex]);
+    }
+
+    /**
+     * Name features as the original tree does. When the tree does not name features, use the name given by the leaf
+     * that produces the feature, or a name made of the positions of the leaf and of the feature in the leaf.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public String getFeatureName(int featureIndex) {
+        if (original instanceof FeatureNameMapper) {
+            // names carry the path in the original tree:
+            return ((FeatureNameMapper<RecordType>) original).getFeatureName(featureIndex);
+        }
+        final int leaf = leafOfFeature[featureIndex];
+        if (leaves[leaf] instanceof FeatureNameMapper) {
+            final String name = ((FeatureNameMapper<RecordType>) leaves[leaf]).getFeatureName(indexInLeaf[featureIndex]);
+            if (name != null) {
+                return name;
+            }
+        }
+        return "leaf" + leaf + "_" + indexInLeaf[featureIndex];
+    }
+}
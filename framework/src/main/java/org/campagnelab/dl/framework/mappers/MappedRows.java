@@ -0,0 +1,34 @@
+package org.campagnelab.dl.framework.mappers;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * Copies the features, or mask values, of one record into its row of a minibatch. Mappers with several dimensions
+ * can fill a primitive array with the layout of mapFeatures(record, float[], offset, index), and copy it to the
+ * INDArray in one assignment, rather than calling putScalar for every element.
+ *
+ * @author Fabien Campagne
+ */
+public final class MappedRows {
+
+    private MappedRows() {
+    }
+
+    /**
+     * Copy values to the row of a record.
+     *
+     * @param array         minibatch, with the record index as first dimension.
+     * @param indexOfRecord index of the record in the minibatch.
+     * @param values        values of the row, in c order. Must have exactly as many elements as the row.
+     * @param rowShape      shape of the row, i.e., the shape of array without its first dimension.
+     */
+    public static void putRow(INDArray array, int indexOfRecord, float[] values, int... rowShape) {
+        if (rowShape.length == 1) {
+            // ND4J represents vectors as 1 x n matrices, and slices the elements of a single row:
+            array.getRow(indexOfRecord).assign(Nd4j.create(values, new int[]{1, rowShape[0]}, 'c'));
+        } else {
+            array.slice(indexOfRecord).assign(Nd4j.create(values, rowShape, 'c'));
+        }
+    }
+}
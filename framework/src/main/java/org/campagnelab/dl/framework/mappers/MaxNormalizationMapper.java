@@ -1,8 +1,11 @@
 package org.campagnelab.dl.framework.mappers;
 
+import java.util.Arrays;
+
 /**
  * This mapper normalizes feature value by the absolute value of the maximum value obtained across all the delegate's
  * features. It accepts a single delegate, and normalizes it by dividing all the features by magnitude of the biggest feature.
+ * The features of the delegate are computed once per record, in prepareToNormalize, and normalized from a buffer.
  *
  * @author Remi Torracinta
  */
@@ -21,14 +24,40 @@ public class MaxNormalizationMapper<RecordType> extends AbstractFeatureMapper1D<
         return delegate.numberOfFeatures();
     }
 
+    // features of the delegate for the record being mapped:
+    private float[] values = new float[0];
+
     public void prepareToNormalize(RecordType record, int indexOfRecord) {
-        for (int i = 0; i < numberOfFeatures(); i++) {
-            absMax = Math.max(Math.abs(delegate.produceFeature(record, i)), absMax);
+        final int numberOfFeatures = numberOfFeatures();
+        if (values.length != numberOfFeatures) {
+            values = new float[numberOfFeatures];
+        } else {
+            Arrays.fill(values, 0F);
+        }
+        delegate.prepareToNormalize(record, indexOfRecord);
+        delegate.mapFeatures(record, values, 0, indexOfRecord);
+        for (int i = 0; i < numberOfFeatures; i++) {
+            absMax = Math.max(Math.abs(values[i]), absMax);
         }
     }
 
     public float produceFeature(RecordType record, int featureIndex) {
-        return normalize(produceFeatureInternal(record, featureIndex), absMax);
+        return normalize(values[featureIndex], absMax);
+    }
+
+    @Override
+    public void mapFeatures(RecordType record, float[] inputs, int offset, int indexOfRecord) {
+        for (int i = 0; i < values.length; i++) {
+            inputs[offset + i] = normalize(values[i], absMax);
+        }
+    }
+
+    /**
+     * absMax is the largest value seen since the mapper was created, not only in the current record.
+     */
+    @Override
+    public boolean hasStateAcrossRecords() {
+        return true;
     }
 
     @Override
@@ -46,11 +75,6 @@ public class MaxNormalizationMapper<RecordType> extends AbstractFeatureMapper1D<
         return normalized;
     }
 
-
-    private float produceFeatureInternal(RecordType record, int featureIndex) {
-        return delegate.produceFeature(record, featureIndex);
-    }
-
 }
 
 
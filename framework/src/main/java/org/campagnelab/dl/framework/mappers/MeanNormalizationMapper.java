@@ -1,10 +1,12 @@
 package org.campagnelab.dl.framework.mappers;
 
-import it.unimi.dsi.fastutil.floats.FloatArrayList;
 import org.nd4j.linalg.api.ndarray.INDArray;
 
+import java.util.Arrays;
+
 /**
  * This is a normalizing mapper which divides feature values by their mean.
+ * The features of the delegate are computed once per record, in prepareToNormalize, and normalized from a buffer.
  *
  * @author Fabien Campagne
  */
@@ -36,37 +38,51 @@ public class MeanNormalizationMapper<RecordType> extends AbstractFeatureMapper1D
         normalizedCalled = false;
     }
 
-    private FloatArrayList values = new FloatArrayList();
+    // features of the delegate for the record being mapped:
+    private float[] values = new float[0];
 
     public void prepareToNormalize(RecordType record, int indexOfRecord) {
         mean = 0;
         stdev = 0;
-        int count = 0;
+        final int count = numberOfFeatures();
         delegate.prepareToNormalize(record, indexOfRecord);
-        values.clear();
-        for (int i = 0; i < numberOfFeatures(); i++) {
-
-            final float v = delegate.produceFeature(record, i);
-            values.add(v);
-            mean += v;
-            count += 1;
+        if (values.length != count) {
+            values = new float[count];
+        } else {
+            Arrays.fill(values, 0F);
+        }
+        delegate.mapFeatures(record, values, 0, indexOfRecord);
+        for (int i = 0; i < count; i++) {
+            mean += values[i];
         }
         mean /= count;
-        double variance = 0;
-        for (double value : values) {
-            final double difference = value - mean;
-            variance += difference * difference;
+        if (dividebyStdev) {
+            double variance = 0;
+            for (int i = 0; i < count; i++) {
+                final double difference = (double) values[i] - mean;
+                variance += difference * difference;
+            }
+            stdev = Math.sqrt(variance);
         }
-        stdev = Math.sqrt(variance);
-
-        delegate.prepareToNormalize(record, indexOfRecord);
         normalizedCalled = true;
     }
 
 
+    @Override
+    public boolean hasStateAcrossRecords() {
+        return delegate.hasStateAcrossRecords();
+    }
+
     public float produceFeature(RecordType record, int featureIndex) {
         assert normalizedCalled == true : "normalized must be called before produceFeature";
-        return normalize(produceFeatureInternal(record, featureIndex), mean);
+        return normalize(values[featureIndex], mean);
+    }
+
+    @Override
+    public void mapFeatures(RecordType record, float[] inputs, int offset, int indexOfRecord) {
+        for (int i = 0; i < values.length; i++) {
+            inputs[offset + i] = normalize(values[i], mean);
+        }
     }
 
     @Override
@@ -87,11 +103,6 @@ public class MeanNormalizationMapper<RecordType> extends AbstractFeatureMapper1D
         return normalized;
     }
 
-
-    private float produceFeatureInternal(RecordType record, int featureIndex) {
-        return delegate.produceFeature(record, featureIndex);
-    }
-
 }
 
 
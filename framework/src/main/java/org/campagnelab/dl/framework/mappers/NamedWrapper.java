@@ -7,7 +7,8 @@ import org.nd4j.linalg.api.ndarray.INDArray;
  * A wrapper to provide a name to a feature.
  * Created by fac2003 on 2/22/17.
  */
-public abstract class NamedWrapper<RecordType> implements FeatureNameMapper<RecordType>, FeatureMapper<RecordType> {
+public abstract class NamedWrapper<RecordType> implements FeatureNameMapper<RecordType>, FeatureMapper<RecordType>,
+        DelegatingFeatureMapper<RecordType> {
     public NamedWrapper(FeatureMapper<RecordType> delegate) {
         this.delegate=delegate;
     }
@@ -32,6 +33,11 @@ public abstract class NamedWrapper<RecordType> implements FeatureNameMapper<Reco
         delegate.mapFeatures(record, inputs, indexOfRecord);
     }
 
+    @Override
+    public void mapFeatures(RecordType record, float[] inputs, int offset, int indexOfRecord) {
+        delegate.mapFeatures(record, inputs, offset, indexOfRecord);
+    }
+
     @Override
     public boolean hasMask() {
         return delegate.hasMask();
@@ -52,5 +58,15 @@ public abstract class NamedWrapper<RecordType> implements FeatureNameMapper<Reco
         return delegate.produceFeature(record, featureIndex);
     }
 
+    @Override
+    public FeatureMapper<RecordType> getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public void setDelegate(FeatureMapper<RecordType> delegate) {
+        this.delegate = delegate;
+    }
+
     FeatureMapper<RecordType> delegate;
 }
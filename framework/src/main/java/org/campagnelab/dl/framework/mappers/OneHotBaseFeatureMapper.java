@@ -5,6 +5,7 @@ import org.nd4j.linalg.api.ndarray.INDArray;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 
@@ -13,14 +14,15 @@ import java.util.function.Function;
  * at a specific baseIndex into the sequence.
  * By default, the set of integers correspond to biological bases-
  * - a/A=0
- * - c/C=1
- * - t/T=2
+ * - t/T=1
+ * - c/C=2
  * - g/G=3
  * - n/N=4
  * - other=5
  * but other mappings can be specified using the constructor with the recordStringAtBaseToInteger
  * function parameter, which takes in a string representation of a record and a base index,
- * and returns the one-hot encoding integer at that position.
+ * and returns the one-hot encoding integer at that position. With the default bases, each base is encoded once
+ * per record, with a lookup table.
  *
  * Created by rct66 on 10/25/16.
  */
@@ -31,6 +33,18 @@ public class OneHotBaseFeatureMapper<RecordType> implements FeatureMapper<Record
     private Function<RecordType, String> recordToString;
     private BiFunction<String, Integer, Integer> recordStringAtBaseToInteger;
     private int baseIndex;
+    // true when bases are encoded with the default DNA alphabet, looked up in BASE_CODES:
+    private final boolean dnaAlphabet;
+    private static final byte[] BASE_CODES = new byte[128];
+
+    static {
+        Arrays.fill(BASE_CODES, (byte) 5);
+        final String bases = "ATCGN";
+        for (int code = 0; code < bases.length(); code++) {
+            BASE_CODES[bases.charAt(code)] = (byte) code;
+            BASE_CODES[Character.toLowerCase(bases.charAt(code))] = (byte) code;
+        }
+    }
 
 
     /**
@@ -39,7 +53,7 @@ public class OneHotBaseFeatureMapper<RecordType> implements FeatureMapper<Record
      * @param recordToString function that converts a sequence record into a string
      */
     public OneHotBaseFeatureMapper(int baseIndex, Function<RecordType, String> recordToString) {
-        this(baseIndex, recordToString, OneHotBaseFeatureMapper::getIntegerOfBase, 6);
+        this(baseIndex, recordToString, OneHotBaseFeatureMapper::getIntegerOfBase, 6, true);
     }
 
     /**
@@ -54,24 +68,35 @@ public class OneHotBaseFeatureMapper<RecordType> implements FeatureMapper<Record
     public OneHotBaseFeatureMapper(int baseIndex, Function<RecordType, String> recordToString,
                                    BiFunction<String, Integer, Integer> recordStringAtBaseToInteger,
                                    int numFeatures) {
+        this(baseIndex, recordToString, recordStringAtBaseToInteger, numFeatures, false);
+    }
+
+    private OneHotBaseFeatureMapper(int baseIndex, Function<RecordType, String> recordToString,
+                                    BiFunction<String, Integer, Integer> recordStringAtBaseToInteger,
+                                    int numFeatures, boolean dnaAlphabet) {
         this.baseIndex = baseIndex;
         this.recordToString = recordToString;
         this.recordStringAtBaseToInteger = recordStringAtBaseToInteger;
         this.numFeatures = numFeatures;
-
+        this.dnaAlphabet = dnaAlphabet;
     }
 
-    private static final int[] indices = new int[]{0, 0};
+    private final int[] indices = new int[]{0, 0};
 
     public int numberOfFeatures() {
         return numFeatures;
     }
 
     private String cachedString;
+    // the code of the base, when the DNA alphabet is used:
+    private int cachedCode;
 
     @Override
     public void prepareToNormalize(RecordType record, int indexOfRecord) {
         cachedString = recordToString.apply(record);
+        if (dnaAlphabet) {
+            cachedCode = getIntegerOfBase(cachedString, baseIndex);
+        }
     }
 
     @Override
@@ -83,9 +108,17 @@ public class OneHotBaseFeatureMapper<RecordType> implements FeatureMapper<Record
         }
     }
 
+    @Override
+    public void mapFeatures(RecordType record, float[] inputs, int offset, int indexOfRecord) {
+        int value = dnaAlphabet ? cachedCode : recordStringAtBaseToInteger.apply(cachedString, baseIndex);
+        if (value >= 0 && value < numFeatures) {
+            inputs[offset + value] = 1F;
+        }
+    }
+
     @Override
     public float produceFeature(RecordType record, int featureIndex) {
-        int value = recordStringAtBaseToInteger.apply(cachedString, baseIndex);
+        int value = dnaAlphabet ? cachedCode : recordStringAtBaseToInteger.apply(cachedString, baseIndex);
         return value == featureIndex ? 1F : 0F;
     }
 
@@ -116,33 +149,16 @@ public class OneHotBaseFeatureMapper<RecordType> implements FeatureMapper<Record
                     baseIndex, context, context.length()));
             return 5;
         }
-        Character base = context.charAt(baseIndex);
-        int baseInt;
-        switch (base) {
-            case 'a':
-            case 'A':
-                baseInt = 0;
-                break;
-            case 't':
-            case 'T':
-                baseInt = 1;
-                break;
-            case 'c':
-            case 'C':
-                baseInt = 2;
-                break;
-            case 'g':
-            case 'G':
-                baseInt = 3;
-                break;
-            case 'n':
-            case 'N':
-                baseInt = 4;
-                break;
-            default:
-                baseInt = 5;
-                break;
-        }
-        return baseInt;
+        return codeOfBase(context.charAt(baseIndex));
+    }
+
+    /**
+     * Encode a base with the default DNA alphabet: a/A=0, t/T=1, c/C=2, g/G=3, n/N=4, other=5.
+     *
+     * @param base a base.
+     * @return the one-hot index of the base.
+     */
+    public static int codeOfBase(char base) {
+        return base < BASE_CODES.length ? BASE_CODES[base] : 5;
     }
 }
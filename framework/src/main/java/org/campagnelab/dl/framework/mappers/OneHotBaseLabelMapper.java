@@ -18,7 +18,7 @@ public class OneHotBaseLabelMapper<RecordType> implements LabelMapper<RecordType
     private int numLabels;
     private Function<RecordType, int[]> recordToLabel;
 
-    private static final int[] indices = new int[]{0, 0};
+    private final int[] indices = new int[]{0, 0};
 
     /**
      * Creates a OneHotBaseLabelMapper with a specified baseIndex and conversion function
@@ -27,7 +27,7 @@ public class OneHotHashModuloMapper<RecordType> extends NoMaskFeatureMapper<Reco
         this.recordToString = recordToString;
     }
 
-    private static final int[] indices = new int[]{0, 0};
+    private final int[] indices = new int[]{0, 0};
 
     public int numberOfFeatures() {
         return vectorNumElements;
@@ -0,0 +1,213 @@
+package org.campagnelab.dl.framework.mappers;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+/**
+ * Measures the time a mapper spends mapping records, and the bytes it allocates. Use instrument to wrap every leaf
+ * of a configured mapper tree. Measurements include the overhead of reading the clock and the allocation counter,
+ * a few tens of nanoseconds per call, so compare mappers, rather than trust absolute values for the fastest ones.
+ * Instances are not thread-safe.
+ *
+ * @author Fabien Campagne
+ */
+public class ProfilingFeatureMapper<RecordType> implements FeatureNameMapper<RecordType> {
+    private static final com.sun.management.ThreadMXBean threads = threadMXBean();
+
+    private final FeatureMapper<RecordType> delegate;
+    private final String path;
+    private long nanos;
+    private long allocatedBytes;
+
+    public ProfilingFeatureMapper(FeatureMapper<RecordType> delegate, String path) {
+        this.delegate = delegate;
+        this.path = path;
+    }
+
+    /**
+     * Wrap every leaf of a configured mapper tree in a ProfilingFeatureMapper. Leaves are replaced in place, in
+     * concatenations (fused or not) and in the delegate of mappers that implement DelegatingFeatureMapper. The
+     * mapper itself is kept, and produces the same features.
+     *
+     * @param mapper   a configured mapper.
+     * @param profiles the profiles of the leaves, in the order the leaves are found.
+     * @return mapper, or a ProfilingFeatureMapper when mapper is itself a leaf.
+     */
+    public static <RecordType> FeatureMapper<RecordType> instrument(FeatureMapper<RecordType> mapper,
+                                                                    List<ProfilingFeatureMapper<RecordType>> profiles) {
+        return instrument(mapper, mapper.getClass().getSimpleName(), profiles);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <RecordType> FeatureMapper<RecordType> instrument(FeatureMapper<RecordType> mapper, String path,
+                                                                     List<ProfilingFeatureMapper<RecordType>> profiles) {
+        if (mapper instanceof FusedFeatureMapper) {
+            FeatureMapper<RecordType>[] leaves = ((FusedFeatureMapper<RecordType>) mapper).leaves;
+            instrumentAll(leaves, path, profiles);
+            return mapper;
+        }
+        if (mapper instanceof ConcatFeatureMapper && ((ConcatFeatureMapper<RecordType>) mapper).mapsWithDelegates()) {
+            instrumentAll(((ConcatFeatureMapper<RecordType>) mapper).mappers, path, profiles);
+            return mapper;
+        }
+        if (mapper instanceof DelegatingFeatureMapper) {
+            DelegatingFeatureMapper<RecordType> wrapper = (DelegatingFeatureMapper<RecordType>) mapper;
+            final FeatureMapper<RecordType> delegate = wrapper.getDelegate();
+            wrapper.setDelegate(instrument(delegate, path + "/" + delegate.getClass().getSimpleName(), profiles));
+            return mapper;
+        }
+        ProfilingFeatureMapper<RecordType> profile = new ProfilingFeatureMapper<>(mapper, path);
+        profiles.add(profile);
+        return profile;
+    }
+
+    private static <RecordType> void instrumentAll(FeatureMapper<RecordType>[] mappers, String path,
+                                                   List<ProfilingFeatureMapper<RecordType>> profiles) {
+        for (int i = 0; i < mappers.length; i++) {
+            mappers[i] = instrument(mappers[i], path + "/" + i + ":" + mappers[i].getClass().getSimpleName(), profiles);
+        }
+    }
+
+    /**
+     * @return the bytes allocated by the current thread so far, or -1 when the JVM does not measure allocations.
+     */
+    public static long allocatedBytes() {
+        if (threads == null) {
+            return -1;
+        }
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static com.sun.management.ThreadMXBean threadMXBean() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean &&
+                ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+            threads.setThreadAllocatedMemoryEnabled(true);
+            return threads;
+        }
+        return null;
+    }
+
+    /**
+     * @return position of the mapper in the tree, e.g., FeatureMapperV25/3:DensityMapper.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    public FeatureMapper<RecordType> getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * @return nanoseconds spent in the mapper since the last reset.
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * @return bytes allocated by the mapper since the last reset, or a negative value when allocations are not
+     * measured.
+     */
+    public long getAllocatedBytes() {
+        return threads == null ? -1 : allocatedBytes;
+    }
+
+    public void reset() {
+        nanos = 0;
+        allocatedBytes = 0;
+    }
+
+    private long startNanos;
+    private long startBytes;
+
+    private void start() {
+        startBytes = allocatedBytes();
+        startNanos = System.nanoTime();
+    }
+
+    private void stop() {
+        nanos += System.nanoTime() - startNanos;
+        allocatedBytes += allocatedBytes() - startBytes;
+    }
+
+    @Override
+    public String getFeatureName(int featureIndex) {
+        if (delegate instanceof FeatureNameMapper) {
+            return ((FeatureNameMapper<RecordType>) delegate).getFeatureName(featureIndex);
+        }
+        return null;
+    }
+
+    @Override
+    public boolean hasStateAcrossRecords() {
+        return delegate.hasStateAcrossRecords();
+    }
+
+    @Override
+    public int numberOfFeatures() {
+        return delegate.numberOfFeatures();
+    }
+
+    @Override
+    public MappedDimensions dimensions() {
+        return delegate.dimensions();
+    }
+
+    @Override
+    public void prepareToNormalize(RecordType record, int indexOfRecord) {
+        start();
+        delegate.prepareToNormalize(record, indexOfRecord);
+        stop();
+    }
+
+    @Override
+    public void mapFeatures(RecordType record, INDArray inputs, int indexOfRecord) {
+        start();
+        delegate.mapFeatures(record, inputs, indexOfRecord);
+        stop();
+    }
+
+    @Override
+    public void mapFeatures(RecordType record, float[] inputs, int offset, int indexOfRecord) {
+        start();
+        delegate.mapFeatures(record, inputs, offset, indexOfRecord);
+        stop();
+    }
+
+    @Override
+    public boolean hasMask() {
+        return delegate.hasMask();
+    }
+
+    @Override
+    public void maskFeatures(RecordType record, INDArray mask, int indexOfRecord) {
+        start();
+        delegate.maskFeatures(record, mask, indexOfRecord);
+        stop();
+    }
+
+    @Override
+    public void maskFeatures(RecordType record, float[] mask, int offset, int indexOfRecord) {
+        start();
+        delegate.maskFeatures(record, mask, offset, indexOfRecord);
+        stop();
+    }
+
+    @Override
+    public boolean isMasked(RecordType record, int featureIndex) {
+        return delegate.isMasked(record, featureIndex);
+    }
+
+    @Override
+    public float produceFeature(RecordType record, int featureIndex) {
+        start();
+        final float feature = delegate.produceFeature(record, featureIndex);
+        stop();
+        return feature;
+    }
+}
@@ -2,6 +2,7 @@ package org.campagnelab.dl.framework.mappers;
 
 import org.nd4j.linalg.api.ndarray.INDArray;
 
+import java.util.Arrays;
 import java.util.function.Function;
 
 /**
@@ -35,10 +36,11 @@ public class RNNFeatureMapper<RecordType> implements FeatureMapper<RecordType> {
     private FeatureMapper<RecordType>[] delegates;
     private Function<RecordType, Integer> recordToSequenceLength;
 
-    private int[] indicesMapper = new int[]{0, 0, 0};
-    private int[] indicesMasker = new int[]{0, 0};
-
     int sequenceLength;
+    private float[] timeStep;
+    // features and mask of the record, filled by the bulk methods and copied to INDArrays in one assignment:
+    private float[] row;
+    private float[] maskRow;
 
     private MappedDimensions dim;
 
@@ -102,21 +104,36 @@ public class RNNFeatureMapper<RecordType> implements FeatureMapper<RecordType> {
 
     @Override
     public void mapFeatures(RecordType record, INDArray inputs, int indexOfRecord) {
-        indicesMapper[0] = indexOfRecord;
-        for (int i = 0; i < delegates.length; i++) {
-            indicesMapper[2] = i;
-            final FeatureMapper<RecordType> delegate = delegates[i];
-            for (int j = 0; j < delegate.numberOfFeatures(); j++) {
-                indicesMapper[1] = j;
-                if (i < sequenceLength) {
-                    inputs.putScalar(indicesMapper, delegate.produceFeature(record, j));
-                } else {
-                    inputs.putScalar(indicesMapper, 0F);
-                }
+        if (row == null) {
+            row = new float[numberOfFeatures()];
+        } else {
+            Arrays.fill(row, 0F);
+        }
+        mapFeatures(record, row, 0, indexOfRecord);
+        MappedRows.putRow(inputs, indexOfRecord, row, featuresPerTimeStep, delegates.length);
+    }
+
+    @Override
+    public void mapFeatures(RecordType record, float[] inputs, int offset, int indexOfRecord) {
+        // features are stored [featureIndex][timeStep], delegates write one time step:
+        if (timeStep == null || timeStep.length < featuresPerTimeStep) {
+            timeStep = new float[featuresPerTimeStep];
+        }
+        final int numTimeSteps = Math.min(sequenceLength, delegates.length);
+        for (int i = 0; i < numTimeSteps; i++) {
+            Arrays.fill(timeStep, 0, featuresPerTimeStep, 0F);
+            delegates[i].mapFeatures(record, timeStep, 0, indexOfRecord);
+            for (int j = 0; j < featuresPerTimeStep; j++) {
+                inputs[offset + j * delegates.length + i] = timeStep[j];
             }
         }
     }
 
+    @Override
+    public void maskFeatures(RecordType record, float[] mask, int offset, int indexOfRecord) {
+        Arrays.fill(mask, offset, offset + Math.max(0, Math.min(sequenceLength, delegates.length)), 1F);
+    }
+
     @Override
     public boolean hasMask() {
         return true;
@@ -124,11 +141,13 @@ public class RNNFeatureMapper<RecordType> implements FeatureMapper<RecordType> {
 
     @Override
     public void maskFeatures(RecordType record, INDArray mask, int indexOfRecord) {
-        indicesMasker[0] = indexOfRecord;
-        for (int i = 0; i < delegates.length; i++) {
-            indicesMasker[1] = i;
-            mask.putScalar(indicesMasker, i < sequenceLength ? 1F : 0F);
+        if (maskRow == null) {
+            maskRow = new float[delegates.length];
+        } else {
+            Arrays.fill(maskRow, 0F);
         }
+        maskFeatures(record, maskRow, 0, indexOfRecord);
+        MappedRows.putRow(mask, indexOfRecord, maskRow, delegates.length);
     }
 
     @Override
@@ -0,0 +1,114 @@
+package org.campagnelab.dl.framework.mappers;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Memoizes data derived from the record being mapped, so that the mappers that need the same data (sorted counts,
+ * coverage, ..) compute it once per record. Each mapping thread has its own context, which is recycled for every
+ * record the thread maps. Values are stored in typed slots, created once per kind of value:
+ * <pre>
+ * static final RecordContext.Slot&lt;Integer&gt; COVERAGE = RecordContext.newSlot();
+ * ...
+ * Integer coverage = RecordContext.get(record, COVERAGE);
+ * if (coverage == null) {
+ *     coverage = ..;
+ *     RecordContext.put(record, COVERAGE, coverage);
+ * }
+ * </pre>
+ * Values are cached only between begin(record) and end(), which MultiDataSetIteratorAdapter calls around the mapping
+ * of each record. Outside of this scope, or for another record (e.g., a record derived from the record being mapped),
+ * get returns null and put does nothing, so mappers always compute values as they would without the context.
+ *
+ * @author Fabien Campagne
+ */
+public final class RecordContext {
+    private static final AtomicInteger numSlots = new AtomicInteger();
+    private static final ThreadLocal<RecordContext> contexts = ThreadLocal.withInitial(RecordContext::new);
+
+    private Object record;
+    private Object[] values = new Object[8];
+    // stamps[i] is the stamp of the record the value of slot i was computed for:
+    private long[] stamps = new long[8];
+    // zero when no record is being mapped:
+    private long stamp;
+    private long lastStamp;
+
+    /**
+     * A slot of the context, holding values of type T.
+     */
+    public static final class Slot<T> {
+        private final int index;
+
+        private Slot(int index) {
+            this.index = index;
+        }
+    }
+
+    private RecordContext() {
+    }
+
+    /**
+     * Create a new slot. Slots should be created once, and kept in static fields.
+     */
+    public static <T> Slot<T> newSlot() {
+        return new Slot<>(numSlots.getAndIncrement());
+    }
+
+    /**
+     * Start mapping a record on this thread. Values cached for the previous record are discarded.
+     */
+    public static void begin(Object record) {
+        final RecordContext context = contexts.get();
+        context.record = record;
+        context.stamp = ++context.lastStamp;
+    }
+
+    /**
+     * Finish mapping the record of this thread, and release the reference the context keeps to it.
+     */
+    public static void end() {
+        final RecordContext context = contexts.get();
+        context.record = null;
+        context.stamp = 0;
+    }
+
+    /**
+     * @return true when record is the record being mapped by this thread.
+     */
+    private boolean isCurrent(Object record) {
+        return stamp != 0 && this.record == record;
+    }
+
+    /**
+     * @return the value of the slot for the record, or null if it was not computed yet, or if the record is not the
+     * record being mapped by this thread.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T get(Object record, Slot<T> slot) {
+        final RecordContext context = contexts.get();
+        if (!context.isCurrent(record) || slot.index >= context.values.length ||
+                context.stamps[slot.index] != context.stamp) {
+            return null;
+        }
+        return (T) context.values[slot.index];
+    }
+
+    /**
+     * Store the value of the slot for the record. Does nothing if the record is not the record being mapped by this
+     * thread.
+     */
+    public static <T> void put(Object record, Slot<T> slot, T value) {
+        final RecordContext context = contexts.get();
+        if (!context.isCurrent(record)) {
+            return;
+        }
+        if (slot.index >= context.values.length) {
+            final int length = Math.max(slot.index + 1, context.values.length * 2);
+            context.values = Arrays.copyOf(context.values, length);
+            context.stamps = Arrays.copyOf(context.stamps, length);
+        }
+        context.values[slot.index] = value;
+        context.stamps[slot.index] = context.stamp;
+    }
+}
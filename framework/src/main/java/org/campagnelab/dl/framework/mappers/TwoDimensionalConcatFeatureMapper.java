@@ -91,6 +91,16 @@ public class TwoDimensionalConcatFeatureMapper<RecordType> implements FeatureMap
         this(0, delegates);
     }
 
+    @Override
+    public boolean hasStateAcrossRecords() {
+        for (FeatureMapper<RecordType> delegate : delegates) {
+            if (delegate.hasStateAcrossRecords()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public int numberOfFeatures() {
         return numFeatures + (totalTimeSteps * zeroPaddingWidth);
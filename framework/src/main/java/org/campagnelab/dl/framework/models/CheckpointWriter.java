@@ -0,0 +1,228 @@
+package org.campagnelab.dl.framework.models;
+
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Saves checkpoints of a model being trained. In asynchronous mode, save copies the parameters and updater state
+ * of the model, and returns. The copy is written by a background thread, so that training continues while the
+ * checkpoint is written. Writes are coalesced: when a model is saved again with the same prefix before the previous
+ * copy was written, only the newest copy is written. Models are written to a temporary file, which is then renamed,
+ * so that a checkpoint on disk is always complete. In synchronous mode, save writes the model before returning.
+ * saveResumable writes a ResumeCheckpoint the same way, under the prefix "resume". The time spent by each
+ * checkpoint is returned by completed(), so that it can be logged.
+ *
+ * @author Fabien Campagne
+ */
+public class CheckpointWriter {
+    static private Logger LOG = LoggerFactory.getLogger(CheckpointWriter.class);
+
+    private final ComputationGraphSaver saver;
+    private final ExecutorService executor;
+    // copies waiting to be written, by prefix:
+    private final Map<String, Snapshot> pending = new HashMap<>();
+    private final ConcurrentLinkedQueue<Checkpoint> completed = new ConcurrentLinkedQueue<>();
+    private volatile IOException failure;
+
+    /**
+     * The time spent saving a model.
+     */
+    public static class Checkpoint {
+        public final String prefix;
+        public final int epoch;
+        /**
+         * Size of the model file, in bytes.
+         */
+        public final long numBytes;
+        /**
+         * Time the caller of save was blocked, copying the model, or writing it in synchronous mode.
+         */
+        public final double blockedMillis;
+        /**
+         * Time spent writing the model file.
+         */
+        public final double writeMillis;
+        /**
+         * Number of earlier copies with the same prefix replaced by this one before they were written.
+         */
+        public final int numCoalesced;
+
+        Checkpoint(String prefix, int epoch, long numBytes, double blockedMillis, double writeMillis, int numCoalesced) {
+            this.prefix = prefix;
+            this.epoch = epoch;
+            this.numBytes = numBytes;
+            this.blockedMillis = blockedMillis;
+            this.writeMillis = writeMillis;
+            this.numCoalesced = numCoalesced;
+        }
+    }
+
+    private static class Snapshot {
+        final ComputationGraph graph;
+        final int epoch;
+        // null for a model saved without training state:
+        final ResumeCheckpoint resume;
+        final double blockedMillis;
+        final int numCoalesced;
+
+        Snapshot(ComputationGraph graph, int epoch, ResumeCheckpoint resume, double blockedMillis, int numCoalesced) {
+            this.graph = graph;
+            this.epoch = epoch;
+            this.resume = resume;
+            this.blockedMillis = blockedMillis;
+            this.numCoalesced = numCoalesced;
+        }
+    }
+
+    /**
+     * @param saver        saves models to the model directory.
+     * @param asynchronous true to write models in a background thread.
+     */
+    public CheckpointWriter(ComputationGraphSaver saver, boolean asynchronous) {
+        this.saver = saver;
+        this.executor = asynchronous ? Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "checkpoint-writer");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+    }
+
+    /**
+     * Save a model.
+     *
+     * @param net    model to save. In asynchronous mode, the model is copied before the method returns, and can be
+     *               trained further immediately.
+     * @param prefix identifies the model, e.g., latest, bestscore.
+     * @param epoch  epoch of training the model has completed.
+     * @throws IOException when the model cannot be written, or a model written before in the background could not
+     *                     be.
+     */
+    public void save(ComputationGraph net, String prefix, int epoch) throws IOException {
+        save(net, prefix, epoch, null);
+    }
+
+    /**
+     * Save a model with the state of training, so that training can resume from it. The checkpoint is written to
+     * resume-checkpoint.zip in the model directory.
+     *
+     * @param net   model to save. In asynchronous mode, the model is copied before the method returns.
+     * @param state state of training when the model was saved.
+     */
+    public void saveResumable(ComputationGraph net, ResumeCheckpoint state) throws IOException {
+        save(net, "resume", state.epoch, state);
+    }
+
+    private void save(ComputationGraph net, String prefix, int epoch, ResumeCheckpoint resume) throws IOException {
+        checkFailure();
+        final long start = System.nanoTime();
+        if (executor == null) {
+            File file = write(net, prefix, resume);
+            final double millis = (System.nanoTime() - start) / 1E6;
+            completed.add(new Checkpoint(prefix, epoch, file.length(), millis, millis, 0));
+            return;
+        }
+        final ComputationGraph copy = net.clone();
+        final double blockedMillis = (System.nanoTime() - start) / 1E6;
+        synchronized (pending) {
+            Snapshot replaced = pending.get(prefix);
+            final int numCoalesced = replaced == null ? 0 : replaced.numCoalesced + 1;
+            pending.put(prefix, new Snapshot(copy, epoch, resume, blockedMillis, numCoalesced));
+            if (replaced == null) {
+                executor.submit(() -> writePending(prefix));
+            }
+        }
+    }
+
+    /**
+     * Wait until the models saved so far are written.
+     *
+     * @throws IOException when a model could not be written.
+     */
+    public void flush() throws IOException {
+        if (executor != null) {
+            try {
+                // the writer thread runs tasks in order, this one runs after the pending writes:
+                executor.submit(() -> {
+                }).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for checkpoints to be written.", e);
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+        }
+        checkFailure();
+    }
+
+    /**
+     * Write the models saved so far, then stop the background thread.
+     */
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Return the checkpoints written since the last call, in the order they were written.
+     */
+    public List<Checkpoint> completed() {
+        List<Checkpoint> result = new ArrayList<>();
+        Checkpoint checkpoint;
+        while ((checkpoint = completed.poll()) != null) {
+            result.add(checkpoint);
+        }
+        return result;
+    }
+
+    private void writePending(String prefix) {
+        final Snapshot snapshot;
+        synchronized (pending) {
+            snapshot = pending.remove(prefix);
+        }
+        final long start = System.nanoTime();
+        try {
+            File file = write(snapshot.graph, prefix, snapshot.resume);
+            completed.add(new Checkpoint(prefix, snapshot.epoch, file.length(), snapshot.blockedMillis,
+                    (System.nanoTime() - start) / 1E6, snapshot.numCoalesced));
+        } catch (IOException e) {
+            LOG.error("Unable to write checkpoint " + prefix, e);
+            if (failure == null) {
+                failure = e;
+            }
+        }
+    }
+
+    private File write(ComputationGraph net, String prefix, ResumeCheckpoint resume) throws IOException {
+        if (resume != null) {
+            File file = new File(saver.getDirectory(), ResumeCheckpoint.FILENAME);
+            resume.write(net, file);
+            return file;
+        }
+        File file = new File(saver.modelFilename(prefix));
+        ComputationGraphSaver.write(net, file);
+        return file;
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("Unable to write a checkpoint in the background.", failure);
+        }
+    }
+}
@@ -5,8 +5,11 @@ import org.deeplearning4j.earlystopping.EarlyStoppingModelSaver;
 import org.deeplearning4j.nn.graph.ComputationGraph;
 import org.deeplearning4j.util.ModelSerializer;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 /**
  * Save a computational graph to disk. Adapted from DL4J model saver, but supports different model prefixes (e.g., best, latest, 1- for epochs,
@@ -41,8 +44,18 @@ public class ComputationGraphSaver implements EarlyStoppingModelSaver<Computatio
 
 
     public void saveModel(ComputationGraph net, String prefix) throws IOException {
-        String confOut = FilenameUtils.concat(directory, prefix + "-ComputationGraph.bin");
-        save(net, confOut);
+        save(net, modelFilename(prefix));
+    }
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return name of the file a model with the prefix is saved to.
+     */
+    String modelFilename(String prefix) {
+        return FilenameUtils.concat(directory, prefix + "-ComputationGraph.bin");
     }
 
 
@@ -70,7 +83,25 @@ public class ComputationGraphSaver implements EarlyStoppingModelSaver<Computatio
     }
 
     private void save(ComputationGraph net, String modelName) throws IOException {
-        ModelSerializer.writeModel(net, modelName, true);
+        write(net, new File(modelName));
+    }
+
+    /**
+     * Write a model with its updater to a temporary file, then rename the temporary file to the model file. The
+     * model file is replaced atomically, and is never left partially written when the write fails.
+     *
+     * @param net  model to write.
+     * @param file model file.
+     */
+    static void write(ComputationGraph net, File file) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try {
+            ModelSerializer.writeModel(net, tmpFile, true);
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmpFile.toPath());
+        }
     }
 
     private ComputationGraph load(String modelName) throws IOException {
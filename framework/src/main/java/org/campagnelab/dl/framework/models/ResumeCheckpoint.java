@@ -0,0 +1,121 @@
+package org.campagnelab.dl.framework.models;
+
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.util.ModelSerializer;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * A checkpoint that training can resume from, in the middle of an epoch. The checkpoint stores the model with its
+ * updater, and the state of training: the epoch, the number of minibatches of the epoch already trained on, the
+ * number of examples used so far, the seed of the ND4J random generator, and early stopping state. Model and state
+ * are stored together in one zip file, which is replaced atomically, so that they always match. The model is streamed
+ * to and from the file, and is never held in memory as an array of bytes.
+ *
+ * @author Fabien Campagne
+ */
+public class ResumeCheckpoint {
+    public static final String FILENAME = "resume-checkpoint.zip";
+    private static final String MODEL_ENTRY = "model.bin";
+    private static final String STATE_ENTRY = "state.properties";
+
+    public final int epoch;
+    /**
+     * Number of minibatches of the epoch the model was trained on.
+     */
+    public final int minibatchIndex;
+    public final long numExamplesUsed;
+    /**
+     * Seed of the ND4J random generator when the checkpoint was taken.
+     */
+    public final long randomSeed;
+    /**
+     * Other state of the training loop, e.g., early stopping counters.
+     */
+    public final Properties properties;
+
+    public ResumeCheckpoint(int epoch, int minibatchIndex, long numExamplesUsed, long randomSeed, Properties properties) {
+        this.epoch = epoch;
+        this.minibatchIndex = minibatchIndex;
+        this.numExamplesUsed = numExamplesUsed;
+        this.randomSeed = randomSeed;
+        this.properties = properties;
+    }
+
+    /**
+     * Write a model and the state of training to a checkpoint file. The file is replaced atomically.
+     */
+    public void write(ComputationGraph net, File file) throws IOException {
+        Properties state = new Properties();
+        state.putAll(properties);
+        state.setProperty("epoch", Integer.toString(epoch));
+        state.setProperty("minibatchIndex", Integer.toString(minibatchIndex));
+        state.setProperty("numExamplesUsed", Long.toString(numExamplesUsed));
+        state.setProperty("randomSeed", Long.toString(randomSeed));
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try {
+            try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+                zip.putNextEntry(new ZipEntry(STATE_ENTRY));
+                state.store(zip, "training state");
+                zip.closeEntry();
+                zip.putNextEntry(new ZipEntry(MODEL_ENTRY));
+                // the serializer closes the stream it writes to, which must not close the zip:
+                ModelSerializer.writeModel(net, new CloseShieldOutputStream(zip), true);
+                zip.closeEntry();
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmpFile.toPath());
+        }
+    }
+
+    /**
+     * Read the state of training from a checkpoint file.
+     */
+    public static ResumeCheckpoint read(File file) throws IOException {
+        Properties state = new Properties();
+        try (ZipFile zip = new ZipFile(file); InputStream input = zip.getInputStream(entry(zip, STATE_ENTRY))) {
+            state.load(input);
+        }
+        int epoch = Integer.parseInt(state.getProperty("epoch"));
+        int minibatchIndex = Integer.parseInt(state.getProperty("minibatchIndex"));
+        long numExamplesUsed = Long.parseLong(state.getProperty("numExamplesUsed"));
+        long randomSeed = Long.parseLong(state.getProperty("randomSeed"));
+        for (String key : new String[]{"epoch", "minibatchIndex", "numExamplesUsed", "randomSeed"}) {
+            state.remove(key);
+        }
+        return new ResumeCheckpoint(epoch, minibatchIndex, numExamplesUsed, randomSeed, state);
+    }
+
+    /**
+     * Read the model, with its updater, from a checkpoint file. The model entry is extracted to a temporary file, which
+     * the serializer reads from.
+     */
+    public static ComputationGraph readModel(File file) throws IOException {
+        File modelFile = File.createTempFile("resume-model", ".bin");
+        try {
+            try (ZipFile zip = new ZipFile(file); InputStream input = zip.getInputStream(entry(zip, MODEL_ENTRY))) {
+                Files.copy(input, modelFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            return ModelSerializer.restoreComputationGraph(modelFile, true);
+        } finally {
+            Files.deleteIfExists(modelFile.toPath());
+        }
+    }
+
+    private static ZipEntry entry(ZipFile zip, String name) throws IOException {
+        ZipEntry entry = zip.getEntry(name);
+        if (entry == null) {
+            throw new IOException("Checkpoint " + zip.getName() + " has no entry " + name);
+        }
+        return entry;
+    }
+}
@@ -0,0 +1,166 @@
+package org.campagnelab.dl.framework.performance;
+
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Estimates the performance metrics of a model on the validation set. validate evaluates the model in the calling
+ * thread. submit evaluates a copy of the model parameters in a background thread, so that training can continue
+ * while the validation set is scored. At most one validation runs in the background, and its result must be
+ * collected with poll or take before the next one is submitted. The validation iterator is only used by the
+ * validator.
+ *
+ * @author Fabien Campagne
+ */
+public class ModelValidator {
+    static private Logger LOG = LoggerFactory.getLogger(ModelValidator.class);
+
+    private final PerformanceMetricDescriptor perfDescriptor;
+    private final MultiDataSetIterator validationIterator;
+    private final long numValidation;
+    private ExecutorService executor;
+    private Future<Validation> pending;
+
+    /**
+     * The metrics of a model, estimated after some epoch of training.
+     */
+    public static class Validation {
+        /**
+         * The model that was validated. A snapshot of the model being trained when validated in the background.
+         */
+        public final ComputationGraph graph;
+        public final int epoch;
+        public final long numExamplesUsed;
+        public final double trainingScore;
+        /**
+         * Values of the metrics, in the order of PerformanceMetricDescriptor.performanceMetrics().
+         */
+        public double[] metricValues;
+
+        Validation(ComputationGraph graph, int epoch, long numExamplesUsed, double trainingScore) {
+            this.graph = graph;
+            this.epoch = epoch;
+            this.numExamplesUsed = numExamplesUsed;
+            this.trainingScore = trainingScore;
+        }
+    }
+
+    /**
+     * @param perfDescriptor     describes the metrics to estimate.
+     * @param validationIterator iterator over the validation set.
+     * @param numValidation      maximum number of validation examples to score.
+     */
+    public ModelValidator(PerformanceMetricDescriptor perfDescriptor, MultiDataSetIterator validationIterator,
+                          long numValidation) {
+        this.perfDescriptor = perfDescriptor;
+        this.validationIterator = validationIterator;
+        this.numValidation = numValidation;
+    }
+
+    /**
+     * Estimate the metrics of a model in the calling thread.
+     *
+     * @param graph           model to validate.
+     * @param epoch           epoch of training the model has completed.
+     * @param numExamplesUsed number of training examples seen by the model.
+     * @param trainingScore   score of the model on the training set.
+     */
+    public Validation validate(ComputationGraph graph, int epoch, long numExamplesUsed, double trainingScore) {
+        if (pending != null) {
+            throw new IllegalStateException("A validation is running in the background. Call take() first.");
+        }
+        return estimate(new Validation(graph, epoch, numExamplesUsed, trainingScore));
+    }
+
+    /**
+     * Estimate the metrics of a copy of the model in a background thread. The result is returned by poll or take.
+     *
+     * @param graph           model to validate. Its parameters are copied before the method returns, and it can be
+     *                        trained further immediately.
+     * @param epoch           epoch of training the model has completed.
+     * @param numExamplesUsed number of training examples seen by the model.
+     * @param trainingScore   score of the model on the training set.
+     */
+    public void submit(ComputationGraph graph, int epoch, long numExamplesUsed, double trainingScore) {
+        if (pending != null) {
+            throw new IllegalStateException("The previous validation has not been collected. Call take() first.");
+        }
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "validation");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        final Validation validation = new Validation(graph.clone(), epoch, numExamplesUsed, trainingScore);
+        pending = executor.submit(() -> estimate(validation));
+    }
+
+    /**
+     * @return true when a validation was submitted and has not been collected yet.
+     */
+    public boolean isPending() {
+        return pending != null;
+    }
+
+    /**
+     * Collect the validation submitted before, if it has finished.
+     *
+     * @return the validation, or null when no validation has finished.
+     */
+    public Validation poll() {
+        if (pending == null || !pending.isDone()) {
+            return null;
+        }
+        return take();
+    }
+
+    /**
+     * Wait for the validation submitted before and collect it.
+     *
+     * @return the validation, or null when no validation was submitted.
+     */
+    public Validation take() {
+        if (pending == null) {
+            return null;
+        }
+        try {
+            return pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for validation.", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Unable to validate the model.", e.getCause());
+        } finally {
+            pending = null;
+        }
+    }
+
+    /**
+     * Stop the background thread. A validation still running is abandoned.
+     */
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        pending = null;
+    }
+
+    private Validation estimate(Validation validation) {
+        final long start = System.currentTimeMillis();
+        validationIterator.reset();
+        assert validationIterator.hasNext() : "validation iterator must have datasets. Make sure the latest release of Goby is installed in the maven repo.";
+        validation.metricValues = perfDescriptor.estimateMetric(validation.graph, validationIterator, numValidation,
+                perfDescriptor.performanceMetrics());
+        LOG.debug("Validated epoch {} in {} ms.", validation.epoch, System.currentTimeMillis() - start);
+        return validation;
+    }
+}
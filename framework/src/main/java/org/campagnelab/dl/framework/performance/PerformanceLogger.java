@@ -105,6 +105,7 @@ public class PerformanceLogger {
 
     public void clear() {
         log.clear();
+        checkpoints.clear();
     }
 
     /**
@@ -143,6 +144,19 @@ public class PerformanceLogger {
 
     }
 
+    /**
+     * Log the time spent saving a model. Checkpoints are written to checkpoints-perf-log.tsv.
+     *
+     * @param model         prefix of the model saved, e.g., latest.
+     * @param epoch         epoch of training the model had completed.
+     * @param numBytes      size of the model file.
+     * @param blockedMillis time training was blocked by the checkpoint.
+     * @param writeMillis   time spent writing the model file.
+     */
+    public void logCheckpoint(String model, int epoch, long numBytes, double blockedMillis, double writeMillis) {
+        checkpoints.add(String.format("%d\t%s\t%d\t%f\t%f", epoch, model, numBytes, blockedMillis, writeMillis));
+    }
+
     public void show(String prefix) {
         List<Performance> perfs = log.get(prefix);
         Performance perf = perfs.get(perfs.size() - 1);
@@ -212,6 +226,26 @@ public class PerformanceLogger {
         for (String prefix : log.keySet()) {
             write(prefix);
         }
+        if (!checkpoints.isEmpty()) {
+            writeCheckpoints();
+        }
+    }
+
+    private void writeCheckpoints() throws IOException {
+        try (Writer writer = new FileWriter(directory + "/" + String.format(perfFilenameFormat, "checkpoints"))) {
+            writer.write("epoch\tmodel\tbytes\tblockedMillis\twriteMillis");
+            if (conditionId != null) {
+                writer.write("\tcondition");
+            }
+            writer.write("\n");
+            for (String checkpoint : checkpoints) {
+                writer.write(checkpoint);
+                if (conditionId != null) {
+                    writer.write("\t" + conditionId);
+                }
+                writer.write("\n");
+            }
+        }
     }
 
     /**
@@ -256,6 +290,7 @@ public class PerformanceLogger {
 
 
     private Object2ObjectMap<String, List<Performance>> log = new Object2ObjectAVLTreeMap<>();
+    private List<String> checkpoints = new ObjectArrayList<>();
 
     public String getMetricHeader() {
         if (performanceNames == null) {
@@ -2,8 +2,14 @@ package org.campagnelab.dl.framework.tools;
 
 import org.campagnelab.dl.framework.domains.prediction.Prediction;
 import org.campagnelab.dl.framework.iterators.MultiDataSetIteratorAdapter;
+import org.campagnelab.dl.framework.iterators.cache.BlockCodec;
+import org.campagnelab.dl.framework.iterators.cache.CacheFormat;
+import org.campagnelab.dl.framework.iterators.cache.CacheIndex;
+import org.campagnelab.dl.framework.mappers.FeatureMapper;
+import org.campagnelab.dl.framework.mappers.LabelMapper;
 import org.campagnelab.dl.framework.tools.arguments.AbstractTool;
 import it.unimi.dsi.fastutil.io.FastBufferedOutputStream;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import it.unimi.dsi.logging.ProgressLogger;
 import org.apache.commons.io.FilenameUtils;
 import org.campagnelab.dl.framework.domains.DomainDescriptor;
@@ -14,9 +20,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
-import java.util.Date;
-import java.util.List;
-import java.util.Properties;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * A tool to cache DL4J's multidatasets into in a .cf (cached features) file.
@@ -64,9 +72,54 @@ public abstract class MapMultiDatasetFeatures<RecordType> extends AbstractTool<M
                 throw new RuntimeException("Unable to load training set ", e);
             }
         }
-        MultiDataSetIterator iterator=adapter;
-        if (adapter.asyncSupported()) {
+        int numThreads = args().numThreads;
+        if (numThreads > 1 && !domainDescriptor.supportsParallelMapping()) {
+            LOG.warn("Domain {} does not support parallel mapping, building the cache with one thread.",
+                    domainDescriptor.getClass().getSimpleName());
+            numThreads = 1;
+        }
+        final CacheFormat format = new CacheFormat(BlockCodec.forName(args().codec), args().sparse);
+        // when extending a cache, its complete minibatches are copied and the records they hold are not mapped again:
+        CacheIndex extendedIndex = null;
+        int keptDatasets = 0;
+        if (args().extendBasename != null) {
+            try {
+                extendedIndex = CacheIndex.load(args().extendBasename);
+                keptDatasets = reusableDatasets(args().extendBasename, extendedIndex, format);
+                long skipped = adapter.skip((long) keptDatasets * args().miniBatchSize);
+                LOG.info("Extending cache {}: reusing {} minibatches ({} records).", args().extendBasename,
+                        keptDatasets, skipped);
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to extend cache " + args().extendBasename, e);
+            }
+        }
+        Iterator<SerializedDataset> datasets;
+        ParallelSerializer parallelSerializer = null;
+        if (numThreads > 1) {
+            parallelSerializer = new ParallelSerializer(adapter, numThreads, args().miniBatchSize, format);
+            datasets = parallelSerializer;
+        } else {
+            final int miniBatchSize = args().miniBatchSize;
+            MultiDataSetIterator iterator = adapter;
+            // the cache may be written with blocks of a different size than the minibatches of the adapter.
+            // The async iterator resets the adapter, which would undo skipping records when extending a cache:
+            if (adapter.asyncSupported() && adapter.getBatchSize() == miniBatchSize && extendedIndex == null) {
                 iterator = new AsyncMultiDataSetIterator(adapter, 12);
+            }
+            final MultiDataSetIterator source = iterator;
+            final MultiDataSetIteratorAdapter<RecordType> sourceAdapter = adapter;
+            datasets = new Iterator<SerializedDataset>() {
+                @Override
+                public boolean hasNext() {
+                    return source.hasNext();
+                }
+
+                @Override
+                public SerializedDataset next() {
+                    return serialize(source == sourceAdapter ? sourceAdapter.next(miniBatchSize) : source.next(),
+                            format);
+                }
+            };
         }
        /* if ( != null) {
             inputs = Iterables.limit(Iterables.concat(args().iterables), (int) args().cacheN);
@@ -84,24 +137,42 @@ public abstract class MapMultiDatasetFeatures<RecordType> extends AbstractTool<M
             LabelMapper labelMapper = new SimpleFeatureCalculator();
 */
         final String outputFilename = args().outputBasename + ".cf";
-        try (FastBufferedOutputStream outputStream = new FastBufferedOutputStream(new FileOutputStream(outputFilename))) {
+        final long keptEnd = keptDatasets == 0 ? 0 : extendedIndex.start(keptDatasets);
+        if (extendedIndex != null) {
+            try {
+                if (sameFile(args().extendBasename + ".cf", outputFilename)) {
+                    // other processes may have the cache mapped, it must be replaced, never rewritten:
+                    throw new IllegalArgumentException("The output of an extension must not be the extended cache: " +
+                            args().extendBasename);
+                }
+                copyDatasets(args().extendBasename + ".cf", keptEnd, outputFilename);
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to copy minibatches from " + args().extendBasename, e);
+            }
+        }
+        try (FastBufferedOutputStream outputStream = new FastBufferedOutputStream(new FileOutputStream(outputFilename,
+                extendedIndex != null))) {
             ProgressLogger pg = new ProgressLogger(LOG);
             long numExamples = domainDescriptor.getNumRecords(args().getTrainingSets());
-            pg.expectedUpdates = Math.min(numExamples, args().cacheN) / args().miniBatchSize;
+            pg.expectedUpdates = (Math.min(numExamples, args().cacheN) / args().miniBatchSize) - keptDatasets;
             pg.displayLocalSpeed = true;
             pg.itemsName = "miniBatch";
             pg.start();
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            long numDatasets = 0;
+            long numDatasets = keptDatasets;
             long writeAtMostN = args().writeAtMostN;
-            numRecordsWritten = 0;
-
-            while (iterator.hasNext()) {
-                MultiDataSet mds = iterator.next();
-                baos.reset();
-                mds.save(baos);
+            numRecordsWritten = keptDatasets * args().miniBatchSize;
+            // offsets of each minibatch in the .cf file, saved to the .cfi index:
+            LongArrayList offsets = new LongArrayList();
+            for (int i = 0; i < keptDatasets; i++) {
+                offsets.add(extendedIndex.start(i));
+            }
+            long offset = keptEnd;
 
-                final byte[] bytes = baos.toByteArray();
+            while (datasets.hasNext()) {
+                SerializedDataset dataset = datasets.next();
+                final byte[] bytes = dataset.bytes;
+                offsets.add(offset);
+                offset += 4 + bytes.length;
 
                 // write the length of the array first, most significant bytes first:
                 outputStream.write((bytes.length >> 8 * 3) & 0xFF);
@@ -114,19 +185,24 @@ public abstract class MapMultiDatasetFeatures<RecordType> extends AbstractTool<M
                     break;
                 }
                 numDatasets += 1;
-                int numExamplesInDataset = mds.getFeatures()[0].size(0);
-                numRecordsWritten += numExamplesInDataset;
+                numRecordsWritten += dataset.numExamples;
                 if (numRecordsWritten > args().cacheN) {
                     break;
                 }
             }
+            if (parallelSerializer != null) {
+                parallelSerializer.close();
+            }
             outputStream.close();
+            offsets.add(offset);
+            new CacheIndex(offsets.toLongArray()).write(args().outputBasename);
             pg.stop();
 
             long numRecords = domainDescriptor.getNumRecords(args().getTrainingSets());
             Properties cfpProperties = new Properties();
             cfpProperties.put("domainDescriptor", domainDescriptor().getClass().getCanonicalName());
             cfpProperties.put("multiDataSet", "true");
+            format.putProperties(cfpProperties);
             cfpProperties.put("miniBatchSize", Integer.toString(args().miniBatchSize));
             if (args().domainDescriptor != null) {
                 args().domainDescriptor.putProperties(cfpProperties);
@@ -150,14 +226,158 @@ public abstract class MapMultiDatasetFeatures<RecordType> extends AbstractTool<M
                 cfpProperties.put("numFeatures", Integer.toString(domainDescriptor().getNumInputs(inputNames[0])[0]));
             }
             cfpProperties.put("stored", args().trainingSets.toString());
-            cfpProperties.store(new FileWriter(new File(args().outputBasename + ".cfp")), new Date().toString());
+            // the .cfp is replaced last, other processes use it to find complete caches:
+            File cfpFile = new File(args().outputBasename + ".cfp");
+            File tmpFile = new File(cfpFile.getPath() + ".tmp");
+            try (FileWriter writer = new FileWriter(tmpFile)) {
+                cfpProperties.store(writer, new Date().toString());
+            }
+            Files.move(tmpFile.toPath(), cfpFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // callers such as CacheHelper must not use a cache that was not written completely:
+            throw new RuntimeException("Unable to write cache " + outputFilename, e);
+        }
+
+    }
+
+    private static boolean sameFile(String a, String b) throws IOException {
+        return new File(a).getCanonicalPath().equals(new File(b).getCanonicalPath());
+    }
+
+    /**
+     * Return the number of minibatches of an existing cache that can be reused when extending it: all its minibatches,
+     * except a last minibatch that holds fewer than miniBatchSize records.
+     */
+    private int reusableDatasets(String basename, CacheIndex index, CacheFormat format) throws IOException {
+        Properties properties = new Properties();
+        try (FileReader reader = new FileReader(basename + ".cfp")) {
+            properties.load(reader);
+        }
+        if (Integer.parseInt(properties.getProperty("miniBatchSize", "0")) != args().miniBatchSize) {
+            throw new IllegalArgumentException("Cache " + basename + " was written with another minibatch size.");
+        }
+        if (!CacheFormat.of(properties).equals(format)) {
+            throw new IllegalArgumentException("Cache " + basename + " was written with another codec or encoding.");
+        }
+        long cachedRecords = Long.parseLong(properties.getProperty("numRecords", "0"));
+        return (int) Math.min(index.numDatasets(), cachedRecords / args().miniBatchSize);
+    }
 
-        } catch (FileNotFoundException e) {
-            LOG.error("Unable to create output file: " + outputFilename, e);
+    private static void copyDatasets(String source, long length, String destination) throws IOException {
+        try (FileChannel input = new FileInputStream(source).getChannel();
+             FileChannel output = new FileOutputStream(destination).getChannel()) {
+            long position = 0;
+            while (position < length) {
+                position += input.transferTo(position, length - position, output);
+            }
+        }
+    }
+
+    private static SerializedDataset serialize(MultiDataSet mds, CacheFormat format) {
+        try {
+            return new SerializedDataset(format.write(mds), mds.getFeatures()[0].size(0));
         } catch (IOException e) {
-            LOG.error("Unable to write to output file: " + outputFilename, e);
+            throw new RuntimeException("Unable to serialize minibatch", e);
+        }
+    }
+
+    /**
+     * A minibatch serialized and encoded in the format stored in .cf files.
+     */
+    private static class SerializedDataset {
+        final byte[] bytes;
+        final int numExamples;
+
+        SerializedDataset(byte[] bytes, int numExamples) {
+            this.bytes = bytes;
+            this.numExamples = numExamples;
+        }
+    }
+
+    /**
+     * Maps and serializes minibatches with several threads. Records are read sequentially from the adapter, then
+     * each minibatch is mapped by a worker with its own feature and label mappers. Minibatches are returned in the
+     * order of the records, so the .cf file is identical to the file written with a single thread.
+     */
+    private class ParallelSerializer implements Iterator<SerializedDataset> {
+        private final MultiDataSetIteratorAdapter<RecordType> adapter;
+        private final int miniBatchSize;
+        private final ExecutorService pool;
+        private final BlockingQueue<MapperSet> mapperSets;
+        private final ArrayDeque<Future<SerializedDataset>> pending = new ArrayDeque<>();
+        private final int maxPending;
+        private final CacheFormat format;
+
+        ParallelSerializer(MultiDataSetIteratorAdapter<RecordType> adapter, int numThreads, int miniBatchSize,
+                           CacheFormat format) {
+            this.adapter = adapter;
+            this.format = format;
+            this.miniBatchSize = miniBatchSize;
+            this.maxPending = numThreads * 2;
+            pool = Executors.newFixedThreadPool(numThreads, runnable -> {
+                Thread thread = new Thread(runnable, "map-features");
+                thread.setDaemon(true);
+                return thread;
+            });
+            mapperSets = new ArrayBlockingQueue<>(numThreads);
+            // create the mappers in this thread, domain descriptors are not thread-safe:
+            for (int i = 0; i < numThreads; i++) {
+                mapperSets.add(new MapperSet(adapter.newFeatureMappers(), adapter.newLabelMappers()));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            fill();
+            return !pending.isEmpty();
+        }
+
+        @Override
+        public SerializedDataset next() {
+            fill();
+            if (pending.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            try {
+                return pending.poll().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while mapping features", e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Unable to map features", e.getCause());
+            }
+        }
+
+        private void fill() {
+            while (pending.size() < maxPending && adapter.hasNext()) {
+                final List<RecordType> records = adapter.nextRecords(miniBatchSize);
+                pending.add(pool.submit(() -> mapAndSerialize(records)));
+            }
+        }
+
+        private SerializedDataset mapAndSerialize(List<RecordType> records) throws InterruptedException {
+            MapperSet mappers = mapperSets.take();
+            try {
+                return serialize(adapter.map(records, mappers.featureMappers, mappers.labelMappers), format);
+            } finally {
+                mapperSets.put(mappers);
+            }
+        }
+
+        void close() {
+            pool.shutdownNow();
         }
+    }
 
+    private static class MapperSet {
+        final FeatureMapper[] featureMappers;
+        final LabelMapper[] labelMappers;
+
+        MapperSet(FeatureMapper[] featureMappers, LabelMapper[] labelMappers) {
+            this.featureMappers = featureMappers;
+            this.labelMappers = labelMappers;
+        }
     }
 
     private String buildBaseName(List<String> trainingSets) {
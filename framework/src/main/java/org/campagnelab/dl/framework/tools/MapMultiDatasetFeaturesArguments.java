@@ -1,5 +1,6 @@
 package org.campagnelab.dl.framework.tools;
 
+import com.beust.jcommander.Parameter;
 import org.campagnelab.dl.framework.domains.DomainDescriptor;
 import org.campagnelab.dl.framework.iterators.MultiDataSetIteratorAdapter;
 
@@ -17,4 +18,22 @@ public class MapMultiDatasetFeaturesArguments<RecordType> extends MapFeaturesArg
 
 
     public DomainDescriptor domainDescriptor;
+
+    @Parameter(names = "--mapping-threads", description = "Number of threads used to map features. The cache written " +
+            "does not depend on the number of threads. Domains whose mappers keep state across records (e.g., max " +
+            "normalization) always map with one thread.")
+    public int numThreads = 1;
+
+    @Parameter(names = "--cache-codec", description = "Codec used to compress the minibatches stored in the cache, " +
+            "one of none, deflate or lz.")
+    public String codec = "none";
+
+    @Parameter(names = "--sparse", description = "Store minibatches in sparse form (non-zero values only, binary " +
+            "arrays as bitsets). Smaller caches when most features are zero, as with one-hot mappers.")
+    public boolean sparse;
+
+    @Parameter(names = "--extend", description = "Basename of an existing cache, written with the same minibatch size " +
+            "and format. Its complete minibatches are copied to the output, and only the records that follow them are " +
+            "mapped. The output must be another basename.")
+    public String extendBasename;
 }
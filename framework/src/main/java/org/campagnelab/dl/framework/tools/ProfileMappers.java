@@ -0,0 +1,142 @@
+package org.campagnelab.dl.framework.tools;
+
+import it.unimi.dsi.fastutil.objects.ObjectList;
+import org.campagnelab.dl.framework.domains.DomainDescriptor;
+import org.campagnelab.dl.framework.iterators.MultiDataSetIteratorAdapter;
+import org.campagnelab.dl.framework.mappers.FeatureMapper;
+import org.campagnelab.dl.framework.mappers.LabelMapper;
+import org.campagnelab.dl.framework.mappers.ProfilingFeatureMapper;
+import org.campagnelab.dl.framework.models.ModelLoader;
+import org.campagnelab.dl.framework.tools.arguments.AbstractTool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * A tool to find the feature mappers that take most of the mapping time. Every leaf of the feature mappers of a
+ * model is wrapped in a ProfilingFeatureMapper, and records are mapped to minibatches as they are for training.
+ * The tool reports, for each leaf, the time and the bytes allocated per record, and its share of the total mapping
+ * time. Time spent outside of the leaves (label mappers, minibatch allocation) is reported on the "other" row.
+ *
+ * @author Fabien Campagne
+ */
+public abstract class ProfileMappers<RecordType> extends AbstractTool<ProfileMappersArguments> {
+    static private Logger LOG = LoggerFactory.getLogger(ProfileMappers.class);
+
+    protected abstract DomainDescriptor<RecordType> domainDescriptor();
+
+    @Override
+    public ProfileMappersArguments createArguments() {
+        return new ProfileMappersArguments();
+    }
+
+    @Override
+    public void execute() {
+        DomainDescriptor<RecordType> domainDescriptor = domainDescriptor();
+        Iterable<RecordType> records = domainDescriptor.getRecordIterable(args().datasets,
+                args().numWarmupRecords + args().numRecords);
+        MultiDataSetIteratorAdapter<RecordType> adapter;
+        try {
+            adapter = new MultiDataSetIteratorAdapter<RecordType>(records, args().miniBatchSize, domainDescriptor) {
+                @Override
+                public String getBasename() {
+                    return "profile";
+                }
+            };
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to read records from " + args().datasets, e);
+        }
+        List<ProfilingFeatureMapper<RecordType>> profiles = new ArrayList<>();
+        FeatureMapper[] featureMappers = adapter.newFeatureMappers();
+        for (int i = 0; i < featureMappers.length; i++) {
+            featureMappers[i] = ProfilingFeatureMapper.instrument(featureMappers[i], profiles);
+        }
+        LabelMapper[] labelMappers = adapter.newLabelMappers();
+
+        int numMapped = 0;
+        int numMeasured = 0;
+        long totalNanos = 0;
+        long totalBytes = 0;
+        ObjectList<RecordType> minibatch;
+        while (!(minibatch = adapter.nextRecords(args().miniBatchSize)).isEmpty()) {
+            final boolean measured = numMapped >= args().numWarmupRecords;
+            if (measured && numMeasured == 0) {
+                LOG.info("Mapped {} records to warm up, measuring.", numMapped);
+                profiles.forEach(ProfilingFeatureMapper::reset);
+            }
+            final long startBytes = ProfilingFeatureMapper.allocatedBytes();
+            final long start = System.nanoTime();
+            adapter.map(minibatch, featureMappers, labelMappers);
+            if (measured) {
+                totalNanos += System.nanoTime() - start;
+                totalBytes += ProfilingFeatureMapper.allocatedBytes() - startBytes;
+                numMeasured += minibatch.size();
+            }
+            numMapped += minibatch.size();
+        }
+        if (numMeasured == 0) {
+            LOG.warn("No record left to measure after {} warm-up records.", numMapped);
+            return;
+        }
+        report(profiles, totalNanos, totalBytes, numMeasured);
+    }
+
+    private void report(List<ProfilingFeatureMapper<RecordType>> profiles, long totalNanos, long totalBytes,
+                        int numRecords) {
+        profiles.sort((a, b) -> Long.compare(b.getNanos(), a.getNanos()));
+        long leafNanos = 0;
+        long leafBytes = 0;
+        for (ProfilingFeatureMapper<RecordType> profile : profiles) {
+            leafNanos += profile.getNanos();
+            leafBytes += profile.getAllocatedBytes();
+        }
+        try (PrintWriter writer = new PrintWriter(args().outputFilename)) {
+            writer.println("mapper\tnumFeatures\tnsPerRecord\tbytesPerRecord\tpercentTime");
+            System.out.printf("Mapped %d records in %.1f ms.%n", numRecords, totalNanos / 1E6);
+            System.out.printf("%-90s %12s %12s %8s%n", "mapper", "ns/record", "bytes/record", "%time");
+            for (ProfilingFeatureMapper<RecordType> profile : profiles) {
+                row(writer, profile.getPath(), profile.numberOfFeatures(), profile.getNanos(),
+                        profile.getAllocatedBytes(), totalNanos, numRecords);
+            }
+            final boolean allocationsMeasured = ProfilingFeatureMapper.allocatedBytes() >= 0;
+            row(writer, "other", 0, totalNanos - leafNanos, allocationsMeasured ? totalBytes - leafBytes : -1,
+                    totalNanos, numRecords);
+            row(writer, "total", 0, totalNanos, allocationsMeasured ? totalBytes : -1, totalNanos, numRecords);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to write profile to " + args().outputFilename, e);
+        }
+        System.out.println("Profile written to " + args().outputFilename);
+    }
+
+    private static void row(PrintWriter writer, String name, int numFeatures, long nanos, long bytes,
+                            long totalNanos, int numRecords) {
+        final double nsPerRecord = nanos / (double) numRecords;
+        // allocations are not measured when the JVM does not support it:
+        final double bytesPerRecord = bytes < 0 ? Double.NaN : bytes / (double) numRecords;
+        final double percentTime = 100.0 * nanos / totalNanos;
+        writer.printf("%s\t%d\t%.1f\t%.1f\t%.2f%n", name, numFeatures, nsPerRecord, bytesPerRecord, percentTime);
+        System.out.printf("%-90s %12.1f %12.1f %8.2f%n", name, nsPerRecord, bytesPerRecord, percentTime);
+    }
+
+    /**
+     * Load properties stored with the model.
+     *
+     * @param filename name of the properties file in the model directory, e.g., domain.properties.
+     */
+    protected Properties modelProperties(String filename) {
+        Properties properties = new Properties();
+        String path = ModelLoader.getModelPath(args().modelPath) + "/" + filename;
+        try (FileReader reader = new FileReader(path)) {
+            properties.load(reader);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to load properties " + path, e);
+        }
+        return properties;
+    }
+}
@@ -0,0 +1,36 @@
+package org.campagnelab.dl.framework.tools;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import org.campagnelab.dl.framework.tools.arguments.ToolArguments;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Arguments for the ProfileMappers tool.
+ */
+@Parameters(commandDescription = "Measure the time and memory each feature mapper of a model takes to map records.")
+public class ProfileMappersArguments implements ToolArguments {
+
+    @Parameter(required = true, names = {"-i", "--dataset"}, variableArity = true, description = "Path to the .sbi datasets to map records from.")
+    public List<String> datasets = new ArrayList<>();
+
+    @Parameter(required = true, names = {"-m", "--model-path"}, description = "Directory containing the model whose mappers should be profiled.")
+    public String modelPath;
+
+    @Parameter(names = {"--feature-mapper"}, description = "Fully qualified name of a feature mapper class to profile instead of the mapper of the model.")
+    public String featureMapperClassname;
+
+    @Parameter(names = {"-n", "--num-records"}, description = "Number of records to map while measuring.")
+    public int numRecords = 10000;
+
+    @Parameter(names = {"--warmup"}, description = "Number of records to map before measuring, so that the JIT compiles the mappers.")
+    public int numWarmupRecords = 1000;
+
+    @Parameter(names = {"--mini-batch-size"}, description = "Number of records per minibatch.")
+    public int miniBatchSize = 32;
+
+    @Parameter(names = {"-o", "--output"}, description = "Name of the tab-delimited file to write the profile to.")
+    public String outputFilename = "mapper-profile.tsv";
+}
@@ -1,7 +1,6 @@
 package org.campagnelab.dl.framework.tools;
 
 import com.google.common.collect.Iterables;
-import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
 import it.unimi.dsi.fastutil.floats.FloatArraySet;
 import it.unimi.dsi.fastutil.floats.FloatSet;
 import it.unimi.dsi.logging.ProgressLogger;
@@ -11,20 +10,34 @@ import org.campagnelab.dl.framework.architecture.graphs.ComputationGraphAssemble
 import org.campagnelab.dl.framework.domains.DomainDescriptor;
 import org.campagnelab.dl.framework.gpu.InitializeGpu;
 import org.campagnelab.dl.framework.gpu.ParameterPrecision;
+import org.campagnelab.dl.framework.iterators.IndexedMultiDataSets;
 import org.campagnelab.dl.framework.iterators.MultiDataSetIteratorAdapter;
+import org.campagnelab.dl.framework.iterators.MultiDatasetMemoryMappedFeaturesIterator;
+import org.campagnelab.dl.framework.iterators.PrefetchingMultiDataSetIterator;
+import org.campagnelab.dl.framework.iterators.SeekableMultiDataSetIterator;
+import org.campagnelab.dl.framework.iterators.ShufflingMultiDataSetIterator;
+import org.campagnelab.dl.framework.iterators.cache.BlockCodec;
+import org.campagnelab.dl.framework.iterators.cache.CacheFormat;
 import org.campagnelab.dl.framework.iterators.cache.CacheHelper;
+import org.campagnelab.dl.framework.iterators.cache.CompactInMemoryCache;
 import org.campagnelab.dl.framework.iterators.cache.FullyInMemoryCache;
 import org.campagnelab.dl.framework.mappers.FeatureMapper;
+import org.campagnelab.dl.framework.models.CheckpointWriter;
 import org.campagnelab.dl.framework.models.ComputationGraphSaver;
 import org.campagnelab.dl.framework.models.ModelLoader;
 import org.campagnelab.dl.framework.models.ModelPropertiesHelper;
+import org.campagnelab.dl.framework.models.ResumeCheckpoint;
 import org.campagnelab.dl.framework.performance.Metric;
+import org.campagnelab.dl.framework.performance.ModelValidator;
 import org.campagnelab.dl.framework.performance.PerformanceLogger;
 import org.campagnelab.dl.framework.performance.PerformanceMetricDescriptor;
 import org.campagnelab.dl.framework.tools.arguments.ConditionRecordingTool;
+import org.campagnelab.dl.framework.training.HardExampleTrainer;
+import org.campagnelab.dl.framework.training.ParallelTrainerOnCPU;
 import org.campagnelab.dl.framework.training.ParallelTrainerOnGPU;
 import org.campagnelab.dl.framework.training.SequentialTrainer;
 import org.campagnelab.dl.framework.training.Trainer;
+import org.campagnelab.dl.framework.training.TrainerBenchmark;
 import org.deeplearning4j.api.storage.StatsStorage;
 import org.deeplearning4j.earlystopping.EarlyStoppingResult;
 import org.deeplearning4j.nn.api.Layer;
@@ -60,6 +73,15 @@ public abstract class TrainModel<RecordType> extends ConditionRecordingTool<Trai
 
     private String directory;
     private double bestScore;
+    private double bestValue;
+    private int notImproved;
+    // state of training to resume from, when --resume is used:
+    private ResumeCheckpoint resumeFrom;
+    // position of training in the current epoch, for resumable checkpoints:
+    private int epochIndex;
+    private int epochFirstMinibatch;
+    private long examplesBeforeEpoch;
+    private long shuffleSeed;
     private long time;
 
     protected DomainDescriptor<RecordType> domainDescriptor;
@@ -168,6 +190,9 @@ public abstract class TrainModel<RecordType> extends ConditionRecordingTool<Trai
                 computationGraph.setParams(savedNetwork.params());
             }
         }
+        if (args().resume != null) {
+            resume(args().resume);
+        }
         //Print the  number of parameters in the graph (and for each layer)
         int totalNumParams = 0;
         for (GraphVertex vertex : computationGraph.getVertices()) {
@@ -278,19 +303,18 @@ public abstract class TrainModel<RecordType> extends ConditionRecordingTool<Trai
         int miniBatchNumber = 0;
         boolean init = true;
         bestScore = Double.MAX_VALUE;
-        ComputationGraphSaver saver = new ComputationGraphSaver(directory);
+        CheckpointWriter checkpoints = new CheckpointWriter(new ComputationGraphSaver(directory), args().asyncCheckpoints);
         int iter = 0;
         Map<Integer, Double> scoreMap = new HashMap<Integer, Double>();
         System.out.println("errorEnrichment=" + args().errorEnrichment);
 
         performanceLogger.setCondition(args().experimentalCondition);
         long numExamplesUsed = 0;
-        int notImproved = 0;
+        notImproved = 0;
 
         System.out.flush();
         PerformanceMetricDescriptor perfDescriptor = domainDescriptor.performanceDescritor();
-        String validationMetricName = perfDescriptor.earlyStoppingMetric();
-        double bestValue = initializePerformance(perfDescriptor, validationMetricName);
+        bestValue = initializePerformance(perfDescriptor, perfDescriptor.earlyStoppingMetric());
         int epoch;
 
         // Assemble the training iterator from the concatenation of individual training set iterables:
@@ -307,18 +331,46 @@ public abstract class TrainModel<RecordType> extends ConditionRecordingTool<Trai
                 return buildBaseName(args().trainingSets);
             }
         };
+        if (args().ignoreCache) {
+            if (args().numMappingThreads > 1 && !domainDescriptor.supportsParallelMapping()) {
+                LOG.warn("The feature mappers of this domain cannot map records in parallel, mapping minibatches with one thread.");
+            }
+            adapter.setMappingThreads(args().numMappingThreads);
+        }
 
         boolean useCache = !args().ignoreCache;
-        MultiDataSetIterator iterator = useCache ? cacheHelper.cache(domainDescriptor,
-                adapter, adapter.getBasename(),
-                args().numTraining, args().miniBatchSize) :
-                adapter;
+        MultiDataSetIterator iterator = useCache ? cache(adapter, args().numTraining) : adapter;
         if (args().memoryCacheTraining()) {
-            iterator = new FullyInMemoryCache(iterator);
+            // the parallel trainers prefetch minibatches, so their arrays cannot be reused:
+            int ringSize = args().trainsInParallel() ? 0 : (args().shuffle ? args().shuffleWindow : 1) + 1;
+            iterator = inMemory(iterator, ringSize);
             // force loading immediately:
             LOG.warn("Loading training set in memory.");
             iterator.reset();
             LOG.warn("Done.");
+        } else if (iterator instanceof MultiDatasetMemoryMappedFeaturesIterator && !args().trainsInParallel()) {
+            // decode into the arrays of earlier minibatches, keeping those the shuffler and the prefetcher hold:
+            int prefetched = args().prefetchQueueDepth > 0 ? args().prefetchQueueDepth + 1 : 0;
+            ((MultiDatasetMemoryMappedFeaturesIterator) iterator).setRingSize(
+                    (args().shuffle ? args().shuffleWindow : 1) + 1 + prefetched);
+        }
+        shuffleSeed = args().shuffleSeed != null ? args().shuffleSeed : args().seed;
+        if (resumeFrom != null) {
+            // replay the order of minibatches of the interrupted run:
+            shuffleSeed = Long.parseLong(resumeFrom.properties.getProperty("shuffleSeed", Long.toString(shuffleSeed)));
+        }
+        ShufflingMultiDataSetIterator shuffler = null;
+        if (args().shuffle) {
+            if (iterator instanceof IndexedMultiDataSets) {
+                shuffler = new ShufflingMultiDataSetIterator((IndexedMultiDataSets) iterator, shuffleSeed,
+                        args().shuffleWindow);
+                iterator = shuffler;
+            } else {
+                LOG.warn("--shuffle requires the training set to be cached, minibatches will not be shuffled.");
+            }
+        }
+        if (useCache) {
+            iterator = prefetch(iterator);
         }
         // MultiDataSetIterator iterator=adapter;
         final long numRecords = Math.min(args().numTraining, domainDescriptor.getNumRecords(args().getTrainingSets()));
@@ -332,6 +384,13 @@ public abstract class TrainModel<RecordType> extends ConditionRecordingTool<Trai
             System.out.println("Cache has been built. Exiting now since --build-cache-then-stop was used.");
             System.exit(0);
         }
+        if (args().benchmarkWorkers != null) {
+            new TrainerBenchmark(computationGraph, iterator, args().benchmarkMinibatches).run(
+                    TrainerBenchmark.parseWorkerCounts(args().benchmarkWorkers), args().averagingFrequency,
+                    args().prefetchBuffer, args().threadsPerWorker);
+            System.out.println("Exiting now since --benchmark-workers was used.");
+            System.exit(0);
+        }
         ProgressLogger pgEpoch = new ProgressLogger(LOG);
         pgEpoch.displayLocalSpeed = true;
         pgEpoch.itemsName = "epoch";
@@ -348,11 +407,58 @@ public abstract class TrainModel<RecordType> extends ConditionRecordingTool<Trai
                 System.out.println("Unsupported tracking style: " + args().trackingStyle);
         }
 
-        Trainer trainer = args().parallel ? new ParallelTrainerOnGPU(computationGraph, args().miniBatchSize,
-                (int) domainDescriptor.getNumRecords(args().getTrainingSets())) :
-                new SequentialTrainer();
+        Trainer trainer;
+        if (args().parallel) {
+            trainer = new ParallelTrainerOnGPU(computationGraph, args().miniBatchSize,
+                    (int) domainDescriptor.getNumRecords(args().getTrainingSets()), args().numParallelWorkers,
+                    args().averagingFrequency, args().prefetchBuffer);
+        } else if (args().parallelCpu) {
+            trainer = new ParallelTrainerOnCPU(computationGraph, args().numParallelWorkers,
+                    args().averagingFrequency, args().prefetchBuffer, args().threadsPerWorker);
+        } else if (args().errorEnrichment) {
+            trainer = new HardExampleTrainer(args().numErrorsAdded, args().numErrorsKept, args().seed);
+        } else {
+            trainer = new SequentialTrainer();
+        }
+        if (args().errorEnrichment && !(trainer instanceof HardExampleTrainer)) {
+            LOG.warn("--error-enrichment is not supported with parallel training and is ignored.");
+        }
         trainer.setLogSpeed(args().trackingStyle == TrainingArguments.TrackStyle.SPEED);
-        for (epoch = 0; epoch < args().maxEpochs; epoch++) {
+        ModelValidator validator = new ModelValidator(perfDescriptor, validationIterator, args().numValidation);
+        if (args().checkpointEvery > 0) {
+            if (trainer instanceof SequentialTrainer) {
+                ((SequentialTrainer) trainer).setMinibatchListener((numMinibatches, numExamples) -> {
+                    final int minibatchIndex = epochFirstMinibatch + numMinibatches;
+                    if (minibatchIndex % args().checkpointEvery == 0) {
+                        saveResumable(checkpoints, epochIndex, minibatchIndex, examplesBeforeEpoch + numExamples);
+                    }
+                });
+            } else {
+                LOG.warn("Parallel trainers prefetch minibatches, resumable checkpoints are only saved at the end of epochs.");
+            }
+        }
+        int firstEpoch = 0;
+        if (resumeFrom != null) {
+            firstEpoch = resumeFrom.epoch;
+            numExamplesUsed = resumeFrom.numExamplesUsed;
+            bestValue = Double.parseDouble(resumeFrom.properties.getProperty("bestValue", Double.toString(bestValue)));
+            notImproved = Integer.parseInt(resumeFrom.properties.getProperty("notImproved", "0"));
+            if (shuffler != null) {
+                shuffler.setEpoch(firstEpoch);
+            }
+            Nd4j.getRandom().setSeed(resumeFrom.randomSeed);
+            if (trainer instanceof HardExampleTrainer) {
+                LOG.warn("Hard examples are not saved in resume checkpoints, error enrichment resumes with an empty pool.");
+            }
+        }
+        for (epoch = firstEpoch; epoch < args().maxEpochs; epoch++) {
+            epochIndex = epoch;
+            epochFirstMinibatch = resumeFrom != null && epoch == firstEpoch ? resumeFrom.minibatchIndex : 0;
+            examplesBeforeEpoch = numExamplesUsed;
+            if (epochFirstMinibatch > 0) {
+                // continue the interrupted epoch where it was checkpointed:
+                SeekableMultiDataSetIterator.seek(iterator, epochFirstMinibatch);
+            }
             ProgressLogger pg = new ProgressLogger(LOG);
             pg.itemsName = "mini-batch";
             iter = 0;
@@ -365,64 +471,145 @@ public abstract class TrainModel<RecordType> extends ConditionRecordingTool<Trai
 
             //save latest after the end of an epoch:
             double trainingScore = computationGraph.score();
-            saver.saveLatestModel(computationGraph, trainingScore);
+            checkpoints.save(computationGraph, "latest", epoch);
             writeProperties();
             writeBestScoreFile();
-            if (epoch % args().validateEvery == 0) {
-
-                // estimate all performance metrics. Note that we do a pass over the validation set for each metric:
-                // (avoid using several metrics).
-                double validationMetricValue = initializePerformance(perfDescriptor, perfDescriptor.earlyStoppingMetric());
-                DoubleArrayList metricValues = new DoubleArrayList();
-
-
-                validationIterator.reset();
-                assert validationIterator.hasNext() : "validation iterator must have datasets. Make sure the latest release of Goby is installed in the maven repo.";
-                final double[] performanceValues = perfDescriptor.estimateMetric(computationGraph,
-                        validationIterator, args().numValidation, perfDescriptor.performanceMetrics());
-                metricValues = DoubleArrayList.wrap(performanceValues);
-
-                validationMetricValue = findMetricValue(perfDescriptor.earlyStoppingMetric(),
-                        perfDescriptor.performanceMetrics(),
-                        performanceValues);
-
-                performanceLogger.logMetrics("epochs", numExamplesUsed, epoch, metricValues.toDoubleArray());
-                performanceLogger.logTrainingScore("epochs", epoch, trainingScore);
-                if (args().trackingStyle == TrainingArguments.TrackStyle.PERFS) {
-                    performanceLogger.show("epochs");
-                }
-                //System.out.println(metricValues);
-                if (!Double.isNaN(bestValue) &&
-                        (perfDescriptor.largerValueIsBetterPerformance(validationMetricName) && validationMetricValue > bestValue) ||
-                        (!perfDescriptor.largerValueIsBetterPerformance(validationMetricName) && validationMetricValue < bestValue)) {
-                    saver.saveModel(computationGraph, "best" + validationMetricName);
-                    bestValue = validationMetricValue;
-
-                    performanceLogger.logMetrics(bestMetricName, numExamplesUsed, epoch, metricValues.toDoubleArray());
-                    notImproved = 0;
+            final boolean validateEpoch = epoch % args().validateEvery == 0;
+            // apply the validation of a previous epoch, when it completed in the background:
+            ModelValidator.Validation previous = args().backgroundValidation && validateEpoch ?
+                    validator.take() : validator.poll();
+            boolean stop = previous != null && applyValidation(previous, perfDescriptor, checkpoints);
+            if (validateEpoch && !stop) {
+                if (args().backgroundValidation) {
+                    validator.submit(computationGraph, epoch, numExamplesUsed, trainingScore);
                 } else {
-                    notImproved++;
-                }
-                if (notImproved > args().stopWhenEpochsWithoutImprovement) {
-                    // we have not improved after earlyStopCondition epoch, time to stop.
-                    break;
+                    stop = applyValidation(validator.validate(computationGraph, epoch, numExamplesUsed, trainingScore),
+                            perfDescriptor, checkpoints);
                 }
             }
+            if (stop) {
+                // we have not improved after earlyStopCondition epoch, time to stop.
+                break;
+            }
             if (args().trackingStyle == TrainingArguments.TrackStyle.SPEED) {
                 pg.stop();
                 pgEpoch.updateAndDisplay();
             }
             iterator.reset();    //Reset iterator for another epoch
+            if (args().checkpointEvery > 0) {
+                saveResumable(checkpoints, epoch + 1, 0, numExamplesUsed);
+            }
+            logCheckpoints(checkpoints);
             performanceLogger.write();
             //addCustomOption("--error-enrichment", args().errorEnrichment);
             //addCustomOption("--num-errors-added", args().numErrorsAdded);
         }
+        if (validator.isPending()) {
+            // the last epoch validated may still improve on the best model:
+            applyValidation(validator.take(), perfDescriptor, checkpoints);
+        }
+        validator.shutdown();
+        trainer.shutdown();
+        checkpoints.close();
+        logCheckpoints(checkpoints);
         pgEpoch.stop();
         return new EarlyStoppingResult<ComputationGraph>(EarlyStoppingResult.TerminationReason.EpochTerminationCondition,
                 "not early stopping", scoreMap, performanceLogger.getBestEpoch(bestMetricName), bestScore, args().maxEpochs, computationGraph);
     }
 
 
+    /**
+     * Log the metrics of a validated model, save it when it improves on the best model, and decide if training
+     * should stop.
+     *
+     * @return true when the model has not improved for more epochs than --early-stopping-num-epochs.
+     */
+    private boolean applyValidation(ModelValidator.Validation validation, PerformanceMetricDescriptor perfDescriptor,
+                                    CheckpointWriter checkpoints) throws IOException {
+        String validationMetricName = perfDescriptor.earlyStoppingMetric();
+        double validationMetricValue = findMetricValue(validationMetricName, perfDescriptor.performanceMetrics(),
+                validation.metricValues);
+
+        performanceLogger.logMetrics("epochs", validation.numExamplesUsed, validation.epoch, validation.metricValues);
+        performanceLogger.logTrainingScore("epochs", validation.epoch, validation.trainingScore);
+        if (args().trackingStyle == TrainingArguments.TrackStyle.PERFS) {
+            performanceLogger.show("epochs");
+        }
+        if (!Double.isNaN(bestValue) &&
+                (perfDescriptor.largerValueIsBetterPerformance(validationMetricName) && validationMetricValue > bestValue) ||
+                (!perfDescriptor.largerValueIsBetterPerformance(validationMetricName) && validationMetricValue < bestValue)) {
+            checkpoints.save(validation.graph, "best" + validationMetricName, validation.epoch);
+            bestValue = validationMetricValue;
+
+            performanceLogger.logMetrics(bestMetricName, validation.numExamplesUsed, validation.epoch, validation.metricValues);
+            notImproved = 0;
+        } else {
+            notImproved++;
+        }
+        return notImproved > args().stopWhenEpochsWithoutImprovement;
+    }
+
+    /**
+     * Save a checkpoint that training can resume from. The ND4J random generator is seeded with a value derived from
+     * the position of training, so that resumed training draws the same random numbers as uninterrupted training.
+     *
+     * @param epoch          epoch being trained.
+     * @param minibatchIndex number of minibatches of the epoch trained on.
+     */
+    private void saveResumable(CheckpointWriter checkpoints, int epoch, int minibatchIndex, long numExamplesUsed) {
+        final long randomSeed = args().seed ^ (epoch * 0x9E3779B97F4A7C15L) ^ ((minibatchIndex + 1) * 0xC2B2AE3D27D4EB4FL);
+        Nd4j.getRandom().setSeed(randomSeed);
+        Properties state = new Properties();
+        state.setProperty("bestValue", Double.toString(bestValue));
+        state.setProperty("notImproved", Integer.toString(notImproved));
+        state.setProperty("shuffleSeed", Long.toString(shuffleSeed));
+        try {
+            checkpoints.saveResumable(computationGraph,
+                    new ResumeCheckpoint(epoch, minibatchIndex, numExamplesUsed, randomSeed, state));
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to save resume checkpoint at epoch " + epoch + " minibatch " + minibatchIndex, e);
+        }
+    }
+
+    /**
+     * Load the model and the state of training saved in the resume checkpoint of an interrupted run. Best models of
+     * the interrupted run are copied to the model directory, since early stopping continues from them.
+     */
+    private void resume(String previousDirectory) throws IOException {
+        File checkpointFile = new File(previousDirectory, ResumeCheckpoint.FILENAME);
+        if (!checkpointFile.exists()) {
+            throw new IOException("No resume checkpoint found in " + previousDirectory);
+        }
+        resumeFrom = ResumeCheckpoint.read(checkpointFile);
+        ComputationGraph savedGraph = ResumeCheckpoint.readModel(checkpointFile);
+        computationGraph.setUpdater(savedGraph.getUpdater());
+        computationGraph.setParams(savedGraph.params());
+        File[] bestModels = new File(previousDirectory).listFiles((dir, name) ->
+                name.startsWith("best") && name.endsWith("-ComputationGraph.bin"));
+        for (File bestModel : bestModels) {
+            FileUtils.copyFileToDirectory(bestModel, new File(directory));
+        }
+        System.out.printf("Resuming training at epoch %d, minibatch %d from %s%n", resumeFrom.epoch,
+                resumeFrom.minibatchIndex, checkpointFile);
+    }
+
+    private void logCheckpoints(CheckpointWriter checkpoints) {
+        for (CheckpointWriter.Checkpoint checkpoint : checkpoints.completed()) {
+            performanceLogger.logCheckpoint(checkpoint.prefix, checkpoint.epoch, checkpoint.numBytes,
+                    checkpoint.blockedMillis, checkpoint.writeMillis);
+        }
+    }
+
+    private MultiDataSetIterator cache(MultiDataSetIteratorAdapter<RecordType> adapter, int cacheN) {
+        CacheFormat format = new CacheFormat(BlockCodec.forName(args().cacheCodec), args().sparseCache);
+        if (args().cacheRowBlockSize > 0) {
+            return cacheHelper.cacheRows(domainDescriptor, adapter, adapter.getBasename(), cacheN,
+                    args().miniBatchSize, args().cacheRowBlockSize, args().numMappingThreads, format);
+        }
+        return cacheHelper.cache(domainDescriptor, adapter, adapter.getBasename(), cacheN,
+                args().miniBatchSize, args().numMappingThreads, format);
+    }
+
     private double findMetricValue(String lookupName, String[] metricNames, double[] performanceValues) {
         int i = 0;
         for (String name : metricNames) {
@@ -457,6 +644,34 @@ public abstract class TrainModel<RecordType> extends ConditionRecordingTool<Trai
                 Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
     }
 
+    /**
+     * Cache an iterator in memory, in the format requested with --memory-cache-format.
+     *
+     * @param ringSize number of minibatches whose arrays can be reused by a compact cache, 0 for no reuse.
+     */
+    private MultiDataSetIterator inMemory(MultiDataSetIterator iterator, int ringSize) {
+        switch (args().memoryCacheFormat) {
+            case "arrays":
+                return new FullyInMemoryCache(iterator);
+            case "compact":
+                return new CompactInMemoryCache(iterator, false, ringSize);
+            case "compact-float16":
+                return new CompactInMemoryCache(iterator, true, ringSize);
+            default:
+                throw new IllegalArgumentException("Unknown memory cache format: " + args().memoryCacheFormat);
+        }
+    }
+
+    /**
+     * Read minibatches ahead of the trainer, unless prefetching is disabled or not supported by the iterator.
+     */
+    private MultiDataSetIterator prefetch(MultiDataSetIterator iterator) {
+        if (args().prefetchQueueDepth > 0 && iterator.asyncSupported()) {
+            return new PrefetchingMultiDataSetIterator(iterator, args().prefetchQueueDepth, args().prefetchThreads);
+        }
+        return iterator;
+    }
+
     private MultiDataSetIterator readValidationSet() {
         Iterable<RecordType> validationRecords = domainDescriptor.getRecordIterable().apply(args().validationSet);
         try {
@@ -467,11 +682,15 @@ public abstract class TrainModel<RecordType> extends ConditionRecordingTool<Trai
                     return args().validationSet;
                 }
             };
-            MultiDataSetIterator iterator = args().ignoreCache ? adapter : cacheHelper.cache(domainDescriptor,
-                    adapter, adapter.getBasename(),
-                    args().numValidation, args().miniBatchSize);
+            if (args().ignoreCache) {
+                adapter.setMappingThreads(args().numMappingThreads);
+            }
+            MultiDataSetIterator iterator = args().ignoreCache ? adapter : cache(adapter, args().numValidation);
             if (args().memoryCacheValidation()) {
-                iterator = new FullyInMemoryCache(iterator);
+                iterator = inMemory(iterator, 0);
+            }
+            if (!args().ignoreCache) {
+                iterator = prefetch(iterator);
             }
             return iterator;
         } catch (IOException e) {
@@ -73,6 +73,13 @@ public abstract class  TrainingArguments extends RecordingToolArguments {
             "only the validation set. Use none to disable caching entirely.")
     public String memoryCache = "validation";
 
+    @Parameter(names = "--memory-cache-format", description = "How datasets cached in memory are stored. arrays keeps " +
+            "each minibatch as ND4J arrays. compact stores minibatches off-heap (in mappings of temporary files, not " +
+            "limited by -XX:MaxDirectMemorySize), with binary arrays packed as bits and " +
+            "sparse arrays as column/value pairs, and decodes them when they are used. compact-float16 also stores " +
+            "non binary values in half precision (lossy), to hold even more records in memory.")
+    public String memoryCacheFormat = "arrays";
+
     @Parameter(names = "--label-smoothing-epsilon", description = "Value of epsilon for label smoothing. Zero (default) is no smoothing. Try small values (<0.1).")
     public float labelSmoothingEpsilon=0;
 
@@ -108,11 +115,78 @@ public abstract class  TrainingArguments extends RecordingToolArguments {
     @Parameter(names = "--parallel", description = "When provided, trains on several GPUs in parallel.")
     public boolean parallel;
 
+    @Parameter(names = "--parallel-cpu", description = "When provided, trains copies of the model on several CPU cores in parallel, and averages their parameters.")
+    public boolean parallelCpu;
+
+    @Parameter(names = "--parallel-workers", description = "Number of copies of the model trained in parallel with --parallel or --parallel-cpu.")
+    public int numParallelWorkers = 4;
+
+    @Parameter(names = "--averaging-frequency", description = "Number of minibatches each parallel worker trains on before the parameters of the workers are averaged.")
+    public int averagingFrequency = 1;
+
+    @Parameter(names = "--prefetch-buffer", description = "Number of minibatches read ahead of the parallel workers.")
+    public int prefetchBuffer = 64;
+
+    @Parameter(names = "--threads-per-worker", description = "Maximum number of ND4J (OpenMP) threads used by each worker with --parallel-cpu. " +
+            "Zero (default) divides the cores of the machine among the workers.")
+    public int threadsPerWorker = 0;
+
+    @Parameter(names = "--benchmark-workers", description = "Comma separated numbers of workers, e.g., 1,2,4,8. When provided, " +
+            "measures the training speed (examples/sec) with each number of CPU workers, then stops.")
+    public String benchmarkWorkers;
+
+    @Parameter(names = "--benchmark-minibatches", description = "Number of minibatches to train on for each number of workers measured with --benchmark-workers.")
+    public int benchmarkMinibatches = 200;
+
+    /**
+     * @return true when minibatches are consumed by several workers, which prefetch them.
+     */
+    public boolean trainsInParallel() {
+        return parallel || parallelCpu || benchmarkWorkers != null;
+    }
+
     protected abstract String defaultArchitectureClassname();
 
     @Parameter(names = "--build-cache-then-stop", description = "When provided, build the caches, then immediately stop.")
     public boolean buildCacheAndStop = false;
 
+    @Parameter(names = "--mapping-threads", description = "Number of threads used to map features when building the caches, or within each minibatch when the cache is ignored. " +
+            "Mappers that keep state across records (e.g., max normalization) always map with one thread.")
+    public int numMappingThreads = 1;
+
+    @Parameter(names = "--cache-codec", description = "Codec used to compress the minibatches of the caches built for " +
+            "training, one of none, deflate or lz.")
+    public String cacheCodec = "none";
+
+    @Parameter(names = "--sparse-cache", description = "Store the minibatches of the caches built for training in " +
+            "sparse form.")
+    public boolean sparseCache;
+
+    @Parameter(names = "--cache-row-block-size", description = "When larger than zero, store caches in blocks of this " +
+            "many records, independently of the minibatch size. Minibatches of any size are then assembled from the " +
+            "blocks, so runs with different --mini-batch-size share the same cache.")
+    public int cacheRowBlockSize = 0;
+
+    @Parameter(names = "--shuffle", description = "When provided, read the training minibatches in a different order " +
+            "at each epoch. Minibatches are located with the cache index, so shuffling does not rebuild the cache.")
+    public boolean shuffle;
+
+    @Parameter(names = "--shuffle-window", description = "Number of minibatches whose records are shuffled " +
+            "together, at each epoch. Use 1 to only shuffle the order of minibatches.")
+    public int shuffleWindow = 1;
+
+    @Parameter(names = "--shuffle-seed", description = "Seed used to shuffle minibatches. The same seed replays the " +
+            "same order at each epoch. Defaults to the --random-seed.")
+    public Long shuffleSeed;
+
+    @Parameter(names = "--prefetch-queue-depth", description = "Number of minibatches read from the caches in " +
+            "advance, in background threads, while the network trains. Use 0 to read minibatches in the training thread.")
+    public int prefetchQueueDepth = 4;
+
+    @Parameter(names = "--prefetch-threads", description = "Number of threads that decode prefetched minibatches. " +
+            "Shuffled caches are read by a single thread.")
+    public int prefetchThreads = 2;
+
     public String[] getTrainingSets() {
         return this.trainingSets.toArray(new String[this.trainingSets.size()]);
     }
@@ -128,10 +202,29 @@ public abstract class  TrainingArguments extends RecordingToolArguments {
     @Parameter(names = {"-e", "--validate-every"}, description = "Validate only every e epochs when using early stopping. This can save time if training is much faster than evaluation.")
     public int validateEvery = 1;
 
-    @Parameter(names = {"--error-enrichment"}, description = "When set, train with error enrichment.)")
+    @Parameter(names = {"--background-validation"}, description = "When provided, validate a copy of the model in a background thread while the next epoch trains. " +
+            "Early stopping then takes effect when the validation of an epoch completes, up to one epoch later than with validation in the training loop.")
+    public boolean backgroundValidation = false;
+
+    @Parameter(names = {"--async-checkpoints"}, description = "When provided, copy the model when it is saved, and write the copy in a background thread while training continues. " +
+            "Only the newest copy of a model is written when saves happen faster than writes.")
+    public boolean asyncCheckpoints = false;
+
+    @Parameter(names = {"--checkpoint-every"}, description = "Save a checkpoint that training can resume from every n minibatches, and at the end of each epoch. " +
+            "Zero (default) disables resumable checkpoints. Checkpoints are only taken at the end of epochs when training in parallel.")
+    public int checkpointEvery = 0;
+
+    @Parameter(names = {"--resume"}, description = "Directory of an interrupted training run. Resume training from the resume checkpoint saved in this directory, " +
+            "at the epoch and minibatch where it was saved. Other training arguments must be the same as for the interrupted run.")
+    public String resume;
+
+    @Parameter(names = {"--error-enrichment"}, description = "When set, train with error enrichment: examples with the largest loss are added to the next mini-batches. " +
+            "Only supported with sequential training.")
     public boolean errorEnrichment = false;
     @Parameter(names = {"--num-errors-added"}, description = "Number of errors added to each mini-batch (only used when training with error enrichment).)")
     public int numErrorsAdded = 16;
+    @Parameter(names = {"--num-errors-kept"}, description = "Number of examples with the largest loss kept to be added to mini-batches (only used when training with error enrichment).")
+    public int numErrorsKept = 1024;
 
     @Parameter(names = {"--track"}, description = "Track either speed (SPEED) or performance (PERFS). Defaults to tracking performance metrics. Speed is useful to " +
             "optimize mini-batch-size and other factors influencing speed.")
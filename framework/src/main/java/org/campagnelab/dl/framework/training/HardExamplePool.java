@@ -0,0 +1,137 @@
+package org.campagnelab.dl.framework.training;
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded pool of the training examples with the largest loss. The pool has a fixed number of slots, updated with
+ * compare-and-set, so that examples can be offered and taken from several threads without locks. When the pool is
+ * full, an example replaces the example with the smaller loss among a few slots probed at random, if its own loss is
+ * larger. The pool therefore keeps approximately, rather than exactly, the examples with the largest loss. Slots are
+ * probed in a sequence derived from the seed, so a single thread sees the same sequence at each run.
+ *
+ * @author Fabien Campagne
+ */
+public class HardExamplePool {
+    private static final int NUM_PROBES = 4;
+
+    private final AtomicReferenceArray<HardExample> slots;
+    private final AtomicInteger size = new AtomicInteger();
+    // slots never filled start at this index:
+    private final AtomicInteger fillIndex = new AtomicInteger();
+    private final AtomicLong probes;
+
+    /**
+     * One example, stored as the rows of the arrays of its minibatch, with the loss of the model on the example.
+     */
+    public static class HardExample {
+        public final float loss;
+        final INDArray[] features;
+        final INDArray[] labels;
+        final INDArray[] featuresMasks;
+        final INDArray[] labelsMasks;
+
+        public HardExample(float loss, INDArray[] features, INDArray[] labels, INDArray[] featuresMasks,
+                           INDArray[] labelsMasks) {
+            this.loss = loss;
+            this.features = features;
+            this.labels = labels;
+            this.featuresMasks = featuresMasks;
+            this.labelsMasks = labelsMasks;
+        }
+    }
+
+    /**
+     * @param capacity maximum number of examples kept.
+     * @param seed     seed of the sequence of slots probed.
+     */
+    public HardExamplePool(int capacity, long seed) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1: " + capacity);
+        }
+        slots = new AtomicReferenceArray<>(capacity);
+        probes = new AtomicLong(seed);
+    }
+
+    /**
+     * Offer an example to the pool.
+     *
+     * @return true when the example was kept.
+     */
+    public boolean offer(HardExample example) {
+        if (example.loss != example.loss) {
+            // NaN
+            return false;
+        }
+        int index;
+        while ((index = fillIndex.get()) < slots.length()) {
+            if (fillIndex.compareAndSet(index, index + 1)) {
+                slots.set(index, example);
+                size.incrementAndGet();
+                return true;
+            }
+        }
+        for (int attempt = 0; attempt < NUM_PROBES; attempt++) {
+            // replace the smaller of two probed examples, or an empty slot:
+            final int a = nextSlot();
+            final int b = nextSlot();
+            final HardExample exampleA = slots.get(a);
+            final HardExample exampleB = slots.get(b);
+            final int victim = exampleA == null || (exampleB != null && exampleA.loss <= exampleB.loss) ? a : b;
+            final HardExample current = victim == a ? exampleA : exampleB;
+            if (current != null && current.loss >= example.loss) {
+                return false;
+            }
+            if (slots.compareAndSet(victim, current, example)) {
+                if (current == null) {
+                    size.incrementAndGet();
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Take examples out of the pool. Examples are taken from slots probed at random, and removed from the pool.
+     *
+     * @param numExamples maximum number of examples to take.
+     * @return between zero and numExamples examples.
+     */
+    public List<HardExample> take(int numExamples) {
+        List<HardExample> result = new ObjectArrayList<>(numExamples);
+        for (int attempt = 0; attempt < NUM_PROBES * numExamples && result.size() < numExamples && size.get() > 0; attempt++) {
+            final int slot = nextSlot();
+            if (slots.get(slot) != null) {
+                HardExample example = slots.getAndSet(slot, null);
+                if (example != null) {
+                    size.decrementAndGet();
+                    result.add(example);
+                }
+            }
+        }
+        return result;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public int capacity() {
+        return slots.length();
+    }
+
+    private int nextSlot() {
+        // SplitMix64 on a shared counter:
+        long z = probes.addAndGet(0x9E3779B97F4A7C15L);
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z = z ^ (z >>> 31);
+        return (int) ((z >>> 1) % slots.length());
+    }
+}
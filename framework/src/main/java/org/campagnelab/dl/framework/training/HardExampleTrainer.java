@@ -0,0 +1,162 @@
+package org.campagnelab.dl.framework.training;
+
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.INDArrayIndex;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sequential training with hard-example mining (error enrichment). Before the graph is fit to a minibatch, examples
+ * taken from a pool of the examples with the largest loss seen so far are added to the minibatch. The loss of each
+ * example of the enriched minibatch is measured with the parameters before the update, and the examples with the
+ * largest loss are offered back to the pool. Examples taken from the pool are therefore trained on again until the
+ * model fits them better than the new hard examples. Only the examples of the iterator are counted as examples used.
+ *
+ * @author Fabien Campagne
+ */
+public class HardExampleTrainer extends SequentialTrainer {
+    private final HardExamplePool pool;
+    private final int numExamplesAdded;
+    private long numAdded;
+
+    /**
+     * @param numExamplesAdded maximum number of hard examples added to each minibatch.
+     * @param poolSize         number of hard examples kept in the pool.
+     * @param seed             seed of the pool.
+     */
+    public HardExampleTrainer(int numExamplesAdded, int poolSize, long seed) {
+        this.numExamplesAdded = numExamplesAdded;
+        this.pool = new HardExamplePool(poolSize, seed);
+    }
+
+    @Override
+    protected int fit(ComputationGraph computationGraph, MultiDataSet ds) {
+        final int numExamples = ds.getFeatures(0).size(0);
+        MultiDataSet enriched = enrich(ds, pool.take(numExamplesAdded));
+        final INDArray losses = computationGraph.scoreExamples(enriched, false);
+        computationGraph.fit(enriched);
+
+        // offer the examples with the largest loss back to the pool:
+        final int numRows = losses.length();
+        final float[] loss = new float[numRows];
+        final int[] rows = new int[numRows];
+        for (int row = 0; row < numRows; row++) {
+            loss[row] = losses.getFloat(row);
+            rows[row] = row;
+        }
+        IntArrays.quickSort(rows, new AbstractIntComparator() {
+            @Override
+            public int compare(int a, int b) {
+                return Float.compare(loss[b], loss[a]);
+            }
+        });
+        for (int i = 0; i < Math.min(numExamplesAdded, numRows); i++) {
+            final int row = rows[i];
+            pool.offer(new HardExamplePool.HardExample(loss[row], rows(enriched.getFeatures(), row),
+                    rows(enriched.getLabels(), row), rows(enriched.getFeaturesMaskArrays(), row),
+                    rows(enriched.getLabelsMaskArrays(), row)));
+        }
+        return numExamples;
+    }
+
+    /**
+     * @return the number of hard examples added to minibatches so far.
+     */
+    public long getNumAdded() {
+        return numAdded;
+    }
+
+    public HardExamplePool getPool() {
+        return pool;
+    }
+
+    /**
+     * Append hard examples to the rows of a minibatch. Examples whose arrays do not have the shape of the minibatch
+     * arrays (e.g., sequences of another length) are dropped.
+     */
+    MultiDataSet enrich(MultiDataSet ds, List<HardExamplePool.HardExample> examples) {
+        examples.removeIf(example -> !compatible(ds.getFeatures(), example.features) ||
+                !compatible(ds.getLabels(), example.labels) ||
+                !compatible(ds.getFeaturesMaskArrays(), example.featuresMasks) ||
+                !compatible(ds.getLabelsMaskArrays(), example.labelsMasks));
+        if (examples.isEmpty()) {
+            return ds;
+        }
+        numAdded += examples.size();
+        return new org.nd4j.linalg.dataset.MultiDataSet(
+                concat(ds.getFeatures(), examples.stream().map(e -> e.features).toArray(INDArray[][]::new)),
+                concat(ds.getLabels(), examples.stream().map(e -> e.labels).toArray(INDArray[][]::new)),
+                concat(ds.getFeaturesMaskArrays(), examples.stream().map(e -> e.featuresMasks).toArray(INDArray[][]::new)),
+                concat(ds.getLabelsMaskArrays(), examples.stream().map(e -> e.labelsMasks).toArray(INDArray[][]::new)));
+    }
+
+    private static boolean compatible(INDArray[] minibatch, INDArray[] example) {
+        if (minibatch == null || example == null) {
+            return minibatch == example;
+        }
+        if (minibatch.length != example.length) {
+            return false;
+        }
+        for (int i = 0; i < minibatch.length; i++) {
+            if (minibatch[i] == null || example[i] == null) {
+                if (minibatch[i] != example[i]) {
+                    return false;
+                }
+                continue;
+            }
+            final int[] shape = minibatch[i].shape();
+            final int[] rowShape = example[i].shape();
+            if (shape.length != rowShape.length ||
+                    !Arrays.equals(Arrays.copyOfRange(shape, 1, shape.length), Arrays.copyOfRange(rowShape, 1, rowShape.length))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static INDArray[] concat(INDArray[] minibatch, INDArray[][] examples) {
+        if (minibatch == null) {
+            return null;
+        }
+        INDArray[] result = new INDArray[minibatch.length];
+        for (int i = 0; i < minibatch.length; i++) {
+            if (minibatch[i] != null) {
+                INDArray[] rows = new INDArray[examples.length + 1];
+                rows[0] = minibatch[i];
+                for (int e = 0; e < examples.length; e++) {
+                    rows[e + 1] = examples[e][i];
+                }
+                result[i] = Nd4j.concat(0, rows);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Copy one row of each array, so that the example does not keep its minibatch alive.
+     */
+    private static INDArray[] rows(INDArray[] arrays, int row) {
+        if (arrays == null) {
+            return null;
+        }
+        INDArray[] result = new INDArray[arrays.length];
+        for (int i = 0; i < arrays.length; i++) {
+            if (arrays[i] != null) {
+                INDArrayIndex[] indices = new INDArrayIndex[arrays[i].rank()];
+                indices[0] = NDArrayIndex.interval(row, row + 1);
+                for (int d = 1; d < indices.length; d++) {
+                    indices[d] = NDArrayIndex.all();
+                }
+                result[i] = arrays[i].get(indices).dup();
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,16 @@
+package org.campagnelab.dl.framework.training;
+
+/**
+ * Notified by SequentialTrainer after the model has been fit to each minibatch, e.g., to checkpoint training in the
+ * middle of an epoch.
+ *
+ * @author Fabien Campagne
+ */
+public interface MinibatchListener {
+
+    /**
+     * @param numMinibatches number of minibatches trained on since the trainer started the current pass.
+     * @param numExamples    number of examples trained on since the trainer started the current pass.
+     */
+    void trained(int numMinibatches, int numExamples);
+}
@@ -0,0 +1,77 @@
+package org.campagnelab.dl.framework.training;
+
+import it.unimi.dsi.logging.ProgressLogger;
+import org.campagnelab.dl.framework.iterators.CountingMultiDataSetIterator;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.parallelism.ParallelWrapper;
+import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+import org.nd4j.nativeblas.NativeOpsHolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Trainer that trains copies of the graph on several CPU cores in parallel, and averages their parameters every
+ * averagingFrequency minibatches. Each worker runs its ND4J operations with at most threadsPerWorker OpenMP
+ * threads, so that the workers together do not use more threads than there are cores.
+ *
+ * @author Fabien Campagne
+ */
+public class ParallelTrainerOnCPU implements Trainer {
+    static private Logger LOG = LoggerFactory.getLogger(ParallelTrainerOnCPU.class);
+
+    private final ParallelWrapper wrapper;
+    private final int numWorkers;
+    private boolean logSpeed;
+
+    /**
+     * @param graph              graph to train.
+     * @param numWorkers         number of copies of the graph trained in parallel.
+     * @param averagingFrequency number of minibatches each worker trains on between parameter averaging.
+     * @param prefetchBuffer     number of minibatches read ahead of the workers.
+     * @param threadsPerWorker   maximum number of OpenMP threads per worker, 0 to divide the cores among workers.
+     */
+    public ParallelTrainerOnCPU(ComputationGraph graph, int numWorkers, int averagingFrequency, int prefetchBuffer,
+                                int threadsPerWorker) {
+        this.numWorkers = numWorkers;
+        final int numThreads = threadsPerWorker > 0 ? threadsPerWorker :
+                Math.max(1, Runtime.getRuntime().availableProcessors() / numWorkers);
+        // OpenMP threads are shared by all the workers of the process:
+        NativeOpsHolder.getInstance().getDeviceNativeOps().setOmpNumThreads(numThreads);
+        LOG.info("Training with {} workers, {} OpenMP threads per worker, averaging every {} minibatches.",
+                numWorkers, numThreads, averagingFrequency);
+        wrapper = new ParallelWrapper.Builder(graph)
+                .prefetchBuffer(prefetchBuffer)
+                .workers(numWorkers)
+                .averagingFrequency(averagingFrequency)
+                .reportScoreAfterAveraging(false)
+                .useLegacyAveraging(false)
+                .build();
+    }
+
+    public int getNumWorkers() {
+        return numWorkers;
+    }
+
+    @Override
+    public int train(ComputationGraph graph, MultiDataSetIterator iterator, ProgressLogger pg) {
+        CountingMultiDataSetIterator counting = new CountingMultiDataSetIterator(iterator);
+        wrapper.fit(counting);
+        if (logSpeed) {
+            pg.update(counting.getNumMinibatches());
+        }
+        return (int) counting.getNumExamples();
+    }
+
+    @Override
+    public void setLogSpeed(boolean logSpeed) {
+        this.logSpeed = logSpeed;
+    }
+
+    /**
+     * Stop the worker threads. The trainer cannot be used after this method is called.
+     */
+    @Override
+    public void shutdown() {
+        wrapper.shutdown();
+    }
+}
@@ -16,11 +16,15 @@ public class ParallelTrainerOnGPU implements Trainer {
     private boolean logSpeed;
 
     public ParallelTrainerOnGPU(ComputationGraph graph, int miniBatchSize, int totalExamplesPerIterator) {
+        this(graph, miniBatchSize, totalExamplesPerIterator, 4, 1, 64);
+    }
 
+    public ParallelTrainerOnGPU(ComputationGraph graph, int miniBatchSize, int totalExamplesPerIterator,
+                                int numWorkers, int averagingFrequency, int prefetchBuffer) {
         wrapper = new ParallelWrapper.Builder(graph)
-                .prefetchBuffer(64)
-                .workers(4)
-                .averagingFrequency(1)
+                .prefetchBuffer(prefetchBuffer)
+                .workers(numWorkers)
+                .averagingFrequency(averagingFrequency)
                 .reportScoreAfterAveraging(false)
                 .useLegacyAveraging(false)
                 .build();
@@ -41,4 +45,12 @@ public class ParallelTrainerOnGPU implements Trainer {
     public void setLogSpeed(boolean logSpeed) {
         this.logSpeed=logSpeed;
     }
+
+    /**
+     * Stop the worker threads. The trainer cannot be used after this method is called.
+     */
+    @Override
+    public void shutdown() {
+        wrapper.shutdown();
+    }
 }
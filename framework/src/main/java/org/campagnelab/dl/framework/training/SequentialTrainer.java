@@ -11,17 +11,20 @@ import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
  */
 public class SequentialTrainer implements Trainer {
     private boolean logSpeed;
+    private MinibatchListener listener;
 
     @Override
     public int train(ComputationGraph computationGraph, MultiDataSetIterator iterator, ProgressLogger progressLogger) {
         int numExamplesUsed = 0;
+        int numMinibatches = 0;
         while (iterator.hasNext()) {
 
             MultiDataSet ds = iterator.next();
-            // fit the computationGraph:
-            computationGraph.fit(ds);
-            final int numExamples = ds.getFeatures(0).size(0);
-            numExamplesUsed += numExamples;
+            numExamplesUsed += fit(computationGraph, ds);
+            numMinibatches++;
+            if (listener != null) {
+                listener.trained(numMinibatches, numExamplesUsed);
+            }
             if (logSpeed) {
                 progressLogger.update();
             }
@@ -29,8 +32,25 @@ public class SequentialTrainer implements Trainer {
         return numExamplesUsed;
     }
 
+    /**
+     * Fit the graph to one minibatch of the iterator.
+     *
+     * @return the number of examples of the minibatch.
+     */
+    protected int fit(ComputationGraph computationGraph, MultiDataSet ds) {
+        computationGraph.fit(ds);
+        return ds.getFeatures(0).size(0);
+    }
+
     @Override
     public void setLogSpeed(boolean logSpeed) {
         this.logSpeed = logSpeed;
     }
+
+    /**
+     * @param listener notified after each minibatch, or null.
+     */
+    public void setMinibatchListener(MinibatchListener listener) {
+        this.listener = listener;
+    }
 }
@@ -12,4 +12,11 @@ public interface Trainer {
     int train(ComputationGraph graph, MultiDataSetIterator iterator, ProgressLogger pg);
 
     void setLogSpeed(boolean logSpeed);
+
+    /**
+     * Release the resources of the trainer, such as worker threads. The trainer cannot be used after this method is
+     * called.
+     */
+    default void shutdown() {
+    }
 }
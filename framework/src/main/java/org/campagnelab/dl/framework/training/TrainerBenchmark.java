@@ -0,0 +1,84 @@
+package org.campagnelab.dl.framework.training;
+
+import it.unimi.dsi.logging.ProgressLogger;
+import org.campagnelab.dl.framework.iterators.CountingMultiDataSetIterator;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+import org.nd4j.nativeblas.NativeOpsHolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures how the training speed scales with the number of CPU workers. Each measurement trains a copy of the
+ * graph on the same minibatches, so that the graph itself is not modified.
+ *
+ * @author Fabien Campagne
+ */
+public class TrainerBenchmark {
+    static private Logger LOG = LoggerFactory.getLogger(TrainerBenchmark.class);
+
+    private final ComputationGraph graph;
+    private final MultiDataSetIterator iterator;
+    private final int numMinibatches;
+
+    /**
+     * @param graph          graph to train.
+     * @param iterator       minibatches to train on. Must support reset.
+     * @param numMinibatches number of minibatches to train on for each measurement.
+     */
+    public TrainerBenchmark(ComputationGraph graph, MultiDataSetIterator iterator, int numMinibatches) {
+        this.graph = graph;
+        this.iterator = iterator;
+        this.numMinibatches = numMinibatches;
+    }
+
+    /**
+     * Measure training speed with the sequential trainer, then with each number of workers, and print a table of
+     * examples/sec and speedup over the sequential trainer.
+     */
+    public void run(int[] workerCounts, int averagingFrequency, int prefetchBuffer, int threadsPerWorker) {
+        final int numCores = Runtime.getRuntime().availableProcessors();
+        NativeOpsHolder.getInstance().getDeviceNativeOps().setOmpNumThreads(numCores);
+        final double sequential = measure(new SequentialTrainer(), graph.clone());
+        System.out.printf("workers\texamples/sec\tspeedup%n");
+        System.out.printf("sequential\t%.1f\t%.2f%n", sequential, 1.0);
+        for (int numWorkers : workerCounts) {
+            ComputationGraph copy = graph.clone();
+            ParallelTrainerOnCPU trainer = new ParallelTrainerOnCPU(copy, numWorkers, averagingFrequency,
+                    prefetchBuffer, threadsPerWorker);
+            try {
+                final double speed = measure(trainer, copy);
+                System.out.printf("%d\t%.1f\t%.2f%n", numWorkers, speed, speed / sequential);
+            } finally {
+                trainer.shutdown();
+            }
+        }
+        NativeOpsHolder.getInstance().getDeviceNativeOps().setOmpNumThreads(numCores);
+    }
+
+    /**
+     * @return the number of examples trained on per second.
+     */
+    private double measure(Trainer trainer, ComputationGraph copy) {
+        iterator.reset();
+        CountingMultiDataSetIterator minibatches = new CountingMultiDataSetIterator(iterator, numMinibatches);
+        ProgressLogger pg = new ProgressLogger(LOG);
+        pg.itemsName = "mini-batch";
+        final long start = System.nanoTime();
+        final int numExamples = trainer.train(copy, minibatches, pg);
+        final long elapsed = System.nanoTime() - start;
+        return numExamples / (elapsed / 1E9);
+    }
+
+    /**
+     * Parse a comma separated list of worker counts, e.g., 1,2,4,8.
+     */
+    public static int[] parseWorkerCounts(String workerCounts) {
+        String[] tokens = workerCounts.split(",");
+        int[] counts = new int[tokens.length];
+        for (int i = 0; i < tokens.length; i++) {
+            counts[i] = Integer.parseInt(tokens[i].trim());
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,211 @@
+package org.campagnelab.dl.framework.domains;
+
+import org.campagnelab.dl.framework.architecture.graphs.ComputationGraphAssembler;
+import org.campagnelab.dl.framework.domains.prediction.PredictionInterpreter;
+import org.campagnelab.dl.framework.mappers.*;
+import org.campagnelab.dl.framework.models.ModelPropertiesHelper;
+import org.campagnelab.dl.framework.tools.TrainingArguments;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.nd4j.linalg.lossfunctions.ILossFunction;
+import org.nd4j.linalg.lossfunctions.impl.LossMCXENT;
+
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * A small domain used in tests: records are strings of digits (0-3). Each digit is one-hot encoded in the "input"
+ * graph input, and the first digit is the "label" output. When normalizedValues is set, the digit values are also
+ * mapped, normalized with MaxNormalizationMapper, whose features depend on the records mapped before.
+ */
+public class DigitsDomainDescriptor extends DomainDescriptor<String> {
+    public static final int RECORD_LENGTH = 5;
+    public static final int NUM_VALUES = 4;
+
+    private final List<String> records;
+    private final boolean normalizedValues;
+    private FeatureMapper featureMapper;
+
+    public DigitsDomainDescriptor(int numRecords, long seed) {
+        this(numRecords, seed, false);
+    }
+
+    public DigitsDomainDescriptor(int numRecords, long seed, boolean normalizedValues) {
+        this.normalizedValues = normalizedValues;
+        Random random = new Random(seed);
+        records = IntStream.range(0, numRecords).mapToObj(i -> {
+            StringBuilder record = new StringBuilder();
+            for (int j = 0; j < RECORD_LENGTH; j++) {
+                record.append(random.nextInt(NUM_VALUES));
+            }
+            return record.toString();
+        }).collect(Collectors.toList());
+        computationGraphAssembler = new Assembler();
+    }
+
+    public List<String> getRecords() {
+        return records;
+    }
+
+    @Override
+    public FeatureMapper getFeatureMapper(String inputName) {
+        if (featureMapper == null) {
+            featureMapper = newFeatureMapper(inputName);
+        }
+        return featureMapper;
+    }
+
+    @Override
+    public FeatureMapper newFeatureMapper(String inputName) {
+        FeatureMapper<String>[] mappers = new FeatureMapper[RECORD_LENGTH];
+        for (int i = 0; i < RECORD_LENGTH; i++) {
+            mappers[i] = new OneHotBaseFeatureMapper<>(i, Function.identity(),
+                    (record, index) -> Character.getNumericValue(record.charAt(index)), NUM_VALUES);
+        }
+        if (!normalizedValues) {
+            return new ConcatFeatureMapper<>(mappers);
+        }
+        return new ConcatFeatureMapper<>(new ConcatFeatureMapper<>(mappers),
+                new MaxNormalizationMapper<>(new DigitValuesMapper()));
+    }
+
+    @Override
+    public boolean supportsParallelMapping() {
+        return mapsRecordsIndependently();
+    }
+
+    @Override
+    public LabelMapper getLabelMapper(String outputName) {
+        return new OneHotBaseLabelMapper<String>(0, NUM_VALUES,
+                record -> new int[]{Character.getNumericValue(record.charAt(0))});
+    }
+
+    @Override
+    public PredictionInterpreter getPredictionInterpreter(String outputName) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Function<String, ? extends Iterable<String>> getRecordIterable() {
+        return filename -> records;
+    }
+
+    @Override
+    public ComputationGraphAssembler getComputationalGraph() {
+        return computationGraphAssembler;
+    }
+
+    @Override
+    public int[] getNumInputs(String inputName) {
+        return new int[]{RECORD_LENGTH * NUM_VALUES + (normalizedValues ? RECORD_LENGTH : 0)};
+    }
+
+    @Override
+    public int[] getNumOutputs(String outputName) {
+        return new int[]{NUM_VALUES};
+    }
+
+    @Override
+    public int[] getNumMaskInputs(String inputName) {
+        return getNumInputs(inputName);
+    }
+
+    @Override
+    public int[] getNumMaskOutputs(String outputName) {
+        return getNumOutputs(outputName);
+    }
+
+    @Override
+    public int getNumHiddenNodes(String componentName) {
+        return 4;
+    }
+
+    @Override
+    public ILossFunction getOutputLoss(String outputName) {
+        return new LossMCXENT();
+    }
+
+    @Override
+    public long getNumRecords(String[] recordFiles) {
+        return records.size();
+    }
+
+    @Override
+    public void putProperties(java.util.Properties props) {
+        props.put("net.architecture.classname", computationGraphAssembler.getClass().getCanonicalName());
+    }
+
+    /**
+     * Maps the value of each digit.
+     */
+    private static class DigitValuesMapper extends AbstractFeatureMapper1D<String> {
+
+        @Override
+        public int numberOfFeatures() {
+            return RECORD_LENGTH;
+        }
+
+        @Override
+        public void prepareToNormalize(String record, int indexOfRecord) {
+        }
+
+        @Override
+        public float produceFeature(String record, int featureIndex) {
+            return Character.getNumericValue(record.charAt(featureIndex));
+        }
+
+        @Override
+        public String getFeatureName(int featureIndex) {
+            return "digit" + featureIndex;
+        }
+    }
+
+    private static class Assembler implements ComputationGraphAssembler {
+
+        @Override
+        public void setArguments(TrainingArguments arguments) {
+        }
+
+        @Override
+        public ComputationGraph createComputationalGraph(DomainDescriptor domainDescriptor) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setNumInputs(String inputName, int... dimension) {
+        }
+
+        @Override
+        public void setNumOutputs(String outputName, int... dimension) {
+        }
+
+        @Override
+        public void setNumHiddenNodes(String componentName, int numHiddenNodes) {
+        }
+
+        @Override
+        public String[] getInputNames() {
+            return new String[]{"input"};
+        }
+
+        @Override
+        public String[] getOutputNames() {
+            return new String[]{"label"};
+        }
+
+        @Override
+        public String[] getComponentNames() {
+            return new String[0];
+        }
+
+        @Override
+        public void setLossFunction(String outputName, ILossFunction lossFunction) {
+        }
+
+        @Override
+        public void saveProperties(ModelPropertiesHelper helper) {
+        }
+    }
+}
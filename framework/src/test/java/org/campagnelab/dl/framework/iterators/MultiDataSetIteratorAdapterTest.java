@@ -0,0 +1,79 @@
+package org.campagnelab.dl.framework.iterators;
+
+import org.campagnelab.dl.framework.domains.DigitsDomainDescriptor;
+import org.campagnelab.dl.framework.mappers.FeatureMapper;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Checks that minibatches mapped through the primitive array path hold the features mapped one record at a time
+ * in INDArrays.
+ */
+public class MultiDataSetIteratorAdapterTest {
+
+    @Test
+    public void bulkMappingMatchesINDArrays() throws IOException {
+        DigitsDomainDescriptor domain = new DigitsDomainDescriptor(70, 3);
+        MultiDataSetIteratorAdapter<String> adapter = new MultiDataSetIteratorAdapter<String>(domain.getRecords(), 32,
+                domain) {
+            @Override
+            public String getBasename() {
+                return "digits";
+            }
+        };
+        List<String> records = domain.getRecords();
+        int start = 0;
+        // the last minibatch is smaller and reuses the buffers of the previous ones:
+        while (adapter.hasNext()) {
+            MultiDataSet ds = adapter.next();
+            final int size = ds.getFeatures(0).size(0);
+            FeatureMapper<String> mapper = domain.newFeatureMapper("input");
+            INDArray expected = Nd4j.zeros(size, mapper.numberOfFeatures());
+            for (int i = 0; i < size; i++) {
+                mapper.prepareToNormalize(records.get(start + i), i);
+                mapper.mapFeatures(records.get(start + i), expected, i);
+            }
+            assertEquals(expected, ds.getFeatures(0));
+            start += size;
+        }
+        assertEquals(records.size(), start);
+    }
+
+    @Test
+    public void parallelMappingMatchesSerialMapping() throws IOException {
+        // max normalization keeps state across records, which must not be split between threads:
+        for (boolean normalizedValues : new boolean[]{false, true}) {
+            assertEquals(!normalizedValues, new DigitsDomainDescriptor(70, 3, normalizedValues).supportsParallelMapping());
+            MultiDataSetIteratorAdapter<String> serial = adapter(new DigitsDomainDescriptor(70, 3, normalizedValues));
+            MultiDataSetIteratorAdapter<String> parallel = adapter(new DigitsDomainDescriptor(70, 3, normalizedValues));
+            parallel.setMappingThreads(4);
+            int numMinibatches = 0;
+            while (serial.hasNext()) {
+                MultiDataSet expected = serial.next();
+                MultiDataSet actual = parallel.next();
+                assertEquals(expected.getFeatures(0), actual.getFeatures(0));
+                assertEquals(expected.getLabels(0), actual.getLabels(0));
+                numMinibatches++;
+            }
+            assertEquals(3, numMinibatches);
+            assertFalse(parallel.hasNext());
+        }
+    }
+
+    private static MultiDataSetIteratorAdapter<String> adapter(DigitsDomainDescriptor domain) throws IOException {
+        return new MultiDataSetIteratorAdapter<String>(domain.getRecords(), 32, domain) {
+            @Override
+            public String getBasename() {
+                return "digits";
+            }
+        };
+    }
+}
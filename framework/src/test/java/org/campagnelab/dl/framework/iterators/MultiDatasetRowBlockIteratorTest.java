@@ -0,0 +1,69 @@
+package org.campagnelab.dl.framework.iterators;
+
+import org.campagnelab.dl.framework.domains.DigitsDomainDescriptor;
+import org.campagnelab.dl.framework.tools.MapMultiDatasetFeaturesTest;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Checks that minibatches of any size assembled from a row-block cache hold the same rows as the cache.
+ */
+public class MultiDatasetRowBlockIteratorTest {
+
+    @Test
+    public void anyMinibatchSize() throws IOException {
+        DigitsDomainDescriptor domain = new DigitsDomainDescriptor(203, 7);
+        String basename = MapMultiDatasetFeaturesTest.buildCache(domain,
+                Files.createTempDirectory("rows").toFile().getAbsolutePath() + "/digits", 1, "none", true);
+        MultiDatasetMemoryMappedFeaturesIterator blocks = new MultiDatasetMemoryMappedFeaturesIterator(basename);
+        INDArray expectedFeatures = concat(blocks, true);
+        blocks.reset();
+        INDArray expectedLabels = concat(blocks, false);
+
+        for (int miniBatchSize : new int[]{1, 10, 32, 50, 500}) {
+            MultiDatasetRowBlockIterator iterator = new MultiDatasetRowBlockIterator(basename, miniBatchSize,
+                    Integer.MAX_VALUE);
+            assertEquals(32, iterator.getRowBlockSize());
+            int numMinibatches = 0;
+            List<MultiDataSet> minibatches = new ArrayList<>();
+            while (iterator.hasNext()) {
+                MultiDataSet ds = iterator.next();
+                numMinibatches++;
+                if (iterator.hasNext()) {
+                    assertEquals(miniBatchSize, ds.getFeatures(0).size(0));
+                }
+                minibatches.add(ds);
+            }
+            assertEquals((203 + miniBatchSize - 1) / miniBatchSize, numMinibatches);
+            assertEquals(expectedFeatures, Nd4j.concat(0, minibatches.stream().map(ds -> ds.getFeatures(0))
+                    .toArray(INDArray[]::new)));
+            assertEquals(expectedLabels, Nd4j.concat(0, minibatches.stream().map(ds -> ds.getLabels(0))
+                    .toArray(INDArray[]::new)));
+        }
+
+        MultiDatasetRowBlockIterator limited = new MultiDatasetRowBlockIterator(basename, 50, 70);
+        limited.seek(40);
+        assertEquals(expectedFeatures.get(NDArrayIndex.interval(40, 70), NDArrayIndex.all()), limited.next().getFeatures(0));
+        assertFalse(limited.hasNext());
+    }
+
+    private static INDArray concat(MultiDatasetMemoryMappedFeaturesIterator iterator, boolean features) {
+        List<INDArray> arrays = new ArrayList<>();
+        while (iterator.hasNext()) {
+            MultiDataSet ds = iterator.next();
+            arrays.add(features ? ds.getFeatures(0) : ds.getLabels(0));
+        }
+        return Nd4j.concat(0, arrays.toArray(new INDArray[arrays.size()]));
+    }
+}
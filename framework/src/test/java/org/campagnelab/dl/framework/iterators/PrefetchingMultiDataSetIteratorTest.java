@@ -0,0 +1,68 @@
+package org.campagnelab.dl.framework.iterators;
+
+import org.campagnelab.dl.framework.domains.DigitsDomainDescriptor;
+import org.campagnelab.dl.framework.tools.MapMultiDatasetFeaturesTest;
+import org.junit.Test;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that prefetching returns the minibatches of the source in order, with one or several decoding threads,
+ * and across resets.
+ */
+public class PrefetchingMultiDataSetIteratorTest {
+
+    @Test
+    public void sameOrderAsSource() throws IOException {
+        DigitsDomainDescriptor domain = new DigitsDomainDescriptor(203, 5);
+        String basename = MapMultiDatasetFeaturesTest.buildCache(domain,
+                Files.createTempDirectory("prefetch").toFile().getAbsolutePath() + "/digits", 1);
+        List<MultiDataSet> expected = epoch(new MultiDatasetMemoryMappedFeaturesIterator(basename));
+
+        for (int numThreads : new int[]{1, 3}) {
+            PrefetchingMultiDataSetIterator iterator = new PrefetchingMultiDataSetIterator(
+                    new MultiDatasetMemoryMappedFeaturesIterator(basename), 2, numThreads);
+            assertSameMinibatches(expected, epoch(iterator));
+            assertEquals(expected.size(), iterator.getNumServed());
+            assertTrue(iterator.getNumStalls() <= iterator.getNumServed());
+            iterator.reset();
+            assertEquals(0, iterator.getNumServed());
+            // reset in the middle of an epoch:
+            iterator.next();
+            iterator.reset();
+            assertSameMinibatches(expected, epoch(iterator));
+            iterator.close();
+        }
+        // shuffled minibatches are read by a single thread, in the order of the shuffling iterator:
+        List<MultiDataSet> shuffled = epoch(new ShufflingMultiDataSetIterator(
+                new MultiDatasetMemoryMappedFeaturesIterator(basename), 3, 2));
+        PrefetchingMultiDataSetIterator iterator = new PrefetchingMultiDataSetIterator(
+                new ShufflingMultiDataSetIterator(new MultiDatasetMemoryMappedFeaturesIterator(basename), 3, 2), 4, 4);
+        assertSameMinibatches(shuffled, epoch(iterator));
+        assertFalse(iterator.hasNext());
+        iterator.close();
+    }
+
+    private static void assertSameMinibatches(List<MultiDataSet> expected, List<MultiDataSet> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getFeatures(0), actual.get(i).getFeatures(0));
+            assertEquals(expected.get(i).getLabels(0), actual.get(i).getLabels(0));
+        }
+    }
+
+    private static List<MultiDataSet> epoch(MultiDataSetIterator iterator) {
+        List<MultiDataSet> result = new ArrayList<>();
+        while (iterator.hasNext()) {
+            result.add(iterator.next());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,117 @@
+package org.campagnelab.dl.framework.iterators;
+
+import org.campagnelab.dl.framework.domains.DigitsDomainDescriptor;
+import org.campagnelab.dl.framework.iterators.cache.FullyInMemoryCache;
+import org.campagnelab.dl.framework.tools.MapMultiDatasetFeaturesTest;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that shuffled epochs hold the same records as the cache, differ between epochs and can be replayed.
+ */
+public class ShufflingMultiDataSetIteratorTest {
+
+    @Test
+    public void shuffleEpochs() throws IOException {
+        DigitsDomainDescriptor domain = new DigitsDomainDescriptor(203, 11);
+        String basename = MapMultiDatasetFeaturesTest.buildCache(domain,
+                Files.createTempDirectory("shuffle").toFile().getAbsolutePath() + "/digits", 1);
+        List<MultiDataSet> ordered = epoch(new MultiDatasetMemoryMappedFeaturesIterator(basename));
+
+        for (int window : new int[]{1, 3}) {
+            ShufflingMultiDataSetIterator iterator = new ShufflingMultiDataSetIterator(
+                    new MultiDatasetMemoryMappedFeaturesIterator(basename), 42, window);
+            List<MultiDataSet> epoch0 = epoch(iterator);
+            iterator.reset();
+            assertEquals(1, iterator.getEpoch());
+            List<MultiDataSet> epoch1 = epoch(iterator);
+            assertSameRecords(ordered, epoch0);
+            assertSameRecords(ordered, epoch1);
+            assertNotEquals(features(epoch0), features(epoch1));
+            assertNotEquals(features(ordered), features(epoch0));
+
+            iterator.setEpoch(0);
+            assertEquals(features(epoch0), features(epoch(iterator)));
+            // the in-memory cache shuffles the same way as the mapped cache:
+            ShufflingMultiDataSetIterator inMemory = new ShufflingMultiDataSetIterator(
+                    new FullyInMemoryCache(new MultiDatasetMemoryMappedFeaturesIterator(basename)), 42, window);
+            assertEquals(features(epoch0), features(epoch(inMemory)));
+        }
+    }
+
+    @Test
+    public void seekResumesEpoch() throws IOException {
+        DigitsDomainDescriptor domain = new DigitsDomainDescriptor(203, 11);
+        String basename = MapMultiDatasetFeaturesTest.buildCache(domain,
+                Files.createTempDirectory("shuffle").toFile().getAbsolutePath() + "/digits", 1);
+        for (int window : new int[]{1, 3}) {
+            ShufflingMultiDataSetIterator iterator = new ShufflingMultiDataSetIterator(
+                    new MultiDatasetMemoryMappedFeaturesIterator(basename), 42, window);
+            iterator.setEpoch(2);
+            List<MultiDataSet> epoch2 = epoch(iterator);
+            for (int minibatchIndex : new int[]{0, 1, 3, 5}) {
+                // a new iterator, as when training resumes in another process:
+                ShufflingMultiDataSetIterator resumed = new ShufflingMultiDataSetIterator(
+                        new MultiDatasetMemoryMappedFeaturesIterator(basename), 42, window);
+                resumed.setEpoch(2);
+                PrefetchingMultiDataSetIterator prefetched = new PrefetchingMultiDataSetIterator(resumed, 2, 1);
+                prefetched.seekMinibatch(minibatchIndex);
+                assertEquals(features(epoch2.subList(minibatchIndex, epoch2.size())), features(epoch(prefetched)));
+                prefetched.close();
+            }
+        }
+    }
+
+    private static List<MultiDataSet> epoch(org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator iterator) {
+        List<MultiDataSet> result = new ArrayList<>();
+        while (iterator.hasNext()) {
+            result.add(iterator.next());
+        }
+        return result;
+    }
+
+    private static INDArray features(List<MultiDataSet> minibatches) {
+        return Nd4j.concat(0, minibatches.stream().map(ds -> ds.getFeatures(0)).toArray(INDArray[]::new));
+    }
+
+    private static INDArray labels(List<MultiDataSet> minibatches) {
+        return Nd4j.concat(0, minibatches.stream().map(ds -> ds.getLabels(0)).toArray(INDArray[]::new));
+    }
+
+    /**
+     * Minibatches are compared by size, records through a per-record key (features and label), sorted.
+     */
+    private static void assertSameRecords(List<MultiDataSet> expected, List<MultiDataSet> actual) {
+        assertEquals(sizes(expected), sizes(actual));
+        assertEquals(keys(expected), keys(actual));
+    }
+
+    private static List<Integer> sizes(List<MultiDataSet> minibatches) {
+        List<Integer> sizes = new ArrayList<>();
+        for (MultiDataSet ds : minibatches) {
+            sizes.add(ds.getFeatures(0).size(0));
+        }
+        sizes.sort(Integer::compareTo);
+        return sizes;
+    }
+
+    private static List<String> keys(List<MultiDataSet> minibatches) {
+        INDArray features = features(minibatches);
+        INDArray labels = labels(minibatches);
+        List<String> keys = new ArrayList<>();
+        for (int row = 0; row < features.rows(); row++) {
+            keys.add(features.getRow(row).toString() + labels.getRow(row).toString());
+        }
+        keys.sort(String::compareTo);
+        return keys;
+    }
+}
@@ -0,0 +1,45 @@
+package org.campagnelab.dl.framework.iterators.cache;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round-trips blocks through each codec.
+ */
+public class BlockCodecTest {
+
+    @Test
+    public void roundTrip() throws IOException {
+        Random random = new Random(42);
+        byte[] sparse = new byte[100000];
+        for (int i = 0; i < sparse.length; i += 1 + random.nextInt(40)) {
+            sparse[i] = (byte) random.nextInt(4);
+        }
+        byte[] noise = new byte[5000];
+        random.nextBytes(noise);
+        byte[][] blocks = {new byte[0], new byte[]{1, 2, 3}, new byte[300], sparse, noise};
+        for (String name : new String[]{"none", "deflate", "lz"}) {
+            CacheFormat format = new CacheFormat(BlockCodec.forName(name));
+            for (byte[] block : blocks) {
+                byte[] encoded = format.encode(block);
+                assertArrayEquals(name, block, format.decode(encoded, 0, encoded.length));
+            }
+            if (format.isCompressed()) {
+                assertTrue(name + " must compress sparse blocks", format.encode(sparse).length < sparse.length / 2);
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedLZBlock() throws IOException {
+        byte[] block = new byte[1000];
+        block[500] = 1;
+        byte[] compressed = new LZBlockCodec().compress(block);
+        new LZBlockCodec().decompress(compressed, 0, compressed.length - 3, block.length);
+    }
+}
@@ -0,0 +1,171 @@
+package org.campagnelab.dl.framework.iterators.cache;
+
+import org.apache.commons.io.FileUtils;
+import org.campagnelab.dl.framework.domains.DigitsDomainDescriptor;
+import org.campagnelab.dl.framework.iterators.MultiDataSetIteratorAdapter;
+import org.campagnelab.dl.framework.iterators.MultiDatasetMemoryMappedFeaturesIterator;
+import org.junit.Assume;
+import org.junit.Test;
+import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that caches are built under a temporary name, that a process waiting for the cache lock reuses the
+ * cache built by the lock holder, that caches too small for a run are extended without changing the files of the
+ * cache until the extension is complete, and that lock files are closed.
+ */
+public class CacheHelperTest {
+
+    @Test
+    public void buildThenReuseAfterLock() throws Exception {
+        DigitsDomainDescriptor domain = new DigitsDomainDescriptor(100, 3);
+        File directory = Files.createTempDirectory("cache-helper").toFile();
+        String cacheName = directory.getAbsolutePath() + "/digits-" + domain.produceCacheUniqueId(32);
+
+        CacheHelper<String> helper = new CacheHelper<>();
+        helper.setLockPollInterval(50);
+        MultiDataSetIterator built = helper.cache(domain, adapter(domain, domain.getRecords()),
+                directory.getAbsolutePath() + "/digits", Integer.MAX_VALUE, 32);
+        assertTrue(built.hasNext());
+        assertTrue(new File(cacheName + ".cfp").exists());
+        assertFalse(new File(cacheName + ".building.cf").exists());
+
+        // another process holds the lock while it builds the second cache:
+        DigitsDomainDescriptor other = new DigitsDomainDescriptor(100, 3);
+        String otherDirectory = Files.createTempDirectory("cache-helper").toFile().getAbsolutePath();
+        String otherCacheName = otherDirectory + "/digits-" + other.produceCacheUniqueId(32);
+        ExclusiveLockRequestWithFile lock = new ExclusiveLockRequestWithFile(new File(otherCacheName).getName() + ".lock",
+                new File(otherDirectory));
+        lock.waitAndLock();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        // the waiting process must not map records, the cache is built by the lock holder:
+        Future<MultiDataSetIterator> waiting = executor.submit(() -> helper.cache(other,
+                adapter(other, () -> new FailingIterator()), otherDirectory + "/digits", Integer.MAX_VALUE, 32));
+        Thread.sleep(300);
+        assertFalse(waiting.isDone());
+        for (String extension : new String[]{".cf", ".cfi", ".cfp"}) {
+            FileUtils.copyFile(new File(cacheName + extension), new File(otherCacheName + extension));
+        }
+        lock.release();
+        assertTrue(waiting.get(30, TimeUnit.SECONDS).hasNext());
+        executor.shutdown();
+    }
+
+    @Test
+    public void extendCache() throws Exception {
+        DigitsDomainDescriptor small = new DigitsDomainDescriptor(100, 5);
+        DigitsDomainDescriptor large = new DigitsDomainDescriptor(203, 5);
+        String directory = Files.createTempDirectory("cache-helper").toFile().getAbsolutePath();
+        String reference = Files.createTempDirectory("cache-helper").toFile().getAbsolutePath();
+        String cacheName = directory + "/digits-" + large.produceCacheUniqueId(32);
+        String referenceName = reference + "/digits-" + large.produceCacheUniqueId(32);
+        CacheHelper<String> helper = new CacheHelper<>();
+        helper.cache(small, adapter(small, small.getRecords()), directory + "/digits", 100, 32);
+        assertFalse(CacheHelper.cacheExists(cacheName, 203, true));
+
+        // the three complete minibatches of the small cache are reused, their records must not be mapped again:
+        List<String> records = new ArrayList<>(large.getRecords());
+        for (int i = 0; i < 96; i++) {
+            records.set(i, "not a record");
+        }
+        helper.cache(large, adapter(large, records), directory + "/digits", 203, 32);
+        helper.cache(large, adapter(large, large.getRecords()), reference + "/digits", 203, 32);
+        for (String extension : new String[]{".cf", ".cfi"}) {
+            assertArrayEquals(FileUtils.readFileToByteArray(new File(referenceName + extension)),
+                    FileUtils.readFileToByteArray(new File(cacheName + extension)));
+        }
+        assertTrue(CacheHelper.cacheExists(cacheName, 203, true));
+    }
+
+    @Test
+    public void failedExtensionKeepsCache() throws Exception {
+        DigitsDomainDescriptor small = new DigitsDomainDescriptor(100, 5);
+        DigitsDomainDescriptor large = new DigitsDomainDescriptor(203, 5);
+        String directory = Files.createTempDirectory("cache-helper").toFile().getAbsolutePath();
+        String cacheName = directory + "/digits-" + large.produceCacheUniqueId(32);
+        CacheHelper<String> helper = new CacheHelper<>();
+        helper.cache(small, adapter(small, small.getRecords()), directory + "/digits", 100, 32);
+        String[] extensions = {".cf", ".cfi", ".cfp"};
+        byte[][] before = new byte[extensions.length][];
+        for (int i = 0; i < extensions.length; i++) {
+            before[i] = FileUtils.readFileToByteArray(new File(cacheName + extensions[i]));
+        }
+        // a reader that mapped the cache before it is extended:
+        MultiDatasetMemoryMappedFeaturesIterator reader = new MultiDatasetMemoryMappedFeaturesIterator(cacheName);
+
+        // a record that cannot be mapped, after the minibatches of the small cache were copied:
+        List<String> records = new ArrayList<>(large.getRecords());
+        records.set(150, null);
+        try {
+            helper.cache(large, adapter(large, records), directory + "/digits", 203, 32);
+            fail("The extension must fail.");
+        } catch (RuntimeException e) {
+            // expected
+        }
+        for (int i = 0; i < extensions.length; i++) {
+            assertArrayEquals(extensions[i], before[i], FileUtils.readFileToByteArray(new File(cacheName + extensions[i])));
+            assertFalse(new File(cacheName + ".building" + extensions[i]).exists());
+        }
+
+        helper.cache(large, adapter(large, large.getRecords()), directory + "/digits", 203, 32);
+        assertTrue(CacheHelper.cacheExists(cacheName, 203, true));
+        // the previous mapping remains readable, the cache files were replaced, not rewritten:
+        MultiDatasetMemoryMappedFeaturesIterator extended = new MultiDatasetMemoryMappedFeaturesIterator(cacheName);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(reader.get(i).getFeatures(0), extended.get(i).getFeatures(0));
+        }
+        assertEquals(4, reader.get(3).getFeatures(0).size(0));
+        assertEquals(32, extended.get(3).getFeatures(0).size(0));
+    }
+
+    @Test
+    public void closesLockFile() throws Exception {
+        File openFiles = new File("/proc/self/fd");
+        Assume.assumeTrue("open files are listed on Linux only", openFiles.isDirectory());
+        DigitsDomainDescriptor domain = new DigitsDomainDescriptor(100, 3);
+        File directory = Files.createTempDirectory("cache-helper").toFile();
+        String lockName = directory.getAbsolutePath() + "/digits-" + domain.produceCacheUniqueId(32) + ".lock";
+        CacheHelper<String> helper = new CacheHelper<>();
+        helper.cache(domain, adapter(domain, domain.getRecords()), directory.getAbsolutePath() + "/digits",
+                Integer.MAX_VALUE, 32);
+        assertTrue(new File(lockName).exists());
+        for (File descriptor : openFiles.listFiles()) {
+            try {
+                assertNotEquals(lockName, Files.readSymbolicLink(descriptor.toPath()).toString());
+            } catch (IOException e) {
+                // the descriptor was closed while listing.
+            }
+        }
+    }
+
+    private static MultiDataSetIteratorAdapter<String> adapter(DigitsDomainDescriptor domain, Iterable<String> records)
+            throws IOException {
+        return new MultiDataSetIteratorAdapter<String>(records, 32, domain) {
+            @Override
+            public String getBasename() {
+                return "digits";
+            }
+        };
+    }
+
+    private static class FailingIterator implements Iterator<String> {
+        @Override
+        public boolean hasNext() {
+            throw new IllegalStateException("records must not be read when the cache exists.");
+        }
+
+        @Override
+        public String next() {
+            throw new IllegalStateException("records must not be read when the cache exists.");
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.campagnelab.dl.framework.iterators.cache;
+
+import org.campagnelab.dl.framework.domains.DigitsDomainDescriptor;
+import org.campagnelab.dl.framework.iterators.MultiDatasetMemoryMappedFeaturesIterator;
+import org.campagnelab.dl.framework.iterators.PrefetchingMultiDataSetIterator;
+import org.campagnelab.dl.framework.iterators.ShufflingMultiDataSetIterator;
+import org.campagnelab.dl.framework.tools.MapMultiDatasetFeaturesTest;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the compact in-memory cache returns the minibatches of the on-disk cache, exactly in float32 and
+ * approximately in float16, that it reuses arrays when asked to, and that reused arrays are not read ahead when
+ * the cache is shuffled and prefetched, as TrainModel does.
+ */
+public class CompactInMemoryCacheTest {
+
+    @Test
+    public void sameMinibatches() throws IOException {
+        DigitsDomainDescriptor domain = new DigitsDomainDescriptor(203, 7);
+        String basename = MapMultiDatasetFeaturesTest.buildCache(domain,
+                Files.createTempDirectory("compact").toFile().getAbsolutePath() + "/digits", 1);
+        FullyInMemoryCache expected = new FullyInMemoryCache(new MultiDatasetMemoryMappedFeaturesIterator(basename));
+        CompactInMemoryCache exact = new CompactInMemoryCache(new MultiDatasetMemoryMappedFeaturesIterator(basename), false);
+        CompactInMemoryCache half = new CompactInMemoryCache(new MultiDatasetMemoryMappedFeaturesIterator(basename), true, 2);
+
+        assertEquals(expected.numDatasets(), exact.numDatasets());
+        assertEquals(expected.numDatasets(), half.numDatasets());
+        assertTrue(half.getNumBytes() <= exact.getNumBytes());
+        for (int i = 0; i < expected.numDatasets(); i++) {
+            MultiDataSet ds = expected.get(i);
+            assertEquals(ds.getFeatures(0), exact.get(i).getFeatures(0));
+            assertEquals(ds.getLabels(0), exact.get(i).getLabels(0));
+            MultiDataSet approximate = half.next();
+            assertApproximatelyEquals(ds.getFeatures(0), approximate.getFeatures(0));
+            assertEquals(ds.getLabels(0), approximate.getLabels(0));
+        }
+        assertFalse(half.hasNext());
+        half.reset();
+        assertTrue(half.hasNext());
+        // a ring of two minibatches overwrites the minibatch returned two calls before:
+        MultiDataSet first = half.next();
+        assertNotSame(first, half.next());
+        assertSame(first, half.next());
+    }
+
+    @Test
+    public void shuffledAndPrefetched() throws IOException {
+        DigitsDomainDescriptor domain = new DigitsDomainDescriptor(203, 7);
+        String basename = MapMultiDatasetFeaturesTest.buildCache(domain,
+                Files.createTempDirectory("compact").toFile().getAbsolutePath() + "/digits", 1);
+        FullyInMemoryCache arrays = new FullyInMemoryCache(new MultiDatasetMemoryMappedFeaturesIterator(basename));
+        for (int window : new int[]{1, 3}) {
+            INDArray expected = features(new ShufflingMultiDataSetIterator(arrays, 42, window));
+            CompactInMemoryCache compact = new CompactInMemoryCache(
+                    new MultiDatasetMemoryMappedFeaturesIterator(basename), false, window + 1);
+            ShufflingMultiDataSetIterator shuffler = new ShufflingMultiDataSetIterator(compact, 42, window);
+            // windows of one return the arrays of the ring, which must not be read ahead:
+            assertEquals(window > 1, shuffler.asyncSupported());
+            MultiDataSetIterator iterator = shuffler.asyncSupported() ?
+                    new PrefetchingMultiDataSetIterator(shuffler, 4, 1) : shuffler;
+            assertEquals(expected, features(iterator));
+        }
+    }
+
+    /**
+     * Copy the features of each minibatch when it is returned, as a trainer would use them, and concatenate them.
+     */
+    private static INDArray features(MultiDataSetIterator iterator) {
+        List<INDArray> features = new ArrayList<>();
+        while (iterator.hasNext()) {
+            features.add(iterator.next().getFeatures(0).dup());
+        }
+        return Nd4j.concat(0, features.toArray(new INDArray[features.size()]));
+    }
+
+    private static void assertApproximatelyEquals(INDArray expected, INDArray actual) {
+        assertArrayEquals(expected.shape(), actual.shape());
+        for (int i = 0; i < expected.length(); i++) {
+            float value = expected.getFloat(i);
+            assertEquals(value, actual.getFloat(i), Math.abs(value) / 1000 + 1e-6);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package org.campagnelab.dl.framework.iterators.cache;
+
+import org.campagnelab.dl.framework.domains.DigitsDomainDescriptor;
+import org.campagnelab.dl.framework.iterators.MultiDatasetMemoryMappedFeaturesIterator;
+import org.campagnelab.dl.framework.iterators.PrefetchingMultiDataSetIterator;
+import org.campagnelab.dl.framework.tools.MapMultiDatasetFeaturesTest;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that legacy caches are indexed, that mapped iterators share one mapping until they are no longer referenced,
+ * and that sparse caches decode minibatches into the arrays of a ring when asked to, also when they are prefetched.
+ */
+public class MemoryMappedCacheTest {
+
+    @Test
+    public void indexAndMapLegacyCache() throws IOException {
+        String basename = Files.createTempDirectory("cache").toFile().getAbsolutePath() + "/test";
+        int miniBatchSize = 2;
+        int numDatasets = 3;
+        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(basename + ".cf"))) {
+            for (int i = 0; i < numDatasets; i++) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                dataset(i, miniBatchSize).save(bytes);
+                output.writeInt(bytes.size());
+                output.write(bytes.toByteArray());
+            }
+        }
+        Properties cfp = new Properties();
+        cfp.put("miniBatchSize", Integer.toString(miniBatchSize));
+        cfp.put("numRecords", Integer.toString(numDatasets * miniBatchSize));
+        try (FileWriter writer = new FileWriter(basename + ".cfp")) {
+            cfp.store(writer, "test");
+        }
+
+        CacheIndex index = CacheIndex.load(basename);
+        assertEquals(numDatasets, index.numDatasets());
+        assertEquals(new File(basename + ".cf").length(), index.endOffset());
+        assertTrue("index must be saved when rebuilt", new File(basename + ".cfi").exists());
+
+        MultiDatasetMemoryMappedFeaturesIterator iterator = new MultiDatasetMemoryMappedFeaturesIterator(basename);
+        int n = 0;
+        while (iterator.hasNext()) {
+            assertEquals(dataset(n, miniBatchSize).getFeatures(0), iterator.next().getFeatures(0));
+            n++;
+        }
+        assertEquals(numDatasets, n);
+
+        // a second iterator shares the mapping but has its own position:
+        MultiDatasetMemoryMappedFeaturesIterator other = new MultiDatasetMemoryMappedFeaturesIterator(basename);
+        other.seek(2);
+        iterator.reset();
+        assertEquals(dataset(2, miniBatchSize).getFeatures(0), other.next().getFeatures(0));
+        assertEquals(dataset(0, miniBatchSize).getFeatures(0), iterator.next().getFeatures(0));
+        assertFalse(other.hasNext());
+    }
+
+    @Test
+    public void releaseUnreferencedCaches() throws IOException, InterruptedException {
+        String basename = MapMultiDatasetFeaturesTest.buildCache(new DigitsDomainDescriptor(20, 7),
+                Files.createTempDirectory("cache").toFile().getAbsolutePath() + "/digits", 1, "none", false);
+        MemoryMappedCache cache = MemoryMappedCache.open(basename);
+        assertSame(cache, MemoryMappedCache.open(basename));
+        assertTrue(MemoryMappedCache.isOpen(basename));
+
+        cache = null;
+        for (int attempt = 0; attempt < 50 && MemoryMappedCache.isOpen(basename); attempt++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertFalse("unreferenced caches must not stay mapped", MemoryMappedCache.isOpen(basename));
+    }
+
+    @Test
+    public void reuseArrays() throws IOException {
+        DigitsDomainDescriptor domain = new DigitsDomainDescriptor(203, 7);
+        for (String codec : new String[]{"none", "lz"}) {
+            String basename = MapMultiDatasetFeaturesTest.buildCache(domain,
+                    Files.createTempDirectory("cache").toFile().getAbsolutePath() + "/digits", 1, codec, true);
+            INDArray expected = features(new MultiDatasetMemoryMappedFeaturesIterator(basename));
+
+            MultiDatasetMemoryMappedFeaturesIterator iterator = new MultiDatasetMemoryMappedFeaturesIterator(basename);
+            iterator.setRingSize(2);
+            assertEquals(expected, features(iterator));
+            iterator.reset();
+            MultiDataSet first = iterator.next();
+            assertNotSame(first, iterator.next());
+            assertSame(first, iterator.next());
+            // random access reuses the arrays of its own stream:
+            MultiDataSet got = iterator.get(0);
+            assertNotSame(first, got);
+            iterator.get(1);
+            assertSame(got, iterator.get(2));
+
+            // minibatches read ahead by one thread (next) or by several threads (get) fit in the ring:
+            for (int numThreads : new int[]{1, 3}) {
+                final int queueDepth = 4;
+                MultiDatasetMemoryMappedFeaturesIterator prefetched = new MultiDatasetMemoryMappedFeaturesIterator(basename);
+                prefetched.setRingSize(1 + 1 + queueDepth + 1);
+                assertEquals(expected, features(new PrefetchingMultiDataSetIterator(prefetched, queueDepth, numThreads)));
+            }
+        }
+    }
+
+    /**
+     * Copy the features of each minibatch when it is returned, and concatenate them.
+     */
+    private static INDArray features(MultiDataSetIterator iterator) {
+        List<INDArray> features = new ArrayList<>();
+        while (iterator.hasNext()) {
+            features.add(iterator.next().getFeatures(0).dup());
+        }
+        return Nd4j.concat(0, features.toArray(new INDArray[features.size()]));
+    }
+
+    private MultiDataSet dataset(int value, int miniBatchSize) {
+        INDArray features = Nd4j.ones(miniBatchSize, 3).muli(value);
+        INDArray labels = Nd4j.zeros(miniBatchSize, 2);
+        return new org.nd4j.linalg.dataset.MultiDataSet(features, labels);
+    }
+}
@@ -0,0 +1,151 @@
+package org.campagnelab.dl.framework.iterators.cache;
+
+import org.junit.Test;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round-trips 2D and 3D arrays, with and without masks, through the sparse serializer, and arrays that mix binary,
+ * sparse and dense columns, which are stored in runs of columns.
+ */
+public class SparseMultiDataSetSerializerTest {
+
+    @Test
+    public void roundTrip() throws IOException {
+        INDArray features = Nd4j.zeros(3, 70);
+        features.putScalar(0, 2, 0.5);
+        features.putScalar(2, 69, -3);
+        INDArray sequence = Nd4j.zeros(new int[]{3, 4, 5});
+        sequence.putScalar(new int[]{1, 2, 3}, 7);
+        INDArray labels = Nd4j.zeros(3, 2);
+        labels.putScalar(0, 1, 1);
+        labels.putScalar(1, 0, 1);
+        INDArray mask = Nd4j.ones(3, 5);
+        mask.putScalar(2, 4, 0);
+        MultiDataSet ds = new org.nd4j.linalg.dataset.MultiDataSet(new INDArray[]{features, sequence},
+                new INDArray[]{labels}, new INDArray[]{null, mask}, null);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SparseMultiDataSetSerializer.save(ds, bytes);
+        MultiDataSet loaded = SparseMultiDataSetSerializer.load(new ByteArrayInputStream(bytes.toByteArray()));
+
+        assertEquals(features, loaded.getFeatures(0));
+        assertEquals(sequence, loaded.getFeatures(1));
+        assertEquals(labels, loaded.getLabels(0));
+        assertNull(loaded.getFeaturesMaskArrays()[0]);
+        assertEquals(mask, loaded.getFeaturesMaskArrays()[1]);
+        assertNull(loaded.getLabelsMaskArrays());
+    }
+
+    @Test
+    public void halfPrecision() {
+        float[] values = {0f, 1f, -2.5f, 0.1f, 65504f, 1e-7f, 70000f, Float.POSITIVE_INFINITY};
+        float[] expected = {0f, 1f, -2.5f, 0.099975586f, 65504f, 1.1920929E-7f, Float.POSITIVE_INFINITY,
+                Float.POSITIVE_INFINITY};
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(expected[i], SparseMultiDataSetSerializer.fromHalf(SparseMultiDataSetSerializer.toHalf(values[i])), 0f);
+        }
+        assertTrue(Float.isNaN(SparseMultiDataSetSerializer.fromHalf(SparseMultiDataSetSerializer.toHalf(Float.NaN))));
+    }
+
+    @Test
+    public void reuseArrays() throws IOException {
+        INDArray dense = Nd4j.rand(4, 6);
+        MultiDataSet ds = new org.nd4j.linalg.dataset.MultiDataSet(dense, Nd4j.eye(4));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SparseMultiDataSetSerializer.save(ds, bytes, true);
+        MultiDataSet reuse = new org.nd4j.linalg.dataset.MultiDataSet(Nd4j.zeros(4, 6), Nd4j.zeros(4, 4));
+
+        MultiDataSet loaded = SparseMultiDataSetSerializer.load(new ByteArrayInputStream(bytes.toByteArray()), reuse);
+
+        assertSame(reuse, loaded);
+        assertEquals(Nd4j.eye(4), loaded.getLabels(0));
+        for (int i = 0; i < dense.length(); i++) {
+            assertEquals(dense.getFloat(i), loaded.getFeatures(0).getFloat(i), 1e-3);
+        }
+    }
+
+    @Test
+    public void mixedColumns() throws IOException {
+        // one-hot columns, then counts that are mostly zero, then dense values, then a binary flag:
+        final int numRows = 64;
+        INDArray features = Nd4j.zeros(numRows, 300);
+        Random random = new Random(3);
+        for (int row = 0; row < numRows; row++) {
+            features.putScalar(row, random.nextInt(200), 1);
+            features.putScalar(row, 200 + random.nextInt(60), 1 + random.nextInt(30));
+            for (int column = 260; column < 299; column++) {
+                features.putScalar(row, column, random.nextFloat());
+            }
+            features.putScalar(row, 299, random.nextInt(2));
+        }
+        for (boolean halfPrecision : new boolean[]{false, true}) {
+            MultiDataSet ds = new org.nd4j.linalg.dataset.MultiDataSet(features, Nd4j.eye(numRows));
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            SparseMultiDataSetSerializer.save(ds, bytes, halfPrecision);
+            // the dense values dominate, a whole-array encoding would store the 300 columns densely:
+            final int valueBytes = halfPrecision ? 2 : 4;
+            assertTrue(bytes.size() < numRows * 50 * valueBytes);
+            MultiDataSet loaded = SparseMultiDataSetSerializer.load(new ByteArrayInputStream(bytes.toByteArray()));
+            assertEquals(Nd4j.eye(numRows), loaded.getLabels(0));
+            for (int i = 0; i < features.length(); i++) {
+                final float value = features.getFloat(i);
+                assertEquals(value, loaded.getFeatures(0).getFloat(i), halfPrecision ? Math.abs(value) / 1000 : 0);
+            }
+        }
+    }
+
+    @Test
+    public void decodeIntoReusedBuffers() throws IOException {
+        INDArray features = Nd4j.zeros(5, 40);
+        features.putScalar(1, 3, 2.5);
+        features.putScalar(4, 39, -1);
+        MultiDataSet ds = new org.nd4j.linalg.dataset.MultiDataSet(features, Nd4j.eye(5));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SparseMultiDataSetSerializer.save(ds, bytes);
+        // values of the previous minibatch must not leak into the elements that are not stored:
+        MultiDataSet reuse = new org.nd4j.linalg.dataset.MultiDataSet(Nd4j.ones(5, 40), Nd4j.ones(5, 5));
+        DataBuffer featuresBuffer = reuse.getFeatures(0).data();
+
+        MultiDataSet loaded = SparseMultiDataSetSerializer.load(new ByteArrayInputStream(bytes.toByteArray()), reuse);
+
+        assertSame(reuse, loaded);
+        assertSame(featuresBuffer, loaded.getFeatures(0).data());
+        assertEquals(features, loaded.getFeatures(0));
+        assertEquals(Nd4j.eye(5), loaded.getLabels(0));
+    }
+
+    @Test
+    public void decodeThroughNd4j() throws IOException {
+        // the path used by backends whose arrays cannot be written through their host buffer:
+        final boolean hostBuffers = SparseMultiDataSetSerializer.hostBuffers;
+        SparseMultiDataSetSerializer.hostBuffers = false;
+        try {
+            INDArray features = Nd4j.zeros(5, 40);
+            features.putScalar(1, 3, 2.5);
+            features.putScalar(4, 39, -1);
+            MultiDataSet ds = new org.nd4j.linalg.dataset.MultiDataSet(features, Nd4j.eye(5));
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            SparseMultiDataSetSerializer.save(ds, bytes);
+            MultiDataSet reuse = new org.nd4j.linalg.dataset.MultiDataSet(Nd4j.ones(5, 40), Nd4j.ones(5, 5));
+
+            MultiDataSet loaded = SparseMultiDataSetSerializer.load(new ByteArrayInputStream(bytes.toByteArray()), reuse);
+            assertSame(reuse, loaded);
+            assertEquals(features, loaded.getFeatures(0));
+            assertEquals(Nd4j.eye(5), loaded.getLabels(0));
+            loaded = SparseMultiDataSetSerializer.load(new ByteArrayInputStream(bytes.toByteArray()));
+            assertEquals(features, loaded.getFeatures(0));
+        } finally {
+            SparseMultiDataSetSerializer.hostBuffers = hostBuffers;
+        }
+    }
+}
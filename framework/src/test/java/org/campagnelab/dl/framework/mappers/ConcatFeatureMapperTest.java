@@ -6,6 +6,7 @@ import org.nd4j.linalg.factory.Nd4j;
 
 import java.util.function.Function;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 /**
@@ -27,4 +28,51 @@ public class ConcatFeatureMapperTest {
         concatCalculator.mapFeatures(record, labels, 0);
         assertEquals(labels.toString(), expectedLabels);
     }
+
+    @Test
+    public void bulkConcatFeatures() {
+        String record = "012";
+        FeatureMapper<String>[] calculators = new FeatureMapper[record.length()];
+        for (int i = 0; i < record.length(); i++) {
+            calculators[i] = new OneHotBaseFeatureMapper<>(i, Function.identity(),
+                    (r, idx) -> Character.getNumericValue(r.charAt(idx)), 3);
+        }
+        FeatureMapper<String> concatCalculator = new ConcatFeatureMapper<>(calculators);
+        float[] features = new float[2 + concatCalculator.numberOfFeatures()];
+        concatCalculator.prepareToNormalize(record, 0);
+        concatCalculator.mapFeatures(record, features, 2, 0);
+        assertArrayEquals(new float[]{0, 0, 1, 0, 0, 0, 1, 0, 0, 0, 1}, features, 0f);
+    }
+
+    @Test
+    public void bulkFeaturesOfSubclassWithOwnDelegate() {
+        FeatureMapper<String> delegate = new OneHotBaseFeatureMapper<>(0, Function.identity(),
+                (r, idx) -> Character.getNumericValue(r.charAt(idx)), 3);
+        // subclasses that map with their own delegate leave the delegates of ConcatFeatureMapper empty:
+        FeatureMapper<String> wrapper = new ConcatFeatureMapper<String>() {
+            @Override
+            protected boolean mapsWithDelegates() {
+                return false;
+            }
+
+            @Override
+            public int numberOfFeatures() {
+                return delegate.numberOfFeatures();
+            }
+
+            @Override
+            public void prepareToNormalize(String record, int indexOfRecord) {
+                delegate.prepareToNormalize(record, indexOfRecord);
+            }
+
+            @Override
+            public float produceFeature(String record, int featureIndex) {
+                return delegate.produceFeature(record, featureIndex);
+            }
+        };
+        float[] features = new float[3];
+        wrapper.prepareToNormalize("2", 0);
+        wrapper.mapFeatures("2", features, 0, 0);
+        assertArrayEquals(new float[]{0, 0, 1}, features, 0f);
+    }
 }
@@ -0,0 +1,164 @@
+package org.campagnelab.dl.framework.mappers;
+
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.util.function.Function;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that compiling a tree of concatenations flattens nested concatenations and keeps the features unchanged,
+ * that masks are unchanged, and that fused mappers name features even when the tree does not.
+ */
+public class FusedFeatureMapperTest {
+
+    @Test
+    public void fusedTreeProducesSameFeatures() {
+        String[] records = {"0120", "2201", "1102"};
+        ConcatFeatureMapper<String> original = tree();
+        ConcatFeatureMapper<String> compiled = tree();
+        assertSame(compiled, FusedFeatureMapper.compile(compiled));
+        assertTrue(compiled.mappers[0] instanceof FusedFeatureMapper);
+        assertEquals(3, ((FusedFeatureMapper<String>) compiled.mappers[0]).numLeaves());
+        assertEquals(original.numberOfFeatures(), compiled.numberOfFeatures());
+
+        final int numFeatures = original.numberOfFeatures();
+        INDArray expected = Nd4j.zeros(records.length, numFeatures);
+        INDArray actual = Nd4j.zeros(records.length, numFeatures);
+        for (int i = 0; i < records.length; i++) {
+            original.prepareToNormalize(records[i], i);
+            original.mapFeatures(records[i], expected, i);
+            compiled.prepareToNormalize(records[i], i);
+            compiled.mapFeatures(records[i], actual, i);
+            float[] bulk = new float[numFeatures];
+            compiled.mapFeatures(records[i], bulk, 0, i);
+            for (int j = 0; j < numFeatures; j++) {
+                assertEquals(original.produceFeature(records[i], j), compiled.produceFeature(records[i], j), 0f);
+                assertEquals(expected.getFloat(i, j), bulk[j], 0f);
+            }
+        }
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void fusedTreeProducesSameMasks() {
+        String[] records = {"0120", "2201", "1102"};
+        ConcatFeatureMapper<String> original = maskedTree();
+        ConcatFeatureMapper<String> compiled = maskedTree();
+        FusedFeatureMapper.compile(compiled);
+        assertTrue(compiled.mappers[0] instanceof FusedFeatureMapper);
+        assertTrue(compiled.mappers[0].hasMask());
+
+        final int numFeatures = original.numberOfFeatures();
+        INDArray expected = Nd4j.zeros(records.length, numFeatures);
+        INDArray actual = Nd4j.zeros(records.length, numFeatures);
+        for (int i = 0; i < records.length; i++) {
+            original.maskFeatures(records[i], expected, i);
+            compiled.maskFeatures(records[i], actual, i);
+            float[] bulkExpected = new float[numFeatures];
+            float[] bulkActual = new float[numFeatures];
+            original.maskFeatures(records[i], bulkExpected, 0, i);
+            compiled.maskFeatures(records[i], bulkActual, 0, i);
+            assertArrayEquals(bulkExpected, bulkActual, 0f);
+        }
+        assertEquals(expected, actual);
+        assertNotEquals(Nd4j.zeros(records.length, numFeatures), actual);
+    }
+
+    @Test
+    public void namesFeaturesOfUnnamedTrees() {
+        ConcatFeatureMapper<String> compiled = tree();
+        FusedFeatureMapper.compile(compiled);
+        FusedFeatureMapper<String> fused = (FusedFeatureMapper<String>) compiled.mappers[0];
+        // callers such as ProfilingFeatureMapper name features of any FeatureNameMapper:
+        ProfilingFeatureMapper<String> profiled = new ProfilingFeatureMapper<>(fused, "fused");
+        assertEquals("leaf0_0", profiled.getFeatureName(0));
+        assertEquals("leaf1_2", profiled.getFeatureName(5));
+        assertEquals("leaf2_1", fused.getFeatureName(fused.numberOfFeatures() - 2));
+    }
+
+    /**
+     * @return ((digit0, digit1), digit2), digit3, each digit one-hot encoded.
+     */
+    @SuppressWarnings("unchecked")
+    private static ConcatFeatureMapper<String> tree() {
+        return new ConcatFeatureMapper<>(
+                new ConcatFeatureMapper<>(new ConcatFeatureMapper<>(digit(0), digit(1)), digit(2)),
+                digit(3));
+    }
+
+    /**
+     * @return ((digit0, masked digit1), digit2), masked digit3.
+     */
+    @SuppressWarnings("unchecked")
+    private static ConcatFeatureMapper<String> maskedTree() {
+        return new ConcatFeatureMapper<>(
+                new ConcatFeatureMapper<>(new ConcatFeatureMapper<>(digit(0), new MaskedDigit(1)), digit(2)),
+                new MaskedDigit(3));
+    }
+
+    /**
+     * Values of a digit, one feature per possible value, masked above the value of the digit.
+     */
+    private static class MaskedDigit implements FeatureMapper<String> {
+        private final int index;
+
+        MaskedDigit(int index) {
+            this.index = index;
+        }
+
+        private int digit(String record) {
+            return Character.getNumericValue(record.charAt(index));
+        }
+
+        @Override
+        public int numberOfFeatures() {
+            return 3;
+        }
+
+        @Override
+        public MappedDimensions dimensions() {
+            return new MappedDimensions(3);
+        }
+
+        @Override
+        public void prepareToNormalize(String record, int indexOfRecord) {
+        }
+
+        @Override
+        public void mapFeatures(String record, INDArray inputs, int indexOfRecord) {
+            for (int j = 0; j < 3; j++) {
+                inputs.putScalar(indexOfRecord, j, produceFeature(record, j));
+            }
+        }
+
+        @Override
+        public boolean hasMask() {
+            return true;
+        }
+
+        @Override
+        public void maskFeatures(String record, INDArray mask, int indexOfRecord) {
+            for (int j = 0; j < 3; j++) {
+                mask.putScalar(indexOfRecord, j, isMasked(record, j) ? 1 : 0);
+            }
+        }
+
+        @Override
+        public boolean isMasked(String record, int featureIndex) {
+            return featureIndex <= digit(record);
+        }
+
+        @Override
+        public float produceFeature(String record, int featureIndex) {
+            return featureIndex == digit(record) ? 1 : 0;
+        }
+    }
+
+    private static FeatureMapper<String> digit(int index) {
+        return new OneHotBaseFeatureMapper<>(index, Function.identity(),
+                (r, idx) -> Character.getNumericValue(r.charAt(idx)), 3);
+    }
+}
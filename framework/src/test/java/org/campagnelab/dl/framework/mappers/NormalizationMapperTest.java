@@ -0,0 +1,109 @@
+package org.campagnelab.dl.framework.mappers;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that normalizing mappers produce the same features in bulk and one feature at a time, and the values
+ * computed from the features of their delegate.
+ */
+public class NormalizationMapperTest {
+    private static final int NUM_FEATURES = 7;
+
+    @Test
+    public void meanNormalization() {
+        Random random = new Random(5);
+        for (boolean divideByStdev : new boolean[]{false, true}) {
+            MeanNormalizationMapper<float[]> mapper = new MeanNormalizationMapper<>(new Identity(), divideByStdev);
+            for (int r = 0; r < 50; r++) {
+                float[] record = randomRecord(random);
+                float mean = 0;
+                for (float value : record) {
+                    mean += value;
+                }
+                mean /= NUM_FEATURES;
+                double variance = 0;
+                for (double value : record) {
+                    variance += (value - mean) * (value - mean);
+                }
+                final double stdev = Math.sqrt(variance);
+                float[] expected = new float[NUM_FEATURES];
+                for (int i = 0; i < NUM_FEATURES; i++) {
+                    float normalized = mean == 0 ? 0 : record[i] - mean;
+                    if (divideByStdev && mean != 0) {
+                        normalized /= stdev;
+                    }
+                    expected[i] = normalized;
+                }
+                assertSameFeatures(mapper, record, expected);
+            }
+        }
+    }
+
+    @Test
+    public void maxNormalization() {
+        Random random = new Random(6);
+        MaxNormalizationMapper<float[]> mapper = new MaxNormalizationMapper<>(new Identity());
+        // the maximum is kept across records:
+        float absMax = Float.NEGATIVE_INFINITY;
+        for (int r = 0; r < 50; r++) {
+            float[] record = randomRecord(random);
+            float[] expected = new float[NUM_FEATURES];
+            for (float value : record) {
+                absMax = Math.max(Math.abs(value), absMax);
+            }
+            for (int i = 0; i < NUM_FEATURES; i++) {
+                expected[i] = absMax == 0 ? 0 : record[i] / absMax;
+            }
+            assertSameFeatures(mapper, record, expected);
+        }
+    }
+
+    private static void assertSameFeatures(FeatureMapper<float[]> mapper, float[] record, float[] expected) {
+        mapper.prepareToNormalize(record, 0);
+        float[] bulk = new float[NUM_FEATURES + 2];
+        mapper.mapFeatures(record, bulk, 2, 0);
+        for (int i = 0; i < NUM_FEATURES; i++) {
+            assertEquals(Float.floatToIntBits(expected[i]), Float.floatToIntBits(mapper.produceFeature(record, i)));
+            assertEquals(Float.floatToIntBits(expected[i]), Float.floatToIntBits(bulk[2 + i]));
+        }
+    }
+
+    private static float[] randomRecord(Random random) {
+        float[] record = new float[NUM_FEATURES];
+        // some records have only zero features:
+        if (random.nextInt(10) > 0) {
+            for (int i = 0; i < NUM_FEATURES; i++) {
+                record[i] = random.nextInt(40) - 10;
+            }
+        }
+        return record;
+    }
+
+    /**
+     * Maps each value of a record to a feature.
+     */
+    private static class Identity extends AbstractFeatureMapper1D<float[]> {
+        @Override
+        public int numberOfFeatures() {
+            return NUM_FEATURES;
+        }
+
+        @Override
+        public void prepareToNormalize(float[] record, int indexOfRecord) {
+        }
+
+        @Override
+        public float produceFeature(float[] record, int featureIndex) {
+            return record[featureIndex];
+        }
+
+        @Override
+        public String getFeatureName(int featureIndex) {
+            return "value" + featureIndex;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.campagnelab.dl.framework.mappers;
+
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that instrumenting a mapper tree wraps each leaf once and keeps the features unchanged.
+ */
+public class ProfilingFeatureMapperTest {
+
+    @Test
+    public void instrumentedTreeProducesSameFeatures() {
+        String[] records = {"0120", "2201", "1102"};
+        FeatureMapper<String> original = tree();
+        // a fused concatenation holding a plain concatenation, and a leaf:
+        ConcatFeatureMapper<String> instrumented = tree();
+        FusedFeatureMapper.compile(instrumented);
+        instrumented.mappers[1] = new ConcatFeatureMapper<>(instrumented.mappers[1]);
+        List<ProfilingFeatureMapper<String>> profiles = new ArrayList<>();
+        assertSame(instrumented, ProfilingFeatureMapper.instrument(instrumented, profiles));
+        assertEquals(4, profiles.size());
+        assertEquals("ConcatFeatureMapper/0:FusedFeatureMapper/0:OneHotBaseFeatureMapper", profiles.get(0).getPath());
+
+        final int numFeatures = original.numberOfFeatures();
+        assertEquals(numFeatures, instrumented.numberOfFeatures());
+        INDArray expected = Nd4j.zeros(records.length, numFeatures);
+        INDArray actual = Nd4j.zeros(records.length, numFeatures);
+        for (int i = 0; i < records.length; i++) {
+            original.prepareToNormalize(records[i], i);
+            original.mapFeatures(records[i], expected, i);
+            instrumented.prepareToNormalize(records[i], i);
+            instrumented.mapFeatures(records[i], actual, i);
+            float[] bulk = new float[numFeatures];
+            instrumented.mapFeatures(records[i], bulk, 0, i);
+            for (int j = 0; j < numFeatures; j++) {
+                assertEquals(expected.getFloat(i, j), bulk[j], 0f);
+            }
+        }
+        assertEquals(expected, actual);
+        for (ProfilingFeatureMapper<String> profile : profiles) {
+            assertTrue(profile.getPath(), profile.getNanos() > 0);
+            profile.reset();
+            assertEquals(0, profile.getNanos());
+        }
+    }
+
+    /**
+     * @return ((digit0, digit1), digit2), digit3, each digit one-hot encoded.
+     */
+    @SuppressWarnings("unchecked")
+    private static ConcatFeatureMapper<String> tree() {
+        return new ConcatFeatureMapper<>(
+                new ConcatFeatureMapper<>(new ConcatFeatureMapper<>(digit(0), digit(1)), digit(2)),
+                digit(3));
+    }
+
+    private static FeatureMapper<String> digit(int index) {
+        return new OneHotBaseFeatureMapper<>(index, Function.identity(),
+                (r, idx) -> Character.getNumericValue(r.charAt(idx)), 3);
+    }
+}
@@ -77,4 +77,23 @@ public class RNNFeatureMapperTest {
         assertEquals(inputs.toString(), expectedFeatures);
         assertEquals(mask.toString(), expectedMask);
     }
+
+    @Test
+    public void bulkMappingMatchesINDArrays() {
+        String[] sequences = {"ATCGNJ", "ATCG", "AT"};
+        RNNFeatureMapper<String> rnnFeatureMapper = new RNNFeatureMapper<>(6, Function.identity(), String::length);
+        INDArray inputs = Nd4j.zeros(3, 6, 6);
+        INDArray mask = Nd4j.zeros(3, 6);
+        float[] bulkInputs = new float[3 * 36];
+        float[] bulkMask = new float[3 * 6];
+        for (int i = 0; i < sequences.length; i++) {
+            rnnFeatureMapper.prepareToNormalize(sequences[i], i);
+            rnnFeatureMapper.mapFeatures(sequences[i], inputs, i);
+            rnnFeatureMapper.maskFeatures(sequences[i], mask, i);
+            rnnFeatureMapper.mapFeatures(sequences[i], bulkInputs, i * 36, i);
+            rnnFeatureMapper.maskFeatures(sequences[i], bulkMask, i * 6, i);
+        }
+        assertEquals(inputs, Nd4j.create(bulkInputs, new int[]{3, 6, 6}, 'c'));
+        assertEquals(mask, Nd4j.create(bulkMask, new int[]{3, 6}, 'c'));
+    }
 }
@@ -0,0 +1,36 @@
+package org.campagnelab.dl.framework.mappers;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that values are cached only for the record being mapped.
+ */
+public class RecordContextTest {
+    private static final RecordContext.Slot<String> SLOT = RecordContext.newSlot();
+
+    @Test
+    public void cachesValuesOfRecordBeingMapped() {
+        String first = new String("first");
+        String second = new String("second");
+        RecordContext.begin(first);
+        try {
+            assertNull(RecordContext.get(first, SLOT));
+            RecordContext.put(first, SLOT, "value");
+            assertEquals("value", RecordContext.get(first, SLOT));
+            // a record derived from the record being mapped:
+            assertNull(RecordContext.get(new String("first"), SLOT));
+            RecordContext.put(second, SLOT, "other");
+            assertEquals("value", RecordContext.get(first, SLOT));
+
+            RecordContext.begin(second);
+            assertNull(RecordContext.get(second, SLOT));
+            assertNull(RecordContext.get(first, SLOT));
+        } finally {
+            RecordContext.end();
+        }
+        RecordContext.put(second, SLOT, "value");
+        assertNull(RecordContext.get(second, SLOT));
+    }
+}
@@ -0,0 +1,98 @@
+package org.campagnelab.dl.framework.models;
+
+import org.apache.commons.io.FileUtils;
+import org.campagnelab.dl.framework.domains.DigitsDomainDescriptor;
+import org.deeplearning4j.nn.conf.ComputationGraphConfiguration;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.layers.OutputLayer;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.lossfunctions.LossFunctions;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that checkpoints written in the background contain the parameters of the model when it was saved.
+ */
+public class CheckpointWriterTest {
+
+    @Test
+    public void writesNewestCopy() throws IOException {
+        File directory = new File("target/checkpoint-writer-test");
+        FileUtils.deleteDirectory(directory);
+        FileUtils.forceMkdir(directory);
+        ComputationGraphSaver saver = new ComputationGraphSaver(directory.getPath());
+        CheckpointWriter checkpoints = new CheckpointWriter(saver, true);
+        ComputationGraph graph = graph();
+        INDArray savedParameters = null;
+        for (int epoch = 0; epoch < 5; epoch++) {
+            graph.params().addi(1);
+            savedParameters = graph.params().dup();
+            checkpoints.save(graph, "latest", epoch);
+        }
+        // changes made after the last save must not be written:
+        graph.params().addi(1);
+        checkpoints.close();
+
+        List<CheckpointWriter.Checkpoint> written = checkpoints.completed();
+        assertFalse(written.isEmpty());
+        int numSaves = 0;
+        for (CheckpointWriter.Checkpoint checkpoint : written) {
+            assertEquals("latest", checkpoint.prefix);
+            assertTrue(checkpoint.numBytes > 0);
+            numSaves += checkpoint.numCoalesced + 1;
+        }
+        assertEquals(5, numSaves);
+        assertEquals(4, written.get(written.size() - 1).epoch);
+        assertEquals(savedParameters, saver.getLatestModel().params());
+        assertFalse(new File(saver.modelFilename("latest") + ".tmp").exists());
+    }
+
+    @Test
+    public void resumeCheckpointRoundTrip() throws IOException {
+        File directory = new File("target/checkpoint-writer-test-resume");
+        FileUtils.deleteDirectory(directory);
+        FileUtils.forceMkdir(directory);
+        CheckpointWriter checkpoints = new CheckpointWriter(new ComputationGraphSaver(directory.getPath()), true);
+        ComputationGraph graph = graph();
+        Properties state = new Properties();
+        state.setProperty("notImproved", "2");
+        checkpoints.saveResumable(graph, new ResumeCheckpoint(3, 40, 12345, 77, state));
+        checkpoints.close();
+
+        File file = new File(directory, ResumeCheckpoint.FILENAME);
+        ResumeCheckpoint resumed = ResumeCheckpoint.read(file);
+        assertEquals(3, resumed.epoch);
+        assertEquals(40, resumed.minibatchIndex);
+        assertEquals(12345, resumed.numExamplesUsed);
+        assertEquals(77, resumed.randomSeed);
+        assertEquals("2", resumed.properties.getProperty("notImproved"));
+        ComputationGraph model = ResumeCheckpoint.readModel(file);
+        assertEquals(graph.params(), model.params());
+        assertNotNull(model.getUpdater());
+        assertEquals("resume", checkpoints.completed().get(0).prefix);
+    }
+
+    private static ComputationGraph graph() {
+        ComputationGraphConfiguration configuration = new NeuralNetConfiguration.Builder()
+                .seed(3)
+                .learningRate(0.1)
+                .graphBuilder()
+                .addInputs("input")
+                .addLayer("label", new OutputLayer.Builder(LossFunctions.LossFunction.MCXENT)
+                        .nIn(DigitsDomainDescriptor.RECORD_LENGTH * DigitsDomainDescriptor.NUM_VALUES)
+                        .nOut(DigitsDomainDescriptor.NUM_VALUES)
+                        .activation("softmax").build(), "input")
+                .setOutputs("label")
+                .build();
+        ComputationGraph graph = new ComputationGraph(configuration);
+        graph.init();
+        return graph;
+    }
+}
@@ -0,0 +1,74 @@
+package org.campagnelab.dl.framework.performance;
+
+import it.unimi.dsi.logging.ProgressLogger;
+import org.campagnelab.dl.framework.domains.DigitsDomainDescriptor;
+import org.campagnelab.dl.framework.iterators.MultiDataSetIteratorAdapter;
+import org.campagnelab.dl.framework.training.SequentialTrainer;
+import org.deeplearning4j.nn.conf.ComputationGraphConfiguration;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.layers.OutputLayer;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.junit.Test;
+import org.nd4j.linalg.lossfunctions.LossFunctions;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a model validated in the background is a snapshot of the model when submitted.
+ */
+public class ModelValidatorTest {
+
+    @Test
+    public void backgroundValidationScoresSnapshot() throws IOException {
+        DigitsDomainDescriptor domain = new DigitsDomainDescriptor(320, 17);
+        MultiDataSetIteratorAdapter<String> validationSet = adapter(domain);
+        ModelValidator validator = new ModelValidator(domain.performanceDescritor(), validationSet, 320);
+        ComputationGraph graph = graph();
+        try {
+            validator.submit(graph, 3, 1000, 0.5);
+            assertTrue(validator.isPending());
+            // train the model while the snapshot is validated:
+            new SequentialTrainer().train(graph, adapter(domain), new ProgressLogger());
+            ModelValidator.Validation background = validator.take();
+            assertFalse(validator.isPending());
+            assertEquals(3, background.epoch);
+            assertEquals(1000, background.numExamplesUsed);
+            assertEquals(0.5, background.trainingScore, 0);
+
+            ModelValidator.Validation snapshot = validator.validate(background.graph, 3, 1000, 0.5);
+            assertArrayEquals(snapshot.metricValues, background.metricValues, 0);
+            ModelValidator.Validation trained = validator.validate(graph, 4, 1320, 0.4);
+            assertNotEquals(background.metricValues[0], trained.metricValues[0], 0);
+        } finally {
+            validator.shutdown();
+        }
+    }
+
+    private static MultiDataSetIteratorAdapter<String> adapter(DigitsDomainDescriptor domain) throws IOException {
+        return new MultiDataSetIteratorAdapter<String>(domain.getRecords(), 32, domain) {
+            @Override
+            public String getBasename() {
+                return "digits";
+            }
+        };
+    }
+
+    private static ComputationGraph graph() {
+        ComputationGraphConfiguration configuration = new NeuralNetConfiguration.Builder()
+                .seed(3)
+                .learningRate(0.1)
+                .graphBuilder()
+                .addInputs("input")
+                .addLayer("label", new OutputLayer.Builder(LossFunctions.LossFunction.MCXENT)
+                        .nIn(DigitsDomainDescriptor.RECORD_LENGTH * DigitsDomainDescriptor.NUM_VALUES)
+                        .nOut(DigitsDomainDescriptor.NUM_VALUES)
+                        .activation("softmax").build(), "input")
+                .setOutputs("label")
+                .build();
+        ComputationGraph graph = new ComputationGraph(configuration);
+        graph.init();
+        return graph;
+    }
+}
@@ -0,0 +1,166 @@
+package org.campagnelab.dl.framework.tools;
+
+import org.apache.commons.io.FileUtils;
+import org.campagnelab.dl.framework.domains.DigitsDomainDescriptor;
+import org.campagnelab.dl.framework.domains.DomainDescriptor;
+import org.campagnelab.dl.framework.iterators.MultiDataSetIteratorAdapter;
+import org.campagnelab.dl.framework.iterators.MultiDatasetMappedFeaturesIterator;
+import org.campagnelab.dl.framework.iterators.MultiDatasetMemoryMappedFeaturesIterator;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that caches built with several mapping threads are identical to caches built with one thread, that
+ * compressed caches are read back transparently, and that caches are extended in place, or restored when the
+ * extension fails.
+ */
+public class MapMultiDatasetFeaturesTest {
+
+    @Test
+    public void parallelCacheIsIdentical() throws IOException {
+        for (boolean normalizedValues : new boolean[]{false, true}) {
+            String directory = Files.createTempDirectory("map-features").toFile().getAbsolutePath();
+            String sequential = buildCache(new DigitsDomainDescriptor(1003, 23, normalizedValues),
+                    directory + "/sequential", 1);
+            String parallel = buildCache(new DigitsDomainDescriptor(1003, 23, normalizedValues),
+                    directory + "/parallel", 4);
+            byte[] expected = FileUtils.readFileToByteArray(new File(sequential + ".cf"));
+            assertTrue(expected.length > 0);
+            assertArrayEquals(expected, FileUtils.readFileToByteArray(new File(parallel + ".cf")));
+            assertArrayEquals(FileUtils.readFileToByteArray(new File(sequential + ".cfi")),
+                    FileUtils.readFileToByteArray(new File(parallel + ".cfi")));
+        }
+    }
+
+    @Test
+    public void compressedCachesReadBack() throws IOException {
+        DigitsDomainDescriptor domain = new DigitsDomainDescriptor(1003, 29);
+        String directory = Files.createTempDirectory("map-features").toFile().getAbsolutePath();
+        String plain = buildCache(domain, directory + "/plain", 2);
+        for (String codec : new String[]{"deflate", "lz"}) {
+            String compressed = buildCache(domain, directory + "/" + codec, 2, codec);
+            assertTrue(codec, new File(compressed + ".cf").length() < new File(plain + ".cf").length());
+            assertSameDatasets(new MultiDatasetMemoryMappedFeaturesIterator(plain),
+                    new MultiDatasetMemoryMappedFeaturesIterator(compressed));
+            MultiDatasetMappedFeaturesIterator streamed = new MultiDatasetMappedFeaturesIterator(compressed);
+            assertSameDatasets(new MultiDatasetMappedFeaturesIterator(plain), streamed);
+            streamed.reset();
+            assertSameDatasets(new MultiDatasetMappedFeaturesIterator(plain), streamed);
+        }
+    }
+
+    @Test
+    public void sparseCachesReadBack() throws IOException {
+        DigitsDomainDescriptor domain = new DigitsDomainDescriptor(1003, 31);
+        String directory = Files.createTempDirectory("map-features").toFile().getAbsolutePath();
+        String dense = buildCache(domain, directory + "/dense", 1);
+        String sparse = buildCache(domain, directory + "/sparse", 2, "none", true);
+        assertTrue(new File(sparse + ".cf").length() < new File(dense + ".cf").length());
+        assertSameDatasets(new MultiDatasetMemoryMappedFeaturesIterator(dense),
+                new MultiDatasetMemoryMappedFeaturesIterator(sparse));
+        assertSameDatasets(new MultiDatasetMappedFeaturesIterator(dense),
+                new MultiDatasetMappedFeaturesIterator(buildCache(domain, directory + "/sparse-lz", 1, "lz", true)));
+    }
+
+    @Test
+    public void extensionIsNotWrittenInPlace() throws IOException {
+        DigitsDomainDescriptor small = new DigitsDomainDescriptor(100, 37);
+        DigitsDomainDescriptor large = new DigitsDomainDescriptor(203, 37);
+        String basename = Files.createTempDirectory("map-features").toFile().getAbsolutePath() + "/digits";
+        buildCache(small, basename, 1);
+        byte[] before = FileUtils.readFileToByteArray(new File(basename + ".cf"));
+        try {
+            buildCache(large, large.getRecords(), basename, basename);
+            fail("A cache must not be extended in place.");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertArrayEquals(before, FileUtils.readFileToByteArray(new File(basename + ".cf")));
+    }
+
+    private void assertSameDatasets(MultiDataSetIterator expected, MultiDataSetIterator actual) {
+        int n = 0;
+        while (expected.hasNext()) {
+            assertTrue(actual.hasNext());
+            MultiDataSet e = expected.next();
+            MultiDataSet a = actual.next();
+            assertEquals(e.getFeatures(0), a.getFeatures(0));
+            assertEquals(e.getLabels(0), a.getLabels(0));
+            n++;
+        }
+        assertFalse(actual.hasNext());
+        assertEquals(32, n);
+    }
+
+    public static String buildCache(DigitsDomainDescriptor domain, String basename, int numThreads) throws IOException {
+        return buildCache(domain, basename, numThreads, "none");
+    }
+
+    public static String buildCache(DigitsDomainDescriptor domain, String basename, int numThreads, String codec)
+            throws IOException {
+        return buildCache(domain, basename, numThreads, codec, false);
+    }
+
+    /**
+     * Build a cache from the given records, extending the cache extendBasename.
+     */
+    private static String buildCache(DigitsDomainDescriptor domain, List<String> records, String basename,
+                                     String extendBasename) throws IOException {
+        MapMultiDatasetFeatures<String> tool = new MapMultiDatasetFeatures<String>() {
+            @Override
+            protected DomainDescriptor<String> domainDescriptor() {
+                return domain;
+            }
+        };
+        MapMultiDatasetFeaturesArguments<String> arguments = new MapMultiDatasetFeaturesArguments<>();
+        arguments.adapter = new MultiDataSetIteratorAdapter<String>(records, 32, domain) {
+            @Override
+            public String getBasename() {
+                return "digits";
+            }
+        };
+        arguments.outputBasename = basename;
+        arguments.extendBasename = extendBasename;
+        arguments.domainDescriptor = domain;
+        arguments.miniBatchSize = 32;
+        tool.setArguments(arguments);
+        tool.execute();
+        return basename;
+    }
+
+    public static String buildCache(DigitsDomainDescriptor domain, String basename, int numThreads, String codec,
+                             boolean sparse) throws IOException {
+        MapMultiDatasetFeatures<String> tool = new MapMultiDatasetFeatures<String>() {
+            @Override
+            protected DomainDescriptor<String> domainDescriptor() {
+                return domain;
+            }
+        };
+        MapMultiDatasetFeaturesArguments<String> arguments = new MapMultiDatasetFeaturesArguments<>();
+        arguments.adapter = new MultiDataSetIteratorAdapter<String>(domain.getRecords(), 32, domain) {
+            @Override
+            public String getBasename() {
+                return "digits";
+            }
+        };
+        arguments.outputBasename = basename;
+        arguments.domainDescriptor = domain;
+        arguments.miniBatchSize = 32;
+        arguments.numThreads = numThreads;
+        arguments.codec = codec;
+        arguments.sparse = sparse;
+        tool.setArguments(arguments);
+        tool.execute();
+        return basename;
+    }
+}
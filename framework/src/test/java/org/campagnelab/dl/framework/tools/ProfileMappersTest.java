@@ -0,0 +1,43 @@
+package org.campagnelab.dl.framework.tools;
+
+import org.apache.commons.io.FileUtils;
+import org.campagnelab.dl.framework.domains.DigitsDomainDescriptor;
+import org.campagnelab.dl.framework.domains.DomainDescriptor;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the profile has one row per leaf mapper, plus the other and total rows.
+ */
+public class ProfileMappersTest {
+
+    @Test
+    public void profileHasOneRowPerLeaf() throws IOException {
+        File output = File.createTempFile("mapper-profile", ".tsv");
+        ProfileMappers<String> tool = new ProfileMappers<String>() {
+            @Override
+            protected DomainDescriptor<String> domainDescriptor() {
+                return new DigitsDomainDescriptor(300, 7);
+            }
+        };
+        tool.arguments = tool.createArguments();
+        tool.args().datasets = Collections.singletonList("digits");
+        tool.args().numWarmupRecords = 100;
+        tool.args().numRecords = 200;
+        tool.args().outputFilename = output.getAbsolutePath();
+        tool.execute();
+
+        List<String> lines = FileUtils.readLines(output, StandardCharsets.UTF_8);
+        assertEquals(1 + DigitsDomainDescriptor.RECORD_LENGTH + 2, lines.size());
+        assertTrue(lines.get(1).contains("OneHotBaseFeatureMapper"));
+        assertTrue(lines.get(lines.size() - 1).startsWith("total\t"));
+        assertTrue(lines.get(lines.size() - 1).endsWith("100.00"));
+    }
+}
@@ -0,0 +1,75 @@
+package org.campagnelab.dl.framework.training;
+
+import it.unimi.dsi.logging.ProgressLogger;
+import org.campagnelab.dl.framework.domains.DigitsDomainDescriptor;
+import org.campagnelab.dl.framework.iterators.MultiDataSetIteratorAdapter;
+import org.deeplearning4j.nn.conf.ComputationGraphConfiguration;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.layers.OutputLayer;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.lossfunctions.LossFunctions;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the hard example pool keeps examples with a large loss, and that hard examples are added to the
+ * minibatches without being counted as examples used.
+ */
+public class HardExampleTrainerTest {
+
+    @Test
+    public void poolKeepsLargeLosses() {
+        HardExamplePool pool = new HardExamplePool(16, 1);
+        for (int i = 0; i < 1000; i++) {
+            pool.offer(new HardExamplePool.HardExample(i, null, null, null, null));
+        }
+        assertEquals(16, pool.size());
+        List<HardExamplePool.HardExample> taken = pool.take(32);
+        assertEquals(16, taken.size());
+        assertEquals(0, pool.size());
+        for (HardExamplePool.HardExample example : taken) {
+            assertTrue(example.loss >= 900);
+        }
+    }
+
+    @Test
+    public void addsHardExamples() throws IOException {
+        DigitsDomainDescriptor domain = new DigitsDomainDescriptor(640, 17);
+        MultiDataSetIteratorAdapter<String> adapter = new MultiDataSetIteratorAdapter<String>(domain.getRecords(),
+                32, domain) {
+            @Override
+            public String getBasename() {
+                return "digits";
+            }
+        };
+        ComputationGraph graph = graph();
+        INDArray initialParameters = graph.params().dup();
+        HardExampleTrainer trainer = new HardExampleTrainer(8, 64, 1);
+        assertEquals(640, trainer.train(graph, adapter, new ProgressLogger()));
+        assertNotEquals(initialParameters, graph.params());
+        assertTrue(trainer.getNumAdded() > 0);
+        assertTrue(trainer.getPool().size() <= 64);
+    }
+
+    private static ComputationGraph graph() {
+        ComputationGraphConfiguration configuration = new NeuralNetConfiguration.Builder()
+                .seed(3)
+                .learningRate(0.1)
+                .graphBuilder()
+                .addInputs("input")
+                .addLayer("label", new OutputLayer.Builder(LossFunctions.LossFunction.MCXENT)
+                        .nIn(DigitsDomainDescriptor.RECORD_LENGTH * DigitsDomainDescriptor.NUM_VALUES)
+                        .nOut(DigitsDomainDescriptor.NUM_VALUES)
+                        .activation("softmax").build(), "input")
+                .setOutputs("label")
+                .build();
+        ComputationGraph graph = new ComputationGraph(configuration);
+        graph.init();
+        return graph;
+    }
+}
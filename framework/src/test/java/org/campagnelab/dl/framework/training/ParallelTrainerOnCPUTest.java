@@ -0,0 +1,61 @@
+package org.campagnelab.dl.framework.training;
+
+import it.unimi.dsi.logging.ProgressLogger;
+import org.campagnelab.dl.framework.domains.DigitsDomainDescriptor;
+import org.campagnelab.dl.framework.iterators.MultiDataSetIteratorAdapter;
+import org.deeplearning4j.nn.conf.ComputationGraphConfiguration;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.layers.OutputLayer;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.lossfunctions.LossFunctions;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * Checks that the CPU data-parallel trainer trains on every minibatch of the iterator.
+ */
+public class ParallelTrainerOnCPUTest {
+
+    @Test
+    public void trainsOnAllExamples() throws IOException {
+        DigitsDomainDescriptor domain = new DigitsDomainDescriptor(640, 17);
+        MultiDataSetIteratorAdapter<String> adapter = new MultiDataSetIteratorAdapter<String>(domain.getRecords(),
+                32, domain) {
+            @Override
+            public String getBasename() {
+                return "digits";
+            }
+        };
+        ComputationGraph graph = graph();
+        INDArray initialParameters = graph.params().dup();
+        ParallelTrainerOnCPU trainer = new ParallelTrainerOnCPU(graph, 2, 1, 4, 1);
+        try {
+            assertEquals(640, trainer.train(graph, adapter, new ProgressLogger()));
+        } finally {
+            trainer.shutdown();
+        }
+        assertNotEquals(initialParameters, graph.params());
+    }
+
+    private static ComputationGraph graph() {
+        ComputationGraphConfiguration configuration = new NeuralNetConfiguration.Builder()
+                .seed(3)
+                .learningRate(0.1)
+                .graphBuilder()
+                .addInputs("input")
+                .addLayer("label", new OutputLayer.Builder(LossFunctions.LossFunction.MCXENT)
+                        .nIn(DigitsDomainDescriptor.RECORD_LENGTH * DigitsDomainDescriptor.NUM_VALUES)
+                        .nOut(DigitsDomainDescriptor.NUM_VALUES)
+                        .activation("softmax").build(), "input")
+                .setOutputs("label")
+                .build();
+        ComputationGraph graph = new ComputationGraph(configuration);
+        graph.init();
+        return graph;
+    }
+}
@@ -26,7 +26,6 @@ public class TrainModelG extends TrainModel<BaseInformationRecords.BaseInformati
             System.out.println("Please add exactly one training set to the args().");
             return;
         }
-        assert !tool.args().errorEnrichment : "This tool does not support error enrichment";
         tool.execute();
         tool.writeModelingConditions(tool.getRecordingArguments());
     }
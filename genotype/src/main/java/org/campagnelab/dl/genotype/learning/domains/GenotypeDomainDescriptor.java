@@ -8,6 +8,7 @@ import org.campagnelab.dl.framework.domains.prediction.PredictionInterpreter;
 import org.campagnelab.dl.framework.mappers.BooleanLabelMapper;
 import org.campagnelab.dl.framework.mappers.ConfigurableFeatureMapper;
 import org.campagnelab.dl.framework.mappers.FeatureMapper;
+import org.campagnelab.dl.framework.mappers.FusedFeatureMapper;
 import org.campagnelab.dl.framework.mappers.LabelMapper;
 import org.campagnelab.dl.framework.performance.PerformanceMetricDescriptor;
 import org.campagnelab.dl.genotype.learning.GenotypeTrainingArguments;
@@ -160,6 +161,19 @@ public class GenotypeDomainDescriptor extends DomainDescriptor<BaseInformationRe
         if (featureMappers.containsKey(inputName)) {
             return featureMappers.get(inputName);
         }
+        FeatureMapper result = newFeatureMapper(inputName);
+        featureMappers.put(inputName, result);
+        return result;
+    }
+
+    @Override
+    public boolean supportsParallelMapping() {
+        // mappers that normalize across records, e.g., GenotypeMapperV1, must map all the records in one thread:
+        return mapsRecordsIndependently();
+    }
+
+    @Override
+    public FeatureMapper newFeatureMapper(String inputName) {
         FeatureMapper result;
 
         if (isLSTMInput(inputName)) {
@@ -230,8 +244,8 @@ public class GenotypeDomainDescriptor extends DomainDescriptor<BaseInformationRe
                 throw new RuntimeException(e);
             }
         }
-        featureMappers.put(inputName, result);
-        return result;
+        // flatten nested concatenations, features are unchanged:
+        return FusedFeatureMapper.compile(result);
     }
 
     @Override
@@ -1,6 +1,8 @@
 package org.campagnelab.dl.genotype.mappers;
 
 import org.campagnelab.dl.framework.mappers.AbstractFeatureMapper1D;
+import org.campagnelab.dl.framework.mappers.DelegatingFeatureMapper;
+import org.campagnelab.dl.framework.mappers.FeatureMapper;
 import org.campagnelab.dl.framework.mappers.FeatureNameMapper;
 import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
 import org.nd4j.linalg.api.ndarray.INDArray;
@@ -8,7 +10,8 @@ import org.nd4j.linalg.api.ndarray.INDArray;
 /**
  * Created by fac2003 on 12/15/16.
  */
-public class CountReorderingMapper extends AbstractFeatureMapper1D<BaseInformationRecords.BaseInformationOrBuilder> {
+public class CountReorderingMapper extends AbstractFeatureMapper1D<BaseInformationRecords.BaseInformationOrBuilder>
+        implements DelegatingFeatureMapper<BaseInformationRecords.BaseInformationOrBuilder> {
     FeatureNameMapper<BaseInformationRecords.BaseInformationOrBuilder> delegate;
 
     public CountReorderingMapper(FeatureNameMapper<BaseInformationRecords.BaseInformationOrBuilder> delegate) {
@@ -31,7 +34,7 @@ public class CountReorderingMapper extends AbstractFeatureMapper1D<BaseInformati
     @Override
     public void prepareToNormalize(BaseInformationRecords.BaseInformationOrBuilder record, int indexOfRecord) {
 
-        sortedCountRecord = sortHelper.sort(record);
+        sortedCountRecord = sortHelper.sortShared(record);
         delegate.prepareToNormalize(sortedCountRecord, indexOfRecord);
     }
 
@@ -39,4 +42,19 @@ public class CountReorderingMapper extends AbstractFeatureMapper1D<BaseInformati
     public float produceFeature(BaseInformationRecords.BaseInformationOrBuilder record, int featureIndex) {
         return delegate.produceFeature(sortedCountRecord, featureIndex);
     }
+
+    @Override
+    public void mapFeatures(BaseInformationRecords.BaseInformationOrBuilder record, float[] inputs, int offset, int indexOfRecord) {
+        delegate.mapFeatures(sortedCountRecord, inputs, offset, indexOfRecord);
+    }
+
+    @Override
+    public FeatureMapper<BaseInformationRecords.BaseInformationOrBuilder> getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public void setDelegate(FeatureMapper<BaseInformationRecords.BaseInformationOrBuilder> delegate) {
+        this.delegate = (FeatureNameMapper<BaseInformationRecords.BaseInformationOrBuilder>) delegate;
+    }
 }
@@ -14,4 +14,10 @@ public abstract class GenotypeFeatureMapper extends NamingConcatFeatureMapper<Ba
     public boolean withCombinedLayerRef;
     public boolean hasIsVariantLabelMapper;
     public static int MAX_GENOTYPES = 3;
+
+    @Override
+    protected boolean mapsWithDelegates() {
+        // genotype mappers map through their own delegate:
+        return false;
+    }
 }
@@ -86,6 +86,11 @@ public class GenotypeMapperLSTM implements
         delegate.mapFeatures(cachedRecordIndelString, inputs, indexOfRecord);
     }
 
+    @Override
+    public void mapFeatures(BaseInformationRecords.BaseInformationOrBuilder record, float[] inputs, int offset, int indexOfRecord) {
+        delegate.mapFeatures(cachedRecordIndelString, inputs, offset, indexOfRecord);
+    }
+
     @Override
     public boolean hasMask() {
         return delegate.hasMask();
@@ -96,6 +101,11 @@ public class GenotypeMapperLSTM implements
         delegate.maskFeatures(cachedRecordIndelString, mask, indexOfRecord);
     }
 
+    @Override
+    public void maskFeatures(BaseInformationRecords.BaseInformationOrBuilder record, float[] mask, int offset, int indexOfRecord) {
+        delegate.maskFeatures(cachedRecordIndelString, mask, offset, indexOfRecord);
+    }
+
     @Override
     public boolean isMasked(BaseInformationRecords.BaseInformationOrBuilder record, int featureIndex) {
         return delegate.isMasked(cachedRecordIndelString, featureIndex);
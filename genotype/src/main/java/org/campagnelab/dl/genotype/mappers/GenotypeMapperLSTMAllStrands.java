@@ -8,6 +8,7 @@ import org.nd4j.linalg.api.ndarray.INDArray;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
 import java.util.Properties;
 
 /**
@@ -21,8 +22,9 @@ public class GenotypeMapperLSTMAllStrands implements
     private int indelSequenceLength;
     private MappedDimensions dim;
     private int maskLen;
-    private int[] indicesMapper = new int[]{0, 0, 0};
-    private int[] indicesMasker = new int[]{0, 0};
+    // features and mask of the record, filled by the bulk methods and copied to INDArrays in one assignment:
+    private float[] row;
+    private float[] maskRow;
 
     private Sample cachedSample = null;
     private static final int featuresPerSequence = 8;
@@ -69,13 +71,29 @@ public class GenotypeMapperLSTMAllStrands implements
 
     @Override
     public void mapFeatures(BaseInformationRecords.BaseInformation record, INDArray inputs, int indexOfRecord) {
-        indicesMapper[0] = indexOfRecord;
-        for (int i = 0; i < indelSequenceLength; i++) {
-            indicesMapper[2] = i;
-            for (int j = 0; j < featuresPerTimeStep; j++) {
-                indicesMapper[1] = j;
-                int featureIndex = i * featuresPerTimeStep + j;
-                inputs.putScalar(indicesMapper, produceFeature(record, featureIndex));
+        if (row == null || row.length != numberOfFeatures()) {
+            row = new float[numberOfFeatures()];
+        } else {
+            Arrays.fill(row, 0F);
+        }
+        mapFeatures(record, row, 0, indexOfRecord);
+        MappedRows.putRow(inputs, indexOfRecord, row, featuresPerTimeStep, indelSequenceLength);
+    }
+
+    /**
+     * Features are stored [featureIndex][timeStep]. Each time step has one non-zero feature per sequence: the base
+     * of the sequence, or the padding feature when the sequence is shorter than the longest sequence.
+     */
+    @Override
+    public void mapFeatures(BaseInformationRecords.BaseInformation record, float[] inputs, int offset, int indexOfRecord) {
+        for (int sequenceIndex = 0; sequenceIndex < sequencesPerIndel; sequenceIndex++) {
+            final String sequence = cachedSample.getSequence(sequenceIndex);
+            final int sequenceLength = Math.min(sequence.length(), maskLen);
+            final int firstFeature = sequenceIndex * featuresPerSequence;
+            for (int timeStepIndex = 0; timeStepIndex < maskLen; timeStepIndex++) {
+                final int featureInSequenceIndex = timeStepIndex < sequenceLength ?
+                        getIntegerOfBase(sequence, timeStepIndex) : featuresPerSequence - 2;
+                inputs[offset + (firstFeature + featureInSequenceIndex) * indelSequenceLength + timeStepIndex] = 1F;
             }
         }
     }
@@ -87,14 +105,19 @@ public class GenotypeMapperLSTMAllStrands implements
 
     @Override
     public void maskFeatures(BaseInformationRecords.BaseInformation record, INDArray mask, int indexOfRecord) {
-        indicesMasker[0] = indexOfRecord;
-        for (int i = 0; i < indelSequenceLength; i++) {
-            indicesMasker[1] = i;
-            for (int j = 0; j < featuresPerTimeStep; j++) {
-                int featureIndex = i * featuresPerTimeStep + j;
-                mask.putScalar(indicesMasker, isMasked(record, featureIndex) ? 1F : 0F);
-            }
+        if (maskRow == null || maskRow.length != indelSequenceLength) {
+            maskRow = new float[indelSequenceLength];
+        } else {
+            Arrays.fill(maskRow, 0F);
         }
+        maskFeatures(record, maskRow, 0, indexOfRecord);
+        MappedRows.putRow(mask, indexOfRecord, maskRow, indelSequenceLength);
+    }
+
+    @Override
+    public void maskFeatures(BaseInformationRecords.BaseInformation record, float[] mask, int offset, int indexOfRecord) {
+        // one mask value per time step:
+        Arrays.fill(mask, offset, offset + maskLen, 1F);
     }
 
     @Override
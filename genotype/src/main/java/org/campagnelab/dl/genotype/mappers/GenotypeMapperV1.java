@@ -1,5 +1,7 @@
 package org.campagnelab.dl.genotype.mappers;
 
+import org.campagnelab.dl.framework.mappers.FeatureMapper;
+import org.campagnelab.dl.framework.mappers.DelegatingFeatureMapper;
 import org.campagnelab.dl.framework.mappers.FeatureNameMapper;
 import org.campagnelab.dl.framework.mappers.MaxNormalizationMapper;
 import org.campagnelab.dl.somatic.mappers.DensityMapper;
@@ -14,8 +16,9 @@ import java.util.Properties;
 /**
  * This m
  */
-public class GenotypeMapperV1  extends GenotypeFeatureMapper{
-    private NamingConcatFeatureMapper<BaseInformationRecords.BaseInformationOrBuilder> delegate;
+public class GenotypeMapperV1  extends GenotypeFeatureMapper
+        implements DelegatingFeatureMapper<BaseInformationRecords.BaseInformationOrBuilder> {
+    private FeatureNameMapper<BaseInformationRecords.BaseInformationOrBuilder> delegate;
     //default sampleIndex is zero, adjustable with setter
     private int sampleIndex = 0;
 
@@ -55,16 +58,16 @@ public class GenotypeMapperV1  extends GenotypeFeatureMapper{
                         new InverseNormalizationMapper(
                                 new NamingConcatFeatureMapper<BaseInformationRecords.BaseInformationOrBuilder>(readIndexMappers)),
                         new GenomicContextMapper(sbiProperties),
-                        new DensityMapper("numVariationsInRead", 20, sbiProperties, baseInformationOrBuilder ->
-                                TraversalHelper.forSampleCounts(sampleIndex, baseInformationOrBuilder, BaseInformationRecords.CountInfo::getNumVariationsInReadsList)),
-                        new DensityMapper("readMappingQuality.forward", 10, sbiProperties, baseInformationOrBuilder ->
-                                TraversalHelper.forSampleCounts(sampleIndex, baseInformationOrBuilder, BaseInformationRecords.CountInfo::getReadMappingQualityForwardStrandList)),
-                        new DensityMapper("readMappingQuality.reverse", 10, sbiProperties, baseInformationOrBuilder ->
-                                TraversalHelper.forSampleCounts(sampleIndex, baseInformationOrBuilder, BaseInformationRecords.CountInfo::getReadMappingQualityReverseStrandList)),
-                        new DensityMapper("baseQuality.forward", 10, sbiProperties, baseInformationOrBuilder ->
-                                TraversalHelper.forSampleCounts(sampleIndex, baseInformationOrBuilder, BaseInformationRecords.CountInfo::getQualityScoresForwardStrandList)),
-                        new DensityMapper("baseQuality.reverse", 10, sbiProperties, baseInformationOrBuilder ->
-                                TraversalHelper.forSampleCounts(sampleIndex, baseInformationOrBuilder, BaseInformationRecords.CountInfo::getQualityScoresReverseStrandList))
+                        new DensityMapper("numVariationsInRead", 20, sbiProperties, (baseInformationOrBuilder, values) ->
+                                TraversalHelper.forSampleCounts(sampleIndex, baseInformationOrBuilder, BaseInformationRecords.CountInfo::getNumVariationsInReadsList, values)),
+                        new DensityMapper("readMappingQuality.forward", 10, sbiProperties, (baseInformationOrBuilder, values) ->
+                                TraversalHelper.forSampleCounts(sampleIndex, baseInformationOrBuilder, BaseInformationRecords.CountInfo::getReadMappingQualityForwardStrandList, values)),
+                        new DensityMapper("readMappingQuality.reverse", 10, sbiProperties, (baseInformationOrBuilder, values) ->
+                                TraversalHelper.forSampleCounts(sampleIndex, baseInformationOrBuilder, BaseInformationRecords.CountInfo::getReadMappingQualityReverseStrandList, values)),
+                        new DensityMapper("baseQuality.forward", 10, sbiProperties, (baseInformationOrBuilder, values) ->
+                                TraversalHelper.forSampleCounts(sampleIndex, baseInformationOrBuilder, BaseInformationRecords.CountInfo::getQualityScoresForwardStrandList, values)),
+                        new DensityMapper("baseQuality.reverse", 10, sbiProperties, (baseInformationOrBuilder, values) ->
+                                TraversalHelper.forSampleCounts(sampleIndex, baseInformationOrBuilder, BaseInformationRecords.CountInfo::getQualityScoresReverseStrandList, values))
                 )
         ;
         numFeatures = delegate.numberOfFeatures();
@@ -100,4 +103,18 @@ public class GenotypeMapperV1  extends GenotypeFeatureMapper{
         return delegate.produceFeature(record, featureIndex);
     }
 
+    @Override
+    public FeatureMapper<BaseInformationRecords.BaseInformationOrBuilder> getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public void setDelegate(FeatureMapper<BaseInformationRecords.BaseInformationOrBuilder> delegate) {
+        this.delegate = (FeatureNameMapper<BaseInformationRecords.BaseInformationOrBuilder>) delegate;
+    }
+
+    @Override
+    public void mapFeatures(BaseInformationRecords.BaseInformationOrBuilder record, float[] inputs, int offset, int indexOfRecord) {
+        delegate.mapFeatures(record, inputs, offset, indexOfRecord);
+    }
 }
@@ -1,5 +1,7 @@
 package org.campagnelab.dl.genotype.mappers;
 
+import org.campagnelab.dl.framework.mappers.FeatureMapper;
+import org.campagnelab.dl.framework.mappers.DelegatingFeatureMapper;
 import org.campagnelab.dl.framework.mappers.FeatureNameMapper;
 import org.campagnelab.dl.somatic.mappers.DensityMapper;
 import org.campagnelab.dl.somatic.mappers.GenomicContextMapper;
@@ -13,7 +15,8 @@ import java.util.Properties;
 /**
  * distinct alleles+inverse
  */
-public class GenotypeMapperV11 extends GenotypeMapperV9 {
+public class GenotypeMapperV11 extends GenotypeMapperV9
+        implements DelegatingFeatureMapper<BaseInformationRecords.BaseInformationOrBuilder> {
 
 
     private FeatureNameMapper<BaseInformationRecords.BaseInformationOrBuilder> delegate;
@@ -53,17 +56,17 @@ public class GenotypeMapperV11 extends GenotypeMapperV9 {
                     record -> record.getSamples(0).getCounts(constantGenotypeIndex).getToSequence().substring(0, 1));
             numVariationsInReadMappers[i] = new DensityMapper("numVariationsInRead",
                     40, sbiProperties,
-                    baseInformationOrBuilder ->
-                            TraversalHelper.forOneSampleGenotype(sampleIndex, constantGenotypeIndex, baseInformationOrBuilder, BaseInformationRecords.CountInfo::getNumVariationsInReadsList));
+                    (baseInformationOrBuilder, values) ->
+                            TraversalHelper.forOneSampleGenotype(sampleIndex, constantGenotypeIndex, baseInformationOrBuilder, BaseInformationRecords.CountInfo::getNumVariationsInReadsList, values));
             readMappingQualityMappers[i] = new DensityMapper("readMappingQuality.forward",
                     10, sbiProperties,
-                    baseInformationOrBuilder ->
+                    (baseInformationOrBuilder, values) ->
                             TraversalHelper.forOneSampleGenotype(sampleIndex, constantGenotypeIndex,
-                                    baseInformationOrBuilder, BaseInformationRecords.CountInfo::getReadMappingQualityForwardStrandList));
+                                    baseInformationOrBuilder, BaseInformationRecords.CountInfo::getReadMappingQualityForwardStrandList, values));
             baseQualityMappers[i] = new DensityMapper("baseQuality.forward",
                     10, sbiProperties,
-                    baseInformationOrBuilder ->
-                            TraversalHelper.forOneSampleGenotype(sampleIndex, constantGenotypeIndex, baseInformationOrBuilder, BaseInformationRecords.CountInfo::getQualityScoresForwardStrandList));
+                    (baseInformationOrBuilder, values) ->
+                            TraversalHelper.forOneSampleGenotype(sampleIndex, constantGenotypeIndex, baseInformationOrBuilder, BaseInformationRecords.CountInfo::getQualityScoresForwardStrandList, values));
 
             genotypeIndex++;
         }
@@ -76,13 +79,13 @@ public class GenotypeMapperV11 extends GenotypeMapperV9 {
 
             readMappingQualityMappers[i] = new DensityMapper("readMappingQuality.reverse",
                     10, sbiProperties,
-                    baseInformationOrBuilder ->
+                    (baseInformationOrBuilder, values) ->
                             TraversalHelper.forOneSampleGenotype(sampleIndex, constantGenotypeIndex,
-                                    baseInformationOrBuilder, BaseInformationRecords.CountInfo::getReadMappingQualityReverseStrandList));
+                                    baseInformationOrBuilder, BaseInformationRecords.CountInfo::getReadMappingQualityReverseStrandList, values));
             baseQualityMappers[i] = new DensityMapper("baseQuality.reverse",
                     10, sbiProperties,
-                    baseInformationOrBuilder ->
-                            TraversalHelper.forOneSampleGenotype(sampleIndex, constantGenotypeIndex, baseInformationOrBuilder, BaseInformationRecords.CountInfo::getQualityScoresReverseStrandList));
+                    (baseInformationOrBuilder, values) ->
+                            TraversalHelper.forOneSampleGenotype(sampleIndex, constantGenotypeIndex, baseInformationOrBuilder, BaseInformationRecords.CountInfo::getQualityScoresReverseStrandList, values));
 
             genotypeIndex++;
         }
@@ -135,4 +138,18 @@ public class GenotypeMapperV11 extends GenotypeMapperV9 {
         return delegate.produceFeature(record, featureIndex);
     }
 
+    @Override
+    public FeatureMapper<BaseInformationRecords.BaseInformationOrBuilder> getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public void setDelegate(FeatureMapper<BaseInformationRecords.BaseInformationOrBuilder> delegate) {
+        this.delegate = (FeatureNameMapper<BaseInformationRecords.BaseInformationOrBuilder>) delegate;
+    }
+
+    @Override
+    public void mapFeatures(BaseInformationRecords.BaseInformationOrBuilder record, float[] inputs, int offset, int indexOfRecord) {
+        delegate.mapFeatures(record, inputs, offset, indexOfRecord);
+    }
 }
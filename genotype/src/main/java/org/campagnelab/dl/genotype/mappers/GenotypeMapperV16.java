@@ -1,5 +1,7 @@
 package org.campagnelab.dl.genotype.mappers;
 
+import org.campagnelab.dl.framework.mappers.FeatureMapper;
+import org.campagnelab.dl.framework.mappers.DelegatingFeatureMapper;
 import org.campagnelab.dl.framework.mappers.FeatureNameMapper;
 import org.campagnelab.dl.somatic.mappers.BamFlagMapper;
 import org.campagnelab.dl.somatic.mappers.DensityMapper;
@@ -19,7 +21,8 @@ import java.util.stream.Stream;
  * distinct alleles+inverse+ reduced number of bins for quality scores, mapping qual. Adding
  * bins for numVariationsInRead, targetAlignedLength, queryAlignedLength,
  */
-public class GenotypeMapperV16 extends GenotypeMapperV11 {
+public class GenotypeMapperV16 extends GenotypeMapperV11
+        implements DelegatingFeatureMapper<BaseInformationRecords.BaseInformationOrBuilder> {
 
 
     private FeatureNameMapper<BaseInformationRecords.BaseInformationOrBuilder> delegate;
@@ -68,35 +71,35 @@ public class GenotypeMapperV16 extends GenotypeMapperV11 {
                     record -> record.getSamples(0).getCounts(constantGenotypeIndex).getToSequence().substring(0, 1));
             numVariationsInReadMappers[i] = new DensityMapper("numVariationsInRead",
                     10, sbiProperties,
-                    baseInformationOrBuilder ->
-                            TraversalHelper.forOneSampleGenotype(sampleIndex, constantGenotypeIndex, baseInformationOrBuilder, BaseInformationRecords.CountInfo::getNumVariationsInReadsList));
+                    (baseInformationOrBuilder, values) ->
+                            TraversalHelper.forOneSampleGenotype(sampleIndex, constantGenotypeIndex, baseInformationOrBuilder, BaseInformationRecords.CountInfo::getNumVariationsInReadsList, values));
 
             distancesToReadVariations[i] = new DensityMapper("distancesToReadVariations.forward","distancesToReadVariations.reverse",
                     10, sbiProperties,
-                    baseInformationOrBuilder ->
+                    (baseInformationOrBuilder, values) ->
                             TraversalHelper.forOneSampleGenotypeBothStrands(sampleIndex, constantGenotypeIndex, baseInformationOrBuilder,
                                     BaseInformationRecords.CountInfo::getDistancesToReadVariationsForwardStrandList,
-                                    BaseInformationRecords.CountInfo::getDistancesToReadVariationsReverseStrandList),
+                                    BaseInformationRecords.CountInfo::getDistancesToReadVariationsReverseStrandList, values),
                     distance  -> (float)(Math.log(distance)/Math.log(2)));
 
             readMappingQualityMappers[i] = new DensityMapper("readMappingQuality.forward",
                     10, sbiProperties,
-                    baseInformationOrBuilder ->
+                    (baseInformationOrBuilder, values) ->
                             TraversalHelper.forOneSampleGenotype(sampleIndex, constantGenotypeIndex,
-                                    baseInformationOrBuilder, BaseInformationRecords.CountInfo::getReadMappingQualityForwardStrandList));
+                                    baseInformationOrBuilder, BaseInformationRecords.CountInfo::getReadMappingQualityForwardStrandList, values));
             baseQualityMappers[i] = new DensityMapper("baseQuality.forward",
                     10, sbiProperties,
-                    baseInformationOrBuilder ->
-                            TraversalHelper.forOneSampleGenotype(sampleIndex, constantGenotypeIndex, baseInformationOrBuilder, BaseInformationRecords.CountInfo::getQualityScoresForwardStrandList));
+                    (baseInformationOrBuilder, values) ->
+                            TraversalHelper.forOneSampleGenotype(sampleIndex, constantGenotypeIndex, baseInformationOrBuilder, BaseInformationRecords.CountInfo::getQualityScoresForwardStrandList, values));
 
             targetAlignedLengthMappers[i] = new DensityMapper("targetAlignedLength",
                     10, sbiProperties,
-                    baseInformationOrBuilder ->
-                            TraversalHelper.forOneSampleGenotype(sampleIndex, constantGenotypeIndex, baseInformationOrBuilder, BaseInformationRecords.CountInfo::getTargetAlignedLengthsList));
+                    (baseInformationOrBuilder, values) ->
+                            TraversalHelper.forOneSampleGenotype(sampleIndex, constantGenotypeIndex, baseInformationOrBuilder, BaseInformationRecords.CountInfo::getTargetAlignedLengthsList, values));
             queryAlignedLengthMappers[i] = new DensityMapper("queryAlignedLength",
                     10, sbiProperties,
-                    baseInformationOrBuilder ->
-                            TraversalHelper.forOneSampleGenotype(sampleIndex, constantGenotypeIndex, baseInformationOrBuilder, BaseInformationRecords.CountInfo::getQueryAlignedLengthsList));
+                    (baseInformationOrBuilder, values) ->
+                            TraversalHelper.forOneSampleGenotype(sampleIndex, constantGenotypeIndex, baseInformationOrBuilder, BaseInformationRecords.CountInfo::getQueryAlignedLengthsList, values));
             bamFlagMappers[i] = new BamFlagMapper(sampleIndex,genotypeIndex);
             genotypeIndex++;
         }
@@ -109,13 +112,13 @@ public class GenotypeMapperV16 extends GenotypeMapperV11 {
 
             readMappingQualityMappers[i] = new DensityMapper("readMappingQuality.reverse",
                     10, sbiProperties,
-                    baseInformationOrBuilder ->
+                    (baseInformationOrBuilder, values) ->
                             TraversalHelper.forOneSampleGenotype(sampleIndex, constantGenotypeIndex,
-                                    baseInformationOrBuilder, BaseInformationRecords.CountInfo::getReadMappingQualityReverseStrandList));
+                                    baseInformationOrBuilder, BaseInformationRecords.CountInfo::getReadMappingQualityReverseStrandList, values));
             baseQualityMappers[i] = new DensityMapper("baseQuality.reverse",
                     10, sbiProperties,
-                    baseInformationOrBuilder ->
-                            TraversalHelper.forOneSampleGenotype(sampleIndex, constantGenotypeIndex, baseInformationOrBuilder, BaseInformationRecords.CountInfo::getQualityScoresReverseStrandList));
+                    (baseInformationOrBuilder, values) ->
+                            TraversalHelper.forOneSampleGenotype(sampleIndex, constantGenotypeIndex, baseInformationOrBuilder, BaseInformationRecords.CountInfo::getQualityScoresReverseStrandList, values));
             genotypeIndex++;
         }
         delegate =
@@ -134,8 +137,8 @@ public class GenotypeMapperV16 extends GenotypeMapperV11 {
                         /* NumVariationsInReads for counts not in the best 3: */
                         new DensityMapper("numVariationsInRead",
                                 10, sbiProperties,
-                                record -> TraversalHelper.forAllSampleCounts(record,
-                                        CountInfoOrBuilder::getNumVariationsInReadsList)),
+                                (record, values) -> TraversalHelper.forAllSampleCounts(record,
+                                        CountInfoOrBuilder::getNumVariationsInReadsList, values)),
 
                         new NamingConcatFeatureMapper<BaseInformationRecords.BaseInformationOrBuilder>(numVariationsInReadMappers),
                         new NamingConcatFeatureMapper<BaseInformationRecords.BaseInformationOrBuilder>(readMappingQualityMappers),
@@ -182,4 +185,18 @@ public class GenotypeMapperV16 extends GenotypeMapperV11 {
         return delegate.produceFeature(record, featureIndex);
     }
 
+    @Override
+    public FeatureMapper<BaseInformationRecords.BaseInformationOrBuilder> getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public void setDelegate(FeatureMapper<BaseInformationRecords.BaseInformationOrBuilder> delegate) {
+        this.delegate = (FeatureNameMapper<BaseInformationRecords.BaseInformationOrBuilder>) delegate;
+    }
+
+    @Override
+    public void mapFeatures(BaseInformationRecords.BaseInformationOrBuilder record, float[] inputs, int offset, int indexOfRecord) {
+        delegate.mapFeatures(record, inputs, offset, indexOfRecord);
+    }
 }
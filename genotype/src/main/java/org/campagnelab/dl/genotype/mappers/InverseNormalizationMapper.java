@@ -1,6 +1,8 @@
 package org.campagnelab.dl.genotype.mappers;
 
 import org.campagnelab.dl.framework.mappers.AbstractFeatureMapper1D;
+import org.campagnelab.dl.framework.mappers.DelegatingFeatureMapper;
+import org.campagnelab.dl.framework.mappers.FeatureMapper;
 import org.campagnelab.dl.framework.mappers.FeatureNameMapper;
 import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
 
@@ -10,7 +12,8 @@ import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
  * @author Remi Torracinta
  */
 
-public class InverseNormalizationMapper<RecordType> extends AbstractFeatureMapper1D<RecordType> {
+public class InverseNormalizationMapper<RecordType> extends AbstractFeatureMapper1D<RecordType>
+        implements DelegatingFeatureMapper<RecordType> {
 
     FeatureNameMapper<RecordType> delegate;
 
@@ -30,11 +33,30 @@ public class InverseNormalizationMapper<RecordType> extends AbstractFeatureMappe
         return normalize(produceFeatureInternal(record, featureIndex), 0);
     }
 
+    @Override
+    public void mapFeatures(RecordType record, float[] inputs, int offset, int indexOfRecord) {
+        delegate.mapFeatures(record, inputs, offset, indexOfRecord);
+        final int end = offset + numberOfFeatures();
+        for (int i = offset; i < end; i++) {
+            inputs[i] = normalize(inputs[i], 0);
+        }
+    }
+
     @Override
     public String getFeatureName(int featureIndex) {
         return delegate.getFeatureName(featureIndex);
     }
 
+    @Override
+    public FeatureMapper<RecordType> getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public void setDelegate(FeatureMapper<RecordType> delegate) {
+        this.delegate = (FeatureNameMapper<RecordType>) delegate;
+    }
+
 
     private float normalize(float value, float normalizationFactor) {
         if (value < 0){
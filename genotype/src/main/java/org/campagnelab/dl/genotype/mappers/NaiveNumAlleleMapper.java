@@ -51,7 +51,7 @@ public class NaiveNumAlleleMapper<T>
      //   System.out.println("num Alleles:" + numAlleles);
     }
 
-    private static final int[] indices = new int[]{0, 0};
+    private final int[] indices = new int[]{0, 0};
 
     @Override
     public void mapFeatures(BaseInformationRecords.BaseInformationOrBuilder record, INDArray inputs, int indexOfRecord) {
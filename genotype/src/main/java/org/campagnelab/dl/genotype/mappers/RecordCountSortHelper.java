@@ -1,33 +1,38 @@
 package org.campagnelab.dl.genotype.mappers;
 
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntComparator;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.campagnelab.dl.framework.mappers.RecordContext;
 import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 /**
- * Sort genotypes of a record by decreasing count.
+ * Sort genotypes of a record by decreasing count. The order of the counts is computed as a permutation of count
+ * indices, with a stable primitive sort. Counts are protobuf messages and cannot be modified, so the sorted record
+ * shares the CountInfo messages of the record, and only rebuilds the counts whose gobyGenotypeIndex must be set to
+ * their original index. When counts are already sorted, sort(BaseInformation) returns the record itself.
+ * Instances keep scratch arrays and are not thread-safe. The sortShared methods share the sorted record with the other
+ * mappers of the record being mapped, through its RecordContext.
  * Created by fac2003 on 12/15/16.
  */
 public class RecordCountSortHelper {
-
-
-    public BaseInformationRecords.BaseInformationOrBuilder sort(BaseInformationRecords.BaseInformationOrBuilder record) {
-        int originalGenotypeIndex = 0;
-        final List<BaseInformationRecords.CountInfo> countsList = record.getSamples(0).getCountsList();
-        List<BaseInformationRecords.CountInfo> counts = new ArrayList<>();
-        for (BaseInformationRecords.CountInfo count : countsList) {
-            counts.add(BaseInformationRecords.CountInfo.newBuilder()
-                    .mergeFrom(count)
-                    .setGobyGenotypeIndex(originalGenotypeIndex++)
-                    .build());
+    private int[] permutation = new int[0];
+    private int[] totals = new int[0];
+    private int numCounts;
+    private final ObjectArrayList<BaseInformationRecords.CountInfo> sortedCounts = new ObjectArrayList<>();
+    // decreasing total count. The sort is stable, counts with the same total keep their original order:
+    private final IntComparator byDecreasingCount = new AbstractIntComparator() {
+        @Override
+        public int compare(int a, int b) {
+            return Integer.compare(totals[b], totals[a]);
         }
+    };
 
-        Collections.sort(counts, (a, b) ->
-                (b.getGenotypeCountForwardStrand() + b.getGenotypeCountReverseStrand()) -
-                        (a.getGenotypeCountForwardStrand() + a.getGenotypeCountReverseStrand()));
-
+    public BaseInformationRecords.BaseInformationOrBuilder sort(BaseInformationRecords.BaseInformationOrBuilder record) {
+        final BaseInformationRecords.SampleInfo sample = sortedSample(record.getSamples(0));
         BaseInformationRecords.BaseInformation.Builder copyOfRecord = BaseInformationRecords.BaseInformation.newBuilder();
         copyOfRecord.setGenomicSequenceContext(record.getGenomicSequenceContext());
         copyOfRecord.setPosition(record.getPosition());
@@ -35,33 +40,99 @@ public class RecordCountSortHelper {
         copyOfRecord.setReferenceBase(record.getReferenceBase());
         copyOfRecord.setTrueGenotype(record.getTrueGenotype());
         copyOfRecord.setReferenceIndex(record.getReferenceIndex());
-        final BaseInformationRecords.SampleInfo.Builder builder = record.getSamples(0).toBuilder();
-        builder.clearCounts();
-        builder.addAllCounts(counts);
-        copyOfRecord.addSamples(builder);
+        copyOfRecord.addSamples(sample);
         return copyOfRecord.build();
     }
+
     public BaseInformationRecords.BaseInformation sort(BaseInformationRecords.BaseInformation record) {
-        int originalGenotypeIndex = 0;
-        final List<BaseInformationRecords.CountInfo> countsList = record.getSamples(0).getCountsList();
-        List<BaseInformationRecords.CountInfo> counts = new ArrayList<>();
-        for (BaseInformationRecords.CountInfo count : countsList) {
-            counts.add(BaseInformationRecords.CountInfo.newBuilder()
-                    .mergeFrom(count)
-                    .setGobyGenotypeIndex(originalGenotypeIndex++)
-                    .build());
+        final BaseInformationRecords.SampleInfo sample = record.getSamples(0);
+        final BaseInformationRecords.SampleInfo sortedSample = sortedSample(sample);
+        if (sortedSample == sample) {
+            return record;
         }
+        BaseInformationRecords.BaseInformation.Builder copyOfRecord = record.toBuilder();
+        copyOfRecord.setSamples(0, sortedSample);
+        return copyOfRecord.build();
+    }
 
-        Collections.sort(counts, (a, b) ->
-                (b.getGenotypeCountForwardStrand() + b.getGenotypeCountReverseStrand()) -
-                        (a.getGenotypeCountForwardStrand() + a.getGenotypeCountReverseStrand()));
+    private static final RecordContext.Slot<BaseInformationRecords.BaseInformation> SORTED_RECORD = RecordContext.newSlot();
+    private static final RecordContext.Slot<BaseInformationRecords.BaseInformationOrBuilder> SORTED_PROJECTION = RecordContext.newSlot();
 
+    /**
+     * Sort as sort(BaseInformationOrBuilder) does, or return the record that another mapper sorted for the record
+     * being mapped.
+     */
+    public BaseInformationRecords.BaseInformationOrBuilder sortShared(BaseInformationRecords.BaseInformationOrBuilder record) {
+        BaseInformationRecords.BaseInformationOrBuilder sorted = RecordContext.get(record, SORTED_PROJECTION);
+        if (sorted == null) {
+            sorted = sort(record);
+            RecordContext.put(record, SORTED_PROJECTION, sorted);
+        }
+        return sorted;
+    }
 
-        final BaseInformationRecords.SampleInfo.Builder builder = record.getSamples(0).toBuilder();
+    /**
+     * Sort as sort(BaseInformation) does, or return the record that another mapper sorted for the record being
+     * mapped.
+     */
+    public BaseInformationRecords.BaseInformation sortShared(BaseInformationRecords.BaseInformation record) {
+        BaseInformationRecords.BaseInformation sorted = RecordContext.get(record, SORTED_RECORD);
+        if (sorted == null) {
+            sorted = sort(record);
+            RecordContext.put(record, SORTED_RECORD, sorted);
+        }
+        return sorted;
+    }
+
+    /**
+     * Return the index of a count in the record last sorted. Records returned by sortShared may have been sorted by
+     * another helper, use the gobyGenotypeIndex of their counts instead.
+     *
+     * @param sortedIndex index of the count in the sorted record.
+     * @return index of the count in the original record.
+     */
+    public int originalIndex(int sortedIndex) {
+        assert sortedIndex < numCounts : "index must be smaller than the number of counts in the record.";
+        return permutation[sortedIndex];
+    }
+
+    /**
+     * Sort the counts of a sample by decreasing count.
+     *
+     * @return sample when its counts are already sorted and have their original gobyGenotypeIndex, a new sample
+     * otherwise.
+     */
+    private BaseInformationRecords.SampleInfo sortedSample(BaseInformationRecords.SampleInfo sample) {
+        final List<BaseInformationRecords.CountInfo> counts = sample.getCountsList();
+        numCounts = counts.size();
+        if (permutation.length < numCounts) {
+            permutation = new int[numCounts];
+            totals = new int[numCounts];
+        }
+        for (int i = 0; i < numCounts; i++) {
+            final BaseInformationRecords.CountInfo count = counts.get(i);
+            permutation[i] = i;
+            totals[i] = count.getGenotypeCountForwardStrand() + count.getGenotypeCountReverseStrand();
+        }
+        IntArrays.mergeSort(permutation, 0, numCounts, byDecreasingCount);
+        boolean unchanged = true;
+        sortedCounts.clear();
+        for (int i = 0; i < numCounts; i++) {
+            final int originalIndex = permutation[i];
+            BaseInformationRecords.CountInfo count = counts.get(originalIndex);
+            if (!count.hasGobyGenotypeIndex() || count.getGobyGenotypeIndex() != originalIndex) {
+                count = count.toBuilder().setGobyGenotypeIndex(originalIndex).build();
+                unchanged = false;
+            }
+            unchanged &= originalIndex == i;
+            sortedCounts.add(count);
+        }
+        if (unchanged) {
+            return sample;
+        }
+        final BaseInformationRecords.SampleInfo.Builder builder = sample.toBuilder();
         builder.clearCounts();
-        builder.addAllCounts(counts);
-        BaseInformationRecords.BaseInformation.Builder copyOfRecord = record.toBuilder();
-        copyOfRecord.setSamples(0,builder);
-        return copyOfRecord.build();
+        builder.addAllCounts(sortedCounts);
+        return builder.build();
     }
 }
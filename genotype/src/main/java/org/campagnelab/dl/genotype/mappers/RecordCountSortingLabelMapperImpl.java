@@ -24,7 +24,7 @@ public abstract class RecordCountSortingLabelMapperImpl extends NoMasksLabelMapp
         int sortedIndex = 0;
         indexPermutation = new int[record.getSamples(0).getCountsCount()];
         if (sortCounts) {
-            sortedCountRecord = sortHelper.sort(record);
+            sortedCountRecord = sortHelper.sortShared(record);
 
             for (BaseInformationRecords.CountInfo count : sortedCountRecord.getSamples(0).getCountsList()) {
                 indexPermutation[sortedIndex++] = count.getGobyGenotypeIndex();
@@ -0,0 +1,33 @@
+package org.campagnelab.dl.genotype.tools;
+
+import org.campagnelab.dl.framework.domains.DomainDescriptor;
+import org.campagnelab.dl.framework.tools.ProfileMappers;
+import org.campagnelab.dl.genotype.learning.domains.GenotypeDomainDescriptor;
+import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
+
+import java.util.Properties;
+
+/**
+ * Measure the time the feature mappers of a genotype model take to map records of an .sbi file.
+ *
+ * @author Fabien Campagne
+ */
+public class ProfileMappersG extends ProfileMappers<BaseInformationRecords.BaseInformation> {
+
+    public static void main(String[] args) {
+
+        ProfileMappersG tool = new ProfileMappersG();
+        tool.parseArguments(args, "ProfileMappersG", tool.createArguments());
+        tool.execute();
+    }
+
+    @Override
+    protected DomainDescriptor<BaseInformationRecords.BaseInformation> domainDescriptor() {
+        if (args().featureMapperClassname == null) {
+            return new GenotypeDomainDescriptor(args().modelPath);
+        }
+        Properties domainProperties = modelProperties("domain.properties");
+        domainProperties.put("input.featureMapper", args().featureMapperClassname);
+        return new GenotypeDomainDescriptor(domainProperties, modelProperties("config.properties"));
+    }
+}
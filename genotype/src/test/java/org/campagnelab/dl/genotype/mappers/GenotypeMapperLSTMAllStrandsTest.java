@@ -35,6 +35,33 @@ public class GenotypeMapperLSTMAllStrandsTest {
         }
     }
 
+    @Test
+    public void bulkFeaturesMatchProduceFeature() throws Exception {
+        GenotypeMapperLSTMAllStrands mapper = new GenotypeMapperLSTMAllStrands();
+        mapper.configure(new Properties());
+        MappedDimensions dim = mapper.dimensions();
+        final int featuresPerTimeStep = dim.numElements(1);
+        final int numTimeSteps = dim.numElements(2);
+        for (String record : records) {
+            final BaseInformationRecords.BaseInformation.Builder builder = BaseInformationRecords.BaseInformation.newBuilder();
+            TextFormat.getParser().merge(record, builder);
+            final BaseInformationRecords.BaseInformation recordObject = builder.build();
+            mapper.prepareToNormalize(recordObject, 0);
+            float[] inputs = new float[mapper.numberOfFeatures()];
+            float[] mask = new float[numTimeSteps];
+            mapper.mapFeatures(recordObject, inputs, 0, 0);
+            mapper.maskFeatures(recordObject, mask, 0, 0);
+            for (int t = 0; t < numTimeSteps; t++) {
+                final int timeStepFeature = t * featuresPerTimeStep;
+                assertEquals(mapper.isMasked(recordObject, timeStepFeature) ? 1F : 0F, mask[t], 0F);
+                for (int j = 0; j < featuresPerTimeStep; j++) {
+                    assertEquals(mapper.produceFeature(recordObject, timeStepFeature + j),
+                            inputs[j * numTimeSteps + t], 0F);
+                }
+            }
+        }
+    }
+
     String[] records = {"reference_index: 21\n" +
             "position: 45944850\n" +
             "mutated: false\n" +
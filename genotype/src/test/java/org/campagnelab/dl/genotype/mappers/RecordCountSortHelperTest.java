@@ -0,0 +1,101 @@
+package org.campagnelab.dl.genotype.mappers;
+
+import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks that sorting counts with a permutation gives the same records as copying and sorting the counts.
+ */
+public class RecordCountSortHelperTest {
+
+    @Test
+    public void sameRecordsAsCopySort() {
+        RecordCountSortHelper helper = new RecordCountSortHelper();
+        Random random = new Random(3);
+        for (int r = 0; r < 200; r++) {
+            BaseInformationRecords.BaseInformation record = randomRecord(random);
+            assertEquals(copySort(record, false), helper.sort(record));
+            assertEquals(copySort(record, true), helper.sort((BaseInformationRecords.BaseInformationOrBuilder) record));
+            final List<BaseInformationRecords.CountInfo> sorted = helper.sort(record).getSamples(0).getCountsList();
+            for (int i = 0; i < sorted.size(); i++) {
+                assertEquals(sorted.get(i).getGobyGenotypeIndex(), helper.originalIndex(i));
+            }
+        }
+    }
+
+    @Test
+    public void sortedRecordIsNotCopied() {
+        BaseInformationRecords.SampleInfo.Builder sample = BaseInformationRecords.SampleInfo.newBuilder();
+        for (int i = 0; i < 4; i++) {
+            sample.addCounts(BaseInformationRecords.CountInfo.newBuilder().setGobyGenotypeIndex(i)
+                    .setMatchesReference(i == 0).setFromSequence("A").setToSequence(Integer.toString(i))
+                    .setGenotypeCountForwardStrand(10 - i).setGenotypeCountReverseStrand(10 - i));
+        }
+        BaseInformationRecords.BaseInformation record = BaseInformationRecords.BaseInformation.newBuilder()
+                .setReferenceIndex(0).setPosition(12).addSamples(sample).build();
+        assertSame(record, new RecordCountSortHelper().sort(record));
+    }
+
+    /**
+     * Sorts counts the way RecordCountSortHelper did before it used a permutation.
+     *
+     * @param projected true to keep only the fields that sort(BaseInformationOrBuilder) copies.
+     */
+    private static BaseInformationRecords.BaseInformation copySort(BaseInformationRecords.BaseInformation record,
+                                                                   boolean projected) {
+        int originalGenotypeIndex = 0;
+        List<BaseInformationRecords.CountInfo> counts = new ArrayList<>();
+        for (BaseInformationRecords.CountInfo count : record.getSamples(0).getCountsList()) {
+            counts.add(BaseInformationRecords.CountInfo.newBuilder().mergeFrom(count)
+                    .setGobyGenotypeIndex(originalGenotypeIndex++).build());
+        }
+        Collections.sort(counts, (a, b) ->
+                (b.getGenotypeCountForwardStrand() + b.getGenotypeCountReverseStrand()) -
+                        (a.getGenotypeCountForwardStrand() + a.getGenotypeCountReverseStrand()));
+        final BaseInformationRecords.SampleInfo.Builder sample = record.getSamples(0).toBuilder().clearCounts()
+                .addAllCounts(counts);
+        if (!projected) {
+            return record.toBuilder().setSamples(0, sample).build();
+        }
+        BaseInformationRecords.BaseInformation.Builder copyOfRecord = BaseInformationRecords.BaseInformation.newBuilder();
+        copyOfRecord.setGenomicSequenceContext(record.getGenomicSequenceContext());
+        copyOfRecord.setPosition(record.getPosition());
+        copyOfRecord.setReferenceId(record.getReferenceId());
+        copyOfRecord.setReferenceBase(record.getReferenceBase());
+        copyOfRecord.setTrueGenotype(record.getTrueGenotype());
+        copyOfRecord.setReferenceIndex(record.getReferenceIndex());
+        copyOfRecord.addSamples(sample);
+        return copyOfRecord.build();
+    }
+
+    private static BaseInformationRecords.BaseInformation randomRecord(Random random) {
+        BaseInformationRecords.SampleInfo.Builder sample = BaseInformationRecords.SampleInfo.newBuilder();
+        sample.setIsVariant(random.nextBoolean());
+        final int numCounts = 1 + random.nextInt(8);
+        final boolean withGobyIndices = random.nextBoolean();
+        for (int i = 0; i < numCounts; i++) {
+            BaseInformationRecords.CountInfo.Builder count = BaseInformationRecords.CountInfo.newBuilder();
+            if (withGobyIndices) {
+                count.setGobyGenotypeIndex(i);
+            }
+            // few distinct values, so that many counts are tied:
+            sample.addCounts(count.setMatchesReference(i == 0).setFromSequence("A")
+                    .setToSequence(Integer.toString(i))
+                    .setGenotypeCountForwardStrand(random.nextInt(4))
+                    .setGenotypeCountReverseStrand(random.nextInt(4))
+                    .addQualityScoresForwardStrand(BaseInformationRecords.NumberWithFrequency.newBuilder()
+                            .setNumber(random.nextInt(40)).setFrequency(1)));
+        }
+        return BaseInformationRecords.BaseInformation.newBuilder().setReferenceIndex(1).setPosition(random.nextInt(1000))
+                .setReferenceBase("A").setGenomicSequenceContext("CCACC").setTrueGenotype("A/C")
+                .setMutated(random.nextBoolean()).addSamples(sample).build();
+    }
+}
@@ -6,6 +6,7 @@ import org.campagnelab.dl.framework.domains.DomainDescriptor;
 import org.campagnelab.dl.framework.domains.prediction.PredictionInterpreter;
 import org.campagnelab.dl.framework.mappers.ConfigurableFeatureMapper;
 import org.campagnelab.dl.framework.mappers.FeatureMapper;
+import org.campagnelab.dl.framework.mappers.FusedFeatureMapper;
 import org.campagnelab.dl.framework.mappers.LabelMapper;
 import org.campagnelab.dl.framework.performance.AUCHelper;
 import org.campagnelab.dl.framework.performance.PerformanceMetricDescriptor;
@@ -85,6 +86,19 @@ public class SomaticMutationDomainDescriptor extends DomainDescriptor<BaseInform
         if (cachedFeatureMappers.containsKey(inputName)) {
             return cachedFeatureMappers.get(inputName);
         }
+        FeatureMapper result = newFeatureMapper(inputName);
+        cachedFeatureMappers.put(inputName, result);
+        return result;
+    }
+
+    @Override
+    public boolean supportsParallelMapping() {
+        // mappers that normalize across records, e.g., GenotypeMapperV1, must map all the records in one thread:
+        return mapsRecordsIndependently();
+    }
+
+    @Override
+    public FeatureMapper newFeatureMapper(String inputName) {
         FeatureMapper result;
         if (args().featureMapperClassname != null) {
             assert "input".equals(inputName) : "Only one input supported by this domain.";
@@ -107,9 +121,8 @@ public class SomaticMutationDomainDescriptor extends DomainDescriptor<BaseInform
                 throw new RuntimeException(e);
             }
         }
-        cachedFeatureMappers.put(inputName, result);
-        return result;
-
+        // flatten nested concatenations, features are unchanged:
+        return FusedFeatureMapper.compile(result);
     }
 
 
@@ -19,7 +19,7 @@ public abstract class CategoryFeatureMapper implements FeatureMapper<BaseInforma
         this.maxCategoryIndex = maxCategoryIndex;
     }
 
-    private static final int[] indices = new int[]{0, 0};
+    private final int[] indices = new int[]{0, 0};
 
     @Override
     public int numberOfFeatures() {
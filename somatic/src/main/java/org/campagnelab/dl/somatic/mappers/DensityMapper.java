@@ -3,6 +3,9 @@ package org.campagnelab.dl.somatic.mappers;
 import org.campagnelab.dl.framework.mappers.FeatureNameMapper;
 import org.campagnelab.dl.framework.mappers.NoMaskFeatureMapper;
 import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
+import org.campagnelab.dl.somatic.mappers.functional.IntToFloatFunction;
+import org.campagnelab.dl.somatic.mappers.functional.NumberWithFrequencyBuffer;
+import org.campagnelab.dl.somatic.mappers.functional.NumberWithFrequencyCollector;
 import org.nd4j.linalg.api.ndarray.INDArray;
 
 import java.util.Arrays;
@@ -12,33 +15,71 @@ import java.util.function.Function;
 
 /**
  * Produces feature that represent a density of values for a given number of bins..
+ * The values of a record are collected in a reusable primitive buffer. The bin of each value between minValue and
+ * maxValue is computed once, when the mapper is constructed, so that valueFunction is not called for each record.
  * Created by fac2003 on 10/21/16.
  */
 public class DensityMapper extends NoMaskFeatureMapper<BaseInformationRecords.BaseInformationOrBuilder>
         implements FeatureNameMapper<BaseInformationRecords.BaseInformationOrBuilder> {
+    /**
+     * Largest number of values between minValue and maxValue for which bins are precomputed.
+     */
+    private static final int MAX_PRECOMPUTED_VALUES = 1 << 16;
+    /**
+     * Largest absolute value for which int values are exactly represented as float.
+     */
+    private static final int MAX_EXACT_FLOAT_INT = 1 << 24;
 
-    protected Function<BaseInformationRecords.BaseInformationOrBuilder, List<BaseInformationRecords.NumberWithFrequency>> recordToValues;
+    protected NumberWithFrequencyCollector<BaseInformationRecords.BaseInformationOrBuilder> recordToValues;
     protected int minValue=Integer.MAX_VALUE;
     protected int maxValue=Integer.MIN_VALUE;
     protected float binWidth;
     protected String name;
-    protected Function<Integer, Float> valueFunction;
+    protected IntToFloatFunction valueFunction;
     int numBins = 10;
     float[] bins;
-    protected int[] indices;
+    protected int[] indices = new int[]{0, 0};
+    protected final NumberWithFrequencyBuffer values = new NumberWithFrequencyBuffer();
+    // valueFunction.apply(minValue):
+    private float scaledMinValue;
+    // binOfValue[value-minValue] is the bin of value, or -1 when the value is ignored. null when not precomputed:
+    private int[] binOfValue;
+    // true when the bin of a value between minValue and maxValue is value-minValue:
+    private boolean unitBins;
 
     public DensityMapper(String name, int numBins, Properties sbiProperties,
                          Function<BaseInformationRecords.BaseInformationOrBuilder, List<BaseInformationRecords.NumberWithFrequency>> recordToValues
     ) {
-        this(name, numBins, sbiProperties, recordToValues, Integer::floatValue);
+        this(name, numBins, sbiProperties, recordToValues, IDENTITY);
     }
 
     public DensityMapper(String name1, String name2, int numBins, Properties sbiProperties,
                          Function<BaseInformationRecords.BaseInformationOrBuilder, List<BaseInformationRecords.NumberWithFrequency>> recordToValues
     ) {
-        this(name1, name2, numBins, sbiProperties, recordToValues, Integer::floatValue);
+        this(name1, name2, numBins, sbiProperties, recordToValues, IDENTITY);
     }
 
+    public DensityMapper(String name, int numBins, Properties sbiProperties,
+                         Function<BaseInformationRecords.BaseInformationOrBuilder, List<BaseInformationRecords.NumberWithFrequency>> recordToValues,
+                         IntToFloatFunction valueFunction) {
+        this(name, numBins, sbiProperties, collectorOf(recordToValues), valueFunction);
+    }
+
+    public DensityMapper(String name1, String name2, int numBins, Properties sbiProperties,
+                         Function<BaseInformationRecords.BaseInformationOrBuilder, List<BaseInformationRecords.NumberWithFrequency>> recordToValues,
+                         IntToFloatFunction valueFunction) {
+        this(name1, name2, numBins, sbiProperties, collectorOf(recordToValues), valueFunction);
+    }
+
+    public DensityMapper(String name, int numBins, Properties sbiProperties,
+                         NumberWithFrequencyCollector<BaseInformationRecords.BaseInformationOrBuilder> recordToValues) {
+        this(name, numBins, sbiProperties, recordToValues, IDENTITY);
+    }
+
+    public DensityMapper(String name1, String name2, int numBins, Properties sbiProperties,
+                         NumberWithFrequencyCollector<BaseInformationRecords.BaseInformationOrBuilder> recordToValues) {
+        this(name1, name2, numBins, sbiProperties, recordToValues, IDENTITY);
+    }
 
     /**
      * @param name
@@ -48,8 +89,8 @@ public class DensityMapper extends NoMaskFeatureMapper<BaseInformationRecords.Ba
      * @param valueFunction
      */
     public DensityMapper(String name, int numBins, Properties sbiProperties,
-                         Function<BaseInformationRecords.BaseInformationOrBuilder, List<BaseInformationRecords.NumberWithFrequency>> recordToValues,
-                         Function<Integer, Float> valueFunction) {
+                         NumberWithFrequencyCollector<BaseInformationRecords.BaseInformationOrBuilder> recordToValues,
+                         IntToFloatFunction valueFunction) {
         if (!propertiesPresent(sbiProperties, "stats." + name)) {
             throw new UnsupportedOperationException("The sbip file does not contain the statistics for " + name + " (stats." + name + ".min and stats." + name + ".max)");
         }
@@ -61,8 +102,8 @@ public class DensityMapper extends NoMaskFeatureMapper<BaseInformationRecords.Ba
 
     //handle case where there are two protobuf fields contributing to one map.
     public DensityMapper(String name1, String name2, int numBins, Properties sbiProperties,
-                         Function<BaseInformationRecords.BaseInformationOrBuilder, List<BaseInformationRecords.NumberWithFrequency>> recordToValues,
-                         Function<Integer, Float> valueFunction
+                         NumberWithFrequencyCollector<BaseInformationRecords.BaseInformationOrBuilder> recordToValues,
+                         IntToFloatFunction valueFunction
     ) {
 
         if (!propertiesPresent(sbiProperties, "stats." + name1)) {
@@ -85,10 +126,16 @@ public class DensityMapper extends NoMaskFeatureMapper<BaseInformationRecords.Ba
         constructorHelper(common.toString(),numBins,recordToValues,valueFunction);
     }
 
+    static final IntToFloatFunction IDENTITY = value -> value;
+
+    static NumberWithFrequencyCollector<BaseInformationRecords.BaseInformationOrBuilder> collectorOf(
+            Function<BaseInformationRecords.BaseInformationOrBuilder, List<BaseInformationRecords.NumberWithFrequency>> recordToValues) {
+        return (record, buffer) -> buffer.addAll(recordToValues.apply(record));
+    }
 
     protected void constructorHelper(String name, int numBins,
-                                   Function<BaseInformationRecords.BaseInformationOrBuilder, List<BaseInformationRecords.NumberWithFrequency>> recordToValues,
-                                   Function<Integer, Float> valueFunction){
+                                   NumberWithFrequencyCollector<BaseInformationRecords.BaseInformationOrBuilder> recordToValues,
+                                   IntToFloatFunction valueFunction){
         this.name = name;
         this.valueFunction = valueFunction;
         if (numBins == -1){
@@ -99,9 +146,55 @@ public class DensityMapper extends NoMaskFeatureMapper<BaseInformationRecords.Ba
         bins = new float[this.numBins];
         this.recordToValues = recordToValues;
         this.binWidth = (valueFunction.apply(maxValue) - valueFunction.apply(minValue) )/ this.numBins;
+        precomputeBins();
+    }
+
+    /**
+     * Compute the bin of the values between minValue and maxValue. Must be called when minValue, maxValue,
+     * valueFunction, binWidth or numBins change.
+     */
+    protected void precomputeBins() {
+        scaledMinValue = valueFunction.apply(minValue);
+        binOfValue = null;
+        unitBins = false;
+        final long numValues = (long) maxValue - minValue + 1;
+        if (numValues <= 0) {
+            return;
+        }
+        if (valueFunction == IDENTITY && binWidth == 1F && numValues < MAX_EXACT_FLOAT_INT &&
+                Math.abs(minValue) < MAX_EXACT_FLOAT_INT && Math.abs(maxValue) < MAX_EXACT_FLOAT_INT) {
+            // the float subtraction is exact, so the bin of a value is value-minValue:
+            unitBins = true;
+            return;
+        }
+        if (numValues <= MAX_PRECOMPUTED_VALUES) {
+            binOfValue = new int[(int) numValues];
+            for (int value = minValue; value <= maxValue; value++) {
+                binOfValue[value - minValue] = computeBin(value);
+            }
+        }
     }
 
+    /**
+     * @return the bin of value, or -1 when the value is outside of min-max.
+     */
+    private int computeBin(int value) {
+        int featureIndex = (int) ((valueFunction.apply(value) - scaledMinValue) / binWidth);
+        return featureIndex < 0 || featureIndex >= numBins ? -1 : featureIndex;
+    }
 
+    protected final int binOf(int value) {
+        if (value >= minValue && value <= maxValue) {
+            if (unitBins) {
+                final int featureIndex = value - minValue;
+                return featureIndex < numBins ? featureIndex : -1;
+            }
+            if (binOfValue != null) {
+                return binOfValue[value - minValue];
+            }
+        }
+        return computeBin(value);
+    }
 
     @Override
     public int numberOfFeatures() {
@@ -111,15 +204,18 @@ public class DensityMapper extends NoMaskFeatureMapper<BaseInformationRecords.Ba
     @Override
     public void prepareToNormalize(BaseInformationRecords.BaseInformationOrBuilder record, int indexOfRecord) {
         Arrays.fill(bins, 0);
-        List<BaseInformationRecords.NumberWithFrequency> listOfValues = recordToValues.apply(record);
+        values.clear();
+        recordToValues.collect(record, values);
         float numElements = 0;
-        for (BaseInformationRecords.NumberWithFrequency n : listOfValues) {
-            int featureIndex = (int) ((valueFunction.apply(n.getNumber()) - valueFunction.apply(minValue)) / binWidth);
-            if (featureIndex < 0 || featureIndex >= numBins) {
+        final int size = values.size();
+        for (int i = 0; i < size; i++) {
+            int featureIndex = binOf(values.number(i));
+            if (featureIndex < 0) {
                 //ignore points outside of min-max
             } else {
-                bins[featureIndex] += n.getFrequency();
-                numElements += n.getFrequency();
+                final int frequency = values.frequency(i);
+                bins[featureIndex] += frequency;
+                numElements += frequency;
             }
         }
         // normalize the counts to produce a density:
@@ -132,7 +228,7 @@ public class DensityMapper extends NoMaskFeatureMapper<BaseInformationRecords.Ba
 
     @Override
     public void mapFeatures(BaseInformationRecords.BaseInformationOrBuilder record, INDArray inputs, int indexOfRecord) {
-        mapFeatures(record, bins, 0, indexOfRecord);
+        indices[0] = indexOfRecord;
         for (int featureIndex = 0; featureIndex < numberOfFeatures(); featureIndex++) {
             indices[1] = featureIndex;
             inputs.putScalar(indices, bins[featureIndex]);
@@ -145,10 +241,7 @@ public class DensityMapper extends NoMaskFeatureMapper<BaseInformationRecords.Ba
     }
 
     public void mapFeatures(BaseInformationRecords.BaseInformationOrBuilder record, float[] inputs, int offset, int indexOfRecord) {
-        // do not copy if inputs is bins (call from mapFeatures above)
-        if (inputs != bins) {
-            System.arraycopy(bins, 0, inputs, offset, numBins);
-        }
+        System.arraycopy(bins, 0, inputs, offset, numBins);
     }
 
     @Override
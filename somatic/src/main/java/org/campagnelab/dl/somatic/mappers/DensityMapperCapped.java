@@ -1,5 +1,6 @@
 package org.campagnelab.dl.somatic.mappers;
 
+import org.campagnelab.dl.somatic.mappers.functional.NumberWithFrequencyCollector;
 import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
 
 import java.util.Arrays;
@@ -22,7 +23,14 @@ public class DensityMapperCapped extends DensityMapper {
                          Function<BaseInformationRecords.BaseInformationOrBuilder, List<BaseInformationRecords.NumberWithFrequency>> recordToValues
     ) {
 
-        super(name1, name2, 1, sbiProperties, recordToValues, Integer::floatValue);
+        this(name1, name2, linearBinMin, linearBinMax, sbiProperties, collectorOf(recordToValues));
+    }
+
+    public DensityMapperCapped(String name1, String name2, int linearBinMin, int linearBinMax, Properties sbiProperties,
+                               NumberWithFrequencyCollector<BaseInformationRecords.BaseInformationOrBuilder> recordToValues
+    ) {
+
+        super(name1, name2, 1, sbiProperties, recordToValues, IDENTITY);
         //now cap bins:
         this.numBins = linearBinMax - linearBinMin;
         this.linearBinMax = linearBinMax;
@@ -37,15 +45,18 @@ public class DensityMapperCapped extends DensityMapper {
 
     public void prepareToNormalize(BaseInformationRecords.BaseInformationOrBuilder record, int indexOfRecord) {
         Arrays.fill(bins, 0);
-        List<BaseInformationRecords.NumberWithFrequency> listOfValues = recordToValues.apply(record);
+        values.clear();
+        recordToValues.collect(record, values);
         float numElements = 0;
-        for (BaseInformationRecords.NumberWithFrequency n : listOfValues) {
-            int featureIndex = (int) ((valueFunction.apply(n.getNumber()) - linearBinMin));
+        final int size = values.size();
+        for (int i = 0; i < size; i++) {
+            int featureIndex = (int) ((valueFunction.apply(values.number(i)) - linearBinMin));
             //handle higher than linearMax case, lower than linearMin case
             if (featureIndex >= (numLinearBins) || featureIndex < 0) {
             } else {
-                bins[featureIndex] += n.getFrequency();
-                numElements += n.getFrequency();
+                final int frequency = values.frequency(i);
+                bins[featureIndex] += frequency;
+                numElements += frequency;
             }
         }
         // normalize the counts to produce a density:
@@ -3,19 +3,29 @@ package org.campagnelab.dl.somatic.mappers;
 import org.campagnelab.dl.framework.mappers.*;
 import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
 import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
 
+import java.util.Arrays;
 import java.util.Properties;
 import java.util.function.Function;
 
 /**
- * Maps the full genomic context using multiple onehotfeaturemapper
+ * Maps the full genomic context using multiple onehotfeaturemapper. When the context is read from the record
+ * (GenomicContextMapper(int)), the mapper produces the same features as one OneHotBaseFeatureMapper per position,
+ * but encodes the context once per record, and writes the one-hot columns of all positions in a single pass.
  * Created by rct66 on 10/25/16.
  */
 
 
 public class GenomicContextMapper extends NoMaskFeatureMapper<BaseInformationRecords.BaseInformationOrBuilder>
         implements FeatureMapper<BaseInformationRecords.BaseInformationOrBuilder>, FeatureNameMapper<BaseInformationRecords.BaseInformationOrBuilder> {
+    private static final int NUM_BASE_CODES = 6;
+    // null when the context of the record is encoded directly in codes:
     private ConcatFeatureMapper<BaseInformationRecords.BaseInformationOrBuilder> delegate;
+    private int contextSize;
+    // one-hot index of each base of the context of the current record:
+    private byte[] codes;
+    private float[] row;
 
     public GenomicContextMapper(Properties sbiProperties, int maxContextSize) {
 
@@ -34,12 +44,8 @@ public class GenomicContextMapper extends NoMaskFeatureMapper<BaseInformationRec
     }
 
     public GenomicContextMapper(int contextSize) {
-        OneHotBaseFeatureMapper<BaseInformationRecords.BaseInformationOrBuilder>[] refContext = new OneHotBaseFeatureMapper[contextSize];
-        for (int i = 0; i < contextSize; i++) {
-            refContext[i] = new OneHotBaseFeatureMapper<>(i,
-                    record -> trim(contextSize, record.getGenomicSequenceContext()));
-        }
-        delegate = new ConcatFeatureMapper<>(refContext);
+        this.contextSize = contextSize;
+        this.codes = new byte[contextSize];
     }
 
     /**
@@ -61,6 +67,20 @@ public class GenomicContextMapper extends NoMaskFeatureMapper<BaseInformationRec
         return result;
     }
 
+    /**
+     * Encode the bases of the context, centered on the base of interest, in codes.
+     */
+    private void encode(String context) {
+        if (context.length() < contextSize) {
+            // fails as trim does:
+            context = trim(contextSize, context);
+        }
+        final int clipLength = (context.length() - contextSize) / 2;
+        for (int i = 0; i < contextSize; i++) {
+            codes[i] = (byte) OneHotBaseFeatureMapper.codeOfBase(context.charAt(clipLength + i));
+        }
+    }
+
     public GenomicContextMapper(int contextSize, Function<BaseInformationRecords.BaseInformationOrBuilder, String> function) {
         OneHotBaseFeatureMapper<BaseInformationRecords.BaseInformationOrBuilder>[] refContext = new OneHotBaseFeatureMapper[contextSize];
         for (int i = 0; i < contextSize; i++) {
@@ -71,12 +91,19 @@ public class GenomicContextMapper extends NoMaskFeatureMapper<BaseInformationRec
 
     @Override
     public int numberOfFeatures() {
+        if (delegate == null) {
+            return contextSize * NUM_BASE_CODES;
+        }
         return delegate.numberOfFeatures();
 
     }
 
     @Override
     public void prepareToNormalize(BaseInformationRecords.BaseInformationOrBuilder record, int indexOfRecord) {
+        if (delegate == null) {
+            encode(record.getGenomicSequenceContext());
+            return;
+        }
         delegate.prepareToNormalize(record, indexOfRecord);
     }
 
@@ -84,11 +111,36 @@ public class GenomicContextMapper extends NoMaskFeatureMapper<BaseInformationRec
 
     @Override
     public void mapFeatures(BaseInformationRecords.BaseInformationOrBuilder record, INDArray inputs, int indexOfRecord) {
+        if (delegate == null) {
+            final int numFeatures = numberOfFeatures();
+            if (row == null) {
+                row = new float[numFeatures];
+            } else {
+                Arrays.fill(row, 0F);
+            }
+            mapFeatures(record, row, 0, indexOfRecord);
+            inputs.putRow(indexOfRecord, Nd4j.create(row, new int[]{1, numFeatures}));
+            return;
+        }
         delegate.mapFeatures(record, inputs, indexOfRecord);
     }
 
+    @Override
+    public void mapFeatures(BaseInformationRecords.BaseInformationOrBuilder record, float[] inputs, int offset, int indexOfRecord) {
+        if (delegate == null) {
+            for (int i = 0; i < contextSize; i++) {
+                inputs[offset + i * NUM_BASE_CODES + codes[i]] = 1F;
+            }
+            return;
+        }
+        delegate.mapFeatures(record, inputs, offset, indexOfRecord);
+    }
+
     @Override
     public float produceFeature(BaseInformationRecords.BaseInformationOrBuilder record, int featureIndex) {
+        if (delegate == null) {
+            return codes[featureIndex / NUM_BASE_CODES] == featureIndex % NUM_BASE_CODES ? 1F : 0F;
+        }
         return delegate.produceFeature(record, featureIndex);
     }
 
@@ -1,5 +1,6 @@
 package org.campagnelab.dl.somatic.mappers;
 
+import org.campagnelab.dl.framework.mappers.RecordContext;
 import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
 
 import java.util.ArrayList;
@@ -10,6 +11,28 @@ import java.util.List;
  * Created by fac2003 on 12/21/16.
  */
 public class MappingFunctions {
+    private static final RecordContext.Slot<Integer> TOTAL_COVERAGE = RecordContext.newSlot();
+
+    /**
+     * Sum the counts of all genotypes of all samples, on both strands. The sum is computed once for the record being
+     * mapped.
+     */
+    public static int totalCoverage(BaseInformationRecords.BaseInformationOrBuilder record) {
+        Integer coverage = RecordContext.get(record, TOTAL_COVERAGE);
+        if (coverage == null) {
+            int sumCounts = 0;
+            for (BaseInformationRecords.SampleInfo sampleInfo : record.getSamplesList()) {
+                for (BaseInformationRecords.CountInfo sampleCounts : sampleInfo.getCountsList()) {
+                    sumCounts += sampleCounts.getGenotypeCountForwardStrand();
+                    sumCounts += sampleCounts.getGenotypeCountReverseStrand();
+                }
+            }
+            coverage = sumCounts;
+            RecordContext.put(record, TOTAL_COVERAGE, coverage);
+        }
+        return coverage;
+    }
+
     public static String recordTo(final int contextLength, BaseInformationRecords.BaseInformationOrBuilder record, int countIndex) {
         final List<BaseInformationRecords.CountInfo> counts = record.getSamples(record.getSamplesCount() - 1).getCountsList();
         ArrayList<BaseInformationRecords.CountInfo> sorted = new ArrayList<>();
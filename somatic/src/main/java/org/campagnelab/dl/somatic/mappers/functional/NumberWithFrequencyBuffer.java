@@ -0,0 +1,50 @@
+package org.campagnelab.dl.somatic.mappers.functional;
+
+import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A reusable buffer of (number, frequency) pairs, stored in primitive arrays. Mappers keep one buffer and clear it
+ * for each record, instead of building a list of NumberWithFrequency messages.
+ */
+public class NumberWithFrequencyBuffer {
+    private int[] numbers = new int[16];
+    private int[] frequencies = new int[16];
+    private int size;
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int number(int index) {
+        return numbers[index];
+    }
+
+    public int frequency(int index) {
+        return frequencies[index];
+    }
+
+    public void add(int number, int frequency) {
+        if (size == numbers.length) {
+            numbers = Arrays.copyOf(numbers, size * 2);
+            frequencies = Arrays.copyOf(frequencies, size * 2);
+        }
+        numbers[size] = number;
+        frequencies[size] = frequency;
+        size++;
+    }
+
+    public void addAll(List<BaseInformationRecords.NumberWithFrequency> values) {
+        final int length = values.size();
+        for (int i = 0; i < length; i++) {
+            final BaseInformationRecords.NumberWithFrequency n = values.get(i);
+            add(n.getNumber(), n.getFrequency());
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package org.campagnelab.dl.somatic.mappers.functional;
+
+/**
+ * Collects the NumberWithFrequency values of a record into a buffer, without building a list of protobuf messages.
+ */
+@FunctionalInterface
+public interface NumberWithFrequencyCollector<RecordType> {
+    /**
+     * Append the values of the record to the buffer.
+     *
+     * @param record the record to collect values from.
+     * @param buffer the buffer to append values to. The buffer is cleared by the caller.
+     */
+    void collect(RecordType record, NumberWithFrequencyBuffer buffer);
+}
@@ -81,4 +81,73 @@ public class TraversalHelper {
         list.addAll(reverseFunction.apply(countInfo));
         return list;
     }
+
+    /**
+     * Append the NumberWithFrequency found across all samples and counts of these samples to a buffer.
+     * @param baseInformationOrBuilder
+     * @param function
+     * @param buffer
+     */
+    public static void forAllSampleCounts(BaseInformationRecords.BaseInformationOrBuilder baseInformationOrBuilder,
+                                          Function<BaseInformationRecords.CountInfo, List<BaseInformationRecords.NumberWithFrequency>> function,
+                                          NumberWithFrequencyBuffer buffer) {
+        final int numSamples = baseInformationOrBuilder.getSamplesCount();
+        for (int sampleIndex = 0; sampleIndex < numSamples; sampleIndex++) {
+            forSampleCounts(sampleIndex, baseInformationOrBuilder, function, buffer);
+        }
+    }
+
+    /**
+     * Append the NumberWithFrequency found across all counts of one sample to a buffer.
+     * @param sampleIndex
+     * @param baseInformationOrBuilder
+     * @param function
+     * @param buffer
+     */
+    public static void forSampleCounts(int sampleIndex, BaseInformationRecords.BaseInformationOrBuilder baseInformationOrBuilder,
+                                       Function<BaseInformationRecords.CountInfo, List<BaseInformationRecords.NumberWithFrequency>> function,
+                                       NumberWithFrequencyBuffer buffer) {
+        final BaseInformationRecords.SampleInfo sample = baseInformationOrBuilder.getSamples(sampleIndex);
+        final int numCounts = sample.getCountsCount();
+        for (int countIndex = 0; countIndex < numCounts; countIndex++) {
+            buffer.addAll(function.apply(sample.getCounts(countIndex)));
+        }
+    }
+
+    /**
+     * Append the NumberWithFrequency of one genotype of one sample to a buffer.
+     * @param sampleIndex
+     * @param genotypeIndex
+     * @param baseInformationOrBuilder
+     * @param function
+     * @param buffer
+     */
+    public static void forOneSampleGenotype(int sampleIndex,
+                                            int genotypeIndex,
+                                            BaseInformationRecords.BaseInformationOrBuilder baseInformationOrBuilder,
+                                            Function<BaseInformationRecords.CountInfo, List<BaseInformationRecords.NumberWithFrequency>> function,
+                                            NumberWithFrequencyBuffer buffer) {
+        buffer.addAll(function.apply(baseInformationOrBuilder.getSamples(sampleIndex).getCounts(genotypeIndex)));
+    }
+
+    /**
+     * Append the NumberWithFrequency of one genotype of one sample, on both strands, to a buffer. The buffer
+     * CAN contain repeat numbers.
+     * @param sampleIndex
+     * @param genotypeIndex
+     * @param baseInformationOrBuilder
+     * @param forwardFunction function to get NumberWithFrequency of forward strand
+     * @param reverseFunction function to get NumberWithFrequency of reverse strand
+     * @param buffer
+     */
+    public static void forOneSampleGenotypeBothStrands(int sampleIndex,
+                                                       int genotypeIndex,
+                                                       BaseInformationRecords.BaseInformationOrBuilder baseInformationOrBuilder,
+                                                       Function<BaseInformationRecords.CountInfo, List<BaseInformationRecords.NumberWithFrequency>> forwardFunction,
+                                                       Function<BaseInformationRecords.CountInfo, List<BaseInformationRecords.NumberWithFrequency>> reverseFunction,
+                                                       NumberWithFrequencyBuffer buffer) {
+        BaseInformationRecords.CountInfo countInfo = baseInformationOrBuilder.getSamples(sampleIndex).getCounts(genotypeIndex);
+        buffer.addAll(forwardFunction.apply(countInfo));
+        buffer.addAll(reverseFunction.apply(countInfo));
+    }
 }
@@ -0,0 +1,33 @@
+package org.campagnelab.dl.somatic.tools;
+
+import org.campagnelab.dl.framework.domains.DomainDescriptor;
+import org.campagnelab.dl.framework.tools.ProfileMappers;
+import org.campagnelab.dl.somatic.learning.domains.SomaticMutationDomainDescriptor;
+import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
+
+import java.util.Properties;
+
+/**
+ * Measure the time the feature mappers of a somatic model take to map records of an .sbi file.
+ *
+ * @author Fabien Campagne
+ */
+public class ProfileMappersS extends ProfileMappers<BaseInformationRecords.BaseInformation> {
+
+    public static void main(String[] args) {
+
+        ProfileMappersS tool = new ProfileMappersS();
+        tool.parseArguments(args, "ProfileMappersS", tool.createArguments());
+        tool.execute();
+    }
+
+    @Override
+    protected DomainDescriptor<BaseInformationRecords.BaseInformation> domainDescriptor() {
+        if (args().featureMapperClassname == null) {
+            return new SomaticMutationDomainDescriptor(args().modelPath);
+        }
+        Properties domainProperties = modelProperties("domain.properties");
+        domainProperties.put("input.featureMapper", args().featureMapperClassname);
+        return new SomaticMutationDomainDescriptor(domainProperties, modelProperties("config.properties"));
+    }
+}
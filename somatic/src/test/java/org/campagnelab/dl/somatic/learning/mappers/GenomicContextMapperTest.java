@@ -8,6 +8,8 @@ import org.junit.Test;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.factory.Nd4j;
 
+import java.util.Random;
+
 import static org.junit.Assert.assertEquals;
 
 /**
@@ -35,6 +37,43 @@ public class GenomicContextMapperTest {
         }
     }
 
+    @Test
+    public void sameFeaturesAsOneHotMappers() throws Exception {
+        final String bases = "ATCGNatcgnO-";
+        Random random = new Random(7);
+        for (int contextSize : new int[]{1, 11, 21}) {
+            GenomicContextMapper encoded = new GenomicContextMapper(contextSize);
+            GenomicContextMapper oneHot = new GenomicContextMapper(contextSize, record -> {
+                String context = record.getGenomicSequenceContext();
+                int clipLength = (context.length() - contextSize) / 2;
+                return context.substring(clipLength, clipLength + contextSize);
+            });
+            assertEquals(oneHot.numberOfFeatures(), encoded.numberOfFeatures());
+            final int numFeatures = oneHot.numberOfFeatures();
+            for (int r = 0; r < 50; r++) {
+                StringBuilder context = new StringBuilder();
+                for (int i = 0; i < 21 + random.nextInt(10); i++) {
+                    context.append(bases.charAt(random.nextInt(bases.length())));
+                }
+                BaseInformationRecords.BaseInformation record = BaseInformationRecords.BaseInformation.newBuilder()
+                        .setReferenceIndex(0).setPosition(r).setGenomicSequenceContext(context.toString()).build();
+                INDArray expected = Nd4j.zeros(2, numFeatures);
+                INDArray actual = Nd4j.zeros(2, numFeatures);
+                float[] bulk = new float[numFeatures + 3];
+                oneHot.prepareToNormalize(record, 1);
+                oneHot.mapFeatures(record, expected, 1);
+                encoded.prepareToNormalize(record, 1);
+                encoded.mapFeatures(record, actual, 1);
+                encoded.mapFeatures(record, bulk, 3, 1);
+                assertEquals(expected, actual);
+                for (int j = 0; j < numFeatures; j++) {
+                    assertEquals(expected.getFloat(1, j), encoded.produceFeature(record, j), 0f);
+                    assertEquals(expected.getFloat(1, j), bulk[3 + j], 0f);
+                }
+            }
+        }
+    }
+
     String[] records = {
                     "reference_index: 0\n" +
                             "position: 20913\n" +
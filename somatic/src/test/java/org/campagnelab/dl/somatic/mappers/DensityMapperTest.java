@@ -0,0 +1,101 @@
+package org.campagnelab.dl.somatic.mappers;
+
+import org.campagnelab.dl.somatic.mappers.functional.IntToFloatFunction;
+import org.campagnelab.dl.somatic.mappers.functional.TraversalHelper;
+import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that DensityMapper bins values as the boxed computation it replaced.
+ */
+public class DensityMapperTest {
+
+    @Test
+    public void sameDensitiesAsBoxedComputation() {
+        Properties properties = new Properties();
+        properties.setProperty("stats.insertSizes.min", "0");
+        properties.setProperty("stats.insertSizes.max", "500");
+        properties.setProperty("stats.baseQuality.forward.min", "0");
+        properties.setProperty("stats.baseQuality.forward.max", "40");
+        properties.setProperty("stats.queryPosition.min", "-20");
+        properties.setProperty("stats.queryPosition.max", "1000000");
+        Function<BaseInformationRecords.BaseInformationOrBuilder, List<BaseInformationRecords.NumberWithFrequency>> toList =
+                record -> TraversalHelper.forAllSampleCounts(record, BaseInformationRecords.CountInfo::getInsertSizesList);
+        IntToFloatFunction log = insertSize -> (float) Math.log10(insertSize);
+        Random random = new Random(5);
+        for (int r = 0; r < 100; r++) {
+            BaseInformationRecords.BaseInformation record = randomRecord(random);
+            assertSameDensities(new DensityMapper("insertSizes", 10, properties, toList), record, 0, 500, 10, Integer::floatValue);
+            assertSameDensities(new DensityMapper("insertSizes", 10, properties, (record1, values) ->
+                            TraversalHelper.forAllSampleCounts(record1, BaseInformationRecords.CountInfo::getInsertSizesList, values)),
+                    record, 0, 500, 10, Integer::floatValue);
+            assertSameDensities(new DensityMapper("insertSizes", 7, properties, toList, log), record, 0, 500, 7,
+                    insertSize -> (float) Math.log10(insertSize));
+            assertSameDensities(new DensityMapper("insertSizes", "baseQuality.forward", -1, properties, toList),
+                    record, 0, 500, 500, Integer::floatValue);
+            assertSameDensities(new DensityMapper("queryPosition", 13, properties, toList), record, -20, 1000000, 13,
+                    Integer::floatValue);
+        }
+    }
+
+    /**
+     * Assert that the mapper produces the densities of the boxed computation that DensityMapper used to perform.
+     */
+    private static void assertSameDensities(DensityMapper mapper, BaseInformationRecords.BaseInformation record,
+                                            int minValue, int maxValue, int numBins,
+                                            Function<Integer, Float> valueFunction) {
+        float[] expected = new float[numBins];
+        float binWidth = (valueFunction.apply(maxValue) - valueFunction.apply(minValue)) / numBins;
+        float numElements = 0;
+        for (BaseInformationRecords.NumberWithFrequency n :
+                TraversalHelper.forAllSampleCounts(record, BaseInformationRecords.CountInfo::getInsertSizesList)) {
+            int featureIndex = (int) ((valueFunction.apply(n.getNumber()) - valueFunction.apply(minValue)) / binWidth);
+            if (featureIndex >= 0 && featureIndex < numBins) {
+                expected[featureIndex] += n.getFrequency();
+                numElements += n.getFrequency();
+            }
+        }
+        if (numElements > 0) {
+            for (int featureIndex = 0; featureIndex < numBins; featureIndex++) {
+                expected[featureIndex] /= numElements;
+            }
+        }
+        assertEquals(numBins, mapper.numberOfFeatures());
+        mapper.prepareToNormalize(record, 0);
+        float[] bulk = new float[numBins];
+        mapper.mapFeatures(record, bulk, 0, 0);
+        for (int featureIndex = 0; featureIndex < numBins; featureIndex++) {
+            assertEquals(Float.floatToIntBits(expected[featureIndex]),
+                    Float.floatToIntBits(mapper.produceFeature(record, featureIndex)));
+            assertEquals(Float.floatToIntBits(expected[featureIndex]), Float.floatToIntBits(bulk[featureIndex]));
+        }
+    }
+
+    private static BaseInformationRecords.BaseInformation randomRecord(Random random) {
+        BaseInformationRecords.BaseInformation.Builder builder = BaseInformationRecords.BaseInformation.newBuilder()
+                .setReferenceIndex(0).setPosition(random.nextInt(1000));
+        for (int s = 0; s < 2; s++) {
+            BaseInformationRecords.SampleInfo.Builder sample = BaseInformationRecords.SampleInfo.newBuilder();
+            for (int c = 0; c < 3; c++) {
+                BaseInformationRecords.CountInfo.Builder count = BaseInformationRecords.CountInfo.newBuilder()
+                        .setMatchesReference(c == 0).setFromSequence("A").setToSequence("ACG".substring(c, c + 1))
+                        .setGenotypeCountForwardStrand(1).setGenotypeCountReverseStrand(1);
+                for (int k = 0; k < random.nextInt(6); k++) {
+                    // include values below and above the range of the statistics:
+                    count.addInsertSizes(BaseInformationRecords.NumberWithFrequency.newBuilder()
+                            .setNumber(random.nextInt(560) - 30).setFrequency(1 + random.nextInt(5)));
+                }
+                sample.addCounts(count);
+            }
+            builder.addSamples(sample);
+        }
+        return builder.build();
+    }
+}
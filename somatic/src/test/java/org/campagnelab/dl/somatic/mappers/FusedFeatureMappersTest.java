@@ -0,0 +1,169 @@
+package org.campagnelab.dl.somatic.mappers;
+
+import org.campagnelab.dl.framework.mappers.ConfigurableFeatureMapper;
+import org.campagnelab.dl.framework.mappers.FeatureMapper;
+import org.campagnelab.dl.framework.mappers.FusedFeatureMapper;
+import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that compiled FeatureMapperV* produce features bit-identical to the mappers as configured.
+ */
+public class FusedFeatureMappersTest {
+    private static final String[] BASES = {"A", "C", "G", "T", "N"};
+
+    @Test
+    public void compiledMappersProduceSameFeatures() throws Exception {
+        List<BaseInformationRecords.BaseInformation> records = new ArrayList<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 20; i++) {
+            records.add(randomRecord(random, 3));
+        }
+        int numChecked = 0;
+        for (int version = 1; version <= 30; version++) {
+            for (String className : new String[]{"org.campagnelab.dl.somatic.mappers.FeatureMapperV" + version,
+                    "org.campagnelab.dl.somatic.mappers.trio.FeatureMapperV" + version + "Trio"}) {
+                Class<?> type;
+                try {
+                    type = Class.forName(className);
+                } catch (ClassNotFoundException e) {
+                    continue;
+                }
+                FeatureMapper<BaseInformationRecords.BaseInformationOrBuilder> original = newMapper(type);
+                FeatureMapper<BaseInformationRecords.BaseInformationOrBuilder> compiled = FusedFeatureMapper.compile(newMapper(type));
+                assertSameFeatures(className, original, compiled, records);
+                numChecked++;
+            }
+        }
+        assertTrue("FeatureMapperV* classes must be found.", numChecked > 20);
+    }
+
+    /**
+     * Assert that two mappers produce bit-identical features, both in INDArrays and in primitive arrays.
+     */
+    private static <RecordType> void assertSameFeatures(String name, FeatureMapper<RecordType> original,
+                                                        FeatureMapper<RecordType> compiled, List<? extends RecordType> records) {
+        final int numFeatures = original.numberOfFeatures();
+        assertEquals(name, numFeatures, compiled.numberOfFeatures());
+        INDArray expected = Nd4j.zeros(records.size(), numFeatures);
+        INDArray actual = Nd4j.zeros(records.size(), numFeatures);
+        float[] bulk = new float[numFeatures];
+        for (int i = 0; i < records.size(); i++) {
+            final RecordType record = records.get(i);
+            original.prepareToNormalize(record, i);
+            original.mapFeatures(record, expected, i);
+            compiled.prepareToNormalize(record, i);
+            compiled.mapFeatures(record, actual, i);
+            // the bulk path expects a zeroed destination:
+            Arrays.fill(bulk, 0F);
+            compiled.mapFeatures(record, bulk, 0, i);
+            for (int j = 0; j < numFeatures; j++) {
+                final int bits = Float.floatToIntBits(expected.getFloat(i, j));
+                assertEquals(name + " feature " + j, bits, Float.floatToIntBits(actual.getFloat(i, j)));
+                assertEquals(name + " bulk feature " + j, bits, Float.floatToIntBits(bulk[j]));
+                assertEquals(name + " produceFeature " + j, bits,
+                        Float.floatToIntBits(compiled.produceFeature(record, j)));
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static FeatureMapper<BaseInformationRecords.BaseInformationOrBuilder> newMapper(Class<?> type) throws Exception {
+        FeatureMapper<BaseInformationRecords.BaseInformationOrBuilder> mapper =
+                (FeatureMapper<BaseInformationRecords.BaseInformationOrBuilder>) type.newInstance();
+        if (mapper instanceof ConfigurableFeatureMapper) {
+            ((ConfigurableFeatureMapper) mapper).configure(statsProperties());
+        }
+        return mapper;
+    }
+
+    /**
+     * @return properties that provide the statistics of an sbi file, for any statistic requested.
+     */
+    private static Properties statsProperties() {
+        return new Properties() {
+            @Override
+            public String getProperty(String key) {
+                if (key.equals("stats.genomicContextSize.min")) {
+                    return "21";
+                }
+                if (key.startsWith("stats.") && key.endsWith(".min")) {
+                    return "0";
+                }
+                if (key.startsWith("stats.") && key.endsWith(".max")) {
+                    return "100";
+                }
+                return super.getProperty(key);
+            }
+
+            @Override
+            public synchronized boolean containsKey(Object key) {
+                return getProperty(key.toString()) != null;
+            }
+        };
+    }
+
+    /**
+     * Generate a record with random counts and read statistics.
+     */
+    private static BaseInformationRecords.BaseInformation randomRecord(Random random, int numSamples) {
+        BaseInformationRecords.BaseInformation.Builder builder = BaseInformationRecords.BaseInformation.newBuilder();
+        final String referenceBase = BASES[random.nextInt(4)];
+        StringBuilder context = new StringBuilder();
+        for (int i = 0; i < 21; i++) {
+            context.append(i == 10 ? referenceBase : BASES[random.nextInt(BASES.length)]);
+        }
+        builder.setReferenceIndex(random.nextInt(20)).setPosition(random.nextInt(1000000))
+                .setReferenceBase(referenceBase).setGenomicSequenceContext(context.toString())
+                .setMutated(random.nextBoolean());
+        for (int s = 0; s < numSamples; s++) {
+            BaseInformationRecords.SampleInfo.Builder sample = BaseInformationRecords.SampleInfo.newBuilder();
+            sample.setIsTumor(s == 1).setIsVariant(random.nextBoolean());
+            for (int c = 0; c < BASES.length + 1; c++) {
+                final boolean indel = c == BASES.length;
+                final String to = indel ? referenceBase + "--" : BASES[c];
+                BaseInformationRecords.CountInfo.Builder count = BaseInformationRecords.CountInfo.newBuilder();
+                count.setFromSequence(indel ? referenceBase + "AG" : referenceBase).setToSequence(to)
+                        .setMatchesReference(to.equals(referenceBase)).setIsIndel(indel)
+                        .setIsCalled(random.nextBoolean()).setGobyGenotypeIndex(c)
+                        .setGenotypeCountForwardStrand(random.nextInt(30))
+                        .setGenotypeCountReverseStrand(random.nextInt(30));
+                for (int k = 0; k < 1 + random.nextInt(4); k++) {
+                    count.addQualityScoresForwardStrand(number(random, 45))
+                            .addQualityScoresReverseStrand(number(random, 45))
+                            .addReadIndicesForwardStrand(number(random, 150))
+                            .addReadIndicesReverseStrand(number(random, 150))
+                            .addReadMappingQualityForwardStrand(number(random, 60))
+                            .addReadMappingQualityReverseStrand(number(random, 60))
+                            .addNumVariationsInReads(number(random, 20))
+                            .addInsertSizes(number(random, 1000))
+                            .addTargetAlignedLengths(number(random, 150))
+                            .addQueryAlignedLengths(number(random, 150))
+                            .addQueryPositions(number(random, 150))
+                            .addPairFlags(number(random, 255))
+                            .addDistancesToReadVariationsForwardStrand(number(random, 100))
+                            .addDistancesToReadVariationsReverseStrand(number(random, 100));
+                }
+                sample.addCounts(count);
+            }
+            builder.addSamples(sample);
+        }
+        return builder.build();
+    }
+
+    private static BaseInformationRecords.NumberWithFrequency number(Random random, int maxNumber) {
+        return BaseInformationRecords.NumberWithFrequency.newBuilder().setNumber(random.nextInt(maxNumber))
+                .setFrequency(1 + random.nextInt(10)).build();
+    }
+}